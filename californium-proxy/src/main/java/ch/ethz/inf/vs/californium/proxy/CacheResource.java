@@ -2,6 +2,7 @@ package ch.ethz.inf.vs.californium.proxy;
 
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
 
 import com.google.common.cache.CacheStats;
 
@@ -24,4 +25,46 @@ public interface CacheResource {
 	public Response getResponse(Request request);
 
 	public void invalidateRequest(Request request);
+
+	/**
+	 * Attaches the exchange to a pending fetch of an identical request. If no
+	 * such fetch is pending, the request becomes the fetch that the following
+	 * identical requests wait for and the caller must forward it. Conditional
+	 * requests are never coalesced.
+	 * 
+	 * @param request
+	 *            the request that missed the cache
+	 * @param exchange
+	 *            the exchange to respond to
+	 * @return true, if the exchange waits for a pending fetch, false if the
+	 *         caller must forward the request
+	 */
+	public boolean coalesce(Request request, Exchange exchange);
+
+	/**
+	 * Answers the exchanges waiting for the fetch of the specified request
+	 * with copies of its response. The copies are not cached again, only the
+	 * response of the fetch itself.
+	 * 
+	 * @param request
+	 *            the forwarded request
+	 * @param response
+	 *            the response
+	 */
+	public void completeFetch(Request request, Response response);
+
+	/**
+	 * @return the number of requests forwarded as fetches
+	 */
+	public long getFetchCount();
+
+	/**
+	 * @return the number of requests answered by a pending fetch
+	 */
+	public long getCoalescedCount();
+
+	/**
+	 * @return the number of fetches that failed or timed out
+	 */
+	public long getFetchFailures();
 }
@@ -0,0 +1,82 @@
+package ch.ethz.inf.vs.californium.proxy;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.inf.vs.californium.coap.Response;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Keeps the response objects on the heap in a Guava cache that is limited by
+ * the number of responses.
+ *
+ * @param <K>
+ *            the type of the keys
+ */
+public class HeapResponseStore<K> implements ResponseStore<K> {
+
+	/**
+	 * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
+	 */
+	private final Cache<K, Response> cache;
+
+	/**
+	 * Instantiates a new store.
+	 *
+	 * @param size
+	 *            the maximum number of responses
+	 * @param maxAge
+	 *            the time in seconds after which a response is removed
+	 */
+	public HeapResponseStore(long size, long maxAge) {
+		// builds a new cache that:
+		// - has a limited size of size entries
+		// - removes entries after maxAge seconds from the last write
+		// - record statistics
+		cache = CacheBuilder.newBuilder().maximumSize(size).recordStats().expireAfterWrite(maxAge, TimeUnit.SECONDS).build();
+	}
+
+	@Override
+	public Response get(K key) {
+		return cache.getIfPresent(key);
+	}
+
+	@Override
+	public Response peek(K key) {
+		return cache.asMap().get(key);
+	}
+
+	@Override
+	public void put(K key, Response response) {
+		cache.put(key, response);
+	}
+
+	@Override
+	public void invalidate(K key) {
+		cache.invalidate(key);
+	}
+
+	@Override
+	public void invalidateAll() {
+		cache.invalidateAll();
+	}
+
+	@Override
+	public Set<K> keys() {
+		return new HashSet<K>(cache.asMap().keySet());
+	}
+
+	@Override
+	public long size() {
+		return cache.size();
+	}
+
+	@Override
+	public CacheStats stats() {
+		return cache.stats();
+	}
+}
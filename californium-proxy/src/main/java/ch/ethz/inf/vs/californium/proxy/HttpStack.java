@@ -34,14 +34,20 @@ package ch.ethz.inf.vs.californium.proxy;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Locale;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Exchanger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.logging.Level;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpException;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpRequestInterceptor;
@@ -52,6 +58,9 @@ import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.protocol.RequestAcceptEncoding;
 import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
@@ -60,13 +69,18 @@ import org.apache.http.impl.nio.DefaultNHttpServerConnection;
 import org.apache.http.impl.nio.DefaultNHttpServerConnectionFactory;
 import org.apache.http.impl.nio.reactor.DefaultListeningIOReactor;
 import org.apache.http.message.BasicStatusLine;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
 import org.apache.http.nio.NHttpConnectionFactory;
+import org.apache.http.nio.protocol.AbstractAsyncRequestConsumer;
 import org.apache.http.nio.protocol.BasicAsyncRequestConsumer;
 import org.apache.http.nio.protocol.BasicAsyncRequestHandler;
 import org.apache.http.nio.protocol.HttpAsyncExchange;
 import org.apache.http.nio.protocol.HttpAsyncRequestConsumer;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandler;
 import org.apache.http.nio.protocol.HttpAsyncRequestHandlerRegistry;
+import org.apache.http.nio.protocol.HttpAsyncResponseProducer;
 import org.apache.http.nio.protocol.HttpAsyncService;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.ListeningIOReactor;
@@ -85,17 +99,30 @@ import org.apache.http.protocol.ResponseServer;
 
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.resources.proxy.HttpTranslator;
 import ch.ethz.inf.vs.californium.resources.proxy.InvalidFieldException;
 import ch.ethz.inf.vs.californium.resources.proxy.InvalidMethodException;
+import ch.ethz.inf.vs.californium.resources.proxy.PayloadPipe;
+import ch.ethz.inf.vs.californium.resources.proxy.StreamingResponse;
 import ch.ethz.inf.vs.californium.resources.proxy.TranslationException;
 
 /**
  * Class encapsulating the logic of a http server. The class create a receiver
- * thread that it is always blocked on the listen primitive. For each connection
- * this thread creates a new thread that handles the client/server dialog.
+ * thread that it is always blocked on the listen primitive. The I/O reactor
+ * translates each http request into a coap request and returns immediately.
+ * The http response is submitted when the coap response arrives or when the
+ * gateway timeout, which runs on a timer shared by all requests, expires. No
+ * thread waits for a coap response.
+ * <p>
+ * If the streaming threshold is set, the bodies of requests that are larger
+ * or of unknown length are forwarded blockwise while they arrive, and
+ * responses that the coap server transfers blockwise are sent with chunked
+ * transfer encoding while the blocks arrive. Only a few blocks of such a body
+ * are held in memory. The input or output of the connection is suspended
+ * while the other side falls behind.
  * 
  * @author Francesco Corazza
  */
@@ -103,13 +130,15 @@ public class HttpStack {
 	
 	private static final Logger LOGGER = Logger.getLogger(HttpStack.class.getCanonicalName());
 	
-	private static final Response Response_NULL = new Response(null); // instead of Response.NULL // TODO
-	
 	private static final int SOCKET_TIMEOUT = NetworkConfig.getStandard().getInt(
 			NetworkConfigDefaults.HTTP_SERVER_SOCKET_TIMEOUT);
 	private static final int SOCKET_BUFFER_SIZE = NetworkConfig.getStandard().getInt(
 			NetworkConfigDefaults.HTTP_SERVER_SOCKET_BUFFER_SIZE);
 	private static final int GATEWAY_TIMEOUT = SOCKET_TIMEOUT * 3 / 4;
+	private static final int STREAMING_THRESHOLD = NetworkConfig.getStandard().getInt(
+			NetworkConfigDefaults.HTTP_STREAMING_THRESHOLD);
+	private static final int BLOCK_SIZE = NetworkConfig.getStandard().getInt(
+			NetworkConfigDefaults.DEFAULT_BLOCK_SIZE);
 	private static final String SERVER_NAME = "Californium Http Proxy";
 	
 	/**
@@ -128,7 +157,20 @@ public class HttpStack {
 	 */
 	public static final String LOCAL_RESOURCE_NAME = "local";
 
-	private final ConcurrentHashMap<Request, Exchanger<Response>> exchangeMap = new ConcurrentHashMap<Request, Exchanger<Response>>();
+	/**
+	 * The attribute of the http context that holds the consumer of a streamed
+	 * request until the request is handled.
+	 */
+	private static final String STREAMING_CONSUMER = "proxy.streaming-consumer";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/** The timer for the gateway timeouts of all http stacks. */
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+
+	private final ConcurrentHashMap<Request, PendingExchange> exchangeMap = new ConcurrentHashMap<Request, PendingExchange>();
 
 	private RequestHandler requestHandler;
 	
@@ -203,44 +245,66 @@ public class HttpStack {
 		// the http stack is intended to send back only coap responses
 
 		// retrieve the request linked to the response
-//		if (Bench_Help.DO_LOG) 
-			LOGGER.fine("Handling response for request: " + request);
+		LOGGER.fine("Handling response for request: " + request);
 
-		// fill the exchanger with the incoming response
-		Exchanger<Response> exchanger = exchangeMap.get(request);
-		if (exchanger != null) {
-			try {
-				exchanger.exchange(response);
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.info("Exchanged correctly");
-			} catch (InterruptedException e) {
-				LOGGER.log(Level.WARNING, "Exchange interrupted", e);
+		PendingExchange pending = exchangeMap.remove(request);
+		if (pending != null) {
+			pending.complete(response);
+		} else {
+			LOGGER.warning("No pending http exchange for request "+request+" (timed out or canceled)");
+		}
+	}
 
-				// remove the entry from the map
-				exchangeMap.remove(request);
-				return;
+	/*
+	 * Checks if the body of the request is streamed: it is larger than the
+	 * streaming threshold or of unknown length and its charset, if any, need
+	 * not be converted, since the blocks are forwarded unchanged.
+	 */
+	private static boolean isStreamed(HttpRequest httpRequest) {
+		if (STREAMING_THRESHOLD <= 0 || !(httpRequest instanceof HttpEntityEnclosingRequest)) {
+			return false;
+		}
+		Header contentLength = httpRequest.getFirstHeader("content-length");
+		try {
+			if (contentLength != null && Long.parseLong(contentLength.getValue().trim()) <= STREAMING_THRESHOLD) {
+				return false;
 			}
-		} else {
-			LOGGER.warning("exchanger was null for request "+request+" with hash "+request.hashCode());
+		} catch (NumberFormatException e) {
+			return false;
 		}
+		Header contentType = httpRequest.getFirstHeader("content-type");
+		if (contentType != null) {
+			try {
+				Charset charset = ContentType.parse(contentType.getValue()).getCharset();
+				return charset == null || charset.equals(UTF_8) || charset.equals(US_ASCII);
+			} catch (RuntimeException e) {
+				// a malformed content-type or an unsupported charset
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * The Class CoapResponseWorker. This thread waits a response from the lower
-	 * layers. It is the consumer of the producer/consumer pattern.
-	 * 
-	 * @author Francesco Corazza
+	 * The http exchange that waits for the response to a coap request. It is
+	 * completed exactly once: by the coap response, by the gateway timeout or
+	 * when the http client goes away. The coap request of a streamed body is
+	 * forwarded before the http exchange exists, so that its response may
+	 * arrive before the exchange is attached.
 	 */
-	private final class CoapResponseWorker extends Thread {
-		private final HttpAsyncExchange httpExchange;
+	private final class PendingExchange implements Runnable, Cancellable {
+		private volatile HttpAsyncExchange httpExchange;
 		private final HttpRequest httpRequest;
 		private final Request coapRequest;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timeout;
+
+		/** The response that has arrived before the http exchange. */
+		private Response earlyResponse;
 
 		/**
-		 * Instantiates a new coap response worker.
+		 * Instantiates a new pending exchange.
 		 * 
-		 * @param name
-		 *            the name
 		 * @param coapRequest
 		 *            the coap request
 		 * @param httpExchange
@@ -248,57 +312,64 @@ public class HttpStack {
 		 * @param httpRequest
 		 *            the http request
 		 */
-		public CoapResponseWorker(String name, Request coapRequest, HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
-			super(name);
+		public PendingExchange(Request coapRequest, HttpAsyncExchange httpExchange, HttpRequest httpRequest) {
 			this.coapRequest = coapRequest;
 			this.httpExchange = httpExchange;
 			this.httpRequest = httpRequest;
 		}
 
-		/*
-		 * (non-Javadoc)
-		 * @see java.lang.Thread#run()
-		 */
-		@Override
-		public void run() {
-			// get the exchanger
-			Exchanger<Response> exchanger = exchangeMap.get(coapRequest);
+		private void scheduleTimeout() {
+			timeout = TIMER.schedule(this, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
 
-			// if the map does not contain the key, send an error response
-			if (exchanger == null) {
-				LOGGER.warning("exchanger == null");
-				sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
-				return;
+		/**
+		 * Attaches the http exchange once the body of a streamed request has
+		 * been received. The gateway timeout starts only now.
+		 * 
+		 * @param httpExchange
+		 *            the http exchange
+		 */
+		private void attach(HttpAsyncExchange httpExchange) {
+			Response response;
+			synchronized (this) {
+				this.httpExchange = httpExchange;
+				response = earlyResponse;
+			}
+			httpExchange.setCallback(this);
+			if (response != null) {
+				respond(response);
+			} else {
+				scheduleTimeout();
 			}
+		}
 
-			// get the response
-			Response coapResponse = null;
-			try {
-				coapResponse = exchanger.exchange(Response_NULL, GATEWAY_TIMEOUT, TimeUnit.MILLISECONDS);
-			} catch (TimeoutException e) {
-				LOGGER.warning("Timeout occurred");
-				// send the timeout error message
-				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
-				return;
-			} catch (InterruptedException e) {
-				// if the thread is interrupted, terminate
-				if (isInterrupted()) {
-					LOGGER.warning("Thread interrupted");
-					sendSimpleHttpResponse(httpExchange, HttpStatus.SC_INTERNAL_SERVER_ERROR);
+		/**
+		 * Completes the exchange with the coap response or keeps the response
+		 * until the http exchange is attached.
+		 * 
+		 * @param coapResponse
+		 *            the coap response
+		 */
+		private void complete(Response coapResponse) {
+			synchronized (this) {
+				if (httpExchange == null) {
+					earlyResponse = coapResponse;
 					return;
 				}
-			} finally {
-				// remove the entry from the map
-				exchangeMap.remove(coapRequest);
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.finer("Entry removed from map");
 			}
+			respond(coapResponse);
+		}
 
-			if (coapResponse == null) {
-				LOGGER.warning("No coap response");
-				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_NOT_FOUND);
-				return;
-			}
+		/**
+		 * Translates the coap response and submits the http response.
+		 * 
+		 * @param coapResponse
+		 *            the coap response
+		 */
+		private void respond(Response coapResponse) {
+			if (!completed.compareAndSet(false, true)) return;
+			ScheduledFuture<?> t = timeout;
+			if (t != null) t.cancel(false);
 
 			// get the sample http response
 			HttpResponse httpResponse = httpExchange.getResponse();
@@ -307,17 +378,268 @@ public class HttpStack {
 				// translate the coap response in an http response
 				HttpTranslator.getHttpResponse(httpRequest, coapResponse, httpResponse);
 
-//				if (Bench_Help.DO_LOG) 
-					LOGGER.finer("Outgoing http response: " + httpResponse.getStatusLine());
+				LOGGER.finer("Outgoing http response: " + httpResponse.getStatusLine());
 			} catch (TranslationException e) {
 				LOGGER.warning("Failed to translate coap response to http response: " + e.getMessage());
 				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TRANSLATION_ERROR);
 				return;
 			}
 
+			// stream the blocks of the representation as chunked body
+			if (coapResponse instanceof StreamingResponse && httpResponse.getEntity() != null) {
+				// the blocks are not converted to another charset
+				String contentType = HttpTranslator.getHttpContentType(coapResponse).toString();
+				BasicHttpEntity entity = new BasicHttpEntity();
+				entity.setChunked(true);
+				entity.setContentType(contentType);
+				httpResponse.setEntity(entity);
+				httpResponse.setHeader("content-type", contentType);
+				PayloadPipe body = ((StreamingResponse) coapResponse).openBody();
+				httpExchange.submitResponse(new StreamingResponseProducer(httpResponse, body));
+				return;
+			}
+
 			// send the response
 			httpExchange.submitResponse();
 		}
+
+		/*
+		 * The gateway timeout has expired.
+		 */
+		@Override
+		public void run() {
+			if (exchangeMap.remove(coapRequest, this) && completed.compareAndSet(false, true)) {
+				LOGGER.warning("Timeout occurred");
+				coapRequest.cancel();
+				// send the timeout error message
+				sendSimpleHttpResponse(httpExchange, HttpTranslator.STATUS_TIMEOUT);
+			}
+		}
+
+		/*
+		 * The http client has closed the connection.
+		 */
+		@Override
+		public boolean cancel() {
+			if (exchangeMap.remove(coapRequest, this) && completed.compareAndSet(false, true)) {
+				LOGGER.fine("Http exchange canceled, cancel coap request");
+				ScheduledFuture<?> t = timeout;
+				if (t != null) t.cancel(false);
+				coapRequest.cancel();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Forwards the body of an http request while it arrives. The coap request
+	 * is forwarded as soon as the head of the http request has arrived and its
+	 * body is written into a pipe of two blocks, from which the coap client
+	 * sends it blockwise. The input of the connection is suspended while the
+	 * pipe is full. If the request cannot be translated or the coap server
+	 * has responded before the end of the body, the rest of the body is
+	 * discarded.
+	 */
+	private final class StreamingRequestConsumer extends AbstractAsyncRequestConsumer<HttpRequest> implements PayloadPipe.Listener {
+		private final String localResource;
+		private final boolean proxyingEnabled;
+		private final PayloadPipe body = new PayloadPipe(2 * BLOCK_SIZE);
+		private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+		private HttpRequest httpRequest;
+		private PendingExchange pending;
+		private int errorStatus;
+		private volatile IOControl ioctrl;
+
+		public StreamingRequestConsumer(String localResource, boolean proxyingEnabled) {
+			this.localResource = localResource;
+			this.proxyingEnabled = proxyingEnabled;
+		}
+
+		@Override
+		protected void onRequestReceived(HttpRequest httpRequest) throws HttpException, IOException {
+			LOGGER.finer("Incoming streamed http request: " + httpRequest.getRequestLine());
+			this.httpRequest = httpRequest;
+			try {
+				// translate the head of the request in a coap request
+				Request coapRequest = HttpTranslator.getStreamingRequest(httpRequest, localResource, proxyingEnabled, body);
+
+				// the http exchange is attached when the body is complete
+				pending = new PendingExchange(coapRequest, null, httpRequest);
+				exchangeMap.put(coapRequest, pending);
+				body.setWriter(this);
+
+				// send the coap request to the upper layers
+				doReceiveMessage(coapRequest);
+			} catch (InvalidMethodException e) {
+				LOGGER.warning("Method not implemented" + e.getMessage());
+				errorStatus = HttpTranslator.STATUS_WRONG_METHOD;
+			} catch (InvalidFieldException e) {
+				LOGGER.warning("Request malformed" + e.getMessage());
+				errorStatus = HttpTranslator.STATUS_URI_MALFORMED;
+			} catch (TranslationException e) {
+				LOGGER.warning("Failed to translate the http request in a valid coap request: " + e.getMessage());
+				errorStatus = HttpTranslator.STATUS_TRANSLATION_ERROR;
+			}
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) {
+			// the body is read from the decoder
+		}
+
+		@Override
+		protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+			this.ioctrl = ioctrl;
+			while (true) {
+				buffer.clear();
+				if (pending == null || body.isAborted()) {
+					// discard the body
+					if (decoder.read(buffer) <= 0) {
+						return;
+					}
+					continue;
+				}
+				int free = body.getFree();
+				if (free == 0) {
+					ioctrl.suspendInput();
+					// check for room that has been made while suspending
+					if (body.getFree() > 0 || body.isAborted()) {
+						ioctrl.requestInput();
+					}
+					return;
+				}
+				buffer.limit(Math.min(free, buffer.capacity()));
+				if (decoder.read(buffer) <= 0) {
+					return;
+				}
+				buffer.flip();
+				body.write(buffer);
+			}
+		}
+
+		/*
+		 * The coap client has read from the body or given up on it.
+		 */
+		@Override
+		public void onReady(PayloadPipe pipe) {
+			IOControl control = ioctrl;
+			if (control != null) {
+				control.requestInput();
+			}
+		}
+
+		@Override
+		protected HttpRequest buildResult(HttpContext httpContext) {
+			body.close();
+			// the handler attaches the http exchange
+			httpContext.setAttribute(STREAMING_CONSUMER, this);
+			return httpRequest;
+		}
+
+		@Override
+		protected void releaseResources() {
+			if (!body.isClosed()) {
+				// the http client has gone away before the end of the body
+				body.abort();
+				if (pending != null) {
+					pending.cancel();
+				}
+			}
+		}
+
+		private void handle(HttpAsyncExchange httpExchange) {
+			if (pending != null) {
+				pending.attach(httpExchange);
+			} else {
+				sendSimpleHttpResponse(httpExchange, errorStatus);
+			}
+		}
+	}
+
+	/**
+	 * Produces the body of an http response from the pipe into which the
+	 * blocks of a coap response are fetched. The output of the connection is
+	 * suspended while the pipe is empty. If the transfer from the coap server
+	 * fails, the connection is closed so that the http client notices the
+	 * truncated body.
+	 */
+	private static final class StreamingResponseProducer implements HttpAsyncResponseProducer, PayloadPipe.Listener {
+		private final HttpResponse httpResponse;
+		private final PayloadPipe body;
+		private final ByteBuffer chunk = ByteBuffer.allocate(BLOCK_SIZE);
+		private volatile IOControl ioctrl;
+
+		public StreamingResponseProducer(HttpResponse httpResponse, PayloadPipe body) {
+			this.httpResponse = httpResponse;
+			this.body = body;
+			chunk.flip();
+			body.setReader(this);
+		}
+
+		@Override
+		public HttpResponse generateResponse() {
+			return httpResponse;
+		}
+
+		@Override
+		public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+			this.ioctrl = ioctrl;
+			while (true) {
+				if (!chunk.hasRemaining()) {
+					chunk.clear();
+					int length = body.read(chunk);
+					chunk.flip();
+					if (length < 0) {
+						if (body.isAborted()) {
+							throw new IOException("The transfer of the coap response has failed");
+						}
+						encoder.complete();
+						return;
+					}
+					if (length == 0) {
+						ioctrl.suspendOutput();
+						// check for blocks that have arrived while suspending
+						if (body.getAvailable() > 0 || body.isClosed() || body.isAborted()) {
+							ioctrl.requestOutput();
+						}
+						return;
+					}
+				}
+				encoder.write(chunk);
+				if (chunk.hasRemaining()) {
+					// the connection cannot take more now
+					return;
+				}
+			}
+		}
+
+		/*
+		 * A block has arrived, the transfer is complete or has failed.
+		 */
+		@Override
+		public void onReady(PayloadPipe pipe) {
+			IOControl control = ioctrl;
+			if (control != null) {
+				control.requestOutput();
+			}
+		}
+
+		@Override
+		public void responseCompleted(HttpContext httpContext) {
+		}
+
+		@Override
+		public void failed(Exception e) {
+			body.abort();
+		}
+
+		@Override
+		public void close() {
+			if (!body.isDrained()) {
+				body.abort();
+			}
+		}
 	}
 
 	private class HttpServer {
@@ -451,29 +773,32 @@ public class HttpStack {
 			 */
 			@Override
 			public void handle(HttpRequest httpRequest, HttpAsyncExchange httpExchange, HttpContext httpContext) throws HttpException, IOException {
+				StreamingRequestConsumer consumer = (StreamingRequestConsumer) httpContext.removeAttribute(STREAMING_CONSUMER);
+				if (consumer != null) {
+					// the request has been forwarded while its body arrived
+					consumer.handle(httpExchange);
+					return;
+				}
+
 //				if (Bench_Help.DO_LOG) 
 					LOGGER.finer("Incoming http request: " + httpRequest.getRequestLine());
 
 				try {
-					// translate the request in a valid coap request
-					Request coapRequest = HttpTranslator.getCoapRequest(httpRequest, localResource, proxyingEnabled);
+					// translate the request in a valid coap request, whose
+					// response may be streamed if streaming is enabled
+					Request coapRequest = STREAMING_THRESHOLD > 0 && proxyingEnabled
+							? HttpTranslator.getStreamingRequest(httpRequest, localResource, proxyingEnabled, null)
+							: HttpTranslator.getCoapRequest(httpRequest, localResource, proxyingEnabled);
 //					if (Bench_Help.DO_LOG) 
 						LOGGER.info("Received HTTP request and translate to "+coapRequest);
 
-					// fill the maps
-					exchangeMap.put(coapRequest, new Exchanger<Response>());
-//					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Fill exchange with: " + coapRequest+" with hash="+coapRequest.hashCode());
-
-					// the new thread will wait for the completion of
-					// the coap request
-					Thread worker = new CoapResponseWorker("HttpStack Worker", coapRequest, httpExchange, httpRequest);
-
-					// starting the "consumer thread" that will sleep waiting
-					// for the producer
-					worker.start();
-//					if (Bench_Help.DO_LOG) 
-						LOGGER.finer("Started thread 'httpStack worker' to wait the response");
+					// remember the http exchange until the coap response
+					// arrives or the gateway timeout expires
+					PendingExchange pending = new PendingExchange(coapRequest, httpExchange, httpRequest);
+					exchangeMap.put(coapRequest, pending);
+					httpExchange.setCallback(pending);
+					pending.scheduleTimeout();
+					LOGGER.finer("Fill exchange with: " + coapRequest+" with hash="+coapRequest.hashCode());
 
 					// send the coap request to the upper layers
 					doReceiveMessage(coapRequest);
@@ -505,6 +830,10 @@ public class HttpStack {
 			 */
 			@Override
 			public HttpAsyncRequestConsumer<HttpRequest> processRequest(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
+				// Forward large bodies while they arrive
+				if (proxyingEnabled && isStreamed(httpRequest)) {
+					return new StreamingRequestConsumer(localResource, proxyingEnabled);
+				}
 				// Buffer request content in memory for simplicity
 				return new BasicAsyncRequestConsumer();
 			}
@@ -0,0 +1,353 @@
+package ch.ethz.inf.vs.californium.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.serializer.DataParser;
+import ch.ethz.inf.vs.californium.network.serializer.DataSerializer;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * Keeps the responses serialized in the CoAP message format in direct byte
+ * buffers outside of the heap, so that the cache can hold many responses
+ * without burdening the garbage collector. The heap only holds an index with
+ * the location, length and arrival time of each response. A response is
+ * parsed again on every hit.
+ * <p>
+ * The memory is allocated in slabs of equal size up to the capacity in bytes.
+ * Each slab is divided into chunks of one size class, whose sizes are the
+ * powers of two from 64 bytes up to the slab size, and each response takes
+ * the smallest chunk it fits in. When a size class has no free chunk and no
+ * slab can be allocated anymore, the least recently used response of that
+ * size class is evicted. A size class that has no slab at all takes a slab
+ * from the size class with the most slabs and evicts the responses in it.
+ * Responses larger than a slab are not stored.
+ *
+ * @param <K>
+ *            the type of the keys
+ */
+public class OffHeapResponseStore<K> implements ResponseStore<K> {
+
+	private static final Logger LOGGER = Logger.getLogger(OffHeapResponseStore.class.getCanonicalName());
+
+	/** The size of the smallest chunk. */
+	private static final int MIN_CHUNK_SIZE = 64;
+
+	/** The default size of a slab. */
+	private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+	private final int slabSize;
+	private final int maxSlabs;
+	private final SizeClass<K>[] sizeClasses;
+
+	/** The index of the stored responses. */
+	private final HashMap<K, Slot<K>> index = new HashMap<K, Slot<K>>();
+
+	private int slabCount;
+	private long hitCount;
+	private long missCount;
+	private long putCount;
+	private long evictionCount;
+
+	/**
+	 * Instantiates a new store with slabs of 1 MiB or, if the capacity is
+	 * smaller, a single slab.
+	 *
+	 * @param capacity
+	 *            the memory in bytes
+	 */
+	public OffHeapResponseStore(long capacity) {
+		this(capacity, (int) Math.min(DEFAULT_SLAB_SIZE, Long.highestOneBit(Math.max(capacity, MIN_CHUNK_SIZE))));
+	}
+
+	/**
+	 * Instantiates a new store.
+	 *
+	 * @param capacity
+	 *            the memory in bytes
+	 * @param slabSize
+	 *            the size of a slab, a power of two of at least 64 bytes
+	 */
+	@SuppressWarnings("unchecked")
+	public OffHeapResponseStore(long capacity, int slabSize) {
+		if (slabSize < MIN_CHUNK_SIZE || Integer.bitCount(slabSize) != 1)
+			throw new IllegalArgumentException("The slab size must be a power of two of at least "+MIN_CHUNK_SIZE+" bytes but is "+slabSize);
+		if (capacity < slabSize)
+			throw new IllegalArgumentException("The capacity "+capacity+" is smaller than a slab of "+slabSize+" bytes");
+		this.slabSize = slabSize;
+		this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, capacity / slabSize);
+		int count = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+		this.sizeClasses = new SizeClass[count];
+		for (int i = 0; i < count; i++)
+			sizeClasses[i] = new SizeClass<K>(MIN_CHUNK_SIZE << i, slabSize);
+	}
+
+	@Override
+	public synchronized Response get(K key) {
+		Slot<K> slot = index.get(key);
+		if (slot == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		SizeClass<K> sizeClass = sizeClasses[slot.sizeClass];
+		sizeClass.unlink(slot);
+		sizeClass.link(slot);
+		return read(slot);
+	}
+
+	@Override
+	public synchronized Response peek(K key) {
+		Slot<K> slot = index.get(key);
+		return slot != null ? read(slot) : null;
+	}
+
+	@Override
+	public void put(K key, Response response) {
+		// serialize outside of the lock
+		byte[] bytes = serialize(response);
+		synchronized (this) {
+			remove(key);
+			int classIndex = getSizeClass(bytes.length);
+			if (classIndex < 0) {
+				LOGGER.fine("Response of "+bytes.length+" bytes is larger than a slab");
+				return;
+			}
+			SizeClass<K> sizeClass = sizeClasses[classIndex];
+			int chunk = allocate(sizeClass);
+			if (chunk < 0) {
+				LOGGER.fine("No memory for a response of "+bytes.length+" bytes");
+				return;
+			}
+			ByteBuffer buffer = sizeClass.slabs.get(chunk / sizeClass.chunksPerSlab).duplicate();
+			buffer.position((chunk % sizeClass.chunksPerSlab) * sizeClass.chunkSize);
+			buffer.put(bytes);
+
+			Slot<K> slot = new Slot<K>(key, classIndex, chunk, bytes.length, response.getTimestamp());
+			index.put(key, slot);
+			sizeClass.link(slot);
+			putCount++;
+		}
+	}
+
+	@Override
+	public synchronized void invalidate(K key) {
+		remove(key);
+	}
+
+	@Override
+	public synchronized void invalidateAll() {
+		for (SizeClass<K> sizeClass : sizeClasses) {
+			sizeClass.free.clear();
+			for (int chunk = sizeClass.slabs.size() * sizeClass.chunksPerSlab - 1; chunk >= 0; chunk--)
+				sizeClass.free.add(chunk);
+			sizeClass.head = sizeClass.tail = null;
+		}
+		index.clear();
+	}
+
+	@Override
+	public synchronized Set<K> keys() {
+		return new HashSet<K>(index.keySet());
+	}
+
+	@Override
+	public synchronized long size() {
+		return index.size();
+	}
+
+	@Override
+	public synchronized CacheStats stats() {
+		return new CacheStats(hitCount, missCount, putCount, 0, 0, evictionCount);
+	}
+
+	/**
+	 * @return the number of bytes allocated outside of the heap
+	 */
+	public synchronized long getAllocatedBytes() {
+		return (long) slabCount * slabSize;
+	}
+
+	/**
+	 * @return the number of bytes taken by the stored responses
+	 */
+	public synchronized long getUsedBytes() {
+		long used = 0;
+		for (Slot<K> slot : index.values())
+			used += slot.length;
+		return used;
+	}
+
+	private void remove(K key) {
+		Slot<K> slot = index.remove(key);
+		if (slot != null) {
+			SizeClass<K> sizeClass = sizeClasses[slot.sizeClass];
+			sizeClass.unlink(slot);
+			sizeClass.free.add(slot.chunk);
+		}
+	}
+
+	private int getSizeClass(int length) {
+		for (int i = 0; i < sizeClasses.length; i++)
+			if (length <= sizeClasses[i].chunkSize)
+				return i;
+		return -1;
+	}
+
+	/*
+	 * Returns a free chunk of the size class. It allocates a new slab while
+	 * the capacity allows, then evicts the least recently used response of the
+	 * size class or takes a slab from another size class.
+	 */
+	private int allocate(SizeClass<K> sizeClass) {
+		if (sizeClass.free.isEmpty()) {
+			if (slabCount < maxSlabs) {
+				slabCount++;
+				sizeClass.addSlab(ByteBuffer.allocateDirect(slabSize));
+			} else if (sizeClass.tail != null) {
+				evictionCount++;
+				remove(sizeClass.tail.key);
+			} else {
+				ByteBuffer slab = takeSlab();
+				if (slab == null)
+					return -1;
+				sizeClass.addSlab(slab);
+			}
+		}
+		return sizeClass.free.remove(sizeClass.free.size() - 1);
+	}
+
+	/*
+	 * Takes the last slab of the size class with the most slabs and evicts the
+	 * responses in it.
+	 */
+	private ByteBuffer takeSlab() {
+		SizeClass<K> victim = null;
+		for (SizeClass<K> sizeClass : sizeClasses)
+			if (victim == null || sizeClass.slabs.size() > victim.slabs.size())
+				victim = sizeClass;
+		if (victim == null || victim.slabs.isEmpty())
+			return null;
+
+		int first = (victim.slabs.size() - 1) * victim.chunksPerSlab;
+		List<K> evicted = new ArrayList<K>();
+		for (Slot<K> slot = victim.head; slot != null; slot = slot.next)
+			if (slot.chunk >= first)
+				evicted.add(slot.key);
+		for (K key : evicted)
+			remove(key);
+		evictionCount += evicted.size();
+
+		// forget the free chunks of the slab
+		for (int i = victim.free.size() - 1; i >= 0; i--)
+			if (victim.free.get(i) >= first)
+				victim.free.remove(i);
+		return victim.slabs.remove(victim.slabs.size() - 1);
+	}
+
+	private Response read(Slot<K> slot) {
+		SizeClass<K> sizeClass = sizeClasses[slot.sizeClass];
+		ByteBuffer buffer = sizeClass.slabs.get(slot.chunk / sizeClass.chunksPerSlab).duplicate();
+		buffer.position((slot.chunk % sizeClass.chunksPerSlab) * sizeClass.chunkSize);
+		byte[] bytes = new byte[slot.length];
+		buffer.get(bytes);
+
+		Response response = new DataParser(bytes).parseResponse();
+		response.setType(null);
+		response.setMID(Response.NONE);
+		response.setToken(null);
+		response.setTimestamp(slot.timestamp);
+		return response;
+	}
+
+	private static byte[] serialize(Response response) {
+		// the serializer needs a type, an MID and a token
+		Response copy = new Response(response.getCode());
+		copy.setType(Type.NON);
+		copy.setMID(0);
+		copy.setToken(new byte[0]);
+		copy.setOptions(new OptionSet(response.getOptions()));
+		copy.setPayload(response.getPayload());
+		return new DataSerializer().serializeResponse(copy);
+	}
+
+	/**
+	 * The slabs, the free chunks and the recency list of one chunk size.
+	 */
+	private static final class SizeClass<K> {
+
+		private final int chunkSize;
+		private final int chunksPerSlab;
+		private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+		/** The free chunks as a stack. */
+		private final List<Integer> free = new ArrayList<Integer>();
+
+		/** The most and the least recently used responses. */
+		private Slot<K> head;
+		private Slot<K> tail;
+
+		private SizeClass(int chunkSize, int slabSize) {
+			this.chunkSize = chunkSize;
+			this.chunksPerSlab = slabSize / chunkSize;
+		}
+
+		private void addSlab(ByteBuffer slab) {
+			int first = slabs.size() * chunksPerSlab;
+			slabs.add(slab);
+			for (int chunk = first + chunksPerSlab - 1; chunk >= first; chunk--)
+				free.add(chunk);
+		}
+
+		private void link(Slot<K> slot) {
+			slot.prev = null;
+			slot.next = head;
+			if (head != null)
+				head.prev = slot;
+			head = slot;
+			if (tail == null)
+				tail = slot;
+		}
+
+		private void unlink(Slot<K> slot) {
+			if (slot.prev != null)
+				slot.prev.next = slot.next;
+			else head = slot.next;
+			if (slot.next != null)
+				slot.next.prev = slot.prev;
+			else tail = slot.prev;
+			slot.prev = slot.next = null;
+		}
+	}
+
+	/**
+	 * The entry of the index and of the recency list of its size class.
+	 */
+	private static final class Slot<K> {
+
+		private final K key;
+		private final int sizeClass;
+		private final int chunk;
+		private final int length;
+		private final long timestamp;
+		private Slot<K> prev;
+		private Slot<K> next;
+
+		private Slot(K key, int sizeClass, int chunk, int length, long timestamp) {
+			this.key = key;
+			this.sizeClass = sizeClass;
+			this.chunk = chunk;
+			this.length = length;
+			this.timestamp = timestamp;
+		}
+	}
+}
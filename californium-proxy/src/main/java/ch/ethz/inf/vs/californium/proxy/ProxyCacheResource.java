@@ -34,26 +34,37 @@ package ch.ethz.inf.vs.californium.proxy;
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
 import ch.ethz.inf.vs.californium.coap.OptionNumberRegistry;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.Exchange;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.resources.proxy.CoapTranslator;
+import ch.ethz.inf.vs.californium.resources.proxy.StreamingResponse;
+import ch.ethz.inf.vs.californium.resources.proxy.TranslationException;
 import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
 import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
-import com.google.common.cache.LoadingCache;
 import com.google.common.primitives.Ints;
 
 /**
@@ -80,9 +91,46 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 			NetworkConfig.getStandard().getInt(NetworkConfigDefaults.HTTP_CACHE_SIZE);
 
 	/**
-	 * The cache. http://code.google.com/p/guava-libraries/wiki/CachesExplained
+	 * The time in seconds after the expiration of a response during which the
+	 * proxy still serves it while it revalidates the response in the
+	 * background.
 	 */
-	private final LoadingCache<CacheKey, Response> responseCache;
+	private static final int STALE_GRACE = 
+			NetworkConfig.getStandard().getInt(NetworkConfigDefaults.HTTP_CACHE_STALE_GRACE);
+
+	/**
+	 * The time after which the requests waiting for a fetch are answered with
+	 * 5.04 (Gateway Timeout).
+	 */
+	private static final int FETCH_TIMEOUT = 
+			NetworkConfig.getStandard().getInt(NetworkConfigDefaults.PROXY_FORWARD_TIMEOUT);
+
+	/** The timer for the fetch timeouts of all caches. */
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+
+	/**
+	 * The storage of the cached responses.
+	 */
+	private final ResponseStore<CacheKey> responseCache;
+
+	/** The pending fetches per key and per forwarded request. */
+	private final ConcurrentHashMap<CacheKey, Fetch> fetches = new ConcurrentHashMap<CacheKey, Fetch>();
+	private final ConcurrentHashMap<Request, Fetch> fetchesByRequest = new ConcurrentHashMap<Request, Fetch>();
+
+	/** The waiting requests that are being answered with a copy of a fetch. */
+	private final ConcurrentHashMap<Request, Boolean> answeredByFetch = new ConcurrentHashMap<Request, Boolean>();
+
+	private final AtomicLong fetchCount = new AtomicLong();
+	private final AtomicLong coalescedCount = new AtomicLong();
+	private final AtomicLong fetchFailures = new AtomicLong();
+
+	/** The keys of the responses that are being revalidated. */
+	private final ConcurrentHashMap<CacheKey, Boolean> revalidations = new ConcurrentHashMap<CacheKey, Boolean>();
+
+	private final AtomicLong staleCount = new AtomicLong();
+	private final AtomicLong revalidationCount = new AtomicLong();
+	private final AtomicLong validatedCount = new AtomicLong();
 
 	private boolean enabled = false;
 
@@ -100,27 +148,15 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 		super("cache");
 		this.enabled = enabled;
 
-		// builds a new cache that:
-		// - has a limited size of CACHE_SIZE entries
-		// - removes entries after CACHE_RESPONSE_MAX_AGE seconds from the last
-		// write
-		// - record statistics
-		responseCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).recordStats().expireAfterWrite(CACHE_RESPONSE_MAX_AGE, TimeUnit.SECONDS).build(new CacheLoader<CacheKey, Response>() {
-			@Override
-			public Response load(CacheKey request) throws NullPointerException {
-				// retreive the response from the incoming request, no
-				// exceptions are thrown
-				Response cachedResponse = request.getResponse();
-
-				// check for null and raise an exception that clients must
-				// handle
-				if (cachedResponse == null) {
-					throw new NullPointerException();
-				}
-
-				return cachedResponse;
-			}
-		});
+		// keep the responses off the heap if memory is configured for it,
+		// otherwise keep up to CACHE_SIZE response objects for at most
+		// CACHE_RESPONSE_MAX_AGE seconds
+		long offHeapBytes = NetworkConfig.getStandard().getLong(NetworkConfigDefaults.HTTP_CACHE_OFF_HEAP_BYTES);
+		if (offHeapBytes > 0) {
+			responseCache = new OffHeapResponseStore<CacheKey>(offHeapBytes);
+		} else {
+			responseCache = new HeapResponseStore<CacheKey>(CACHE_SIZE, CACHE_RESPONSE_MAX_AGE);
+		}
 	}
 
 	/**
@@ -134,11 +170,21 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 	 */
 	@Override
 	public void cacheResponse(Request request, Response response) {
+		// the response of the fetch is stored once, not once per copy
+		if (answeredByFetch.containsKey(request)) {
+			return;
+		}
+
 		// enable or disable the caching (debug purposes)
 		if (!enabled) {
 			return;
 		}
 
+		// a streamed response holds only the first block of its representation
+		if (response instanceof StreamingResponse) {
+			return;
+		}
+
 		// only the response with success codes should be cached
 		ResponseCode code = response.getCode();
 		if (ResponseCode.isSuccess(code)) {
@@ -159,44 +205,29 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 				// increase the max-age value according to the new response
 //				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
 				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption != null) {
-					// get the cached response
-					Response cachedResponse = responseCache.getUnchecked(cacheKey);
-
-					// calculate the new parameters
-					long newCurrentTime = response.getTimestamp();
-					int newMaxAge = maxAgeOption.intValue();
-
-					// set the new parameters
-//					cachedResponse.getFirstOption(OptionNumberRegistry.MAX_AGE).setIntValue(newMaxAge);
-					cachedResponse.getOptions().setMaxAge(newMaxAge);
-					cachedResponse.setTimestamp(newCurrentTime);
-
-					LOGGER.finer("Updated cached response");
+				// get the cached response
+				Response cachedResponse = cacheKey != null ? responseCache.get(cacheKey) : null;
+				if (maxAgeOption != null && cachedResponse != null) {
+					responseCache.put(cacheKey, refresh(cachedResponse, response));
 				} else {
-					LOGGER.warning("No max-age option set in response: " + response);
+					LOGGER.warning("No max-age option or cached response for: " + response);
 				}
 			} else if (code == ResponseCode.CONTENT) {
 				// set max-age if not set
 //				Option maxAgeOption = response.getFirstOption(OptionNumberRegistry.MAX_AGE);
-				Long maxAgeOption = response.getOptions().getMaxAge();
-				if (maxAgeOption == null) {
+				if (!response.getOptions().hasMaxAge()) {
 					response.getOptions().setMaxAge(OptionNumberRegistry.DEFAULT_MAX_AGE);
 				}
 
-				if (maxAgeOption > 0) {
-					// cache the request
+				if (response.getOptions().getMaxAge() > 0 && cacheKey != null) {
+					// the response expires max-age seconds after its arrival
+					response.setTimestamp(System.nanoTime());
+
+					// cache the request, replacing a stale response
 					try {
-						// Caches loaded by a CacheLoader will call
-						// CacheLoader.load(K) to load new values into the cache
-						// when used the get method.
-						Response responseInserted = responseCache.get(cacheKey);
-						if (responseInserted != null) {
-//							if (Bench_Help.DO_LOG) 
-								LOGGER.finer("Cached response");
-						} else {
-							LOGGER.warning("Failed to insert the response in the cache");
-						}
+						responseCache.put(cacheKey, response);
+//						if (Bench_Help.DO_LOG) 
+							LOGGER.finer("Cached response");
 					} catch (Exception e) {
 						// swallow
 						LOGGER.log(Level.WARNING, "Exception while inserting the response in the cache", e);
@@ -218,6 +249,78 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 		return responseCache.stats();
 	}
 
+	/**
+	 * Attaches the exchange to a pending fetch of an identical GET request,
+	 * i.e., a request with the same proxy-uri, accept option and payload. The
+	 * first request that misses the cache becomes the fetch and the caller
+	 * forwards it. The identical requests that arrive before its response are
+	 * answered with copies of it, so that a constrained server receives a
+	 * single request. A conditional request is always forwarded, since its
+	 * response depends on the ETags that the client holds.
+	 */
+	@Override
+	public boolean coalesce(Request request, Exchange exchange) {
+		if (!enabled || request.getCode() != Code.GET) {
+			return false;
+		}
+		OptionSet options = request.getOptions();
+		if (options.getETagCount() > 0 || options.getIfMatchCount() > 0 || options.hasIfNoneMatch()) {
+			return false;
+		}
+
+		CacheKey cacheKey;
+		try {
+			cacheKey = CacheKey.fromRequest(request);
+		} catch (URISyntaxException e) {
+			LOGGER.warning("Cannot create the cache key: " + e.getMessage());
+			return false;
+		}
+
+		Fetch fetch = new Fetch(cacheKey, request);
+		while (true) {
+			Fetch pending = fetches.putIfAbsent(cacheKey, fetch);
+			if (pending == null) {
+				fetchesByRequest.put(request, fetch);
+				fetch.scheduleTimeout();
+				fetchCount.incrementAndGet();
+				return false;
+			}
+			if (pending.attach(exchange)) {
+				LOGGER.finer("Request waits for pending fetch");
+				coalescedCount.incrementAndGet();
+				return true;
+			}
+			// the pending fetch has just completed
+			fetches.remove(cacheKey, pending);
+		}
+	}
+
+	@Override
+	public void completeFetch(Request request, Response response) {
+		Fetch fetch = fetchesByRequest.remove(request);
+		if (fetch != null) {
+			if (!ResponseCode.isSuccess(response.getCode())) {
+				fetchFailures.incrementAndGet();
+			}
+			fetch.complete(response);
+		}
+	}
+
+	@Override
+	public long getFetchCount() {
+		return fetchCount.get();
+	}
+
+	@Override
+	public long getCoalescedCount() {
+		return coalescedCount.get();
+	}
+
+	@Override
+	public long getFetchFailures() {
+		return fetchFailures.get();
+	}
+
 	/**
 	 * Retrieves the response in the cache that matches the request passed, null
 	 * otherwise. The method creates the key for the cache starting from the
@@ -238,7 +341,7 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 		CacheKey cacheKey = null;
 		try {
 			for (CacheKey acceptKey : CacheKey.fromAcceptOptions(request)) {
-				response = responseCache.getIfPresent(acceptKey);
+				response = responseCache.get(acceptKey);
 				cacheKey = acceptKey;
 
 				if (response != null) {
@@ -256,23 +359,28 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 
 			// check if the response is expired
 			long currentTime = System.nanoTime();
-			int nanosLeft = getRemainingLifetime(response, currentTime);
-			if (nanosLeft > 0) {
+			int secondsLeft = getRemainingLifetime(response, currentTime);
+			if (secondsLeft > 0) {
 				// if the response can be used, then update its max-age to
 				// consider the aging of the response while in the cache
-				response.getOptions().setMaxAge(nanosLeft);
+				response.getOptions().setMaxAge(secondsLeft);
 				// set the current time as the response timestamp
 				response.setTimestamp(currentTime);
+			} else if (secondsLeft > -STALE_GRACE && revalidate(request, cacheKey, response)) {
+				LOGGER.finer("Serving stale response while revalidating");
+				staleCount.incrementAndGet();
+
+				// the client must not reuse the stale response
+				Response stale = new Response(response.getCode());
+				stale.setOptions(new OptionSet(response.getOptions()));
+				stale.getOptions().setMaxAge(0);
+				stale.setPayload(response.getPayload());
+				stale.setTimestamp(currentTime);
+				response = stale;
 			} else {
 				LOGGER.finer("Expired response");
-
-				// try to validate the response
-				response = validate(cacheKey);
-				if (response != null) {
-					LOGGER.finer("Validation successful");
-				} else {
-					invalidateRequest(cacheKey);
-				}
+				invalidateRequest(cacheKey);
+				response = null;
 			}
 		}
 
@@ -308,13 +416,21 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 
 		// get cache values
 		builder.append("\nCached values:\n");
-		for (CacheKey cachedRequest : responseCache.asMap().keySet()) {
-			Response response = responseCache.asMap().get(cachedRequest);
+		for (CacheKey cachedRequest : responseCache.keys()) {
+			Response response = responseCache.peek(cachedRequest);
+			if (response == null) {
+				continue;
+			}
 
 			builder.append(cachedRequest.getProxyUri().toString() + " (" + 
 					MediaTypeRegistry.toString(cachedRequest.getMediaType()) + ") > " + getRemainingLifetime(response) + " seconds | (" + cachedRequest.getMediaType() + ")\n");
 		}
 
+		builder.append(String.format("\nFetches: %d, coalesced requests: %d, failed fetches: %d, pending: %d\n",
+				fetchCount.get(), coalescedCount.get(), fetchFailures.get(), fetches.size()));
+		builder.append(String.format("Stale responses served: %d, revalidations: %d, validated: %d\n",
+				staleCount.get(), revalidationCount.get(), validatedCount.get()));
+
 		exchange.respond(ResponseCode.CONTENT, builder.toString());
 	}
 
@@ -363,12 +479,201 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 	}
 
 	private void invalidateRequest(List<CacheKey> cacheKeys) {
-		responseCache.invalidateAll(cacheKeys);
+		for (CacheKey cacheKey : cacheKeys) {
+			responseCache.invalidate(cacheKey);
+		}
 	}
 
-	private Response validate(CacheKey cachedRequest) {
-		// TODO
-		return null;
+	/**
+	 * Sends a request with the ETag of the cached response to the server in
+	 * the background, unless one is already pending. A 2.03 (Valid) response
+	 * refreshes the cached response in place, a 2.05 (Content) response
+	 * replaces it and any other outcome invalidates it. Only coap servers are
+	 * revalidated.
+	 * 
+	 * @param request
+	 *            the request that found the stale response
+	 * @param cacheKey
+	 *            the key of the stale response
+	 * @param cachedResponse
+	 *            the stale response
+	 * @return true, if a revalidation is pending
+	 */
+	private boolean revalidate(Request request, final CacheKey cacheKey, final Response cachedResponse) {
+		if (request.getCode() != Code.GET || !request.getOptions().getProxyURI().startsWith("coap")) {
+			return false;
+		}
+		if (revalidations.putIfAbsent(cacheKey, Boolean.TRUE) != null) {
+			return true;
+		}
+
+		final Request revalidation;
+		try {
+			revalidation = CoapTranslator.getRequest(request);
+		} catch (TranslationException e) {
+			LOGGER.warning("Cannot revalidate the response: " + e.getMessage());
+			revalidations.remove(cacheKey);
+			return false;
+		}
+		// a confirmable request ends with a response or a timeout
+		revalidation.setConfirmable(true);
+		revalidation.getOptions().clearETags();
+		for (byte[] etag : cachedResponse.getOptions().getETags()) {
+			revalidation.getOptions().addETag(etag);
+		}
+
+		revalidation.addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onResponse(Response response) {
+				revalidations.remove(cacheKey);
+				if (response.getCode() == ResponseCode.VALID) {
+					LOGGER.finer("Revalidated cached response");
+					validatedCount.incrementAndGet();
+					responseCache.put(cacheKey, refresh(cachedResponse, response));
+				} else if (response.getCode() == ResponseCode.CONTENT) {
+					LOGGER.finer("Replaced cached response");
+					invalidateRequest(cacheKey);
+					Response newResponse = CoapTranslator.getResponse(response);
+					if (!newResponse.getOptions().hasMaxAge()) {
+						newResponse.getOptions().setMaxAge(OptionNumberRegistry.DEFAULT_MAX_AGE);
+					}
+					if (newResponse.getOptions().getMaxAge() > 0) {
+						Integer mediaType = newResponse.getOptions().getContentFormat();
+						if (mediaType == null) 
+							mediaType = MediaTypeRegistry.TEXT_PLAIN;
+						newResponse.setTimestamp(System.nanoTime());
+						responseCache.put(new CacheKey(cacheKey.getProxyUri(), mediaType, cacheKey.getPayload()), newResponse);
+					}
+				} else {
+					invalidateRequest(cacheKey);
+				}
+			}
+
+			@Override
+			public void onTimeout() {
+				failed();
+			}
+
+			@Override
+			public void onReject() {
+				failed();
+			}
+
+			@Override
+			public void onCancel() {
+				failed();
+			}
+
+			private void failed() {
+				LOGGER.finer("Revalidation failed");
+				revalidations.remove(cacheKey);
+				invalidateRequest(cacheKey);
+			}
+		});
+		revalidationCount.incrementAndGet();
+		revalidation.send();
+		return true;
+	}
+
+	/**
+	 * Creates a copy of the cached response with the max-age and ETag of a
+	 * 2.03 (Valid) response for the caller to store. The cached response
+	 * itself stays untouched since other exchanges may be sending it.
+	 */
+	private Response refresh(Response cachedResponse, Response validResponse) {
+		Response refreshed = CoapTranslator.getResponse(cachedResponse);
+		Long maxAge = validResponse.getOptions().getMaxAge();
+		refreshed.getOptions().setMaxAge(maxAge != null ? maxAge : OptionNumberRegistry.DEFAULT_MAX_AGE);
+		refreshed.setTimestamp(System.nanoTime());
+		if (validResponse.getOptions().getETagCount() > 0) {
+			refreshed.getOptions().clearETags();
+			for (byte[] etag : validResponse.getOptions().getETags()) {
+				refreshed.getOptions().addETag(etag);
+			}
+		}
+		LOGGER.finer("Updated cached response");
+		return refreshed;
+	}
+
+	/**
+	 * The fetch of a response and the exchanges of the identical requests that
+	 * wait for it.
+	 */
+	private final class Fetch implements Runnable {
+		private final CacheKey cacheKey;
+		private final Request request;
+		private final List<Exchange> waiting = new ArrayList<Exchange>();
+		private ScheduledFuture<?> timeout;
+		private boolean done;
+
+		public Fetch(CacheKey cacheKey, Request request) {
+			this.cacheKey = cacheKey;
+			this.request = request;
+		}
+
+		private synchronized void scheduleTimeout() {
+			if (!done) {
+				timeout = TIMER.schedule(this, FETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private synchronized boolean attach(Exchange exchange) {
+			if (done) {
+				return false;
+			}
+			waiting.add(exchange);
+			return true;
+		}
+
+		private void complete(Response response) {
+			List<Exchange> exchanges;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+				if (timeout != null) {
+					timeout.cancel(false);
+				}
+				exchanges = new ArrayList<Exchange>(waiting);
+			}
+			fetches.remove(cacheKey, this);
+			fetchesByRequest.remove(request, this);
+
+			LOGGER.finer("Fetch completed for " + exchanges.size() + " waiting requests");
+			for (Exchange exchange : exchanges) {
+				// each request needs its own response, a streamed response
+				// also its own transfer of the representation
+				Response copy;
+				if (response instanceof StreamingResponse) {
+					copy = ((StreamingResponse) response).copy();
+				} else {
+					copy = new Response(response.getCode());
+					copy.setOptions(new OptionSet(response.getOptions()));
+					copy.setPayload(response.getPayload());
+					copy.setTimestamp(response.getTimestamp());
+				}
+				Request waiter = exchange.getRequest();
+				answeredByFetch.put(waiter, Boolean.TRUE);
+				try {
+					exchange.sendResponse(copy);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Exception while responding to coalesced request", e);
+				} finally {
+					answeredByFetch.remove(waiter);
+				}
+			}
+		}
+
+		/*
+		 * The fetch has not completed in time.
+		 */
+		@Override
+		public void run() {
+			LOGGER.warning("Fetch timed out");
+			fetchFailures.incrementAndGet();
+			complete(new Response(ResponseCode.GATEWAY_TIMEOUT));
+		}
 	}
 
 	/**
@@ -382,7 +687,6 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 	private static final class CacheKey {
 		private final String proxyUri;
 		private final int mediaType;
-		private Response response;
 		private final byte[] payload;
 
 		/**
@@ -402,13 +706,7 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 			}
 
 			List<CacheKey> cacheKeys = new LinkedList<ProxyCacheResource.CacheKey>();
-			String proxyUri = request.getOptions().getProxyURI();
-			try {
-				proxyUri = URLEncoder.encode(proxyUri, "ISO-8859-1");
-			} catch (UnsupportedEncodingException e) {
-				LOGGER.warning("ISO-8859-1 do not support this encoding: " + e.getMessage());
-				throw new URISyntaxException("ISO-8859-1 do not support this encoding", e.getMessage());
-			}
+			String proxyUri = encodeProxyUri(request);
 			byte[] payload = request.getPayload();
 			
 			// Implementation in new Cf (Only one accept option allowed)
@@ -429,6 +727,26 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 			return cacheKeys;
 		}
 
+		/**
+		 * Creates the key that identifies a request while its response is
+		 * fetched, i.e., from its proxy-uri, accept option and payload.
+		 * 
+		 * @param request
+		 * @return
+		 * @throws URISyntaxException
+		 */
+		private static CacheKey fromRequest(Request request) throws URISyntaxException {
+			if (request == null) {
+				throw new IllegalArgumentException("request == null");
+			}
+
+			String proxyUri = encodeProxyUri(request);
+			Integer accept = request.getOptions().getAccept();
+			int mediaType = accept != null ? accept.intValue() : MediaTypeRegistry.UNDEFINED;
+
+			return new CacheKey(proxyUri, mediaType, request.getPayload());
+		}
+
 		/**
 		 * Create a key for the cache starting from a request and the
 		 * content-type of the corresponding response.
@@ -447,17 +765,25 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 				return fromAcceptOptions(request).get(0);
 			}
 
-			String proxyUri = request.getOptions().getProxyURI();
+			// encode the proxy-uri like the keys of the lookups
+			String proxyUri = encodeProxyUri(request);
 			Integer mediaType = response.getOptions().getContentFormat();
 			if (mediaType == null) 
 				mediaType = MediaTypeRegistry.TEXT_PLAIN;
 			byte[] payload = request.getPayload();
 
-			// create the new cacheKey
-			CacheKey cacheKey = new CacheKey(proxyUri, mediaType, payload);
-			cacheKey.setResponse(response);
+			// the key must not refer to the response, since the stores keep
+			// their keys on the heap
+			return new CacheKey(proxyUri, mediaType, payload);
+		}
 
-			return cacheKey;
+		private static String encodeProxyUri(Request request) throws URISyntaxException {
+			try {
+				return URLEncoder.encode(request.getOptions().getProxyURI(), "ISO-8859-1");
+			} catch (UnsupportedEncodingException e) {
+				LOGGER.warning("ISO-8859-1 do not support this encoding: " + e.getMessage());
+				throw new URISyntaxException("ISO-8859-1 do not support this encoding", e.getMessage());
+			}
 		}
 
 		public CacheKey(String proxyUri, int mediaType, byte[] payload) {
@@ -506,17 +832,17 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 		}
 
 		/**
-		 * @return the proxyUri
+		 * @return the payload
 		 */
-		public String getProxyUri() {
-			return proxyUri;
+		public byte[] getPayload() {
+			return payload;
 		}
 
 		/**
-		 * @return the response
+		 * @return the proxyUri
 		 */
-		public Response getResponse() {
-			return response;
+		public String getProxyUri() {
+			return proxyUri;
 		}
 
 		/*
@@ -532,11 +858,6 @@ public class ProxyCacheResource extends ResourceBase implements CacheResource {
 			result = prime * result + (proxyUri == null ? 0 : proxyUri.hashCode());
 			return result;
 		}
-
-		private void setResponse(Response response) {
-			this.response = response;
-
-		}
 	}
 
 	public boolean isEnabled() {
@@ -151,10 +151,12 @@ public class ProxyHttpServer {
 		exchange.setRequest(request);
 		
 		Response response = null;
+		// a long-poll waits for the next notification and bypasses the cache
+		boolean longPoll = request.getOptions().hasObserve();
 		// ignore the request if it is reset or acknowledge
 		// check if the proxy-uri is defined
 		if (request.getType() != Type.RST && request.getType() != Type.ACK 
-				&& request.getOptions().hasProxyURI()) {
+				&& request.getOptions().hasProxyURI() && !longPoll) {
 			// get the response from the cache
 			response = cacheResource.getResponse(request);
 //			if (Bench_Help.DO_LOG) 
@@ -172,6 +174,12 @@ public class ProxyHttpServer {
 			return;
 		} else {
 
+			// wait for the response of an identical request that is already
+			// being forwarded
+			if (request.getOptions().hasProxyURI() && !longPoll && cacheResource.coalesce(request, exchange)) {
+				return;
+			}
+
 			// edit the request to be correctly forwarded if the proxy-uri is
 			// set
 			if (request.getOptions().hasProxyURI()) {
@@ -233,6 +241,9 @@ public class ProxyHttpServer {
 	}
 
 	protected void responseProduced(Request request, Response response) {
+		// answer the identical requests that have waited for this response
+		cacheResource.completeFetch(request, response);
+
 		// check if the proxy-uri is defined
 		if (request.getOptions().hasProxyURI()) {
 //			if (Bench_Help.DO_LOG) 
@@ -0,0 +1,444 @@
+package ch.ethz.inf.vs.californium.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+
+/**
+ * Counts the requests that the proxy serves per upstream host and resource
+ * and keeps a latency histogram per host, so that slow devices behind the
+ * proxy stand out. Updates never lock: the counters of a host are striped
+ * over several cells that the threads update independently, and the
+ * histograms count into an array of atomic buckets. Reading the statistics
+ * sums the cells and copies the buckets, which makes a snapshot cheap but
+ * not atomic across counters.
+ */
+public class ProxyStatistics {
+
+	/** The number of cells of a striped counter, a power of two. */
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+	/** The distance in longs between two cells, so that they do not share a cache line. */
+	private static final int PADDING = 8;
+
+	/** The number of buckets of a latency histogram. */
+	private static final int BUCKETS = 24;
+
+	/** The statistics per upstream host. */
+	private final ConcurrentHashMap<String, HostStatistics> hosts = new ConcurrentHashMap<String, HostStatistics>();
+
+	/**
+	 * Counts a request for the specified resource of the specified host.
+	 *
+	 * @param host
+	 *            the upstream host
+	 * @param resource
+	 *            the path of the resource
+	 * @param cached
+	 *            true if the proxy has served the response from its cache
+	 * @return the statistics of the host
+	 */
+	public HostStatistics recordRequest(String host, String resource, boolean cached) {
+		HostStatistics statistics = getOrCreate(host);
+		statistics.requests.increment();
+		if (cached)
+			statistics.cached.increment();
+		ResourceStatistics resourceStatistics = statistics.resources.get(resource);
+		if (resourceStatistics == null) {
+			ResourceStatistics fresh = new ResourceStatistics();
+			resourceStatistics = statistics.resources.putIfAbsent(resource, fresh);
+			if (resourceStatistics == null)
+				resourceStatistics = fresh;
+		}
+		resourceStatistics.requests.incrementAndGet();
+		if (cached)
+			resourceStatistics.cached.incrementAndGet();
+		return statistics;
+	}
+
+	/**
+	 * Returns the statistics of the specified host.
+	 *
+	 * @param host
+	 *            the upstream host
+	 * @return the statistics or null if the proxy has not served a request
+	 *         for the host yet
+	 */
+	public HostStatistics getHost(String host) {
+		return hosts.get(host);
+	}
+
+	/**
+	 * Returns the statistics of all hosts.
+	 *
+	 * @return the statistics per host
+	 */
+	public Map<String, HostStatistics> getHosts() {
+		return Collections.unmodifiableMap(hosts);
+	}
+
+	/**
+	 * Removes the statistics of all hosts. Updates that run concurrently may
+	 * still go to the removed statistics.
+	 */
+	public void clear() {
+		hosts.clear();
+	}
+
+	/**
+	 * Exports the statistics as JSON object. The hosts are sorted by their
+	 * 99th percentile latency, slowest first. Latencies are in milliseconds.
+	 *
+	 * @return the JSON object
+	 */
+	public String toJSON() {
+		List<Map.Entry<String, HostStatistics>> entries = new ArrayList<Map.Entry<String, HostStatistics>>();
+		final Map<String, Histogram> latencies = new HashMap<String, Histogram>();
+		for (Map.Entry<String, HostStatistics> entry : hosts.entrySet()) {
+			entries.add(entry);
+			latencies.put(entry.getKey(), entry.getValue().getLatency());
+		}
+		Collections.sort(entries, new Comparator<Map.Entry<String, HostStatistics>>() {
+			@Override
+			public int compare(Map.Entry<String, HostStatistics> o1, Map.Entry<String, HostStatistics> o2) {
+				return Double.compare(latencies.get(o2.getKey()).getPercentile(0.99),
+						latencies.get(o1.getKey()).getPercentile(0.99));
+			}
+		});
+
+		StringBuilder builder = new StringBuilder();
+		builder.append("{\"hosts\":[");
+		for (int i = 0; i < entries.size(); i++) {
+			Map.Entry<String, HostStatistics> entry = entries.get(i);
+			HostStatistics statistics = entry.getValue();
+			if (i > 0)
+				builder.append(',');
+			builder.append("{\"host\":");
+			quote(builder, entry.getKey());
+			builder.append(",\"requests\":").append(statistics.getRequests());
+			builder.append(",\"cached\":").append(statistics.getCached());
+			builder.append(",\"responses\":").append(statistics.getResponses());
+			builder.append(",\"errors\":").append(statistics.getErrors());
+			builder.append(",\"timeouts\":").append(statistics.getTimeouts());
+			builder.append(",\"latency\":");
+			latencies.get(entry.getKey()).toJSON(builder);
+			builder.append(",\"resources\":{");
+			boolean first = true;
+			for (Map.Entry<String, ResourceStatistics> resource : statistics.resources.entrySet()) {
+				if (!first)
+					builder.append(',');
+				first = false;
+				quote(builder, resource.getKey());
+				builder.append(":{\"requests\":").append(resource.getValue().getRequests());
+				builder.append(",\"cached\":").append(resource.getValue().getCached()).append('}');
+			}
+			builder.append("}}");
+		}
+		builder.append("]}");
+		return builder.toString();
+	}
+
+	private HostStatistics getOrCreate(String host) {
+		HostStatistics statistics = hosts.get(host);
+		if (statistics == null) {
+			HostStatistics fresh = new HostStatistics();
+			statistics = hosts.putIfAbsent(host, fresh);
+			if (statistics == null)
+				statistics = fresh;
+		}
+		return statistics;
+	}
+
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors && stripes < 64)
+			stripes <<= 1;
+		return stripes;
+	}
+
+	private static void quote(StringBuilder builder, String value) {
+		builder.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': builder.append("\\\""); break;
+			case '\\': builder.append("\\\\"); break;
+			case '\n': builder.append("\\n"); break;
+			case '\r': builder.append("\\r"); break;
+			case '\t': builder.append("\\t"); break;
+			default:
+				if (c < 0x20)
+					builder.append(String.format("\\u%04x", (int) c));
+				else
+					builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+
+	/**
+	 * A counter whose cells are spread over separate cache lines. Each thread
+	 * increments the cell its ID selects, so that concurrent threads rarely
+	 * contend for the same cell.
+	 */
+	private static final class StripedCounter {
+
+		private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+		private void add(long value) {
+			int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+			cells.addAndGet(stripe * PADDING, value);
+		}
+
+		private void increment() {
+			add(1);
+		}
+
+		private long get() {
+			long sum = 0;
+			for (int i = 0; i < STRIPES; i++)
+				sum += cells.get(i * PADDING);
+			return sum;
+		}
+	}
+
+	/**
+	 * The statistics of an upstream host.
+	 */
+	public static final class HostStatistics {
+
+		private final StripedCounter requests = new StripedCounter();
+		private final StripedCounter cached = new StripedCounter();
+		private final StripedCounter errors = new StripedCounter();
+		private final StripedCounter timeouts = new StripedCounter();
+
+		/** The number of latencies per bucket. Bucket i > 0 counts [2^(i-1), 2^i) us. */
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final StripedCounter latencySum = new StripedCounter();
+		private final AtomicLong latencyMax = new AtomicLong();
+
+		/** The requests by resource path. */
+		private final ConcurrentHashMap<String, ResourceStatistics> resources = new ConcurrentHashMap<String, ResourceStatistics>();
+
+		private HostStatistics() { }
+
+		/**
+		 * Records the response to a forwarded request.
+		 *
+		 * @param code
+		 *            the response code
+		 * @param latency
+		 *            the time in ns from the request to the response
+		 */
+		public void recordResponse(ResponseCode code, long latency) {
+			if (latency < 0)
+				latency = 0;
+			if (code == ResponseCode.GATEWAY_TIMEOUT)
+				timeouts.increment();
+			else if (ResponseCode.isServerError(code))
+				errors.increment();
+			long micros = latency / 1000;
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+			buckets.incrementAndGet(bucket);
+			latencySum.add(latency);
+			long max;
+			while ((max = latencyMax.get()) < latency && !latencyMax.compareAndSet(max, latency));
+		}
+
+		/** @return the number of requests */
+		public long getRequests() {
+			return requests.get();
+		}
+
+		/** @return the number of requests served from the cache */
+		public long getCached() {
+			return cached.get();
+		}
+
+		/** @return the number of responses to forwarded requests */
+		public long getResponses() {
+			long count = 0;
+			for (int i = 0; i < BUCKETS; i++)
+				count += buckets.get(i);
+			return count;
+		}
+
+		/** @return the number of 5.xx responses except 5.04 */
+		public long getErrors() {
+			return errors.get();
+		}
+
+		/** @return the number of 5.04 (Gateway Timeout) responses */
+		public long getTimeouts() {
+			return timeouts.get();
+		}
+
+		/**
+		 * Returns a snapshot of the latency histogram.
+		 *
+		 * @return the histogram
+		 */
+		public Histogram getLatency() {
+			long[] counts = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				counts[i] = buckets.get(i);
+			return new Histogram(counts, latencySum.get(), latencyMax.get());
+		}
+
+		/**
+		 * Returns the statistics of the resources of the host.
+		 *
+		 * @return the statistics by resource path
+		 */
+		public Map<String, ResourceStatistics> getResources() {
+			return Collections.unmodifiableMap(resources);
+		}
+	}
+
+	/**
+	 * The request counts of a resource. A host has many resources but few of
+	 * them are requested concurrently, so that they use plain atomic counters.
+	 */
+	public static final class ResourceStatistics {
+
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong cached = new AtomicLong();
+
+		private ResourceStatistics() { }
+
+		/** @return the number of requests */
+		public long getRequests() {
+			return requests.get();
+		}
+
+		/** @return the number of requests served from the cache */
+		public long getCached() {
+			return cached.get();
+		}
+	}
+
+	/**
+	 * An immutable snapshot of a latency histogram. The percentiles are the
+	 * upper bounds of the buckets that hold them and therefore overestimate
+	 * the latency by at most a factor of two.
+	 */
+	public static final class Histogram {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Histogram(long[] counts, long sum, long max) {
+			long count = 0;
+			for (long c : counts)
+				count += c;
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/** @return the number of latencies */
+		public long getCount() {
+			return count;
+		}
+
+		/** @return the average latency in ms or -1 without latencies */
+		public double getMean() {
+			return count > 0 ? sum / 1e6 / count : -1;
+		}
+
+		/** @return the maximum latency in ms */
+		public double getMax() {
+			return max / 1e6;
+		}
+
+		/**
+		 * Returns the specified percentile of the latencies.
+		 *
+		 * @param percentile
+		 *            the percentile between 0 and 1
+		 * @return the latency in ms or -1 without latencies
+		 */
+		public double getPercentile(double percentile) {
+			if (percentile < 0 || percentile > 1)
+				throw new IllegalArgumentException("Percentile must be between 0 and 1 but was "+percentile);
+			if (count == 0)
+				return -1;
+			long rank = Math.max(1, (long) Math.ceil(percentile * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(getUpperBound(i), getMax());
+			}
+			return getMax();
+		}
+
+		/**
+		 * Returns the upper bound of the specified bucket. The last bucket
+		 * has no upper bound and holds all latencies above the previous one.
+		 *
+		 * @param bucket
+		 *            the bucket
+		 * @return the upper bound in ms
+		 */
+		public double getUpperBound(int bucket) {
+			if (bucket == counts.length - 1)
+				return Double.POSITIVE_INFINITY;
+			return (1L << bucket) / 1e3;
+		}
+
+		/**
+		 * Returns the number of latencies in the specified bucket.
+		 *
+		 * @param bucket
+		 *            the bucket
+		 * @return the number of latencies
+		 */
+		public long getBucketCount(int bucket) {
+			return counts[bucket];
+		}
+
+		/** @return the number of buckets */
+		public int getBucketNumber() {
+			return counts.length;
+		}
+
+		private void toJSON(StringBuilder builder) {
+			builder.append("{\"count\":").append(count);
+			builder.append(",\"mean\":").append(format(getMean()));
+			builder.append(",\"p50\":").append(format(getPercentile(0.5)));
+			builder.append(",\"p90\":").append(format(getPercentile(0.9)));
+			builder.append(",\"p99\":").append(format(getPercentile(0.99)));
+			builder.append(",\"max\":").append(format(getMax()));
+			builder.append(",\"buckets\":[");
+			boolean first = true;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0)
+					continue;
+				if (!first)
+					builder.append(',');
+				first = false;
+				builder.append("{\"le\":");
+				builder.append(i < counts.length - 1 ? format(getUpperBound(i)) : "null");
+				builder.append(",\"count\":").append(counts[i]).append('}');
+			}
+			builder.append("]}");
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package ch.ethz.inf.vs.californium.proxy;
+
+import java.util.Set;
+
+import ch.ethz.inf.vs.californium.coap.Response;
+
+import com.google.common.cache.CacheStats;
+
+/**
+ * The storage of the responses of the {@link ProxyCacheResource}. A store
+ * decides which responses to evict when it is full. It does not check the
+ * freshness of the responses, which is up to the cache.
+ *
+ * @param <K>
+ *            the type of the keys
+ */
+public interface ResponseStore<K> {
+
+	/**
+	 * Returns the response stored under the specified key and records a hit or
+	 * a miss. Stores that do not keep the response objects return a new copy
+	 * on every call, so that changes to the returned response must be stored
+	 * again with {@link #put(Object, Response)}.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the response or null if none is stored
+	 */
+	public Response get(K key);
+
+	/**
+	 * Returns the response stored under the specified key without recording a
+	 * hit or a miss.
+	 *
+	 * @param key
+	 *            the key
+	 * @return the response or null if none is stored
+	 */
+	public Response peek(K key);
+
+	/**
+	 * Stores the response under the specified key, replacing the response
+	 * stored so far.
+	 *
+	 * @param key
+	 *            the key
+	 * @param response
+	 *            the response
+	 */
+	public void put(K key, Response response);
+
+	public void invalidate(K key);
+
+	public void invalidateAll();
+
+	/**
+	 * @return a snapshot of the keys of the stored responses
+	 */
+	public Set<K> keys();
+
+	/**
+	 * @return the number of stored responses
+	 */
+	public long size();
+
+	public CacheStats stats();
+}
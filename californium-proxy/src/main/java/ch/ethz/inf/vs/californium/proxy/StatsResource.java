@@ -37,20 +37,32 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.proxy.ProxyStatistics.Histogram;
+import ch.ethz.inf.vs.californium.proxy.ProxyStatistics.HostStatistics;
+import ch.ethz.inf.vs.californium.proxy.ProxyStatistics.ResourceStatistics;
+import ch.ethz.inf.vs.californium.resources.proxy.AsyncHttpClient;
+import ch.ethz.inf.vs.californium.resources.proxy.AsyncHttpClient.RouteStats;
+import ch.ethz.inf.vs.californium.resources.proxy.ProxyHttpClientResource;
 import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
 import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
 
 import com.google.common.cache.CacheStats;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Table;
+
+import org.apache.http.HttpHost;
+import org.apache.http.pool.PoolStats;
 
 /**
  * Resource that encapsulate the proxy statistics.
@@ -60,10 +72,14 @@ import com.google.common.collect.Table;
  */
 public class StatsResource extends ResourceBase {
 	
-	private final Table<String, String, StatHelper> statsTable = HashBasedTable.create();
+	private final ProxyStatistics statistics = new ProxyStatistics();
 
 	private static String CACHE_LOG_NAME = "_cache_log.log";
 
+	/** The timer that writes the cache log files. */
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+
 	/**
 	 * Instantiates a new stats resource.
 	 * 
@@ -76,8 +92,19 @@ public class StatsResource extends ResourceBase {
 		// add the sub-resource to show stats
 		add(new CacheStatResource("cache", cacheResource));
 		add(new ProxyStatResource("proxy"));
+		add(new HttpClientStatResource("http"));
 	}
 
+	/**
+	 * Counts the specified request. If the response has not been served from
+	 * the cache, the time until the response is set on the request is
+	 * recorded in the latency histogram of the requested host.
+	 * 
+	 * @param request
+	 *            the request with the proxy-uri
+	 * @param cachedResponse
+	 *            true if the response has been served from the cache
+	 */
 	public void updateStatistics(Request request, boolean cachedResponse) {
 		URI proxyUri = null;
 		try {
@@ -98,23 +125,26 @@ public class StatsResource extends ResourceBase {
 			// manage the resource requested
 			String resourceString = proxyUri.getPath();
 			if (resourceString != null) {
-				// check if there is already an entry for the row/column
-				// association
-				StatHelper statHelper = statsTable.get(addressString, resourceString);
-				if (statHelper == null) {
-					// create a new stat if it not present
-					statHelper = new StatHelper();
-
-					// add the new element to the table
-					statsTable.put(addressString, resourceString, statHelper);
-				}
-
 				// increment the count of the requests
-				statHelper.increment(cachedResponse);
+				HostStatistics hostStatistics = statistics.recordRequest(addressString, resourceString, cachedResponse);
+
+				// measure the latency of the forwarded request
+				if (!cachedResponse) {
+					request.addMessageObserver(new LatencyObserver(hostStatistics));
+				}
 			}
 		}
 	}
 
+	/**
+	 * Returns the statistics of the requests served by the proxy.
+	 * 
+	 * @return the statistics
+	 */
+	public ProxyStatistics getStatistics() {
+		return statistics;
+	}
+
 	/**
 	 * Builds a pretty print from the statistics gathered.
 	 * 
@@ -122,25 +152,32 @@ public class StatsResource extends ResourceBase {
 	 */
 	private String getStatString() {
 		StringBuilder builder = new StringBuilder();
+		Map<String, HostStatistics> hosts = statistics.getHosts();
 
-		builder.append(String.format("Served %d addresses and %d resources\n", statsTable.rowKeySet().size(), statsTable.cellSet().size()));
+		int resources = 0;
+		for (HostStatistics hostStatistics : hosts.values()) {
+			resources += hostStatistics.getResources().size();
+		}
+		builder.append(String.format("Served %d addresses and %d resources\n", hosts.size(), resources));
 		builder.append("＿\n");
-		// iterate over every row (addresses)
-		for (String address : statsTable.rowKeySet()) {
-			builder.append(String.format("|- %s\n", address));
+		// iterate over every address
+		for (Map.Entry<String, HostStatistics> host : hosts.entrySet()) {
+			HostStatistics hostStatistics = host.getValue();
+			Histogram latency = hostStatistics.getLatency();
+			builder.append(String.format("|- %s\n", host.getKey()));
+			builder.append(String.format("|\t responses: %d, server errors: %d, timeouts: %d\n",
+					hostStatistics.getResponses(), hostStatistics.getErrors(), hostStatistics.getTimeouts()));
+			builder.append(String.format("|\t latency avg: %.3f ms, p50: %.3f ms, p99: %.3f ms, max: %.3f ms\n",
+					latency.getMean(), latency.getPercentile(0.5), latency.getPercentile(0.99), latency.getMax()));
 			builder.append("|\t ＿\n");
-			// iterate over every column for a specific address
-			for (String resource : statsTable.row(address).keySet()) {
-				builder.append(String.format("|\t |- %s: \n", resource));
+			// iterate over every resource for a specific address
+			for (Map.Entry<String, ResourceStatistics> resource : hostStatistics.getResources().entrySet()) {
+				builder.append(String.format("|\t |- %s: \n", resource.getKey()));
 
 				// get the statistics
-				StatHelper statHelper = statsTable.get(address, resource);
-				builder.append(String.format("|\t |------ total requests: %d\n", statHelper.getTotalCount()));
-				builder.append(String.format("|\t |------ total cached replies: %d\n", statHelper.getCachedCount()));
-				// builder.append(String.format("|\t |------ last period (%d sec) requests: %d\n",
-				// PERIOD_SECONDS, statHelper.getLastPeriodCount()));
-				// builder.append(String.format("|\t |------ last period (%d sec) avg delay (nanosec): %d\n",
-				// PERIOD_SECONDS, statHelper.getLastPeriodAvgDelay()));
+				ResourceStatistics resourceStatistics = resource.getValue();
+				builder.append(String.format("|\t |------ total requests: %d\n", resourceStatistics.getRequests()));
+				builder.append(String.format("|\t |------ total cached replies: %d\n", resourceStatistics.getCached()));
 				builder.append("|\t |\n");
 			}
 			builder.append("|\t ￣\n");
@@ -156,7 +193,9 @@ public class StatsResource extends ResourceBase {
 		private final CacheResource cacheResource;
 
 		private static final long DEFAULT_LOGGING_DELAY = 5;
-		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+		/** The task that writes the current log file. */
+		private ScheduledFuture<?> logTask;
 
 		/**
 		 * Instantiates a new debug resource.
@@ -186,6 +225,8 @@ public class StatsResource extends ResourceBase {
 			stringBuilder.append(String.format("Hits ratio: %d/%d - %.3f %n", cacheStats.hitCount(), cacheStats.missCount(), cacheStats.hitRate()));
 			stringBuilder.append(String.format("Average time spent loading new values (nanoseconds): %.3f %n", cacheStats.averageLoadPenalty()));
 			stringBuilder.append(String.format("Number of cache evictions: %d %n", cacheStats.evictionCount()));
+			stringBuilder.append(String.format("Forwarded fetches: %d, coalesced requests: %d, failed fetches: %d %n",
+					cacheResource.getFetchCount(), cacheResource.getCoalescedCount(), cacheResource.getFetchFailures()));
 
 			return stringBuilder.toString();
 		}
@@ -208,12 +249,11 @@ public class StatsResource extends ResourceBase {
 		}
 
 		@Override
-		public void handlePOST(CoapExchange exchange) {
-			// TODO include stopping the writing => make something for the whole
-			// proxy
-			// executor.shutdown();
-			// request.respond(CodeRegistry.RESP_DELETED, "Stopped",
-			// MediaTypeRegistry.TEXT_PLAIN);
+		public synchronized void handlePOST(CoapExchange exchange) {
+			// stop writing the previous log file
+			if (logTask != null) {
+				logTask.cancel(false);
+			}
 
 			// starting to log the stats on a new file
 
@@ -228,7 +268,7 @@ public class StatsResource extends ResourceBase {
 			} catch (IOException e) {
 			}
 
-			executor.scheduleWithFixedDelay(new Runnable() {
+			logTask = TIMER.scheduleWithFixedDelay(new Runnable() {
 
 				@Override
 				public void run() {
@@ -264,7 +304,7 @@ public class StatsResource extends ResourceBase {
 		@Override
 		public void handleDELETE(CoapExchange exchange) {
 			// reset all the statistics
-			statsTable.clear();
+			statistics.clear();
 			exchange.respond(ResponseCode.DELETED);
 		}
 
@@ -276,49 +316,92 @@ public class StatsResource extends ResourceBase {
 		 */
 		@Override
 		public void handleGET(CoapExchange exchange) {
-			String payload = "Available commands:\n - GET: show statistics\n - POST write stats to file\n - DELETE: reset statistics\n\n";
-			payload += getStatString();
 			Response response = new Response(ResponseCode.CONTENT);
-			response.setPayload(payload);
-			response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+			if (exchange.getRequestOptions().getAccept() == MediaTypeRegistry.APPLICATION_JSON) {
+				// export the statistics for monitoring tools
+				response.setPayload(statistics.toJSON());
+				response.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+			} else {
+				String payload = "Available commands:\n - GET: show statistics (as JSON with Accept application/json)\n - DELETE: reset statistics\n\n";
+				payload += getStatString();
+				response.setPayload(payload);
+				response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+			}
 			exchange.respond(response);
 		}
 
 	}
 
 	/**
-	 * The Class StatisticsHelper.
-	 * 
-	 * @author Francesco Corazza
+	 * Shows the latency and the saturation of the connection pool of each
+	 * route of the http client.
 	 */
-	private static class StatHelper {
-		private int totalCount = 0;
-		private int cachedCount = 0;
+	private static final class HttpClientStatResource extends ResourceBase {
 
-		public int getCachedCount() {
-			return cachedCount;
-		}
-		
-		/**
-		 * @return the totalCount
-		 */
-		public int getTotalCount() {
-			return totalCount;
+		public HttpClientStatResource(String resourceIdentifier) {
+			super(resourceIdentifier);
 		}
 
-		public void increment(boolean cachedResponse) {
-			// add the total request counter
-			totalCount++;
-			if (cachedResponse) {
-				cachedCount++;
+		private String getStats() {
+			// do not start the client only to show that it has no routes
+			AsyncHttpClient client = ProxyHttpClientResource.getStartedHttpClient();
+			if (client == null)
+				return String.format("The http client has not been started%n");
+			Map<HttpHost, RouteStats> routes = client.getRouteStats();
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("Served %d routes%n", routes.size()));
+			for (Map.Entry<HttpHost, RouteStats> entry : routes.entrySet()) {
+				RouteStats stats = entry.getValue();
+				PoolStats pool = client.getPoolStats(entry.getKey());
+				builder.append(String.format("|- %s%n", entry.getKey()));
+				builder.append(String.format("|\t |------ requests: %d, responses: %d, failures: %d, refused: %d%n",
+						stats.getRequests(), stats.getResponses(), stats.getFailures(), stats.getRejected()));
+				builder.append(String.format("|\t |------ latency avg: %.3f ms, max: %.3f ms%n",
+						stats.getAverageLatency(), stats.getMaxLatency()));
+				builder.append(String.format("|\t |------ connections leased: %d/%d, available: %d, pending requests: %d%n",
+						pool.getLeased(), pool.getMax(), pool.getAvailable(), pool.getPending()));
 			}
+			return builder.toString();
+		}
+
+		@Override
+		public void handleDELETE(CoapExchange exchange) {
+			// reset the statistics of the routes
+			AsyncHttpClient client = ProxyHttpClientResource.getStartedHttpClient();
+			if (client != null)
+				client.resetStats();
+			exchange.respond(ResponseCode.DELETED);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			String payload = "Available commands:\n - GET: show statistics\n - DELETE: reset statistics\n\n";
+			payload += getStats();
+			Response response = new Response(ResponseCode.CONTENT);
+			response.setPayload(payload);
+			response.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+			exchange.respond(response);
+		}
+	}
+
+	/**
+	 * Records the latency of a forwarded request when its response is set.
+	 */
+	private static final class LatencyObserver extends MessageObserverAdapter {
+
+		private final HostStatistics hostStatistics;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean recorded = new AtomicBoolean();
 
-			// add the new request's timestamp to the list
-			// long currentTimestamp = System.nanoTime();
-			// lastPeriodTimestamps.add(currentTimestamp);
+		private LatencyObserver(HostStatistics hostStatistics) {
+			this.hostStatistics = hostStatistics;
+		}
 
-			// clean the list by the old entries
-			// cleanTimestamps(currentTimestamp);
+		@Override
+		public void onResponse(Response response) {
+			if (recorded.compareAndSet(false, true)) {
+				hostStatistics.recordResponse(response.getCode(), System.nanoTime() - start);
+			}
 		}
 	}
 }
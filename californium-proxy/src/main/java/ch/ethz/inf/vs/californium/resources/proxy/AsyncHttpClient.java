@@ -0,0 +1,278 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.protocol.RequestAcceptEncoding;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.nio.DefaultHttpClientIODispatch;
+import org.apache.http.impl.nio.pool.BasicNIOConnPool;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
+import org.apache.http.nio.protocol.HttpAsyncRequester;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.params.CoreConnectionPNames;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.SyncBasicHttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestDate;
+import org.apache.http.protocol.RequestExpectContinue;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * Non-blocking http client of the proxy. A single I/O reactor thread serves
+ * all requests over a pool of persistent connections. The pool opens at most
+ * the configured number of connections per route (i.e., per http host) and
+ * lets further requests to that route wait for a connection. If too many
+ * requests wait for a route, new requests are refused. The client measures
+ * the latency and the saturation of each route.
+ */
+public class AsyncHttpClient {
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncHttpClient.class.getCanonicalName());
+
+	private final HttpAsyncRequester requester;
+	private final BasicNIOConnPool pool;
+	private final ConnectingIOReactor ioReactor;
+
+	/** The timer to close idle connections. */
+	private final ScheduledExecutorService timer =
+			Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+
+	/** The number of requests that may wait for a connection to a route. */
+	private final int maxQueue;
+
+	/** The statistics per route. */
+	private final ConcurrentHashMap<HttpHost, RouteStats> routes = new ConcurrentHashMap<HttpHost, RouteStats>();
+
+	/**
+	 * Instantiates a new client with the pool sizes from the specified
+	 * configuration and starts its I/O reactor.
+	 *
+	 * @param config
+	 *            the configuration
+	 * @throws IOException
+	 *             if the I/O reactor cannot be created
+	 */
+	public AsyncHttpClient(NetworkConfig config) throws IOException {
+		this.maxQueue = config.getInt(NetworkConfigDefaults.HTTP_CLIENT_QUEUE_MAX);
+		final long keepAlive = config.getInt(NetworkConfigDefaults.HTTP_CLIENT_KEEP_ALIVE);
+
+		HttpParams params = new SyncBasicHttpParams();
+		params.setIntParameter(CoreConnectionPNames.SO_TIMEOUT, config.getInt(NetworkConfigDefaults.PROXY_FORWARD_TIMEOUT))
+				.setIntParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, config.getInt(NetworkConfigDefaults.HTTP_CLIENT_CONNECT_TIMEOUT))
+				.setBooleanParameter(CoreConnectionPNames.TCP_NODELAY, true);
+
+		// Create HTTP protocol processing chain
+		HttpRequestInterceptor[] requestInterceptors = new HttpRequestInterceptor[] { new RequestAcceptEncoding(), new RequestContent(), new RequestTargetHost(), new RequestConnControl(), new RequestDate(), new RequestUserAgent(), new RequestExpectContinue() };
+		HttpResponseInterceptor[] responseInterceptors = new HttpResponseInterceptor[] { new ResponseContentEncoding() };
+		HttpProcessor httpProcessor = new ImmutableHttpProcessor(requestInterceptors, responseInterceptors);
+
+		// Create client-side I/O event dispatch
+		final IOEventDispatch ioEventDispatch = new DefaultHttpClientIODispatch(new HttpAsyncRequestExecutor(), params);
+
+		// Create client-side I/O reactor and the connection pool
+		ioReactor = new DefaultConnectingIOReactor();
+		pool = new BasicNIOConnPool(ioReactor, params);
+		pool.setDefaultMaxPerRoute(config.getInt(NetworkConfigDefaults.HTTP_CLIENT_MAX_PER_ROUTE));
+		pool.setMaxTotal(config.getInt(NetworkConfigDefaults.HTTP_CLIENT_MAX_TOTAL));
+
+		requester = new HttpAsyncRequester(httpProcessor, new DefaultConnectionReuseStrategy(), params);
+
+		Thread reactor = new Thread("AsyncHttpClient reactor") {
+			@Override
+			public void run() {
+				try {
+					ioReactor.execute(ioEventDispatch);
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "Http client I/O reactor failed", e);
+				}
+				LOGGER.info("Shutdown AsyncHttpClient");
+			}
+		};
+		reactor.setDaemon(true);
+		reactor.start();
+
+		// keep connections alive only as long as the servers usually do
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				pool.closeExpired();
+				pool.closeIdle(keepAlive, TimeUnit.MILLISECONDS);
+			}
+		}, keepAlive, keepAlive, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Executes the specified request on a pooled connection to the specified
+	 * host and hands the response to the callback on the I/O reactor thread.
+	 * The callback must not block. If too many requests already wait for a
+	 * connection to the host, the request is refused.
+	 *
+	 * @param host
+	 *            the http host
+	 * @param request
+	 *            the http request
+	 * @param callback
+	 *            the callback
+	 * @return true, if the request has been executed, false if it has been
+	 *         refused
+	 */
+	public boolean execute(HttpHost host, HttpRequest request, final FutureCallback<HttpResponse> callback) {
+		final RouteStats stats = getRouteStats(host);
+		if (pool.getStats(host).getPending() >= maxQueue) {
+			stats.rejected.incrementAndGet();
+			return false;
+		}
+		stats.requests.incrementAndGet();
+		final long start = System.nanoTime();
+		requester.execute(new BasicAsyncRequestProducer(host, request), new BasicAsyncResponseConsumer(), pool, new BasicHttpContext(), new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				stats.record(System.nanoTime() - start);
+				callback.completed(response);
+			}
+
+			@Override
+			public void failed(Exception e) {
+				stats.failures.incrementAndGet();
+				callback.failed(e);
+			}
+
+			@Override
+			public void cancelled() {
+				stats.failures.incrementAndGet();
+				callback.cancelled();
+			}
+		});
+		return true;
+	}
+
+	private RouteStats getRouteStats(HttpHost host) {
+		RouteStats stats = routes.get(host);
+		if (stats == null) {
+			routes.putIfAbsent(host, new RouteStats());
+			stats = routes.get(host);
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the statistics of all routes used so far.
+	 *
+	 * @return a snapshot of the statistics per route
+	 */
+	public Map<HttpHost, RouteStats> getRouteStats() {
+		return Collections.unmodifiableMap(new HashMap<HttpHost, RouteStats>(routes));
+	}
+
+	/**
+	 * Returns the state of the connection pool for the specified route.
+	 *
+	 * @param host
+	 *            the http host
+	 * @return the leased, pending and available connections and the maximum
+	 */
+	public PoolStats getPoolStats(HttpHost host) {
+		return pool.getStats(host);
+	}
+
+	/**
+	 * Resets the statistics of all routes.
+	 */
+	public void resetStats() {
+		routes.clear();
+	}
+
+	/**
+	 * Closes all connections and stops the I/O reactor.
+	 */
+	public void shutdown() {
+		timer.shutdown();
+		try {
+			pool.shutdown(2000);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to shutdown the http client", e);
+		}
+	}
+
+	/**
+	 * The latency and failure counts of a route.
+	 */
+	public static final class RouteStats {
+
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong responses = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong totalLatency = new AtomicLong();
+		private final AtomicLong maxLatency = new AtomicLong();
+
+		private void record(long latency) {
+			responses.incrementAndGet();
+			totalLatency.addAndGet(latency);
+			long max;
+			while ((max = maxLatency.get()) < latency && !maxLatency.compareAndSet(max, latency));
+		}
+
+		/** @return the number of executed requests */
+		public long getRequests() {
+			return requests.get();
+		}
+
+		/** @return the number of responses */
+		public long getResponses() {
+			return responses.get();
+		}
+
+		/** @return the number of failed or canceled requests */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/** @return the number of requests refused because the route was saturated */
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		/** @return the average latency in ms or -1 without responses */
+		public double getAverageLatency() {
+			long count = responses.get();
+			return count > 0 ? totalLatency.get() / 1e6 / count : -1;
+		}
+
+		/** @return the maximum latency in ms */
+		public double getMaxLatency() {
+			return maxLatency.get() / 1e6;
+		}
+	}
+}
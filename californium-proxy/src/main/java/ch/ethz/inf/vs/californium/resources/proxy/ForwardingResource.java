@@ -4,6 +4,10 @@ package ch.ethz.inf.vs.californium.resources.proxy;
  * 
  */
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange;
@@ -24,11 +28,79 @@ public abstract class ForwardingResource extends ResourceBase {
 	}
 
 	@Override
-	public void handleRequest(Exchange exchange) {
+	public void handleRequest(final Exchange exchange) {
+		// accept the request and send a separate response to avoid the
+		// timeout in the requesting client
 		exchange.sendAccept();
-		Response response = forwardRequest(exchange.getRequest());
-		exchange.sendResponse(response);
+		final AtomicBoolean responded = new AtomicBoolean();
+		forwardRequest(exchange.getRequest(), new ForwardingCallback() {
+			@Override
+			public void respond(Response response) {
+				if (responded.compareAndSet(false, true))
+					exchange.sendResponse(response);
+			}
+		});
+	}
+
+	/**
+	 * Forwards the request and hands the response to the callback, possibly
+	 * from another thread after this method has returned. The default
+	 * implementation blocks in {@link #forwardRequest(Request)}. Resources
+	 * that override it must not block the calling thread.
+	 * 
+	 * @param request
+	 *            the request
+	 * @param callback
+	 *            the callback for the response
+	 */
+	public void forwardRequest(Request request, ForwardingCallback callback) {
+		callback.respond(forwardRequest(request));
 	}
 
 	public abstract Response forwardRequest(Request request);
+
+	/**
+	 * Forwards the request with {@link #forwardRequest(Request, ForwardingCallback)}
+	 * and waits for the response. Resources that forward asynchronously
+	 * implement {@link #forwardRequest(Request)} with it.
+	 * 
+	 * @param request
+	 *            the request
+	 * @return the response
+	 */
+	protected Response awaitResponse(Request request) {
+		final Response[] result = new Response[1];
+		final CountDownLatch latch = new CountDownLatch(1);
+		forwardRequest(request, new ForwardingCallback() {
+			@Override
+			public void respond(Response response) {
+				if (latch.getCount() > 0) {
+					result[0] = response;
+					latch.countDown();
+				}
+			}
+		});
+		try {
+			latch.await();
+			return result[0];
+		} catch (InterruptedException e) {
+			LOGGER.warning("Receiving of response interrupted: " + e.getMessage());
+			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	/**
+	 * The callback that receives the response to a forwarded request.
+	 */
+	public interface ForwardingCallback {
+
+		/**
+		 * Responds to the original request. Only the first call has an
+		 * effect.
+		 * 
+		 * @param response
+		 *            the response
+		 */
+		public void respond(Response response);
+	}
 }
@@ -0,0 +1,216 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.apache.http.entity.ContentType;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+
+/**
+ * The mappings between HTTP and CoAP of the {@link HttpTranslator}, compiled
+ * once from the translation properties into immutable tables. Status codes,
+ * option numbers and media types are looked up by index in arrays, header
+ * names, methods and mime types in case-insensitive maps, so that translating
+ * a message neither builds property keys nor parses their values. Changes to
+ * the properties after the tables have been compiled are not reflected.
+ */
+final class HttpTranslationTables {
+
+	private static final Logger LOGGER = Logger.getLogger(HttpTranslationTables.class.getName());
+
+	private static final String KEY_COAP_CODE = "coap.response.code.";
+	private static final String KEY_COAP_OPTION = "coap.message.option.";
+	private static final String KEY_COAP_MEDIA = "coap.message.media.";
+	private static final String KEY_HTTP_CODE = "http.response.code.";
+	private static final String KEY_HTTP_METHOD = "http.request.method.";
+	private static final String KEY_HTTP_HEADER = "http.message.header.";
+	private static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
+
+	/** The largest HTTP status code. */
+	private static final int MAX_HTTP_CODE = 599;
+
+	/** The largest CoAP code (8 bits). */
+	private static final int MAX_COAP_CODE = 255;
+
+	/** The CoAP response codes by HTTP status code. */
+	private final ResponseCode[] coapCodes = new ResponseCode[MAX_HTTP_CODE + 1];
+
+	/** The HTTP status codes by CoAP response code, 0 if not mapped. */
+	private final int[] httpCodes = new int[MAX_COAP_CODE + 1];
+
+	/** The HTTP header names by option number. */
+	private final String[] headerNames;
+
+	/** The HTTP content types by CoAP media type. */
+	private final ContentType[] contentTypes;
+
+	/** The option numbers by HTTP header name. */
+	private final Map<String, Integer> optionNumbers;
+
+	/** The CoAP methods by HTTP method. */
+	private final Map<String, Code> methods;
+
+	/** The CoAP media types by HTTP mime type. */
+	private final Map<String, Integer> mediaTypes;
+
+	/**
+	 * Compiles the tables from the specified translation properties.
+	 *
+	 * @param properties
+	 *            the properties
+	 */
+	HttpTranslationTables(Properties properties) {
+		TreeMap<String, Integer> optionNumbers = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		TreeMap<String, Code> methods = new TreeMap<String, Code>(String.CASE_INSENSITIVE_ORDER);
+		TreeMap<String, Integer> mediaTypes = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		TreeMap<Integer, String> headerNames = new TreeMap<Integer, String>();
+		TreeMap<Integer, String> contentTypes = new TreeMap<Integer, String>();
+
+		for (String key : properties.stringPropertyNames()) {
+			String value = properties.getProperty(key).trim();
+			if (value.isEmpty())
+				continue;
+			try {
+				if (key.startsWith(KEY_HTTP_CODE)) {
+					int httpCode = Integer.parseInt(key.substring(KEY_HTTP_CODE.length()));
+					coapCodes[httpCode] = ResponseCode.valueOf(Integer.parseInt(value));
+				} else if (key.startsWith(KEY_COAP_CODE)) {
+					int coapCode = Integer.parseInt(key.substring(KEY_COAP_CODE.length()));
+					httpCodes[coapCode] = Integer.parseInt(value);
+				} else if (key.startsWith(KEY_HTTP_METHOD)) {
+					// methods mapped to an error such as "error.501" stay unmapped
+					if (!value.contains("error"))
+						methods.put(key.substring(KEY_HTTP_METHOD.length()), Code.valueOf(Integer.parseInt(value)));
+				} else if (key.startsWith(KEY_HTTP_HEADER)) {
+					optionNumbers.put(key.substring(KEY_HTTP_HEADER.length()), Integer.parseInt(value));
+				} else if (key.startsWith(KEY_COAP_OPTION)) {
+					headerNames.put(Integer.parseInt(key.substring(KEY_COAP_OPTION.length())), value);
+				} else if (key.startsWith(KEY_HTTP_CONTENT_TYPE)) {
+					mediaTypes.put(key.substring(KEY_HTTP_CONTENT_TYPE.length()), Integer.parseInt(value));
+				} else if (key.startsWith(KEY_COAP_MEDIA)) {
+					contentTypes.put(Integer.parseInt(key.substring(KEY_COAP_MEDIA.length())), value);
+				}
+			} catch (RuntimeException e) {
+				// NumberFormatException, IllegalArgumentException or an index out of bounds
+				LOGGER.warning("Ignoring the invalid translation property "+key+"="+value+": "+e);
+			}
+		}
+
+		// media types without a mapping are translated from and to their
+		// registered mime type, printable ones with the default charset UTF-8
+		for (int mediaType : MediaTypeRegistry.getAllMediaTypes()) {
+			if (mediaType == MediaTypeRegistry.UNDEFINED)
+				continue;
+			String mimeType = MediaTypeRegistry.toString(mediaType);
+			if (!mediaTypes.containsKey(mimeType))
+				mediaTypes.put(mimeType, mediaType);
+			if (!contentTypes.containsKey(mediaType))
+				contentTypes.put(mediaType, MediaTypeRegistry.isPrintable(mediaType) ? mimeType + "; charset=UTF-8" : mimeType);
+		}
+
+		this.optionNumbers = Collections.unmodifiableMap(optionNumbers);
+		this.methods = Collections.unmodifiableMap(methods);
+		this.mediaTypes = Collections.unmodifiableMap(mediaTypes);
+
+		this.headerNames = new String[headerNames.isEmpty() ? 0 : Math.max(headerNames.lastKey() + 1, 0)];
+		for (Map.Entry<Integer, String> entry : headerNames.entrySet())
+			if (entry.getKey() >= 0)
+				this.headerNames[entry.getKey()] = entry.getValue();
+
+		this.contentTypes = new ContentType[contentTypes.isEmpty() ? 0 : Math.max(contentTypes.lastKey() + 1, 0)];
+		for (Map.Entry<Integer, String> entry : contentTypes.entrySet()) {
+			if (entry.getKey() < 0)
+				continue;
+			try {
+				this.contentTypes[entry.getKey()] = ContentType.parse(entry.getValue());
+			} catch (UnsupportedCharsetException e) {
+				LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
+				this.contentTypes[entry.getKey()] = ContentType.APPLICATION_OCTET_STREAM;
+			}
+		}
+	}
+
+	/**
+	 * Returns the CoAP response code for the specified HTTP status code.
+	 *
+	 * @param httpCode
+	 *            the HTTP status code
+	 * @return the CoAP response code or null if not mapped
+	 */
+	ResponseCode getCoapCode(int httpCode) {
+		return httpCode >= 0 && httpCode < coapCodes.length ? coapCodes[httpCode] : null;
+	}
+
+	/**
+	 * Returns the HTTP status code for the specified CoAP response code.
+	 *
+	 * @param coapCode
+	 *            the CoAP response code
+	 * @return the HTTP status code or 0 if not mapped
+	 */
+	int getHttpCode(ResponseCode coapCode) {
+		return coapCode.value >= 0 && coapCode.value < httpCodes.length ? httpCodes[coapCode.value] : 0;
+	}
+
+	/**
+	 * Returns the CoAP method for the specified HTTP method.
+	 *
+	 * @param httpMethod
+	 *            the HTTP method in any case
+	 * @return the CoAP method or null if not mapped
+	 */
+	Code getCoapMethod(String httpMethod) {
+		return methods.get(httpMethod);
+	}
+
+	/**
+	 * Returns the option number for the specified HTTP header.
+	 *
+	 * @param headerName
+	 *            the header name in any case
+	 * @return the option number or null if not mapped
+	 */
+	Integer getOptionNumber(String headerName) {
+		return optionNumbers.get(headerName);
+	}
+
+	/**
+	 * Returns the HTTP header name for the specified option number.
+	 *
+	 * @param optionNumber
+	 *            the option number
+	 * @return the header name or null if not mapped
+	 */
+	String getHeaderName(int optionNumber) {
+		return optionNumber >= 0 && optionNumber < headerNames.length ? headerNames[optionNumber] : null;
+	}
+
+	/**
+	 * Returns the CoAP media type for the specified HTTP mime type.
+	 *
+	 * @param mimeType
+	 *            the mime type without parameters in any case
+	 * @return the media type or null if not mapped
+	 */
+	Integer getMediaType(String mimeType) {
+		return mediaTypes.get(mimeType);
+	}
+
+	/**
+	 * Returns the HTTP content type for the specified CoAP media type.
+	 *
+	 * @param mediaType
+	 *            the media type
+	 * @return the content type or null if unknown
+	 */
+	ContentType getContentType(int mediaType) {
+		return mediaType >= 0 && mediaType < contentTypes.length ? contentTypes[mediaType] : null;
+	}
+}
@@ -32,7 +32,9 @@ package ch.ethz.inf.vs.californium.resources.proxy;
  ******************************************************************************/
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.URI;
@@ -45,6 +47,7 @@ import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.UnmappableCharacterException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.LinkedList;
@@ -66,7 +69,6 @@ import org.apache.http.StatusLine;
 import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
@@ -98,13 +100,11 @@ public final class HttpTranslator {
 
 	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
 	private static final Charset UTF_8 = Charset.forName("UTF-8");
-	private static final String KEY_COAP_CODE = "coap.response.code.";
-	private static final String KEY_COAP_OPTION = "coap.message.option.";
-	private static final String KEY_COAP_MEDIA = "coap.message.media.";
-	private static final String KEY_HTTP_CODE = "http.response.code.";
-	private static final String KEY_HTTP_METHOD = "http.request.method.";
-	private static final String KEY_HTTP_HEADER = "http.message.header.";
-	private static final String KEY_HTTP_CONTENT_TYPE = "http.message.content-type.";
+	private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+	/** The bounds of the buffers to change the charset of an http entity. */
+	private static final int MIN_BUFFER_SIZE = 64;
+	private static final int MAX_BUFFER_SIZE = 8192;
 
 	/**
 	 * Property file containing the mappings between coap messages and http
@@ -112,6 +112,12 @@ public final class HttpTranslator {
 	 */
 	public static final Properties HTTP_TRANSLATION_PROPERTIES = new MappingProperties("Proxy.properties");
 
+	/**
+	 * The mappings of the property file compiled into lookup tables. Changes
+	 * to the properties after loading this class are not reflected.
+	 */
+	private static final HttpTranslationTables TABLES = new HttpTranslationTables(HTTP_TRANSLATION_PROPERTIES);
+
 	// Error constants
 	public static final int STATUS_TIMEOUT = HttpStatus.SC_GATEWAY_TIMEOUT;
 	public static final int STATUS_NOT_FOUND = HttpStatus.SC_BAD_GATEWAY;
@@ -124,9 +130,10 @@ public final class HttpTranslator {
 	/**
 	 * Gets the coap media type associated to the http entity. Firstly, it looks
 	 * for a valid mapping in the property file. If this step fails, then it
-	 * tries to explicitly map/parse the declared mime/type by the http entity.
+	 * tries to explicitly map the declared mime/type by the http entity.
 	 * If even this step fails, it sets application/octet-stream as
-	 * content-type.
+	 * content-type. If the message has no entity yet, e.g., because its body
+	 * is still being received, the content-type header is translated.
 	 * 
 	 * @param httpMessage
 	 * 
@@ -147,16 +154,11 @@ public final class HttpTranslator {
 			httpEntity = ((HttpEntityEnclosingRequest) httpMessage).getEntity();
 		}
 
-		// check that the entity is actually present in the http message
-		if (httpEntity == null) {
-			throw new IllegalArgumentException("The http message does not contain any httpEntity.");
-		}
-
 		// set the content-type with a default value
 		int coapContentType = MediaTypeRegistry.UNDEFINED;
 
 		// get the content-type from the entity
-		ContentType contentType = ContentType.get(httpEntity);
+		ContentType contentType = httpEntity != null ? ContentType.get(httpEntity) : null;
 		if (contentType == null) {
 			// if the content-type is not set, search in the headers
 			Header contentTypeHeader = httpMessage.getFirstHeader("content-type");
@@ -174,15 +176,11 @@ public final class HttpTranslator {
 			// delete the last part (if any)
 			httpContentTypeString = httpContentTypeString.split(";")[0];
 
-			// retrieve the mapping from the property file
-			String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_CONTENT_TYPE + httpContentTypeString);
-
-			if (coapContentTypeString != null) {
-				coapContentType = Integer.parseInt(coapContentTypeString);
-			} else {
-				// try to parse the media type if the property file has given to
-				// mapping
-				coapContentType = MediaTypeRegistry.parse(httpContentTypeString);
+			// retrieve the mapping from the property file or, if the property
+			// file has no mapping, from the media type registry
+			Integer mediaType = TABLES.getMediaType(httpContentTypeString);
+			if (mediaType != null) {
+				coapContentType = mediaType;
 			}
 		}
 
@@ -220,31 +218,21 @@ public final class HttpTranslator {
 		// iterate over the headers
 		for (Header header : headers) {
 			try {
-				String headerName = header.getName().toLowerCase();
+				String headerName = header.getName();
 				
 				// FIXME: CoAP does no longer support multiple accept-options.
 				// If an HTTP request contains multiple accepts, this method
 				// fails. Therefore, we currently skip accepts at the moment.
-				if (headerName.startsWith("accept"))
+				if (headerName.regionMatches(true, 0, "accept", 0, 6))
 						continue;
 	
-				// get the mapping from the property file
-				String optionCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_HEADER + headerName);
-	
-				// ignore the header if not found in the properties file
-				if (optionCodeString == null || optionCodeString.isEmpty()) {
-					continue;
-				}
-	
-				// get the option number
-				int optionNumber = OptionRegistry.RESERVED_0;
-				try {
-					optionNumber = Integer.parseInt(optionCodeString.trim());
-				} catch (Exception e) {
-					LOGGER.warning("Problems in the parsing: " + e.getMessage());
-					// ignore the option if not recognized
+				// get the mapping from the property file and ignore the header
+				// if not found
+				Integer mappedNumber = TABLES.getOptionNumber(headerName);
+				if (mappedNumber == null) {
 					continue;
 				}
+				int optionNumber = mappedNumber;
 	
 				// ignore the content-type because it will be handled within the
 				// payload
@@ -335,7 +323,8 @@ public final class HttpTranslator {
 	/**
 	 * Method to map the http entity of a http message in a coherent payload for
 	 * the coap message. The method simply gets the bytes from the entity and,
-	 * if needed changes the charset of the obtained bytes to UTF-8.
+	 * if the entity is not already encoded in UTF-8, changes the charset to
+	 * UTF-8 while reading the content.
 	 * 
 	 * @param httpEntity
 	 *            the http entity
@@ -351,23 +340,27 @@ public final class HttpTranslator {
 
 		byte[] payload = null;
 		try {
-			// get the bytes from the entity
-			payload = EntityUtils.toByteArray(httpEntity);
-			if (payload != null && payload.length > 0) {
-
-				// the only supported charset in CoAP is UTF-8
-				Charset coapCharset = UTF_8;
-
-				// get the charset for the http entity
-				ContentType httpContentType = ContentType.getOrDefault(httpEntity);
-				Charset httpCharset = httpContentType.getCharset();
-
-				// check if the charset is the one allowed by coap
-				if (httpCharset != null && !httpCharset.equals(coapCharset)) {
-					// translate the payload to the utf-8 charset
-					payload = changeCharset(payload, httpCharset, coapCharset);
+			// get the charset for the http entity
+			ContentType httpContentType = ContentType.getOrDefault(httpEntity);
+			Charset httpCharset = httpContentType.getCharset();
+
+			// the only supported charset in CoAP is UTF-8, of which US-ASCII
+			// is a subset
+			if (httpCharset == null || httpCharset.equals(UTF_8) || httpCharset.equals(US_ASCII)) {
+				// get the bytes from the entity
+				payload = EntityUtils.toByteArray(httpEntity);
+			} else {
+				// translate the content to the utf-8 charset
+				InputStream content = httpEntity.getContent();
+				if (content != null) {
+					payload = transcode(content, httpEntity.getContentLength(), httpCharset, UTF_8);
 				}
 			}
+		} catch (UnmappableCharacterException e) {
+			LOGGER.finer("Charset translation: cannot mapped to an output char byte: " + e.getMessage());
+		} catch (CharacterCodingException e) {
+			LOGGER.warning("Problem in the decoding/encoding charset: " + e.getMessage());
+			throw new TranslationException("Problem in the decoding/encoding charset", e);
 		} catch (IOException e) {
 			LOGGER.warning("Cannot get the content of the http entity: " + e.getMessage());
 			throw new TranslationException("Cannot get the content of the http entity", e);
@@ -395,7 +388,9 @@ public final class HttpTranslator {
 	 * CoAP options are set translating the headers. If the HTTP message has an
 	 * enclosing entity, it is converted to create the payload of the CoAP
 	 * message; finally the content-type is set accordingly to the header and to
-	 * the entity type.
+	 * the entity type. A GET request with the preference to wait (Prefer:
+	 * wait) is a long-poll and gets the Observe option, so that the proxy
+	 * answers it with the next notification of the resource.
 	 * 
 	 * @param httpRequest
 	 *            the http request
@@ -410,6 +405,34 @@ public final class HttpTranslator {
 	 *         exception
 	 */
 	public static Request getCoapRequest(HttpRequest httpRequest, String proxyResource, boolean proxyingEnabled) throws TranslationException {
+		return getCoapRequest(httpRequest, proxyResource, proxyingEnabled, false, null);
+	}
+
+	/**
+	 * Gets the coap request like {@link #getCoapRequest(HttpRequest, String, boolean)}
+	 * but as a {@link StreamingRequest}, whose response may be streamed. If the
+	 * body is not null, the request gets no payload: the body is read from the
+	 * pipe while it arrives and is forwarded unchanged, i.e., it is not
+	 * converted to another charset.
+	 * 
+	 * @param httpRequest
+	 *            the http request
+	 * @param proxyResource
+	 *            the proxy resource
+	 * @param proxyingEnabled
+	 *            the proxying enabled
+	 * @param body
+	 *            the pipe that receives the body or null if the entity of the
+	 *            http request holds the whole body
+	 * @return the streaming request
+	 * @throws TranslationException
+	 *             the translation exception
+	 */
+	public static StreamingRequest getStreamingRequest(HttpRequest httpRequest, String proxyResource, boolean proxyingEnabled, PayloadPipe body) throws TranslationException {
+		return (StreamingRequest) getCoapRequest(httpRequest, proxyResource, proxyingEnabled, true, body);
+	}
+
+	private static Request getCoapRequest(HttpRequest httpRequest, String proxyResource, boolean proxyingEnabled, boolean streaming, PayloadPipe body) throws TranslationException {
 		if (httpRequest == null) {
 			throw new IllegalArgumentException("httpRequest == null");
 		}
@@ -418,25 +441,17 @@ public final class HttpTranslator {
 		}
 
 		// get the http method
-		String httpMethod = httpRequest.getRequestLine().getMethod().toLowerCase();
+		String httpMethod = httpRequest.getRequestLine().getMethod();
 
 		// get the coap method
-		String coapMethodString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_METHOD + httpMethod);
-		if (coapMethodString == null || coapMethodString.contains("error")) {
-			throw new InvalidMethodException(httpMethod + " method not mapped");
-		}
-
-		int coapMethod = 0;
-		try {
-			coapMethod = Integer.parseInt(coapMethodString.trim());
-		} catch (NumberFormatException e) {
-			LOGGER.warning("Cannot convert the http method in coap method: " + e);
-			throw new TranslationException("Cannot convert the http method in coap method", e);
+		Code coapMethod = TABLES.getCoapMethod(httpMethod);
+		if (coapMethod == null) {
+			throw new InvalidMethodException(httpMethod.toLowerCase() + " method not mapped");
 		}
 
 		// create the request
 //		Request coapRequest = Request.getRequestForMethod(coapMethod);
-		Request coapRequest = new Request(Code.valueOf(coapMethod));
+		Request coapRequest = streaming ? new StreamingRequest(coapMethod, body) : new Request(coapMethod);
 
 		// get the uri
 		String uriString = httpRequest.getRequestLine().getUri();
@@ -514,13 +529,21 @@ public final class HttpTranslator {
 		for (Option option:coapOptions)
 			coapRequest.getOptions().addOption(option);
 
+		// a long-poll waits for the next notification
+		if (coapMethod == Code.GET && prefersWait(httpRequest)) {
+			coapRequest.getOptions().setObserve(0);
+		}
+
 		// set the payload if the http entity is present
 		if (httpRequest instanceof HttpEntityEnclosingRequest) {
-			HttpEntity httpEntity = ((HttpEntityEnclosingRequest) httpRequest).getEntity();
+			// a streamed body is forwarded from the pipe
+			if (body == null) {
+				HttpEntity httpEntity = ((HttpEntityEnclosingRequest) httpRequest).getEntity();
 
-			// translate the http entity in coap payload
-			byte[] payload = getCoapPayload(httpEntity);
-			coapRequest.setPayload(payload);
+				// translate the http entity in coap payload
+				byte[] payload = getCoapPayload(httpEntity);
+				coapRequest.setPayload(payload);
+			}
 
 			// set the content-type
 			int coapContentType = getCoapMediaType(httpRequest);
@@ -530,6 +553,22 @@ public final class HttpTranslator {
 		return coapRequest;
 	}
 
+	/*
+	 * Checks if the request has the preference to wait (RFC 7240), with or
+	 * without the number of seconds, which the proxy does not use.
+	 */
+	private static boolean prefersWait(HttpRequest httpRequest) {
+		for (Header header : httpRequest.getHeaders("prefer")) {
+			for (String preference : header.getValue().split(",")) {
+				String token = preference.split("[=;]")[0].trim();
+				if (token.equalsIgnoreCase("wait")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Gets the CoAP response from an incoming HTTP response. No null value is
 	 * returned. The response is created from a the mapping of the HTTP response
@@ -573,18 +612,11 @@ public final class HttpTranslator {
 			}
 		} else {
 			// get the translation from the property file
-			String coapCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_HTTP_CODE + httpCode);
+			coapCode = TABLES.getCoapCode(httpCode);
 
-			if (coapCodeString == null || coapCodeString.isEmpty()) {
-				LOGGER.warning("coapCodeString == null");
-				throw new TranslationException("coapCodeString == null");
-			}
-
-			try {
-				coapCode = ResponseCode.valueOf(Integer.parseInt(coapCodeString.trim()));
-			} catch (NumberFormatException e) {
-				LOGGER.warning("Cannot convert the status code in number: " + e.getMessage());
-				throw new TranslationException("Cannot convert the status code in number", e);
+			if (coapCode == null) {
+				LOGGER.warning("No coap code for the http status code " + httpCode);
+				throw new TranslationException("No coap code for the http status code " + httpCode);
 			}
 		}
 
@@ -657,41 +689,7 @@ public final class HttpTranslator {
 		if (payload != null && payload.length != 0) {
 
 			// get the coap content-type
-//			Integer coapContentType = coapMessage.getOptions().getContentFormat();
-			ContentType contentType = null;
-
-			// if the content type is not set, translate with octect-stream
-//			if (coapContentType == MediaTypeRegistry.UNDEFINED) {
-			if (! coapMessage.getOptions().hasContentFormat()) {
-				contentType = ContentType.APPLICATION_OCTET_STREAM;
-			} else {
-				int coapContentType = coapMessage.getOptions().getContentFormat();
-				// search for the media type inside the property file
-				String coapContentTypeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_MEDIA + coapContentType);
-
-				// if the content-type has not been found in the property file,
-				// try to get its string value (expressed in mime type)
-				if (coapContentTypeString == null || coapContentTypeString.isEmpty()) {
-					coapContentTypeString = MediaTypeRegistry.toString(coapContentType);
-
-					// if the coap content-type is printable, it is needed to
-					// set the default charset (i.e., UTF-8)
-					if (MediaTypeRegistry.isPrintable(coapContentType)) {
-						coapContentTypeString += "; charset=UTF-8";
-					}
-				}
-
-				// parse the content type
-				try {
-					contentType = ContentType.parse(coapContentTypeString);
-//				} catch (ParseException e) {
-//					LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
-//					contentType = ContentType.APPLICATION_OCTET_STREAM;
-				} catch (UnsupportedCharsetException e) {
-					LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
-					contentType = ContentType.APPLICATION_OCTET_STREAM;
-				}
-			}
+			ContentType contentType = getHttpContentType(coapMessage);
 
 			// get the charset
 			Charset charset = contentType.getCharset();
@@ -705,7 +703,8 @@ public final class HttpTranslator {
 				// translation
 				Charset isoCharset = ISO_8859_1;
 				if (!charset.equals(isoCharset) && contentType != ContentType.APPLICATION_JSON) {
-					byte[] newPayload = changeCharset(payload, charset, isoCharset);
+					// ascii text is the same in utf-8 and iso-8859-1
+					byte[] newPayload = charset.equals(UTF_8) && isAscii(payload) ? payload : changeCharset(payload, charset, isoCharset);
 
 					// since ISO-8859-1 is a subset of UTF-8, it is needed to
 					// check if the mapping could be accomplished, only if the
@@ -719,11 +718,8 @@ public final class HttpTranslator {
 					}
 				}
 
-				// create the content
-				String payloadString = new String(payload, contentType.getCharset());
-
-				// create the entity
-				httpEntity = new StringEntity(payloadString, contentType);
+				// create the entity with the encoded content
+				httpEntity = new ByteArrayEntity(payload, contentType);
 			} else {
 				// create the entity
 				httpEntity = new ByteArrayEntity(payload);
@@ -736,6 +732,62 @@ public final class HttpTranslator {
 		return httpEntity;
 	}
 
+	/**
+	 * Gets the http content-type of the payload of a coap message. If the
+	 * content-type is recognized, and a mapping is present in the properties
+	 * file, it is translated to the correspondent in HTTP, otherwise it is set
+	 * to application/octet-stream. The charset of a printable content-type is
+	 * UTF-8.
+	 * 
+	 * @param coapMessage
+	 *            the coap message
+	 * @return the content-type
+	 */
+	public static ContentType getHttpContentType(Message coapMessage) {
+		if (coapMessage == null) {
+			throw new IllegalArgumentException("coapMessage == null");
+		}
+
+		// get the coap content-type
+//		Integer coapContentType = coapMessage.getOptions().getContentFormat();
+		ContentType contentType = null;
+
+		// if the content type is not set, translate with octect-stream
+//		if (coapContentType == MediaTypeRegistry.UNDEFINED) {
+		if (! coapMessage.getOptions().hasContentFormat()) {
+			contentType = ContentType.APPLICATION_OCTET_STREAM;
+		} else {
+			// search for the media type inside the property file or the
+			// media type registry
+			contentType = TABLES.getContentType(coapMessage.getOptions().getContentFormat());
+		}
+
+		// if the content-type is unknown, try to get its string value
+		if (contentType == null) {
+			int coapContentType = coapMessage.getOptions().getContentFormat();
+			String coapContentTypeString = MediaTypeRegistry.toString(coapContentType);
+
+			// if the coap content-type is printable, it is needed to
+			// set the default charset (i.e., UTF-8)
+			if (MediaTypeRegistry.isPrintable(coapContentType)) {
+				coapContentTypeString += "; charset=UTF-8";
+			}
+
+			// parse the content type
+			try {
+				contentType = ContentType.parse(coapContentTypeString);
+//			} catch (ParseException e) {
+//				LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
+//				contentType = ContentType.APPLICATION_OCTET_STREAM;
+			} catch (UnsupportedCharsetException e) {
+				LOGGER.finer("Cannot convert string to ContentType: " + e.getMessage());
+				contentType = ContentType.APPLICATION_OCTET_STREAM;
+			}
+		}
+
+		return contentType;
+	}
+
 	/**
 	 * Gets the http headers from a list of CoAP options. The method iterates
 	 * over the list looking for a translation of each option in the properties
@@ -765,17 +817,18 @@ public final class HttpTranslator {
 			int optionNumber = option.getNumber();
 			if (optionNumber != OptionRegistry.CONTENT_FORMAT && optionNumber != OptionRegistry.PROXY_URI) {
 				// get the mapping from the property file
-				String headerName = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_OPTION + optionNumber);
+				String headerName = TABLES.getHeaderName(optionNumber);
 
 				// set the header
-				if (headerName != null && !headerName.isEmpty()) {
+				if (headerName != null) {
 					// format the value
 					String stringOptionValue = null;
-					if (OptionNumberRegistry.getFormatByNr(optionNumber) == optionFormats.STRING) {
+					optionFormats format = OptionNumberRegistry.getFormatByNr(optionNumber);
+					if (format == optionFormats.STRING) {
 						stringOptionValue = option.getStringValue();
-					} else if (OptionNumberRegistry.getFormatByNr(optionNumber) == optionFormats.INTEGER) {
+					} else if (format == optionFormats.INTEGER) {
 						stringOptionValue = Integer.toString(option.getIntegerValue());
-					} else if (OptionNumberRegistry.getFormatByNr(optionNumber) == optionFormats.OPAQUE) {
+					} else if (format == optionFormats.OPAQUE) {
 						stringOptionValue = new String(option.getValue());
 					} else {
 						// if the option is not formattable, skip it
@@ -913,19 +966,11 @@ public final class HttpTranslator {
 
 		// get/set the response code
 		ResponseCode coapCode = coapResponse.getCode();
-		String httpCodeString = HTTP_TRANSLATION_PROPERTIES.getProperty(KEY_COAP_CODE + coapCode.value);
+		int httpCode = TABLES.getHttpCode(coapCode);
 
-		if (httpCodeString == null || httpCodeString.isEmpty()) {
-			LOGGER.warning("httpCodeString == null");
-			throw new TranslationException("httpCodeString == null");
-		}
-
-		int httpCode = 0;
-		try {
-			httpCode = Integer.parseInt(httpCodeString.trim());
-		} catch (NumberFormatException e) {
-			LOGGER.warning("Cannot convert the coap code in http status code" + e);
-			throw new TranslationException("Cannot convert the coap code in http status code", e);
+		if (httpCode == 0) {
+			LOGGER.warning("No http status code for the coap code " + coapCode);
+			throw new TranslationException("No http status code for the coap code " + coapCode);
 		}
 
 		// create the http response and set the status line
@@ -991,7 +1036,9 @@ public final class HttpTranslator {
 			CharsetEncoder encoder = toCharset.newEncoder();
 			ByteBuffer byteBuffer = encoder.encode(charBuffer);
 			encoder.flush(byteBuffer);
-			payload = byteBuffer.array();
+			// the backing array may be larger than the encoded bytes
+			payload = new byte[byteBuffer.remaining()];
+			byteBuffer.get(payload);
 		} catch (UnmappableCharacterException e) {
 			// thrown when an input character (or byte) sequence is valid but
 			// cannot be mapped to an output byte (or character) sequence.
@@ -1008,6 +1055,105 @@ public final class HttpTranslator {
 		return payload;
 	}
 
+	/**
+	 * Changes the charset of a stream while reading it, without holding the
+	 * decoded characters in memory. The buffers are not larger than the
+	 * expected length of the stream. The stream is not closed.
+	 * 
+	 * @param in
+	 *            the stream
+	 * @param length
+	 *            the expected length of the stream or a negative number if
+	 *            unknown
+	 * @param fromCharset
+	 *            the charset of the stream
+	 * @param toCharset
+	 *            the charset of the result
+	 * @return the bytes in the new charset
+	 * @throws UnmappableCharacterException
+	 *             if a character cannot be encoded in the new charset
+	 * @throws CharacterCodingException
+	 *             if the stream is not valid in its charset
+	 * @throws IOException
+	 *             if the stream cannot be read
+	 */
+	private static byte[] transcode(InputStream in, long length, Charset fromCharset, Charset toCharset) throws IOException {
+		// decoders and encoders created this way report malformed input and
+		// unmappable characters instead of replacing them
+		CharsetDecoder decoder = fromCharset.newDecoder();
+		CharsetEncoder encoder = toCharset.newEncoder();
+
+		// the buffer must hold more than an incomplete character
+		int size = length < 0 ? MAX_BUFFER_SIZE : (int) Math.max(MIN_BUFFER_SIZE, Math.min(length + 1, MAX_BUFFER_SIZE));
+		ByteBuffer input = ByteBuffer.allocate(size);
+		CharBuffer chars = CharBuffer.allocate(size);
+		ByteBuffer output = ByteBuffer.allocate((int) Math.ceil(size * encoder.maxBytesPerChar()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			int read = in.read(input.array(), input.position(), input.remaining());
+			if (read < 0) {
+				endOfInput = true;
+			} else {
+				input.position(input.position() + read);
+			}
+
+			// decode the complete characters read so far
+			input.flip();
+			CoderResult result;
+			do {
+				result = decoder.decode(input, chars, endOfInput);
+				if (result.isError()) {
+					result.throwException();
+				}
+				chars.flip();
+				encode(encoder, chars, output, out, false);
+				chars.compact();
+			} while (result.isOverflow());
+			input.compact();
+		}
+
+		decoder.flush(chars);
+		chars.flip();
+		encode(encoder, chars, output, out, true);
+		encoder.flush(output);
+		out.write(output.array(), 0, output.position());
+		return out.toByteArray();
+	}
+
+	/*
+	 * Encodes the characters to the output buffer and drains it to the stream.
+	 */
+	private static void encode(CharsetEncoder encoder, CharBuffer chars, ByteBuffer output, ByteArrayOutputStream out, boolean endOfInput) throws CharacterCodingException {
+		CoderResult result;
+		do {
+			result = encoder.encode(chars, output, endOfInput);
+			if (result.isError()) {
+				result.throwException();
+			}
+			out.write(output.array(), 0, output.position());
+			output.clear();
+		} while (result.isOverflow());
+	}
+
+	/**
+	 * Checks whether the payload consists of 7-bit characters only, which are
+	 * encoded the same in all ascii-compatible charsets.
+	 * 
+	 * @param payload
+	 *            the payload
+	 * @return true, if all bytes are ascii characters
+	 */
+	private static boolean isAscii(byte[] payload) {
+		for (byte b : payload) {
+			if (b < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * The Constructor is private because the class is an helper class and
 	 * cannot be instantiated.
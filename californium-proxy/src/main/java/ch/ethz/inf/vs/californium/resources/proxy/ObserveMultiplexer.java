@@ -0,0 +1,479 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.RequestScheduler;
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.observe.ObserveNotificationOrderer;
+
+/**
+ * Shares one observation of a resource on a coap server among all clients of
+ * the proxy that observe it. The multiplexer keeps one observation per
+ * resource and Accept option, hands each notification to all its
+ * subscribers, and cancels the observation when the last subscriber has left
+ * and no new one has joined within the linger time. A subscriber that joins
+ * an existing observation receives only the notifications that arrive after
+ * it has joined, unless it asks for the latest notification, so that it does
+ * not have to wait for the next change.
+ * <p>
+ * The linger time keeps the observation open for clients that poll for one
+ * notification at a time, such as http long-polls. A poll that follows the
+ * previous one within the linger time waits for the next change instead of
+ * starting a new observation, whose first response would only repeat the
+ * current state.
+ * <p>
+ * If the server rejects the observation, does not respond within the forward
+ * timeout, responds with an error or ends the observation with a response
+ * without Observe option, the observation is closed. Its subscribers receive
+ * that response as the final one and the next subscriber starts a new
+ * observation.
+ */
+public class ObserveMultiplexer {
+
+	private final static Logger LOGGER = Logger.getLogger(ObserveMultiplexer.class.getCanonicalName());
+
+	/**
+	 * The receiver of the notifications of an observation.
+	 */
+	public interface Subscriber {
+
+		/**
+		 * Called with a copy of each new notification and of the final
+		 * response that closes the observation. The final response has no
+		 * Observe option. The calls for one subscriber are not concurrent
+		 * and never deliver an older notification after a newer one.
+		 *
+		 * @param notification
+		 *            the notification
+		 * @return false to unsubscribe
+		 */
+		public boolean onNotification(Response notification);
+	}
+
+	/** The observations by resource and Accept option. */
+	private final ConcurrentHashMap<String, Observation> observations = new ConcurrentHashMap<String, Observation>();
+
+	/** The number of subscribers of all observations. */
+	private final AtomicInteger subscribers = new AtomicInteger();
+
+	/** The scheduler through which the observe requests are sent. */
+	private final RequestScheduler scheduler;
+
+	/** The timer for the first responses. */
+	private final ScheduledExecutorService timer;
+
+	/** The time in ms to wait for the first response of a server. */
+	private final long timeout;
+
+	/** The time in ms to keep an observation without subscribers. */
+	private final long linger;
+
+	/**
+	 * Instantiates a new multiplexer that cancels an observation as soon as
+	 * its last subscriber leaves.
+	 *
+	 * @param scheduler
+	 *            the scheduler through which the observe requests are sent
+	 * @param timer
+	 *            the timer for the first responses
+	 * @param timeout
+	 *            the time in ms to wait for the first response or 0 to wait
+	 *            as long as the request is retransmitted
+	 */
+	public ObserveMultiplexer(RequestScheduler scheduler, ScheduledExecutorService timer, long timeout) {
+		this(scheduler, timer, timeout, 0);
+	}
+
+	/**
+	 * Instantiates a new multiplexer.
+	 *
+	 * @param scheduler
+	 *            the scheduler through which the observe requests are sent
+	 * @param timer
+	 *            the timer for the first responses
+	 * @param timeout
+	 *            the time in ms to wait for the first response or 0 to wait
+	 *            as long as the request is retransmitted
+	 * @param linger
+	 *            the time in ms to keep an observation after its last
+	 *            subscriber has left or 0 to cancel it at once
+	 */
+	public ObserveMultiplexer(RequestScheduler scheduler, ScheduledExecutorService timer, long timeout, long linger) {
+		if (scheduler == null)
+			throw new NullPointerException("The scheduler must not be null");
+		if (timer == null)
+			throw new NullPointerException("The timer must not be null");
+		this.scheduler = scheduler;
+		this.timer = timer;
+		this.timeout = timeout;
+		this.linger = linger;
+	}
+
+	/**
+	 * Subscribes to the observation of the resource that the specified request
+	 * asks for. If no subscriber observes the resource with the same Accept
+	 * option yet, the multiplexer starts a new observation with a copy of the
+	 * request. The ETags of the request are not sent, since the first
+	 * notification must carry the representation for all subscribers.
+	 *
+	 * @param request
+	 *            the GET request with the destination and the options of the
+	 *            resource
+	 * @param subscriber
+	 *            the subscriber
+	 * @return the subscription
+	 */
+	public Subscription subscribe(Request request, Subscriber subscriber) {
+		if (subscriber == null)
+			throw new NullPointerException("The subscriber must not be null");
+		String key = getKey(request);
+		while (true) {
+			Observation observation = observations.get(key);
+			boolean created = false;
+			if (observation == null) {
+				Observation fresh = new Observation(key, createObserveRequest(request));
+				observation = observations.putIfAbsent(key, fresh);
+				if (observation == null) {
+					observation = fresh;
+					created = true;
+				}
+			}
+			Subscription subscription = observation.add(subscriber);
+			if (subscription == null) {
+				// the observation has been closed meanwhile
+				observations.remove(key, observation);
+				continue;
+			}
+			if (created) {
+				LOGGER.fine("Start observation of "+key);
+				observation.start();
+			} else {
+				LOGGER.finer("Join observation of "+key);
+			}
+			return subscription;
+		}
+	}
+
+	/**
+	 * Returns the number of observations of servers.
+	 *
+	 * @return the number of observations
+	 */
+	public int getObservationCount() {
+		return observations.size();
+	}
+
+	/**
+	 * Returns the number of subscribers of all observations.
+	 *
+	 * @return the number of subscribers
+	 */
+	public int getSubscriberCount() {
+		return subscribers.get();
+	}
+
+	/*
+	 * Identifies the observed resource by the destination, the URI path and
+	 * query, and the Accept option, which selects the representation.
+	 */
+	private static String getKey(Request request) {
+		OptionSet options = request.getOptions();
+		StringBuilder builder = new StringBuilder();
+		builder.append(request.getDestination().getHostAddress()).append(':').append(request.getDestinationPort());
+		builder.append('/').append(options.getURIPathString());
+		if (options.getURIQueryCount() > 0)
+			builder.append('?').append(options.getURIQueryString());
+		if (options.hasAccept())
+			builder.append('#').append(options.getAccept());
+		return builder.toString();
+	}
+
+	/*
+	 * Creates the observe request from the request of the first subscriber.
+	 */
+	private static Request createObserveRequest(Request request) {
+		Request observe = new Request(Code.GET);
+		observe.setConfirmable(true);
+		observe.setOptions(new OptionSet(request.getOptions()));
+		observe.getOptions().clearETags();
+		observe.getOptions().setObserve(0);
+		observe.setDestination(request.getDestination());
+		observe.setDestinationPort(request.getDestinationPort());
+		return observe;
+	}
+
+	/*
+	 * Copies the notification for a subscriber, since each response is sent
+	 * with its own message ID and token. The payload is shared.
+	 */
+	private static Response copy(Response notification) {
+		Response copy = new Response(notification.getCode());
+		copy.setOptions(new OptionSet(notification.getOptions()));
+		copy.setPayload(notification.getPayload());
+		copy.setTimestamp(notification.getTimestamp());
+		return copy;
+	}
+
+	/**
+	 * The subscription of a subscriber to an observation.
+	 */
+	public final class Subscription {
+
+		private final Observation observation;
+		private final Subscriber subscriber;
+
+		/** The sequence number of the last delivered notification. */
+		private long delivered = -1; // guarded by this
+
+		private Subscription(Observation observation, Subscriber subscriber) {
+			this.observation = observation;
+			this.subscriber = subscriber;
+		}
+
+		/**
+		 * Returns a copy of the latest notification of the observation.
+		 *
+		 * @return the notification or null if none has arrived yet
+		 */
+		public Response getLatest() {
+			Response latest = observation.getLatest();
+			return latest != null ? copy(latest) : null;
+		}
+
+		/**
+		 * Delivers the latest notification to the subscriber unless it has
+		 * already received it or a newer one.
+		 */
+		public void replay() {
+			Response latest;
+			long sequence;
+			synchronized (observation) {
+				latest = observation.latest;
+				sequence = observation.sequence;
+			}
+			if (latest != null)
+				deliver(latest, sequence);
+		}
+
+		/**
+		 * Unsubscribes from the observation. The observation is canceled if
+		 * this has been its last subscriber and no other subscriber joins
+		 * within the linger time.
+		 */
+		public void cancel() {
+			observation.remove(this);
+		}
+
+		private void deliver(Response notification, long sequence) {
+			boolean keep;
+			synchronized (this) {
+				if (sequence <= delivered)
+					return;
+				delivered = sequence;
+				keep = subscriber.onNotification(copy(notification));
+			}
+			if (!keep)
+				cancel();
+		}
+	}
+
+	/**
+	 * The observation of a resource on a server and its subscribers.
+	 */
+	private final class Observation extends MessageObserverAdapter implements Runnable {
+
+		private final String key;
+		private final Request request;
+
+		/** The orderer that drops notifications that arrive late. */
+		private final ObserveNotificationOrderer orderer = new ObserveNotificationOrderer();
+
+		private final List<Subscription> subscriptions = new ArrayList<Subscription>(); // guarded by this
+		private Response latest; // guarded by this
+		private long sequence; // guarded by this
+		private boolean closed; // guarded by this
+		private ScheduledFuture<?> firstResponseTimer; // guarded by this
+		private ScheduledFuture<?> lingerTimer; // guarded by this
+		private int lingerCount; // guarded by this
+
+		private Observation(String key, Request request) {
+			this.key = key;
+			this.request = request;
+		}
+
+		private void start() {
+			request.addMessageObserver(this);
+			synchronized (this) {
+				if (timeout > 0 && !closed)
+					firstResponseTimer = timer.schedule(this, timeout, TimeUnit.MILLISECONDS);
+			}
+			try {
+				scheduler.submit(request, null, 0);
+			} catch (RuntimeException e) {
+				LOGGER.warning("Failed to start observation of "+key+": "+e.getMessage());
+				close(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+			}
+		}
+
+		private synchronized Response getLatest() {
+			return latest;
+		}
+
+		private synchronized Subscription add(Subscriber subscriber) {
+			if (closed)
+				return null;
+			if (lingerTimer != null) {
+				LOGGER.finer("Subscriber joins lingering observation of "+key);
+				cancelLinger();
+			}
+			Subscription subscription = new Subscription(this, subscriber);
+			subscriptions.add(subscription);
+			subscribers.incrementAndGet();
+			return subscription;
+		}
+
+		private void remove(Subscription subscription) {
+			synchronized (this) {
+				if (!subscriptions.remove(subscription))
+					return;
+				subscribers.decrementAndGet();
+				if (!subscriptions.isEmpty() || closed)
+					return;
+				if (linger > 0) {
+					LOGGER.fine("Last subscriber has left, keep observation of "+key+" for "+linger+" ms");
+					final int number = ++lingerCount;
+					lingerTimer = timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							expire(number);
+						}
+					}, linger, TimeUnit.MILLISECONDS);
+					return;
+				}
+				closed = true;
+				cancelTimer();
+			}
+			LOGGER.fine("Last subscriber has left, cancel observation of "+key);
+			cancel();
+		}
+
+		/*
+		 * The linger time has expired. The observation is canceled unless a
+		 * subscriber has joined meanwhile.
+		 */
+		private void expire(int number) {
+			synchronized (this) {
+				if (closed || lingerTimer == null || number != lingerCount)
+					return;
+				lingerTimer = null;
+				closed = true;
+				cancelTimer();
+			}
+			LOGGER.fine("No subscriber has joined, cancel observation of "+key);
+			cancel();
+		}
+
+		private void cancel() {
+			observations.remove(key, this);
+			// the server gets a RST with its next notification
+			request.cancel();
+		}
+
+		@Override
+		public void onResponse(Response response) {
+			if (!response.getOptions().hasObserve() || !ResponseCode.isSuccess(response.getCode())) {
+				LOGGER.info("Server has ended observation of "+key+" with "+response.getCode());
+				close(CoapTranslator.getResponse(response));
+				return;
+			}
+			if (!orderer.isNew(response)) {
+				LOGGER.fine("Drop old notification of "+key);
+				return;
+			}
+			Response notification = CoapTranslator.getResponse(response);
+			List<Subscription> targets;
+			long number;
+			synchronized (this) {
+				if (closed)
+					return;
+				cancelTimer();
+				latest = notification;
+				number = ++sequence;
+				targets = new ArrayList<Subscription>(subscriptions);
+			}
+			LOGGER.finer("Forward notification of "+key+" to "+targets.size()+" subscribers");
+			for (Subscription subscription : targets)
+				subscription.deliver(notification, number);
+		}
+
+		@Override
+		public void onTimeout() {
+			LOGGER.warning("No response received for observation of "+key);
+			close(new Response(CoapTranslator.STATUS_TIMEOUT));
+		}
+
+		@Override
+		public void onReject() {
+			LOGGER.warning("Observation of "+key+" rejected by the server");
+			close(new Response(ResponseCode.BAD_GATEWAY));
+		}
+
+		/*
+		 * The server has not responded within the forward timeout.
+		 */
+		@Override
+		public void run() {
+			LOGGER.warning("No response received for observation of "+key+" within "+timeout+" ms");
+			close(new Response(CoapTranslator.STATUS_TIMEOUT));
+		}
+
+		/*
+		 * Closes the observation and hands the final response to all
+		 * subscribers.
+		 */
+		private void close(Response response) {
+			List<Subscription> targets;
+			synchronized (this) {
+				if (closed)
+					return;
+				closed = true;
+				cancelTimer();
+				cancelLinger();
+				targets = new ArrayList<Subscription>(subscriptions);
+				subscriptions.clear();
+				subscribers.addAndGet(-targets.size());
+			}
+			observations.remove(key, this);
+			request.cancel();
+			response.getOptions().removeObserve();
+			for (Subscription subscription : targets)
+				subscription.deliver(response, Long.MAX_VALUE);
+		}
+
+		private void cancelTimer() {
+			if (firstResponseTimer != null) {
+				firstResponseTimer.cancel(false);
+				firstResponseTimer = null;
+			}
+		}
+
+		private void cancelLinger() {
+			if (lingerTimer != null) {
+				lingerTimer.cancel(false);
+				lingerTimer = null;
+			}
+		}
+	}
+}
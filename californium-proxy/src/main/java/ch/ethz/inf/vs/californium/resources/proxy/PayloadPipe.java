@@ -0,0 +1,261 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded buffer between the producer and the consumer of a payload that is
+ * transferred in pieces, such as an HTTP body and the blocks of a CoAP
+ * blockwise transfer. The pipe never holds more bytes than its capacity, so
+ * that a transfer of any size takes constant memory. Neither side blocks: a
+ * side that cannot continue returns and registers a listener, which is called
+ * when the other side has read or written, or has closed or aborted the pipe.
+ * The listeners are called without holding the lock of the pipe and may call
+ * back into it.
+ */
+public class PayloadPipe {
+
+	/**
+	 * The listener of one side of the pipe.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when the other side has made progress, i.e., when the reader
+		 * has read bytes or the writer has written bytes or closed the pipe,
+		 * and when either side has aborted the pipe.
+		 *
+		 * @param pipe
+		 *            the pipe
+		 */
+		public void onReady(PayloadPipe pipe);
+	}
+
+	/** The ring buffer. */
+	private final byte[] buffer;
+
+	/** The position of the first readable byte. */
+	private int head;
+
+	/** The number of readable bytes. */
+	private int count;
+
+	/** The writer has written the last byte. */
+	private boolean closed;
+
+	/** Either side has given up on the transfer. */
+	private boolean aborted;
+
+	private Listener reader;
+	private Listener writer;
+
+	/**
+	 * Instantiates a new pipe.
+	 *
+	 * @param capacity
+	 *            the maximum number of bytes the pipe holds
+	 */
+	public PayloadPipe(int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("The capacity must be positive but is "+capacity);
+		this.buffer = new byte[capacity];
+	}
+
+	/**
+	 * Sets the listener that is called when bytes can be read.
+	 *
+	 * @param reader
+	 *            the listener of the reader
+	 */
+	public synchronized void setReader(Listener reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Sets the listener that is called when bytes can be written.
+	 *
+	 * @param writer
+	 *            the listener of the writer
+	 */
+	public synchronized void setWriter(Listener writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Copies as many bytes from the specified buffer into the pipe as fit.
+	 *
+	 * @param src
+	 *            the bytes to write
+	 * @return the number of bytes written or -1 if the pipe has been aborted
+	 * @throws IllegalStateException
+	 *             if the pipe has been closed
+	 */
+	public int write(ByteBuffer src) {
+		Listener listener;
+		int length;
+		synchronized (this) {
+			if (aborted)
+				return -1;
+			if (closed)
+				throw new IllegalStateException("The pipe has been closed");
+			length = Math.min(src.remaining(), buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			int first = Math.min(length, buffer.length - tail);
+			src.get(buffer, tail, first);
+			src.get(buffer, 0, length - first);
+			count += length;
+			listener = length > 0 ? reader : null;
+		}
+		notify(listener);
+		return length;
+	}
+
+	/**
+	 * Copies as many bytes from the specified array into the pipe as fit.
+	 *
+	 * @param bytes
+	 *            the bytes to write
+	 * @return the number of bytes written or -1 if the pipe has been aborted
+	 * @throws IllegalStateException
+	 *             if the pipe has been closed
+	 */
+	public int write(byte[] bytes) {
+		return write(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Copies as many bytes from the pipe into the specified buffer as are
+	 * available and fit.
+	 *
+	 * @param dst
+	 *            the buffer to fill
+	 * @return the number of bytes read, 0 if none are available yet, or -1 if
+	 *         the pipe has been closed and drained or has been aborted
+	 */
+	public int read(ByteBuffer dst) {
+		Listener listener;
+		int length;
+		synchronized (this) {
+			if (aborted || (closed && count == 0))
+				return -1;
+			length = Math.min(dst.remaining(), count);
+			take(dst, length);
+			listener = length > 0 ? writer : null;
+		}
+		notify(listener);
+		return length;
+	}
+
+	/**
+	 * Reads the next block of the specified size. The pipe returns a full
+	 * block only if more bytes follow it, so that the reader knows whether a
+	 * block is the last one when it gets it. Once the pipe has been closed, it
+	 * returns the remaining bytes up to the block size, which may be fewer or
+	 * none at all.
+	 *
+	 * @param size
+	 *            the size of a block
+	 * @return the block or null if the pipe does not hold enough bytes yet or
+	 *         has been aborted
+	 */
+	public byte[] readBlock(int size) {
+		Listener listener;
+		byte[] block;
+		synchronized (this) {
+			if (aborted || (!closed && count <= size))
+				return null;
+			block = new byte[Math.min(size, count)];
+			take(ByteBuffer.wrap(block), block.length);
+			listener = block.length > 0 ? writer : null;
+		}
+		notify(listener);
+		return block;
+	}
+
+	/**
+	 * Signals that the writer has written the last byte.
+	 */
+	public void close() {
+		Listener listener;
+		synchronized (this) {
+			if (closed || aborted)
+				return;
+			closed = true;
+			listener = reader;
+		}
+		notify(listener);
+	}
+
+	/**
+	 * Gives up on the transfer and discards the bytes in the pipe. Both sides
+	 * are notified.
+	 */
+	public void abort() {
+		Listener readerListener;
+		Listener writerListener;
+		synchronized (this) {
+			if (aborted)
+				return;
+			aborted = true;
+			count = 0;
+			readerListener = reader;
+			writerListener = writer;
+		}
+		notify(readerListener);
+		notify(writerListener);
+	}
+
+	/**
+	 * @return the capacity in bytes
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * @return the number of bytes that can be read
+	 */
+	public synchronized int getAvailable() {
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes that can be written
+	 */
+	public synchronized int getFree() {
+		return aborted || closed ? 0 : buffer.length - count;
+	}
+
+	/**
+	 * @return true if the writer has written the last byte
+	 */
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return true if either side has given up on the transfer
+	 */
+	public synchronized boolean isAborted() {
+		return aborted;
+	}
+
+	/**
+	 * @return true if the pipe has been closed and all bytes have been read
+	 */
+	public synchronized boolean isDrained() {
+		return closed && count == 0;
+	}
+
+	private void take(ByteBuffer dst, int length) {
+		int first = Math.min(length, buffer.length - head);
+		dst.put(buffer, head, first);
+		dst.put(buffer, 0, length - first);
+		head = (head + length) % buffer.length;
+		count -= length;
+	}
+
+	private void notify(Listener listener) {
+		if (listener != null)
+			listener.onReady(this);
+	}
+}
@@ -1,37 +1,225 @@
 package ch.ethz.inf.vs.californium.resources.proxy;
 
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ch.ethz.inf.vs.californium.RequestScheduler;
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
+import ch.ethz.inf.vs.californium.resources.proxy.ObserveMultiplexer.Subscriber;
+import ch.ethz.inf.vs.californium.resources.proxy.ObserveMultiplexer.Subscription;
 
 /**
  * Resource that forwards a coap request with the proxy-uri option set to the
- * desired coap server.
- * 
+ * desired coap server. The resource does not wait for the response of the
+ * server: the response completes the original exchange through a callback.
+ * The requests to each server go through a {@link RequestScheduler} that
+ * limits how many of them are in flight. If too many requests wait for a
+ * server, the resource responds with 5.03 (Service Unavailable). If the server
+ * does not respond within the forward timeout, the resource responds with
+ * 5.04 (Gateway Timeout).
+ * <p>
+ * The resource streams the bodies of a {@link StreamingRequest}: it forwards
+ * the body of the request in Block1 blocks as it arrives and, if the server
+ * transfers the response to a GET blockwise, responds with a
+ * {@link StreamingResponse} after the first block and fetches the further
+ * blocks only as fast as the recipient reads them. Responses whose size the
+ * server announces to be at most the streaming threshold are assembled
+ * instead. The blocks are sent with the blockwise layer set transparent and
+ * each block has to arrive within the forward timeout.
+ * <p>
+ * GET requests with the Observe option share one observation of the server
+ * per resource through an {@link ObserveMultiplexer}. A coap client that
+ * observes the resource becomes an observer of this resource and receives
+ * every notification. A request without observe relation, e.g., an http
+ * long-poll, receives the next notification or, if none arrives within the
+ * long-poll timeout, the latest one.
+ *
  * @author Francesco Corazza
- * 
+ *
  */
 public class ProxyCoapClientResource extends ForwardingResource {
-	
+
+	/** The timer for the forward timeouts of all resources. */
+	private static final ScheduledExecutorService TIMER =
+			Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+
+	/** The scheduler that limits the requests in flight per server. */
+	private final RequestScheduler scheduler;
+
+	/** The time in ms to wait for the response of a server. */
+	private final long timeout;
+
+	/** The number of requests that may wait for a server. */
+	private final int maxQueue;
+
+	/** The size of the blocks of streamed bodies. */
+	private final int blockSize;
+
+	/** The size up to which a blockwise response is assembled. */
+	private final int streamingThreshold;
+
+	/** The time in ms a long-poll waits for the next notification. */
+	private final long longPollTimeout;
+
+	/** The shared observations of the servers. */
+	private final ObserveMultiplexer multiplexer;
+
+	/** The observers of this resource by their relation. */
+	private final ConcurrentHashMap<ObserveRelation, RelationSubscriber> observers = new ConcurrentHashMap<ObserveRelation, RelationSubscriber>();
+
 	public ProxyCoapClientResource() {
 		this("coapClient");
-	} 
-	
+	}
+
 	public ProxyCoapClientResource(String name) {
+		this(name, NetworkConfig.getStandard());
+	}
+
+	public ProxyCoapClientResource(String name, NetworkConfig config) {
 		// set the resource hidden
 		super(name, true);
 		getAttributes().setTitle("Forward the requests to a CoAP server.");
+		this.scheduler = new RequestScheduler(config);
+		this.timeout = config.getInt(NetworkConfigDefaults.PROXY_FORWARD_TIMEOUT);
+		this.maxQueue = config.getInt(NetworkConfigDefaults.PROXY_QUEUE_MAX);
+		this.blockSize = config.getInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE);
+		this.streamingThreshold = config.getInt(NetworkConfigDefaults.HTTP_STREAMING_THRESHOLD);
+		this.longPollTimeout = config.getInt(NetworkConfigDefaults.PROXY_LONG_POLL_TIMEOUT);
+		// keep an observation for the next long-poll of the same client
+		this.multiplexer = new ObserveMultiplexer(scheduler, TIMER, timeout, longPollTimeout);
+		setObservable(true);
+	}
+
+	@Override
+	public void handleRequest(final Exchange exchange) {
+		Request request = exchange.getRequest();
+		if (request.getCode() != Code.GET || !request.getOptions().hasObserve()) {
+			super.handleRequest(exchange);
+			return;
+		}
+
+		// accept the request and send the notifications separately
+		exchange.sendAccept();
+		final AtomicBoolean responded = new AtomicBoolean();
+		ForwardingCallback callback = new ForwardingCallback() {
+			@Override
+			public void respond(Response response) {
+				if (responded.compareAndSet(false, true))
+					exchange.sendResponse(response);
+			}
+		};
+		Request outgoingRequest = createOutgoingRequest(request, callback);
+		if (outgoingRequest == null)
+			return;
+
+		ObserveRelation relation = exchange.getRelation();
+		if (relation != null) {
+			// a coap client observes the resource through the proxy
+			RelationSubscriber observer = new RelationSubscriber(exchange, relation);
+			observers.put(relation, observer);
+			observer.start(multiplexer.subscribe(outgoingRequest, observer));
+		} else {
+			// the client waits for the next notification only
+			LongPoll poll = new LongPoll(callback);
+			poll.start(multiplexer.subscribe(outgoingRequest, poll));
+		}
+	}
+
+	@Override
+	public void removeObserveRelation(ObserveRelation relation) {
+		super.removeObserveRelation(relation);
+		// the client has canceled the relation or is unreachable
+		RelationSubscriber observer = observers.remove(relation);
+		if (observer != null)
+			observer.cancel();
 	}
 
 	@Override
 	public Response forwardRequest(Request request) {
+		return awaitResponse(request);
+	}
+
+	@Override
+	public void forwardRequest(Request request, ForwardingCallback callback) {
 		LOGGER.info("ProxyCoAP2CoAP forwards "+request);
 		Request incomingRequest = request;
 
+		Request outgoingRequest = createOutgoingRequest(incomingRequest, callback);
+		if (outgoingRequest == null)
+			return;
+
+		if (incomingRequest instanceof StreamingRequest) {
+			PayloadPipe body = ((StreamingRequest) incomingRequest).getBody();
+			if (body != null) {
+				// forward the body blockwise as it arrives
+				new BlockwiseUpload(outgoingRequest, body, callback).start();
+				return;
+			}
+			// take the response to a GET block by block
+			if (outgoingRequest.getCode() == Code.GET)
+				outgoingRequest.setBlockwiseTransparent(true);
+		}
+
+		ResponseForwarder forwarder = new ResponseForwarder(outgoingRequest, callback);
+		outgoingRequest.addMessageObserver(forwarder);
+		try {
+			// execute the request
+			LOGGER.finer("Sending coap request.");
+			scheduler.submit(outgoingRequest, null, 0);
+			forwarder.scheduleTimeout();
+		} catch (Exception e) {
+			LOGGER.warning("Failed to execute request: " + e.getMessage());
+			forwarder.respond(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+		}
+	}
+
+	/**
+	 * Returns the scheduler that limits the requests in flight per server.
+	 *
+	 * @return the scheduler
+	 */
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Returns the shared observations of the servers.
+	 *
+	 * @return the multiplexer
+	 */
+	public ObserveMultiplexer getMultiplexer() {
+		return multiplexer;
+	}
+
+	/*
+	 * Translates the request with the proxy-uri option into the request to
+	 * the coap server. Responds to the request and returns null if it cannot
+	 * be translated or too many requests wait for the server.
+	 */
+	private Request createOutgoingRequest(Request incomingRequest, ForwardingCallback callback) {
 		// check the invariant: the request must have the proxy-uri set
 		if (!incomingRequest.getOptions().hasProxyURI()) {
 			LOGGER.warning("Proxy-uri option not set.");
-			return new Response(ResponseCode.BAD_OPTION);
+			callback.respond(new Response(ResponseCode.BAD_OPTION));
+			return null;
 		}
 
 		// remove the fake uri-path
@@ -43,48 +231,631 @@ public class ProxyCoapClientResource extends ForwardingResource {
 		try {
 			// create the new request from the original
 			outgoingRequest = CoapTranslator.getRequest(incomingRequest);
+		} catch (TranslationException e) {
+			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
+			callback.respond(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return null;
+		}
 
-//			// enable response queue for blocking I/O
-//			outgoingRequest.enableResponseQueue(true);
+		// shed the request if too many wait for the server
+		InetSocketAddress destination = new InetSocketAddress(outgoingRequest.getDestination(), outgoingRequest.getDestinationPort());
+		if (scheduler.getQueueLength(destination) >= maxQueue) {
+			LOGGER.warning("Too many requests wait for "+destination);
+			callback.respond(new Response(ResponseCode.SERVICE_UNAVAILABLE));
+			return null;
+		}
 
-			// get the token from the manager // TODO: necessary?
-//			outgoingRequest.setToken(TokenManager.getInstance().acquireToken());
+		return outgoingRequest;
+	}
 
-			// execute the request
-			LOGGER.finer("Sending coap request.");
-//			outgoingRequest.execute();
-			LOGGER.info("ProxyCoapClient received CoAP request and sends a copy to CoAP target");
-			outgoingRequest.send();
+	/*
+	 * Creates a request for a block with the options and destination of the
+	 * forwarded request.
+	 */
+	private static Request createBlockRequest(Request outgoingRequest) {
+		Request request = new Request(outgoingRequest.getCode());
+		request.setConfirmable(true);
+		request.setOptions(new OptionSet(outgoingRequest.getOptions()));
+		request.setDestination(outgoingRequest.getDestination());
+		request.setDestinationPort(outgoingRequest.getDestinationPort());
+		request.setBlockwiseTransparent(true);
+		return request;
+	}
 
-			// accept the request sending a separate response to avoid the
-			// timeout in the requesting client
-			LOGGER.finer("Acknowledge message sent");
-		} catch (TranslationException e) {
-			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
-		} catch (Exception e) {
-			LOGGER.warning("Failed to execute request: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+	/**
+	 * Translates the response of the server and completes the original
+	 * request exactly once, also if the server does not respond in time.
+	 */
+	private final class ResponseForwarder extends MessageObserverAdapter implements Runnable {
+
+		private final Request outgoingRequest;
+		private final ForwardingCallback callback;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timer;
+
+		private ResponseForwarder(Request outgoingRequest, ForwardingCallback callback) {
+			this.outgoingRequest = outgoingRequest;
+			this.callback = callback;
 		}
 
-		try {
-			// receive the response // TODO: don't wait for ever
-			Response receivedResponse = outgoingRequest.waitForResponse();
+		private void scheduleTimeout() {
+			if (timeout > 0)
+				timer = TIMER.schedule(this, timeout, TimeUnit.MILLISECONDS);
+		}
 
-			if (receivedResponse != null) {
-				LOGGER.finer("Coap response received.");
+		private boolean respond(Response response) {
+			if (!completed.compareAndSet(false, true))
+				return false;
+			ScheduledFuture<?> t = timer;
+			if (t != null) t.cancel(false);
+			callback.respond(response);
+			return true;
+		}
 
-				// create the real response for the original request
-				Response outgoingResponse = CoapTranslator.getResponse(receivedResponse);
+		@Override
+		public void onResponse(Response response) {
+			LOGGER.finer("Coap response received.");
+			if (outgoingRequest.isBlockwiseTransparent() && response.getOptions().hasBlock2()) {
+				BlockOption block2 = response.getOptions().getBlock2();
+				if (block2.isM() && block2.getNum() == 0) {
+					BlockwiseDownload download = new BlockwiseDownload(outgoingRequest, response);
+					Integer size = response.getOptions().getSize2();
+					if (size != null && size <= streamingThreshold) {
+						// the blocks have their own timeouts
+						ScheduledFuture<?> t = timer;
+						if (t != null) t.cancel(false);
+						download.collect(this);
+					} else {
+						respond(download.createResponse());
+					}
+					return;
+				}
+			}
+			// create the real response for the original request
+			Response translated = CoapTranslator.getResponse(response);
+			if (outgoingRequest.isBlockwiseTransparent())
+				translated.getOptions().removeBlock2();
+			respond(translated);
+		}
+
+		@Override
+		public void onTimeout() {
+			LOGGER.warning("No response received.");
+			respond(new Response(CoapTranslator.STATUS_TIMEOUT));
+		}
 
-				return outgoingResponse;
+		@Override
+		public void onReject() {
+			LOGGER.warning("Request rejected by the server.");
+			respond(new Response(ResponseCode.BAD_GATEWAY));
+		}
+
+		@Override
+		public void onCancel() {
+			respond(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+		}
+
+		/*
+		 * The forward timeout has expired.
+		 */
+		@Override
+		public void run() {
+			if (respond(new Response(CoapTranslator.STATUS_TIMEOUT))) {
+				LOGGER.warning("No response received within "+timeout+" ms.");
+				outgoingRequest.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Forwards the notifications of the shared observation to a coap client
+	 * that observes this resource. The notifications keep the sequence
+	 * numbers of the server, which increase for each relation, since a
+	 * relation follows a single observation.
+	 */
+	private final class RelationSubscriber implements Subscriber {
+
+		private final Exchange exchange;
+		private final ObserveRelation relation;
+		private volatile Subscription subscription;
+		private volatile boolean canceled;
+
+		private RelationSubscriber(Exchange exchange, ObserveRelation relation) {
+			this.exchange = exchange;
+			this.relation = relation;
+		}
+
+		private void start(Subscription subscription) {
+			this.subscription = subscription;
+			if (canceled) {
+				subscription.cancel();
 			} else {
-				LOGGER.warning("No response received.");
-				return new Response(CoapTranslator.STATUS_TIMEOUT);
+				// a client that joins gets the latest notification at once
+				subscription.replay();
+			}
+		}
+
+		private void cancel() {
+			canceled = true;
+			Subscription s = subscription;
+			if (s != null) s.cancel();
+		}
+
+		@Override
+		public boolean onNotification(Response notification) {
+			if (canceled)
+				return false;
+			Integer number = notification.getOptions().getObserve();
+			if (number == null) {
+				// the observation of the server has ended and so does the relation
+				observers.remove(relation, this);
+				relation.cancel();
+				exchange.sendResponse(notification);
+				return false;
+			}
+			checkObserveRelation(exchange, notification);
+			notification.getOptions().setObserve(number);
+			exchange.sendResponse(notification);
+			return true;
+		}
+	}
+
+	/**
+	 * Answers a request without observe relation, e.g., an http long-poll,
+	 * with the next notification of the shared observation, i.e., one that is
+	 * newer than the latest notification when the poll joins. If none arrives
+	 * within the long-poll timeout, it answers with the latest notification
+	 * or with 5.04 (Gateway Timeout) if the server has not responded yet.
+	 * The observation lingers after the poll so that the next poll joins it.
+	 */
+	private final class LongPoll implements Subscriber, Runnable {
+
+		private final ForwardingCallback callback;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private volatile Subscription subscription;
+		private volatile ScheduledFuture<?> timer;
+
+		private LongPoll(ForwardingCallback callback) {
+			this.callback = callback;
+		}
+
+		private void start(Subscription subscription) {
+			this.subscription = subscription;
+			if (completed.get()) {
+				subscription.cancel();
+				return;
+			}
+			if (longPollTimeout > 0) {
+				timer = TIMER.schedule(this, longPollTimeout, TimeUnit.MILLISECONDS);
+				if (completed.get())
+					timer.cancel(false);
+			}
+		}
+
+		private void complete(Response response) {
+			if (!completed.compareAndSet(false, true))
+				return;
+			ScheduledFuture<?> t = timer;
+			if (t != null) t.cancel(false);
+			Subscription s = subscription;
+			if (s != null) s.cancel();
+			response.getOptions().removeObserve();
+			callback.respond(response);
+		}
+
+		@Override
+		public boolean onNotification(Response notification) {
+			complete(notification);
+			return false;
+		}
+
+		/*
+		 * The long-poll timeout has expired.
+		 */
+		@Override
+		public void run() {
+			Response latest = subscription.getLatest();
+			complete(latest != null ? latest : new Response(CoapTranslator.STATUS_TIMEOUT));
+		}
+	}
+
+	/**
+	 * The representation of a response that the server transfers blockwise.
+	 * Each transfer starts with the first block, which is the response to the
+	 * forwarded request, and fetches the further blocks into a pipe of two
+	 * blocks.
+	 */
+	private final class BlockwiseDownload implements StreamingResponse.BodySource {
+
+		private final Request outgoingRequest;
+		private final Response first;
+
+		private BlockwiseDownload(Request outgoingRequest, Response first) {
+			this.outgoingRequest = outgoingRequest;
+			this.first = first;
+		}
+
+		/*
+		 * Creates the response that streams the representation.
+		 */
+		private StreamingResponse createResponse() {
+			StreamingResponse response = new StreamingResponse(first.getCode(), this);
+			response.setOptions(new OptionSet(first.getOptions()));
+			response.getOptions().removeBlock2();
+			response.setPayload(first.getPayload());
+			response.setTimestamp(first.getTimestamp());
+			return response;
+		}
+
+		@Override
+		public PayloadPipe open() {
+			int size = first.getOptions().getBlock2().getSize();
+			PayloadPipe pipe = new PayloadPipe(2 * Math.max(blockSize, size));
+			pipe.write(first.getPayload());
+			new BlockFetcher(this, pipe).start();
+			return pipe;
+		}
+
+		/*
+		 * Fetches the whole representation and responds with it.
+		 */
+		private void collect(final ResponseForwarder forwarder) {
+			final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			final ByteBuffer buffer = ByteBuffer.allocate(first.getOptions().getBlock2().getSize());
+			PayloadPipe.Listener reader = new PayloadPipe.Listener() {
+				@Override
+				public void onReady(PayloadPipe pipe) {
+					synchronized (payload) {
+						int length;
+						do {
+							buffer.clear();
+							length = pipe.read(buffer);
+							payload.write(buffer.array(), 0, Math.max(length, 0));
+						} while (length > 0);
+						if (length < 0) {
+							if (pipe.isAborted()) {
+								forwarder.respond(new Response(ResponseCode.BAD_GATEWAY));
+							} else {
+								Response response = CoapTranslator.getResponse(first);
+								response.getOptions().removeBlock2();
+								response.setPayload(payload.toByteArray());
+								forwarder.respond(response);
+							}
+						}
+					}
+				}
+			};
+			PayloadPipe pipe = open();
+			pipe.setReader(reader);
+			reader.onReady(pipe);
+		}
+	}
+
+	/**
+	 * Fetches the blocks after the first one into a pipe, one at a time and
+	 * only when the pipe has room for a whole block. The transfer is aborted
+	 * if a block does not arrive in time or if the representation has changed
+	 * in the meantime.
+	 */
+	private final class BlockFetcher implements PayloadPipe.Listener {
+
+		private final BlockwiseDownload download;
+		private final PayloadPipe pipe;
+
+		/** The ETag of the first block or null if it has none. */
+		private final byte[] etag;
+
+		private int szx;
+		private int offset;
+		private boolean done;
+		private BlockExchange current;
+
+		private BlockFetcher(BlockwiseDownload download, PayloadPipe pipe) {
+			OptionSet options = download.first.getOptions();
+			this.download = download;
+			this.pipe = pipe;
+			this.etag = options.getETagCount() > 0 ? options.getETags().get(0) : null;
+			this.szx = options.getBlock2().getSzx();
+			this.offset = download.first.getPayloadSize();
+		}
+
+		private void start() {
+			pipe.setWriter(this);
+			onReady(pipe);
+		}
+
+		/*
+		 * The reader has read from the pipe or aborted it.
+		 */
+		@Override
+		public void onReady(PayloadPipe pipe) {
+			BlockExchange exchange;
+			synchronized (this) {
+				if (pipe.isAborted()) {
+					exchange = current;
+					current = null;
+					if (exchange != null)
+						exchange.request.cancel();
+					return;
+				}
+				if (done || current != null || pipe.getFree() < BlockOption.szx2Size(szx))
+					return;
+				Request request = createBlockRequest(download.outgoingRequest);
+				request.getOptions().setBlock2(szx, false, offset / BlockOption.szx2Size(szx));
+				exchange = new BlockExchange(request) {
+					@Override
+					protected void onBlock(Response response) {
+						received(this, response);
+					}
+
+					@Override
+					protected void onFailure(ResponseCode code) {
+						LOGGER.warning("Failed to fetch block "+request.getOptions().getBlock2()+": "+code);
+						pipe.abort();
+					}
+				};
+				current = exchange;
+			}
+			exchange.send();
+		}
+
+		private void received(BlockExchange exchange, Response response) {
+			BlockOption block2 = response.getOptions().getBlock2();
+			boolean expected;
+			synchronized (this) {
+				if (current != exchange)
+					return;
+				expected = response.getCode() == download.first.getCode() && block2 != null
+						&& block2.getNum() * block2.getSize() == offset
+						&& response.getPayloadSize() <= block2.getSize()
+						&& (etag == null || response.getOptions().containsETag(etag));
+				if (expected) {
+					szx = block2.getSzx();
+					offset += response.getPayloadSize();
+					done = !block2.isM();
+				} else {
+					current = null;
+				}
+			}
+			if (!expected) {
+				LOGGER.warning("Unexpected block "+block2+" with code "+response.getCode()+", abort the transfer");
+				pipe.abort();
+				return;
+			}
+			// the pipe has room for the block since it has been requested
+			pipe.write(response.getPayload());
+			synchronized (this) {
+				current = null;
+			}
+			if (done)
+				pipe.close();
+			else
+				onReady(pipe);
+		}
+	}
+
+	/**
+	 * Forwards the body of a streaming request in Block1 blocks as it
+	 * arrives, one block at a time. The server may ask for smaller blocks in
+	 * its 2.31 (Continue) responses. The final response of the server
+	 * completes the original request. If the server responds with an error
+	 * before the last block, the rest of the body is discarded. If the server
+	 * transfers the representation of the final response in Block2 blocks,
+	 * the further blocks are streamed like a download.
+	 */
+	private final class BlockwiseUpload implements PayloadPipe.Listener {
+
+		private final Request outgoingRequest;
+		private final PayloadPipe body;
+		private final ForwardingCallback callback;
+
+		private int szx;
+		private int offset;
+		private boolean last;
+		private boolean completed;
+		private boolean reading;
+		private BlockExchange current;
+
+		private BlockwiseUpload(Request outgoingRequest, PayloadPipe body, ForwardingCallback callback) {
+			this.outgoingRequest = outgoingRequest;
+			this.body = body;
+			this.callback = callback;
+			this.szx = BlockOption.size2Szx(blockSize);
+		}
+
+		private void start() {
+			body.setReader(this);
+			onReady(body);
+		}
+
+		/*
+		 * The client has written to the body, closed it or gone away.
+		 */
+		@Override
+		public void onReady(PayloadPipe pipe) {
+			while (true) {
+				int size;
+				synchronized (this) {
+					if (completed || reading)
+						return;
+					if (pipe.isAborted()) {
+						completed = true;
+						BlockExchange canceled = current;
+						current = null;
+						if (canceled != null)
+							canceled.request.cancel();
+						break;
+					}
+					if (current != null)
+						return;
+					reading = true;
+					size = BlockOption.szx2Size(szx);
+				}
+
+				// reading lets the client write again, which calls back
+				byte[] block = pipe.readBlock(size);
+
+				BlockExchange exchange = null;
+				synchronized (this) {
+					reading = false;
+					if (block != null) {
+						last = pipe.isDrained();
+						Request request = createBlockRequest(outgoingRequest);
+						// a body that fits into one block is sent as a whole
+						if (!last || offset > 0)
+							request.getOptions().setBlock1(szx, !last, offset / size);
+						request.setPayload(block);
+						offset += block.length;
+						exchange = new BlockExchange(request) {
+							@Override
+							protected void onBlock(Response response) {
+								received(this, response);
+							}
+
+							@Override
+							protected void onFailure(ResponseCode code) {
+								failed(this, code);
+							}
+						};
+						current = exchange;
+					}
+				}
+				if (exchange != null) {
+					exchange.send();
+					return;
+				}
+				// check for bytes written while reading
+				if (pipe.getAvailable() <= size && !pipe.isClosed() && !pipe.isAborted())
+					return;
+			}
+			LOGGER.info("The body of the request is incomplete");
+			callback.respond(new Response(ResponseCode.REQUEST_ENTITY_INCOMPLETE));
+		}
+
+		private void received(BlockExchange exchange, Response response) {
+			synchronized (this) {
+				if (current != exchange)
+					return;
+				current = null;
+				if (response.getCode() == ResponseCode.CONTINUE && !last) {
+					// the offset is a multiple of every smaller block size
+					BlockOption block1 = response.getOptions().getBlock1();
+					if (block1 != null && block1.getSzx() < szx)
+						szx = block1.getSzx();
+					exchange = null;
+				} else {
+					completed = true;
+				}
+			}
+			if (exchange == null) {
+				onReady(body);
+				return;
+			}
+			if (!last) {
+				LOGGER.info("Server responded "+response.getCode()+" before the last block, discard the rest of the body");
+				body.abort();
+			}
+			BlockOption block2 = response.getOptions().getBlock2();
+			if (block2 != null && block2.isM() && block2.getNum() == 0) {
+				// the blocks are requested with the method and options of the
+				// forwarded request but without a body
+				StreamingResponse streamed = new BlockwiseDownload(outgoingRequest, response).createResponse();
+				streamed.getOptions().removeBlock1();
+				callback.respond(streamed);
+				return;
+			}
+			Response translated = CoapTranslator.getResponse(response);
+			translated.getOptions().removeBlock1();
+			translated.getOptions().removeBlock2();
+			callback.respond(translated);
+		}
+
+		private void failed(BlockExchange exchange, ResponseCode code) {
+			synchronized (this) {
+				if (current != exchange)
+					return;
+				current = null;
+				completed = true;
+			}
+			LOGGER.warning("Failed to forward block "+exchange.request.getOptions().getBlock1()+": "+code);
+			body.abort();
+			callback.respond(new Response(code));
+		}
+	}
+
+	/**
+	 * The request for one block. It reports the response or the failure
+	 * exactly once, also if the server does not respond within the forward
+	 * timeout.
+	 */
+	private abstract class BlockExchange extends MessageObserverAdapter implements Runnable {
+
+		protected final Request request;
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timer;
+
+		private BlockExchange(Request request) {
+			this.request = request;
+			request.addMessageObserver(this);
+		}
+
+		private void send() {
+			if (timeout > 0)
+				timer = TIMER.schedule(this, timeout, TimeUnit.MILLISECONDS);
+			try {
+				scheduler.submit(request, null, 0);
+			} catch (RuntimeException e) {
+				LOGGER.warning("Failed to execute request: " + e.getMessage());
+				if (complete())
+					onFailure(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+		}
+
+		private boolean complete() {
+			if (!completed.compareAndSet(false, true))
+				return false;
+			ScheduledFuture<?> t = timer;
+			if (t != null) t.cancel(false);
+			return true;
+		}
+
+		protected abstract void onBlock(Response response);
+
+		protected abstract void onFailure(ResponseCode code);
+
+		@Override
+		public void onResponse(Response response) {
+			if (complete())
+				onBlock(response);
+		}
+
+		@Override
+		public void onTimeout() {
+			if (complete())
+				onFailure(CoapTranslator.STATUS_TIMEOUT);
+		}
+
+		@Override
+		public void onReject() {
+			if (complete())
+				onFailure(ResponseCode.BAD_GATEWAY);
+		}
+
+		@Override
+		public void onCancel() {
+			if (complete())
+				onFailure(ResponseCode.INTERNAL_SERVER_ERROR);
+		}
+
+		/*
+		 * The forward timeout has expired.
+		 */
+		@Override
+		public void run() {
+			if (complete()) {
+				request.cancel();
+				onFailure(CoapTranslator.STATUS_TIMEOUT);
 			}
-		} catch (InterruptedException e) {
-			LOGGER.warning("Receiving of response interrupted: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
 		}
 	}
 }
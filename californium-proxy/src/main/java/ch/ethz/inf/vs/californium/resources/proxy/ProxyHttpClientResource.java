@@ -3,6 +3,7 @@ package ch.ethz.inf.vs.californium.resources.proxy;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -10,23 +11,12 @@ import java.net.URLDecoder;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.ResponseHandler;
-import org.apache.http.client.protocol.RequestAcceptEncoding;
-import org.apache.http.client.protocol.ResponseContentEncoding;
-import org.apache.http.impl.client.AbstractHttpClient;
-import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.protocol.RequestConnControl;
-import org.apache.http.protocol.RequestDate;
-import org.apache.http.protocol.RequestExpectContinue;
-import org.apache.http.protocol.RequestTargetHost;
-import org.apache.http.protocol.RequestUserAgent;
+import org.apache.http.concurrent.FutureCallback;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 
 /**
  * // test with http://httpbin.org/
@@ -36,43 +26,11 @@ import ch.ethz.inf.vs.californium.coap.Response;
  */
 public class ProxyHttpClientResource extends ForwardingResource {
 	
-	private static final int KEEP_ALIVE = 5000;
-	// TODO: Properties.std.getInt("HTTP_CLIENT_KEEP_ALIVE");
-	
 	/**
-	 * DefaultHttpClient is thread safe. It is recommended that the same
-	 * instance of this class is reused for multiple request executions.
+	 * The non-blocking client is thread safe and all resources share it, so
+	 * that they share its pool of connections.
 	 */
-	private static final AbstractHttpClient HTTP_CLIENT = new DefaultHttpClient();
-
-	// http client static configuration
-	static {
-		// request interceptors
-		HTTP_CLIENT.addRequestInterceptor(new RequestAcceptEncoding());
-		HTTP_CLIENT.addRequestInterceptor(new RequestConnControl());
-		// HTTP_CLIENT.addRequestInterceptor(new RequestContent());
-		HTTP_CLIENT.addRequestInterceptor(new RequestDate());
-		HTTP_CLIENT.addRequestInterceptor(new RequestExpectContinue());
-		HTTP_CLIENT.addRequestInterceptor(new RequestTargetHost());
-		HTTP_CLIENT.addRequestInterceptor(new RequestUserAgent());
-
-		// response intercptors
-		HTTP_CLIENT.addResponseInterceptor(new ResponseContentEncoding());
-
-		HTTP_CLIENT.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
-			@Override
-			public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
-				long keepAlive = super.getKeepAliveDuration(response, context);
-				if (keepAlive == -1) {
-					// Keep connections alive if a keep-alive value
-					// has not be explicitly set by the server
-					keepAlive = KEEP_ALIVE;
-				}
-				return keepAlive;
-			}
-
-		});
-	}
+	private static AsyncHttpClient httpClient;
 
 	public ProxyHttpClientResource() {
 		// set the resource hidden
@@ -86,14 +44,48 @@ public class ProxyHttpClientResource extends ForwardingResource {
 		getAttributes().setTitle("Forward the requests to a HTTP client.");
 	}
 
+	/**
+	 * Returns the http client of all http client resources and starts it on
+	 * first use.
+	 * 
+	 * @return the http client
+	 */
+	public static synchronized AsyncHttpClient getHttpClient() {
+		if (httpClient == null) {
+			try {
+				httpClient = new AsyncHttpClient(NetworkConfig.getStandard());
+			} catch (IOException e) {
+				throw new IllegalStateException("Failed to start the http client", e);
+			}
+		}
+		return httpClient;
+	}
+
+	/**
+	 * Returns the http client of all http client resources if it has been
+	 * started or null. Unlike {@link #getHttpClient()}, it does not start the
+	 * client.
+	 * 
+	 * @return the http client or null
+	 */
+	public static synchronized AsyncHttpClient getStartedHttpClient() {
+		return httpClient;
+	}
+
 	@Override
 	public Response forwardRequest(Request request) {
+		return awaitResponse(request);
+	}
+
+	@Override
+	public void forwardRequest(Request request, final ForwardingCallback callback) {
 		final Request incomingCoapRequest = request;
 		
 		// check the invariant: the request must have the proxy-uri set
 		if (!incomingCoapRequest.getOptions().hasProxyURI()) {
 			LOGGER.warning("Proxy-uri option not set.");
-			return new Response(ResponseCode.BAD_OPTION);
+			callback.respond(new Response(ResponseCode.BAD_OPTION));
+			return;
 		}
 
 		// remove the fake uri-path // TODO: why? still necessary in new Cf?
@@ -107,10 +99,12 @@ public class ProxyHttpClientResource extends ForwardingResource {
 			proxyUri = new URI(proxyUriString);
 		} catch (UnsupportedEncodingException e) {
 			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			callback.respond(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return;
 		} catch (URISyntaxException e) {
 			LOGGER.warning("Proxy-uri option malformed: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			callback.respond(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return;
 		}
 
 		// get the requested host, if the port is not specified, the constructor
@@ -124,15 +118,17 @@ public class ProxyHttpClientResource extends ForwardingResource {
 			LOGGER.finer("Outgoing http request: " + httpRequest.getRequestLine());
 		} catch (InvalidFieldException e) {
 			LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+			callback.respond(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
+			return;
 		} catch (TranslationException e) {
 			LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-			return new Response(CoapTranslator.STATUS_TRANSLATION_ERROR);
+			callback.respond(new Response(CoapTranslator.STATUS_TRANSLATION_ERROR));
+			return;
 		}
 
-		ResponseHandler<Response> httpResponseHandler = new ResponseHandler<Response>() {
+		FutureCallback<HttpResponse> httpResponseCallback = new FutureCallback<HttpResponse>() {
 			@Override
-			public Response handleResponse(HttpResponse httpResponse) throws ClientProtocolException, IOException {
+			public void completed(HttpResponse httpResponse) {
 				long timestamp = System.nanoTime();
 				LOGGER.finer("Incoming http response: " + httpResponse.getStatusLine());
 				// the entity of the response, if non repeatable, could be
@@ -143,30 +139,36 @@ public class ProxyHttpClientResource extends ForwardingResource {
 				try {
 					Response coapResponse = HttpTranslator.getCoapResponse(httpResponse, incomingCoapRequest);
 					coapResponse.setTimestamp(timestamp);
-					return coapResponse;
+					callback.respond(coapResponse);
 				} catch (InvalidFieldException e) {
 					LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-					return new Response(CoapTranslator.STATUS_FIELD_MALFORMED);
+					callback.respond(new Response(CoapTranslator.STATUS_FIELD_MALFORMED));
 				} catch (TranslationException e) {
 					LOGGER.warning("Problems during the http/coap translation: " + e.getMessage());
-					return new Response(CoapTranslator.STATUS_TRANSLATION_ERROR);
+					callback.respond(new Response(CoapTranslator.STATUS_TRANSLATION_ERROR));
 				}
 			}
-		};
 
-		// accept the request sending a separate response to avoid the timeout
-		// in the requesting client
-		LOGGER.finer("Acknowledge message sent");
+			@Override
+			public void failed(Exception e) {
+				LOGGER.warning("Failed to get the http response: " + e.getMessage());
+				if (e instanceof SocketTimeoutException)
+					callback.respond(new Response(CoapTranslator.STATUS_TIMEOUT));
+				else
+					callback.respond(new Response(ResponseCode.BAD_GATEWAY));
+			}
+
+			@Override
+			public void cancelled() {
+				LOGGER.warning("Http request canceled");
+				callback.respond(new Response(ResponseCode.INTERNAL_SERVER_ERROR));
+			}
+		};
 
-		Response coapResponse = null;
-		try {
-			// execute the request
-			coapResponse = HTTP_CLIENT.execute(httpHost, httpRequest, httpResponseHandler, null);
-		} catch (IOException e) {
-			LOGGER.warning("Failed to get the http response: " + e.getMessage());
-			return new Response(ResponseCode.INTERNAL_SERVER_ERROR);
+		// execute the request
+		if (!getHttpClient().execute(httpHost, httpRequest, httpResponseCallback)) {
+			LOGGER.warning("Too many requests wait for " + httpHost);
+			callback.respond(new Response(ResponseCode.SERVICE_UNAVAILABLE));
 		}
-
-		return coapResponse;
 	}
 }
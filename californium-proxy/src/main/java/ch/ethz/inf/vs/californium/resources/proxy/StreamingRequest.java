@@ -0,0 +1,39 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.Request;
+
+/**
+ * A request from a client that can take the body of a request and of a
+ * response as stream. The {@link ProxyCoapClientResource} forwards the body
+ * of such a request blockwise as it arrives and answers it with a
+ * {@link StreamingResponse} if the server transfers the response blockwise.
+ */
+public class StreamingRequest extends Request {
+
+	/** The body of the request or null if it is the payload. */
+	private final PayloadPipe body;
+
+	/**
+	 * Instantiates a new streaming request.
+	 *
+	 * @param code
+	 *            the request code
+	 * @param body
+	 *            the pipe that receives the body or null if the payload holds
+	 *            the whole body
+	 */
+	public StreamingRequest(Code code, PayloadPipe body) {
+		super(code);
+		this.body = body;
+	}
+
+	/**
+	 * Gets the pipe that receives the body of the request.
+	 *
+	 * @return the pipe or null if the payload holds the whole body
+	 */
+	public PayloadPipe getBody() {
+		return body;
+	}
+}
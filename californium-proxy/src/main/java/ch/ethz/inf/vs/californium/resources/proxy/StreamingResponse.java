@@ -0,0 +1,70 @@
+package ch.ethz.inf.vs.californium.resources.proxy;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * A response whose representation is transferred blockwise while the
+ * recipient reads it. The payload of the response is only the first block.
+ * The whole representation, starting with the first block, is read from the
+ * pipe that {@link #openBody()} returns, while the remaining blocks are
+ * fetched from the server as the pipe has room for them. Since the response
+ * never holds the whole representation, it must not be cached.
+ */
+public class StreamingResponse extends Response {
+
+	/**
+	 * The source of the body of a streaming response.
+	 */
+	public interface BodySource {
+
+		/**
+		 * Starts a new transfer of the representation.
+		 *
+		 * @return the pipe that receives the representation
+		 */
+		public PayloadPipe open();
+	}
+
+	private final BodySource source;
+
+	/**
+	 * Instantiates a new streaming response.
+	 *
+	 * @param code
+	 *            the response code
+	 * @param source
+	 *            the source of the body
+	 */
+	public StreamingResponse(ResponseCode code, BodySource source) {
+		super(code);
+		if (source == null)
+			throw new NullPointerException("The source must not be null");
+		this.source = source;
+	}
+
+	/**
+	 * Starts the transfer of the representation. Each call starts a transfer
+	 * of its own, so that a response can be forwarded to several recipients.
+	 *
+	 * @return the pipe that receives the representation
+	 */
+	public PayloadPipe openBody() {
+		return source.open();
+	}
+
+	/**
+	 * Returns a copy of this response with the same options, first block and
+	 * source for a further recipient.
+	 *
+	 * @return the copy
+	 */
+	public StreamingResponse copy() {
+		StreamingResponse copy = new StreamingResponse(getCode(), source);
+		copy.setOptions(new OptionSet(getOptions()));
+		copy.setPayload(getPayload());
+		copy.setTimestamp(getTimestamp());
+		return copy;
+	}
+}
@@ -0,0 +1,507 @@
+package ch.ethz.inf.vs.californium;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The ClientCache keeps the 2.05 (Content) responses that clients receive
+ * for GET requests and answers identical requests locally as long as the
+ * response is fresh, i.e., within its Max-Age. A client uses the cache after
+ * {@link CoapClient#setCache(ClientCache)}; several clients can share one.
+ * <p>
+ * Responses are keyed by the scheme, the destination, the URI host, path and
+ * queries and the Accept option of the request. Requests with an Observe,
+ * ETag or Block2 option bypass the cache. Once an entry is stale, the next
+ * request for it is sent with the ETag of the entry. If the server answers
+ * with 2.03 (Valid), the entry is refreshed with the new Max-Age and its
+ * payload is returned without transferring it again. When several requests
+ * for the same key miss the cache at the same time, only the first one is
+ * sent to the server and the others are answered with its response.
+ * <p>
+ * The cache is bounded by the number of entries and by the sum of the payload
+ * sizes. When a bound is exceeded, the least recently used entries are evicted.
+ */
+public class ClientCache {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(ClientCache.class.getCanonicalName());
+
+	/* The maximum number of entries */
+	private final int maxEntries;
+
+	/* The maximum sum of the payload sizes of all entries in bytes */
+	private final long maxBytes;
+
+	/* The cached responses in LRU order */
+	private final LinkedHashMap<Key, Entry> entries;
+
+	/* The outstanding requests to the servers */
+	private final Map<Key, Flight> flights;
+
+	/* The sum of the payload sizes of all entries */
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong validated = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Constructs a new client cache with the bounds from the standard
+	 * configuration.
+	 */
+	public ClientCache() {
+		this(NetworkConfig.getStandard());
+	}
+
+	/**
+	 * Constructs a new client cache with the bounds from the specified
+	 * configuration.
+	 *
+	 * @param config the configuration
+	 */
+	public ClientCache(NetworkConfig config) {
+		this(config.getInt(NetworkConfigDefaults.CLIENT_CACHE_SIZE),
+			config.getLong(NetworkConfigDefaults.CLIENT_CACHE_BYTES));
+	}
+
+	/**
+	 * Constructs a new client cache with the specified bounds.
+	 *
+	 * @param maxEntries the maximum number of entries
+	 * @param maxBytes the maximum sum of the payload sizes in bytes
+	 */
+	public ClientCache(int maxEntries, long maxBytes) {
+		if (maxEntries < 1) throw new IllegalArgumentException("Client cache must allow at least one entry");
+		if (maxBytes < 0) throw new IllegalArgumentException("Client cache must not have a negative size");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+		this.flights = new HashMap<Key, Flight>();
+	}
+
+	/**
+	 * Checks if the specified request can be answered from the cache.
+	 *
+	 * @param request the request
+	 * @return true, if the request is a plain GET request
+	 */
+	boolean isCacheable(Request request) {
+		OptionSet options = request.getOptions();
+		return request.getCode() == Code.GET
+				&& request.getDestination() != null
+				&& !request.isMulticast()
+				&& !options.hasObserve()
+				&& !options.hasBlock2()
+				&& options.getETagCount() == 0;
+	}
+
+	/**
+	 * Answers the specified request from the cache if there is a fresh entry
+	 * for it, attaches it to an identical outstanding request or sends a new
+	 * request through the specified client otherwise. The request itself is
+	 * never sent; its response, timeout, rejection or cancellation is set
+	 * when the request to the server completes.
+	 *
+	 * @param request the GET request
+	 * @param client the client that sends requests to the server
+	 */
+	void send(Request request, CoapClient client) {
+		Key key = new Key(request);
+		long now = System.nanoTime();
+
+		Entry entry;
+		Flight flight;
+		synchronized (this) {
+			entry = entries.get(key);
+			flight = flights.get(key);
+			if (entry != null && entry.expires - now > 0) {
+				flight = null;
+			} else if (flight != null) {
+				// single-flight: wait for the response to the outstanding request
+				flight.waiting.add(request);
+				coalesced.incrementAndGet();
+				return;
+			} else {
+				flight = new Flight(key, entry, request);
+				flights.put(key, flight);
+			}
+		}
+
+		if (flight == null) {
+			hits.incrementAndGet();
+			request.setResponse(entry.createResponse(now));
+			return;
+		}
+
+		Request fetch = new Request(Code.GET);
+		fetch.setType(request.getType());
+		fetch.setScheme(request.getScheme());
+		fetch.setOptions(new OptionSet(request.getOptions()));
+		fetch.setDestination(request.getDestination());
+		fetch.setDestinationPort(request.getDestinationPort());
+		fetch.setBlockwiseWindow(request.getBlockwiseWindow());
+		if (entry != null && entry.eTag != null) {
+			LOGGER.fine("Entry for "+key+" is stale, revalidate it");
+			revalidations.incrementAndGet();
+			fetch.getOptions().addETag(entry.eTag);
+		} else {
+			misses.incrementAndGet();
+		}
+		fetch.addMessageObserver(new FlightObserver(flight));
+		client.transmit(fetch);
+	}
+
+	/**
+	 * Stores or refreshes the entry of the specified flight with the specified
+	 * response and answers the requests that have been waiting for it.
+	 *
+	 * @param flight the flight
+	 * @param response the response from the server
+	 */
+	private void complete(Flight flight, Response response) {
+		OptionSet options = response.getOptions();
+		long now = System.nanoTime();
+
+		Entry entry = null;
+		if (response.getCode() == ResponseCode.VALID && flight.stale != null) {
+			validated.incrementAndGet();
+			entry = new Entry(flight.stale, options.getMaxAge(), now);
+		} else if (response.getCode() == ResponseCode.CONTENT) {
+			entry = new Entry(response, now);
+		}
+		boolean cacheable = entry != null
+				&& options.getMaxAge() > 0
+				&& !options.hasObserve()
+				&& entry.payload.length <= maxBytes;
+
+		List<Request> waiting;
+		synchronized (this) {
+			if (flights.get(flight.key) == flight)
+				flights.remove(flight.key);
+			remove(flight.key);
+			if (cacheable) {
+				entries.put(flight.key, entry);
+				bytes += entry.payload.length;
+				evict();
+			}
+			waiting = new ArrayList<Request>(flight.waiting);
+			flight.waiting.clear();
+		}
+
+		for (Request request:waiting) {
+			if (entry != null)
+				request.setResponse(entry.createResponse(now));
+			else
+				request.setResponse(copy(response));
+		}
+	}
+
+	/**
+	 * Passes the failure of the request of the specified flight on to the
+	 * requests that have been waiting for it.
+	 *
+	 * @param flight the flight
+	 * @param failure the failure
+	 */
+	private void fail(Flight flight, Failure failure) {
+		List<Request> waiting;
+		synchronized (this) {
+			if (flights.get(flight.key) == flight)
+				flights.remove(flight.key);
+			waiting = new ArrayList<Request>(flight.waiting);
+			flight.waiting.clear();
+		}
+		for (Request request:waiting) {
+			switch (failure) {
+				case TIMEOUT: request.setTimedOut(true); break;
+				case REJECT: request.setRejected(true); break;
+				default: request.cancel(); break;
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/*
+	 * Removes the least recently used entries until the cache is within its
+	 * bounds again.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			bytes -= eldest.payload.length;
+			evictions.incrementAndGet();
+		}
+		LOGGER.finer("Client cache has "+entries.size()+" entries with "+bytes+" bytes");
+	}
+
+	private void remove(Key key) {
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.payload.length;
+	}
+
+	private static Response copy(Response response) {
+		Response copy = new Response(response.getCode());
+		copy.setType(response.getType());
+		copy.setOptions(new OptionSet(response.getOptions()));
+		copy.setPayload(response.getPayload());
+		copy.setSource(response.getSource());
+		copy.setSourcePort(response.getSourcePort());
+		return copy;
+	}
+
+	/**
+	 * Returns the number of requests that have been answered from a fresh
+	 * entry.
+	 *
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests that have been sent to a server because
+	 * there was no entry to revalidate.
+	 *
+	 * @return the miss count
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of requests that have waited for the response to an
+	 * identical outstanding request instead of being sent.
+	 *
+	 * @return the number of coalesced requests
+	 */
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	/**
+	 * Returns the number of requests that have been sent to revalidate a
+	 * stale entry with its ETag.
+	 *
+	 * @return the revalidation count
+	 */
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	/**
+	 * Returns the number of stale entries that the server has confirmed with
+	 * 2.03 (Valid).
+	 *
+	 * @return the number of validated entries
+	 */
+	public long getValidated() {
+		return validated.get();
+	}
+
+	/**
+	 * Returns the number of entries that have been evicted to stay within
+	 * the bounds of the cache.
+	 *
+	 * @return the eviction count
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of cached responses.
+	 *
+	 * @return the entry count
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the sum of the payload sizes of the cached responses.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getByteSize() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ClientCache [hits="+getHits()+", misses="+getMisses()+", coalesced="+getCoalesced()
+				+", revalidations="+getRevalidations()+", validated="+getValidated()
+				+", evictions="+getEvictions()+", entries="+getSize()+", bytes="+getByteSize()+"]";
+	}
+
+	/**
+	 * How the request of a flight has failed.
+	 */
+	private enum Failure { TIMEOUT, REJECT, CANCEL }
+
+	/**
+	 * The key of a cached response, i.e., the scheme, the destination, the
+	 * URI host, path and queries and the Accept option of the request.
+	 */
+	private static final class Key {
+
+		private final String scheme;
+		private final InetAddress destination;
+		private final int port;
+		private final String host;
+		private final List<String> path;
+		private final List<String> query;
+		private final int accept;
+		private final int hash;
+
+		private Key(Request request) {
+			OptionSet options = request.getOptions();
+			this.scheme = request.getScheme();
+			this.destination = request.getDestination();
+			this.port = request.getDestinationPort();
+			this.host = options.getURIHost();
+			this.path = new ArrayList<String>(options.getURIPaths());
+			this.query = new ArrayList<String>(options.getURIQueries());
+			this.accept = options.getAccept();
+			this.hash = Arrays.hashCode(new Object[] {scheme, destination, port, host, path, query, accept});
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return port == other.port && accept == other.accept
+					&& destination.equals(other.destination)
+					&& (scheme == null ? other.scheme == null : scheme.equals(other.scheme))
+					&& (host == null ? other.host == null : host.equals(other.host))
+					&& path.equals(other.path) && query.equals(other.query);
+		}
+
+		@Override
+		public String toString() {
+			return destination+":"+port+"/"+path+"?"+query+" (accept "+accept+")";
+		}
+	}
+
+	/**
+	 * A cached response.
+	 */
+	private static final class Entry {
+
+		private final ResponseCode code;
+		private final byte[] payload;
+		private final OptionSet options;
+		private final byte[] eTag;
+		private final long expires; // System.nanoTime()
+
+		private Entry(Response response, long now) {
+			this.code = response.getCode();
+			this.payload = response.getPayload() != null ? response.getPayload() : new byte[0];
+			this.options = new OptionSet(response.getOptions());
+			this.options.removeObserve();
+			this.options.removeBlock2();
+			this.options.removeSize2();
+			this.eTag = options.getETagCount() > 0 ? options.getETags().get(0) : null;
+			this.expires = now + TimeUnit.SECONDS.toNanos(options.getMaxAge());
+		}
+
+		/* Refreshes a validated entry with a new Max-Age */
+		private Entry(Entry stale, long maxAge, long now) {
+			this.code = stale.code;
+			this.payload = stale.payload;
+			this.options = new OptionSet(stale.options);
+			this.options.setMaxAge(maxAge);
+			this.eTag = stale.eTag;
+			this.expires = now + TimeUnit.SECONDS.toNanos(maxAge);
+		}
+
+		private Response createResponse(long now) {
+			Response response = new Response(code);
+			response.setOptions(new OptionSet(options));
+			response.getOptions().setMaxAge(Math.max(0, TimeUnit.NANOSECONDS.toSeconds(expires - now)));
+			response.setPayload(payload);
+			return response;
+		}
+	}
+
+	/**
+	 * The request to the server for a key, the stale entry it revalidates and
+	 * the requests that wait for its response.
+	 */
+	private static final class Flight {
+
+		private final Key key;
+		private final Entry stale;
+		private final List<Request> waiting = new ArrayList<Request>();
+
+		private Flight(Key key, Entry stale, Request first) {
+			this.key = key;
+			this.stale = stale;
+			this.waiting.add(first);
+		}
+	}
+
+	/**
+	 * Completes a flight when the request to the server completes.
+	 */
+	private final class FlightObserver extends MessageObserverAdapter {
+
+		private final Flight flight;
+
+		private FlightObserver(Flight flight) {
+			this.flight = flight;
+		}
+
+		@Override public void onResponse(Response response) {
+			complete(flight, response);
+		}
+
+		@Override public void onReject() {
+			fail(flight, Failure.REJECT);
+		}
+
+		@Override public void onTimeout() {
+			fail(flight, Failure.TIMEOUT);
+		}
+
+		@Override public void onCancel() {
+			fail(flight, Failure.CANCEL);
+		}
+	}
+}
@@ -3,13 +3,16 @@ package ch.ethz.inf.vs.californium;
 import java.net.URI;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.observe.ObserveNotificationOrderer;
@@ -32,9 +35,30 @@ public class CoapClient {
 	/** The executor. */
 	private Executor executor;
 	
+	/** The timer for the timeouts of futures (null for the shared timer). */
+	private ScheduledExecutorService timer;
+	
+	/** The timer that all clients share by default. */
+	private static ScheduledExecutorService sharedTimer;
+	
 	/** The endpoint. */
 	private Endpoint endpoint;
 	
+	/** The number of response blocks to request in parallel (0 for the endpoint's default). */
+	private int blockwiseWindow;
+	
+	/** The scheduler that limits the requests in flight (null to send directly). */
+	private RequestScheduler scheduler;
+	
+	/** The priority of the requests of this client in the scheduler. */
+	private int priority;
+	
+	/** The cache for the responses to GET requests (null for no cache). */
+	private ClientCache cache;
+	
+	/** The policy that hedges requests to replicas (null for no hedging). */
+	private HedgingPolicy hedging;
+	
 	/**
 	 * Constructs a new CoapClient that has no destination URI yet.
 	 */
@@ -389,6 +413,103 @@ public class CoapClient {
 		asynchronous(Request.newDelete().setURI(uri), handler);
 	}
 	
+	// Future-based
+	
+	/**
+	 * Sends a GET request and returns the future response.
+	 *
+	 * @return the future
+	 */
+	public CoapFuture getAsync() {
+		return sendAsync(Request.newGet().setURI(uri), getTimeout());
+	}
+	
+	/**
+	 * Sends a GET request with the specified accept option and returns the
+	 * future response.
+	 *
+	 * @param accept the accept option
+	 * @return the future
+	 */
+	public CoapFuture getAsync(int accept) {
+		return sendAsync(accept(Request.newGet().setURI(uri), accept), getTimeout());
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and the specified
+	 * content format and returns the future response.
+	 *
+	 * @param payload the payload
+	 * @param format the content format
+	 * @return the future
+	 */
+	public CoapFuture postAsync(String payload, int format) {
+		return sendAsync(format(Request.newPost().setURI(uri).setPayload(payload), format), getTimeout());
+	}
+	
+	/**
+	 * Sends a POST request with the specified payload and the specified
+	 * content format and returns the future response.
+	 *
+	 * @param payload the payload
+	 * @param format the content format
+	 * @return the future
+	 */
+	public CoapFuture postAsync(byte[] payload, int format) {
+		return sendAsync(format(Request.newPost().setURI(uri).setPayload(payload), format), getTimeout());
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and the specified content
+	 * format and returns the future response.
+	 *
+	 * @param payload the payload
+	 * @param format the content format
+	 * @return the future
+	 */
+	public CoapFuture putAsync(String payload, int format) {
+		return sendAsync(format(Request.newPut().setURI(uri).setPayload(payload), format), getTimeout());
+	}
+	
+	/**
+	 * Sends a PUT request with the specified payload and the specified content
+	 * format and returns the future response.
+	 *
+	 * @param payload the payload
+	 * @param format the content format
+	 * @return the future
+	 */
+	public CoapFuture putAsync(byte[] payload, int format) {
+		return sendAsync(format(Request.newPut().setURI(uri).setPayload(payload), format), getTimeout());
+	}
+	
+	/**
+	 * Sends a DELETE request and returns the future response.
+	 *
+	 * @return the future
+	 */
+	public CoapFuture deleteAsync() {
+		return sendAsync(Request.newDelete().setURI(uri), getTimeout());
+	}
+	
+	/**
+	 * Sends the specified request and returns the future response. If no
+	 * response arrives within the specified timeout, the future fails and the
+	 * request is canceled. The timeout is driven by a timer and no thread waits
+	 * for the response. The handlers of the future are invoked on the executor
+	 * of this client.
+	 *
+	 * @param request the request, which must not have been sent yet
+	 * @param timeout the timeout in ms (0 for no timeout)
+	 * @return the future
+	 */
+	public CoapFuture sendAsync(Request request, long timeout) {
+		CoapFuture future = new CoapFuture(request, getExecutor());
+		future.scheduleTimeout(getTimer(), timeout);
+		send(request);
+		return future;
+	}
+	
 	// Synchronous observer
 	
 	/**
@@ -477,6 +598,89 @@ public class CoapClient {
 		return relation;
 	}
 	
+	/**
+	 * Sends an observe request and invokes the specified handler each time a
+	 * notification arrives. Unlike {@link #observe(CoapHandler)}, the handler
+	 * is invoked directly on the thread of the endpoint and not on the
+	 * executor. The handler must therefore return quickly.
+	 *
+	 * @param handler the handler
+	 * @return the coap observe relation
+	 */
+	CoapObserveRelation observeOnEndpoint(final CoapHandler handler) {
+		Request request = Request.newGet().setURI(uri).setObserve();
+		final CoapObserveRelation relation = new CoapObserveRelation(request);
+		request.addMessageObserver(new ObserveMessageObserveImpl(handler, relation) {
+			@Override protected void succeeded(CoapResponse response) {
+				try {
+					deliver(response);
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while handling notification", t);
+				}
+			}
+			@Override protected void failed() {
+				relation.setCanceled(true);
+				try {
+					handler.onError();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while handling failure", t);
+				}
+			}
+		});
+		send(request);
+		return relation;
+	}
+	
+	/**
+	 * Creates a stream of the notifications of the resource at the URI of this
+	 * client. The relation is registered when a subscriber subscribes to the
+	 * stream. The stream buffers at most the specified number of notifications
+	 * until the subscriber asks for them.
+	 *
+	 * @param capacity the maximum number of buffered notifications
+	 * @param overflow what to drop when the buffer is full
+	 * @return the stream
+	 */
+	public CoapObserveStream observeStream(int capacity, CoapObserveStream.Overflow overflow) {
+		return new CoapObserveStream(this, capacity, overflow);
+	}
+	
+	// Group requests
+	
+	/**
+	 * Sends a GET request to the multicast group of the destination URI and
+	 * collects the responses of the group members during the specified
+	 * window. The handler is invoked for each response as it arrives.
+	 *
+	 * @param window how long to collect responses in ms
+	 * @param handler the handler or null
+	 * @return the group request
+	 */
+	public CoapGroupRequest getGroup(long window, CoapHandler handler) {
+		return sendGroup(Request.newGet().setURI(uri), window, handler);
+	}
+	
+	/**
+	 * Sends the specified request as NON to a multicast group and collects
+	 * the responses of the group members during the specified window. The
+	 * window should be at least the leisure period of the servers
+	 * (DEFAULT_LEISURE) since they delay their responses by up to that time.
+	 *
+	 * @param request the request with a multicast destination
+	 * @param window how long to collect responses in ms
+	 * @param handler the handler or null
+	 * @return the group request
+	 */
+	public CoapGroupRequest sendGroup(Request request, long window, CoapHandler handler) {
+		request.setMulticast(true);
+		request.setMulticastWindow(window);
+		request.setType(Type.NON);
+		CoapGroupRequest group = new CoapGroupRequest(request, handler, getExecutor());
+		group.scheduleClose(getTimer(), window);
+		send(request);
+		return group;
+	}
+	
 	// Implementation
 	
 	/**
@@ -533,16 +737,47 @@ public class CoapClient {
 	
 	/**
 	 * Sends the specified request over the endpoint of the client if one is
-	 * defined or over the default endpoint otherwise.
+	 * defined or over the default endpoint otherwise. If the client has a
+	 * cache, GET requests are answered from the cache when possible.
 	 *
 	 * @param request the request
 	 * @return the request
 	 */
 	protected Request send(Request request) {
-		if (endpoint != null)
+		if (blockwiseWindow > 0 && request.getBlockwiseWindow() == 0)
+			request.setBlockwiseWindow(blockwiseWindow);
+		ClientCache cache = this.cache;
+		if (cache != null && cache.isCacheable(request))
+			cache.send(request, this);
+		else transmit(request);
+		return request;
+	}
+	
+	/**
+	 * Sends the specified request, bypassing the cache. Idempotent requests
+	 * are hedged if the client has a hedging policy.
+	 *
+	 * @param request the request
+	 */
+	void transmit(Request request) {
+		HedgingPolicy hedging = this.hedging;
+		if (hedging != null && hedging.isHedgeable(request))
+			hedging.send(request, this);
+		else dispatch(request);
+	}
+	
+	/**
+	 * Sends the specified request through the scheduler or the endpoint of
+	 * the client.
+	 *
+	 * @param request the request
+	 */
+	void dispatch(Request request) {
+		if (scheduler != null)
+			scheduler.submit(request, endpoint, priority);
+		else if (endpoint != null)
 			endpoint.sendRequest(request);
 		else request.send();
-		return request;
 	}
 	
 	/**
@@ -566,6 +801,119 @@ public class CoapClient {
 		return this;
 	}
 
+	/**
+	 * Gets the number of response blocks this client requests in parallel.
+	 *
+	 * @return the window or 0 if the endpoint's default applies
+	 */
+	public int getBlockwiseWindow() {
+		return blockwiseWindow;
+	}
+	
+	/**
+	 * Sets the number of response blocks this client requests in parallel if
+	 * a response to a GET request is transferred blockwise. The client only
+	 * does so if the server announces the size of the representation and an
+	 * ETag in the first block. The number of requests in flight to the server
+	 * is further limited by NSTART.
+	 *
+	 * @param window the window or 0 for the endpoint's default
+	 * @return the coap client
+	 */
+	public CoapClient setBlockwiseWindow(int window) {
+		if (window < 0)
+			throw new IllegalArgumentException("Blockwise window must not be negative but was "+window);
+		this.blockwiseWindow = window;
+		return this;
+	}
+	
+	/**
+	 * Gets the scheduler that limits the requests in flight per server.
+	 *
+	 * @return the scheduler or null if requests are sent directly
+	 */
+	public RequestScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * Sets the scheduler that limits the requests in flight per server.
+	 * Requests beyond the window of a server wait in the scheduler's queue.
+	 * Clients that share a scheduler share the windows.
+	 *
+	 * @param scheduler the scheduler or null to send requests directly
+	 * @return the coap client
+	 */
+	public CoapClient setScheduler(RequestScheduler scheduler) {
+		this.scheduler = scheduler;
+		return this;
+	}
+	
+	/**
+	 * Gets the priority of the requests of this client in the scheduler.
+	 *
+	 * @return the priority
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Sets the priority of the requests of this client in the scheduler.
+	 * Waiting requests with a lower value are sent first.
+	 *
+	 * @param priority the priority
+	 * @return the coap client
+	 */
+	public CoapClient setPriority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+	
+	/**
+	 * Gets the cache for the responses to GET requests.
+	 *
+	 * @return the cache or null if the client has none
+	 */
+	public ClientCache getCache() {
+		return cache;
+	}
+	
+	/**
+	 * Sets the cache for the responses to GET requests. Fresh responses are
+	 * returned without contacting the server and stale ones are revalidated
+	 * with their ETag. Clients that share a cache share its entries.
+	 *
+	 * @param cache the cache or null to send every request
+	 * @return the coap client
+	 */
+	public CoapClient setCache(ClientCache cache) {
+		this.cache = cache;
+		return this;
+	}
+	
+	/**
+	 * Gets the policy that hedges requests to replicated servers.
+	 *
+	 * @return the policy or null if requests are not hedged
+	 */
+	public HedgingPolicy getHedging() {
+		return hedging;
+	}
+	
+	/**
+	 * Sets the policy that hedges requests to replicated servers. GET, PUT
+	 * and DELETE requests to one of the replicas of the policy are sent to
+	 * another replica as well if their response is late.
+	 *
+	 * @param hedging the policy or null to not hedge requests
+	 * @return the coap client
+	 */
+	public CoapClient setHedging(HedgingPolicy hedging) {
+		this.hedging = hedging;
+		return this;
+	}
+	
 	/**
 	 * Gets the destination URI of this client.
 	 *
@@ -623,6 +971,33 @@ public class CoapClient {
 		return this;
 	}
 
+	/**
+	 * Gets the timer that drives the timeouts of futures.
+	 *
+	 * @return the timer
+	 */
+	public ScheduledExecutorService getTimer() {
+		if (timer != null)
+			return timer;
+		synchronized (CoapClient.class) {
+			if (sharedTimer == null)
+				sharedTimer = Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+			return sharedTimer;
+		}
+	}
+	
+	/**
+	 * Sets the timer that drives the timeouts of futures. By default, all
+	 * clients share one timer thread.
+	 *
+	 * @param timer the timer or null for the shared timer
+	 * @return the coap client
+	 */
+	public CoapClient setTimer(ScheduledExecutorService timer) {
+		this.timer = timer;
+		return this;
+	}
+	
 	/**
 	 * Gets the endpoint this client uses.
 	 *
@@ -704,7 +1079,7 @@ public class CoapClient {
 		 * @param response the response
 		 */
 		protected void deliver(CoapResponse response) {
-			
+			handler.onLoad(response);
 		}
 		
 		/**
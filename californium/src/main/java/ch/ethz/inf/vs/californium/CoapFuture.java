@@ -0,0 +1,247 @@
+package ch.ethz.inf.vs.californium;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * A CoapFuture is the pending response to a request that a {@link CoapClient}
+ * has sent asynchronously. No thread waits for the response. The future
+ * completes when the response arrives, fails when the request times out or
+ * the server rejects it and can be canceled, which cancels the request.
+ * <p>
+ * Handlers added with {@link #addHandler(CoapHandler)} are invoked on the
+ * executor of the client once the future is done, so that they never run on
+ * the threads of the endpoint. A handler that is added after the future is
+ * done is invoked right away (on the executor). Since a handler can send the
+ * next request and add a handler to its future, requests can be chained
+ * without blocking.
+ * <p>
+ * {@link #get()} throws an {@link ExecutionException} with a
+ * {@link TimeoutException} as cause if the request has timed out and with an
+ * {@link IOException} as cause if the server has rejected it.
+ */
+public class CoapFuture implements Future<CoapResponse> {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(CoapFuture.class.getCanonicalName());
+
+	/** The request. */
+	private final Request request;
+
+	/** The executor that invokes the handlers (null to invoke them directly). */
+	private final Executor executor;
+
+	/** The handlers to invoke when the future is done. */
+	private final List<CoapHandler> handlers = new ArrayList<CoapHandler>();
+
+	/** The response if the future has completed. */
+	private CoapResponse response;
+
+	/** The cause if the future has failed or has been canceled. */
+	private Throwable failure;
+
+	/** Whether the future is done. */
+	private boolean done;
+
+	/** Whether waiting threads may return (after the request is canceled). */
+	private boolean released;
+
+	/** The timer task that fails the future (null if there is no timeout). */
+	private ScheduledFuture<?> timeoutHandle;
+
+	/**
+	 * Constructs a new future for the specified request and observes the
+	 * request. The request must not have been sent yet.
+	 *
+	 * @param request the request
+	 * @param executor the executor for the handlers or null
+	 */
+	CoapFuture(Request request, Executor executor) {
+		this.request = request;
+		this.executor = executor;
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override public void onResponse(Response response) {
+				complete(new CoapResponse(response));
+			}
+			@Override public void onReject() {
+				fail(new IOException("The request has been rejected"));
+			}
+			@Override public void onTimeout() {
+				fail(new TimeoutException("The request has timed out"));
+			}
+			@Override public void onCancel() {
+				fail(new CancellationException("The request has been canceled"));
+			}
+		});
+	}
+
+	/**
+	 * Fails this future and cancels the request if no response has arrived
+	 * within the specified timeout.
+	 *
+	 * @param timer the timer
+	 * @param timeout the timeout in ms (0 for no timeout)
+	 */
+	void scheduleTimeout(ScheduledExecutorService timer, final long timeout) {
+		if (timeout <= 0) return;
+		ScheduledFuture<?> handle = timer.schedule(new Runnable() {
+			public void run() {
+				finish(null, new TimeoutException("No response within "+timeout+" ms"), true);
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			if (!done) {
+				timeoutHandle = handle;
+				return;
+			}
+		}
+		handle.cancel(false);
+	}
+
+	/**
+	 * Returns the request of this future.
+	 *
+	 * @return the request
+	 */
+	public Request getRequest() {
+		return request;
+	}
+
+	/**
+	 * Adds a handler that is invoked on the client's executor when the future
+	 * is done. The handler's {@link CoapHandler#onLoad(CoapResponse)} is
+	 * invoked with the response and {@link CoapHandler#onError()} is invoked
+	 * if the future has failed or has been canceled.
+	 *
+	 * @param handler the handler
+	 * @return this future
+	 */
+	public CoapFuture addHandler(CoapHandler handler) {
+		synchronized (this) {
+			if (!released) {
+				handlers.add(handler);
+				return this;
+			}
+		}
+		dispatch(handler);
+		return this;
+	}
+
+	/**
+	 * Cancels the request unless the future is already done.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return finish(null, new CancellationException("The future has been canceled"), true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized CoapResponse get() throws InterruptedException, ExecutionException {
+		while (!released)
+			wait();
+		return report();
+	}
+
+	@Override
+	public synchronized CoapResponse get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!released) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return report();
+	}
+
+	private CoapResponse report() throws ExecutionException {
+		if (failure instanceof CancellationException)
+			throw (CancellationException) failure;
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return response;
+	}
+
+	private boolean complete(CoapResponse response) {
+		return finish(response, null, false);
+	}
+
+	private boolean fail(Throwable cause) {
+		return finish(null, cause, false);
+	}
+
+	/*
+	 * Completes or fails the future. Only the first call has an effect. If
+	 * specified, the request is canceled before waiting threads return.
+	 */
+	private boolean finish(CoapResponse response, Throwable failure, boolean cancelRequest) {
+		synchronized (this) {
+			if (done) return false;
+			this.response = response;
+			this.failure = failure;
+			this.done = true;
+			if (timeoutHandle != null)
+				timeoutHandle.cancel(false);
+		}
+		if (cancelRequest)
+			request.cancel(); // the observer's onCancel() has no effect now
+		List<CoapHandler> pending;
+		synchronized (this) {
+			released = true;
+			pending = new ArrayList<CoapHandler>(handlers);
+			handlers.clear();
+			notifyAll();
+		}
+		for (CoapHandler handler:pending)
+			dispatch(handler);
+		return true;
+	}
+
+	/*
+	 * Invokes the handler on the executor. The future must be done.
+	 */
+	private void dispatch(final CoapHandler handler) {
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					CoapResponse result;
+					synchronized (CoapFuture.this) {
+						result = response;
+					}
+					if (result != null) handler.onLoad(result);
+					else handler.onError();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while handling response", t);
+				}
+			}
+		};
+		if (executor == null) task.run();
+		else executor.execute(task);
+	}
+}
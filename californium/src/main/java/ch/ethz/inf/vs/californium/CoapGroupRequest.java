@@ -0,0 +1,183 @@
+package ch.ethz.inf.vs.californium;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * A CoapGroupRequest is a request to a multicast group that collects the
+ * responses of the group members during a window, e.g., the leisure period of
+ * the servers. Each response is handed to the handler as soon as it arrives.
+ * When the window closes, the request is canceled and further responses are
+ * rejected. A client sends a group request with
+ * {@link CoapClient#getGroup(long, CoapHandler)} or
+ * {@link CoapClient#sendGroup(Request, long, CoapHandler)}.
+ * <p>
+ * The handler is invoked on the executor of the client.
+ */
+public class CoapGroupRequest {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(CoapGroupRequest.class.getCanonicalName());
+
+	/** The multicast request. */
+	private final Request request;
+
+	/** The handler for the responses (may be null). */
+	private final CoapHandler handler;
+
+	/** The executor for the handler. */
+	private final Executor executor;
+
+	/** The responses so far, guarded by this. */
+	private final List<CoapResponse> responses = new ArrayList<CoapResponse>();
+
+	/** The members that have responded so far, guarded by this. */
+	private final List<InetSocketAddress> responders = new ArrayList<InetSocketAddress>();
+
+	/** The end of the window. */
+	private ScheduledFuture<?> timer;
+
+	/** Whether the window has closed. */
+	private boolean done;
+
+	/** Whether the request has been canceled after the window has closed. */
+	private boolean released;
+
+	/**
+	 * Constructs a new group request. Use
+	 * {@link CoapClient#sendGroup(Request, long, CoapHandler)}.
+	 *
+	 * @param request the multicast request
+	 * @param handler the handler or null
+	 * @param executor the executor for the handler
+	 */
+	CoapGroupRequest(Request request, CoapHandler handler, Executor executor) {
+		this.request = request;
+		this.handler = handler;
+		this.executor = executor;
+		request.addMessageObserver(new MessageObserverAdapter() {
+			@Override public void onResponse(Response response) {
+				received(response);
+			}
+			@Override public void onCancel() {
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Closes the window after the specified time.
+	 *
+	 * @param timer the timer
+	 * @param window the window in ms
+	 */
+	void scheduleClose(ScheduledExecutorService timer, long window) {
+		ScheduledFuture<?> future = timer.schedule(new Runnable() {
+			public void run() {
+				close();
+			}
+		}, window, TimeUnit.MILLISECONDS);
+		synchronized (this) {
+			this.timer = future;
+		}
+	}
+
+	private void received(Response response) {
+		final CoapResponse coapResponse = new CoapResponse(response);
+		synchronized (this) {
+			if (done) return;
+			responses.add(coapResponse);
+			InetSocketAddress responder = new InetSocketAddress(response.getSource(), response.getSourcePort());
+			if (!responders.contains(responder))
+				responders.add(responder);
+		}
+		if (handler != null) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						handler.onLoad(coapResponse);
+					} catch (Throwable t) {
+						LOGGER.log(Level.WARNING, "Exception while handling response to group request", t);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes the window before its time and cancels the request.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (done) return;
+			done = true;
+			if (timer != null)
+				timer.cancel(false);
+		}
+		LOGGER.fine("Group request closed with "+getResponses().size()+" responses");
+		request.cancel();
+		synchronized (this) {
+			released = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until the window has closed and returns all responses.
+	 *
+	 * @return the responses
+	 * @throws InterruptedException if the thread has been interrupted
+	 */
+	public synchronized List<CoapResponse> await() throws InterruptedException {
+		while (!released)
+			wait();
+		return getResponses();
+	}
+
+	/**
+	 * Returns the responses that have arrived so far.
+	 *
+	 * @return a copy of the responses in the order of arrival
+	 */
+	public synchronized List<CoapResponse> getResponses() {
+		return new ArrayList<CoapResponse>(responses);
+	}
+
+	/**
+	 * Returns the group members that have responded so far.
+	 *
+	 * @return a copy of the addresses of the members
+	 */
+	public synchronized List<InetSocketAddress> getResponders() {
+		return new ArrayList<InetSocketAddress>(responders);
+	}
+
+	/**
+	 * Checks if the window has closed.
+	 *
+	 * @return true, if no more responses are collected
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Returns the multicast request.
+	 *
+	 * @return the request
+	 */
+	public Request getRequest() {
+		return request;
+	}
+}
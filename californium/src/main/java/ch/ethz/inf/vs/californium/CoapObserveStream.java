@@ -0,0 +1,388 @@
+package ch.ethz.inf.vs.californium;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A CoapObserveStream delivers the notifications of an observe relation to a
+ * subscriber only as fast as the subscriber asks for them. The subscriber
+ * signals its demand with {@link #request(long)}. Notifications that arrive
+ * while there is no demand wait in a bounded buffer. When the buffer is full,
+ * the {@link Overflow} policy decides which notification is dropped, so that a
+ * slow subscriber neither blocks the endpoint nor makes the client queue
+ * notifications without limit.
+ * <p>
+ * If the subscriber has not asked for more notifications for longer than the
+ * stall timeout while notifications are waiting, the stream cancels the
+ * relation. With {@link StallAction#CANCEL}, the stream ends and the
+ * subscriber's {@link CoapHandler#onError()} is invoked. With
+ * {@link StallAction#REREGISTER}, the stream registers a new relation as soon
+ * as the subscriber asks for notifications again.
+ * <p>
+ * The subscriber is invoked on the executor of the client, one notification
+ * at a time.
+ */
+public class CoapObserveStream {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(CoapObserveStream.class.getCanonicalName());
+
+	/**
+	 * What to do with a notification that arrives when the buffer is full.
+	 */
+	public enum Overflow {
+
+		/** Replace the newest buffered notification (latest value wins). */
+		LATEST,
+
+		/** Drop the oldest buffered notification. */
+		DROP_OLDEST
+	}
+
+	/**
+	 * What to do when the subscriber stalls.
+	 */
+	public enum StallAction {
+
+		/** Cancel the relation and end the stream. */
+		CANCEL,
+
+		/** Cancel the relation and register again on the next demand. */
+		REREGISTER
+	}
+
+	/** The client that registers the relation. */
+	private final CoapClient client;
+
+	/** The maximum number of buffered notifications. */
+	private final int capacity;
+
+	/** The overflow policy. */
+	private final Overflow overflow;
+
+	/** The buffered notifications. */
+	private final ArrayDeque<CoapResponse> buffer;
+
+	/** The subscriber. */
+	private CoapHandler subscriber;
+
+	/** The current relation (null before subscribe and while re-registering). */
+	private CoapObserveRelation relation;
+
+	/** Identifies the current registration to ignore stale notifications. */
+	private Object registration;
+
+	/** The number of notifications the subscriber has asked for. */
+	private long demand;
+
+	/** Whether a drain task has been scheduled on the executor. */
+	private boolean scheduled;
+
+	/** Whether the relation has failed or the stream has been canceled. */
+	private boolean terminated;
+
+	/** Whether the subscriber has been told about the termination. */
+	private boolean terminationDelivered;
+
+	/** Whether the relation must be registered again on the next demand. */
+	private boolean reregister;
+
+	/** The time since the subscriber has stalled (System.nanoTime()) or -1. */
+	private long stalledSince = -1;
+
+	/** The stall timeout in ms (0 to never give up) and the action. */
+	private long stallTimeout;
+	private StallAction stallAction = StallAction.CANCEL;
+
+	/** The periodic check for a stalled subscriber. */
+	private ScheduledFuture<?> watchdog;
+
+	/** The number of dropped notifications. */
+	private long dropped;
+
+	/** The number of registrations of the relation. */
+	private int registrations;
+
+	/**
+	 * Constructs a new stream that observes the URI of the specified client.
+	 * Use {@link CoapClient#observeStream(int, Overflow)}.
+	 *
+	 * @param client the client
+	 * @param capacity the maximum number of buffered notifications
+	 * @param overflow the overflow policy
+	 */
+	CoapObserveStream(CoapClient client, int capacity, Overflow overflow) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1 but was "+capacity);
+		this.client = client;
+		this.capacity = capacity;
+		this.overflow = overflow;
+		this.buffer = new ArrayDeque<CoapResponse>(capacity);
+	}
+
+	/**
+	 * Sets how long the subscriber may stall while notifications are waiting
+	 * before the stream cancels the relation. Must be called before
+	 * {@link #subscribe(CoapHandler)}.
+	 *
+	 * @param timeout the timeout in ms (0 to never give up)
+	 * @param action the action
+	 * @return this stream
+	 */
+	public synchronized CoapObserveStream setStallTimeout(long timeout, StallAction action) {
+		this.stallTimeout = timeout;
+		this.stallAction = action;
+		return this;
+	}
+
+	/**
+	 * Registers the observe relation and delivers notifications to the
+	 * specified subscriber as it asks for them. A stream has only one
+	 * subscriber.
+	 *
+	 * @param subscriber the subscriber
+	 * @return this stream
+	 */
+	public CoapObserveStream subscribe(CoapHandler subscriber) {
+		synchronized (this) {
+			if (this.subscriber != null)
+				throw new IllegalStateException("The stream already has a subscriber");
+			this.subscriber = subscriber;
+			if (stallTimeout > 0) {
+				long interval = Math.max(stallTimeout / 2, 1);
+				watchdog = client.getTimer().scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						checkStalled();
+					}
+				}, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+		register();
+		return this;
+	}
+
+	/**
+	 * Asks for the specified number of further notifications.
+	 *
+	 * @param n the number of notifications
+	 */
+	public void request(long n) {
+		if (n <= 0)
+			throw new IllegalArgumentException("Demand must be positive but was "+n);
+		boolean register;
+		synchronized (this) {
+			if (terminated) return;
+			demand = demand + n < 0 ? Long.MAX_VALUE : demand + n; // saturate
+			stalledSince = -1;
+			register = reregister;
+			reregister = false;
+		}
+		if (register) {
+			LOGGER.fine("Subscriber asks for notifications again. Register the relation again");
+			register();
+		}
+		schedule();
+	}
+
+	/**
+	 * Cancels the relation and ends the stream. The subscriber is not
+	 * notified.
+	 */
+	public void cancel() {
+		CoapObserveRelation current;
+		synchronized (this) {
+			if (terminated) return;
+			terminated = true;
+			terminationDelivered = true;
+			buffer.clear();
+			current = relation;
+			relation = null;
+			registration = null;
+			if (watchdog != null)
+				watchdog.cancel(false);
+		}
+		if (current != null)
+			current.cancel();
+	}
+
+	/**
+	 * Returns the current relation or null if the stream is re-registering or
+	 * has ended.
+	 *
+	 * @return the relation
+	 */
+	public synchronized CoapObserveRelation getRelation() {
+		return relation;
+	}
+
+	/**
+	 * Returns the number of notifications that have been dropped because the
+	 * buffer was full.
+	 *
+	 * @return the number of dropped notifications
+	 */
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+
+	/**
+	 * Returns how often the relation has been registered.
+	 *
+	 * @return the number of registrations
+	 */
+	public synchronized int getRegistrationCount() {
+		return registrations;
+	}
+
+	/**
+	 * Returns the number of notifications waiting for demand.
+	 *
+	 * @return the number of buffered notifications
+	 */
+	public synchronized int getBufferedCount() {
+		return buffer.size();
+	}
+
+	/**
+	 * Checks if the stream has ended.
+	 *
+	 * @return true, if the stream has ended
+	 */
+	public synchronized boolean isTerminated() {
+		return terminated;
+	}
+
+	private void register() {
+		final Object token = new Object();
+		synchronized (this) {
+			registration = token;
+			registrations++;
+		}
+		// buffer on the endpoint thread so that only drain() uses the executor
+		CoapObserveRelation current = client.observeOnEndpoint(new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				offer(token, response);
+			}
+			public void onError() {
+				failed(token);
+			}
+		});
+		synchronized (this) {
+			if (!terminated && registration == token) {
+				relation = current;
+				return;
+			}
+		}
+		// canceled in the meantime
+		current.cancel();
+	}
+
+	/*
+	 * Buffers a notification. Invoked on the thread of the endpoint, so that
+	 * notifications never queue up in the executor of the client.
+	 */
+	private void offer(Object token, CoapResponse notification) {
+		synchronized (this) {
+			if (terminated || registration != token) return;
+			if (buffer.size() >= capacity) {
+				dropped++;
+				if (overflow == Overflow.LATEST)
+					buffer.pollLast();
+				else
+					buffer.pollFirst();
+			}
+			buffer.addLast(notification);
+			if (demand == 0 && stalledSince < 0)
+				stalledSince = System.nanoTime();
+		}
+		schedule();
+	}
+
+	/*
+	 * Ends the stream when the relation fails, unless the stream has canceled
+	 * the relation itself.
+	 */
+	private void failed(Object token) {
+		synchronized (this) {
+			if (terminated || registration != token) return;
+			terminated = true;
+			registration = null;
+			relation = null;
+			if (watchdog != null)
+				watchdog.cancel(false);
+		}
+		schedule();
+	}
+
+	private void checkStalled() {
+		CoapObserveRelation stalled;
+		synchronized (this) {
+			if (terminated || stalledSince < 0 || relation == null) return;
+			if (System.nanoTime() - stalledSince < TimeUnit.MILLISECONDS.toNanos(stallTimeout)) return;
+			stalled = relation;
+			relation = null;
+			registration = null;
+			if (stallAction == StallAction.CANCEL) {
+				LOGGER.info("Subscriber has stalled for more than "+stallTimeout+" ms. Cancel the relation");
+				terminated = true;
+				watchdog.cancel(false);
+			} else {
+				LOGGER.info("Subscriber has stalled for more than "+stallTimeout+" ms. Cancel the relation until the next demand");
+				reregister = true;
+			}
+			stalledSince = -1;
+		}
+		stalled.cancel();
+		schedule();
+	}
+
+	private void schedule() {
+		synchronized (this) {
+			if (scheduled || subscriber == null) return;
+			scheduled = true;
+		}
+		Executor executor = client.getExecutor();
+		executor.execute(new Runnable() {
+			public void run() {
+				drain();
+			}
+		});
+	}
+
+	/*
+	 * Delivers buffered notifications as long as there is demand, and then the
+	 * termination. Runs on the executor of the client.
+	 */
+	private void drain() {
+		while (true) {
+			CoapResponse next = null;
+			boolean deliverTermination = false;
+			synchronized (this) {
+				if (demand > 0 && !buffer.isEmpty()) {
+					next = buffer.pollFirst();
+					if (demand != Long.MAX_VALUE) demand--;
+				} else if (terminated && !terminationDelivered) {
+					buffer.clear();
+					terminationDelivered = true;
+					deliverTermination = true;
+				} else {
+					// the subscriber has used up its demand
+					if (demand == 0 && !buffer.isEmpty() && stalledSince < 0)
+						stalledSince = System.nanoTime();
+					scheduled = false;
+					return;
+				}
+			}
+			try {
+				if (next != null) subscriber.onLoad(next);
+				else if (deliverTermination) subscriber.onError();
+			} catch (Throwable t) {
+				LOGGER.log(Level.WARNING, "Exception while delivering notification", t);
+			}
+		}
+	}
+}
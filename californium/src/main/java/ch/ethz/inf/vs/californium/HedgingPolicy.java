@@ -0,0 +1,421 @@
+package ch.ethz.inf.vs.californium;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The HedgingPolicy cuts the tail latency of idempotent requests to a set of
+ * replicated servers. A client sends a request to its destination as usual.
+ * If no response has arrived after the hedge delay, it sends the same request
+ * to the replica that currently responds fastest. The first response wins and
+ * the other request is canceled; a late confirmable response to it is
+ * rejected with a RST so that the server stops retransmitting. A client uses
+ * the policy after {@link CoapClient#setHedging(HedgingPolicy)}.
+ * <p>
+ * The hedge delay is a percentile of the recent response times of the
+ * destination as measured by the {@link LatencyTracker}, e.g., the 95th, so
+ * that only the slowest requests are hedged. Until enough response times are
+ * known, the default delay applies. Since a request that has been answered by
+ * a replica says little about the speed of the destination, the time it has
+ * waited in vain counts as its response time.
+ * <p>
+ * Hedging only applies to GET, PUT and DELETE requests without an Observe
+ * option. To bound the extra load on the servers, a request is only hedged
+ * while the number of hedges stays below the configured fraction of all
+ * requests.
+ */
+public class HedgingPolicy {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(HedgingPolicy.class.getCanonicalName());
+
+	/** The replicated servers. */
+	private final List<InetSocketAddress> replicas;
+
+	/** The response times of the servers. */
+	private final LatencyTracker tracker;
+
+	/** The percentile of the response times that determines the delay. */
+	private volatile double percentile;
+
+	/** The delay in ms until the response times are known and the minimum delay. */
+	private volatile long defaultDelay;
+	private volatile long minDelay;
+
+	/** The maximum fraction of requests that may be hedged. */
+	private volatile double maxExtraLoad;
+
+	/* The number of requests and of hedges, guarded by this */
+	private long requests;
+	private long hedges;
+
+	private final AtomicLong hedgeWins = new AtomicLong();
+
+	/**
+	 * Constructs a new policy for the specified replicas with the parameters
+	 * from the standard configuration.
+	 *
+	 * @param replicas the replicated servers
+	 */
+	public HedgingPolicy(InetSocketAddress... replicas) {
+		this(NetworkConfig.getStandard(), replicas);
+	}
+
+	/**
+	 * Constructs a new policy for the specified replicas with the parameters
+	 * from the specified configuration.
+	 *
+	 * @param config the configuration
+	 * @param replicas the replicated servers
+	 */
+	public HedgingPolicy(NetworkConfig config, InetSocketAddress... replicas) {
+		if (replicas.length < 2)
+			throw new IllegalArgumentException("Hedging requires at least two replicas");
+		this.replicas = new ArrayList<InetSocketAddress>(Arrays.asList(replicas));
+		this.tracker = new LatencyTracker();
+		this.percentile = config.getFloat(NetworkConfigDefaults.HEDGING_PERCENTILE);
+		this.defaultDelay = config.getLong(NetworkConfigDefaults.HEDGING_DEFAULT_DELAY);
+		this.minDelay = config.getLong(NetworkConfigDefaults.HEDGING_MIN_DELAY);
+		this.maxExtraLoad = config.getFloat(NetworkConfigDefaults.HEDGING_MAX_EXTRA_LOAD);
+	}
+
+	/**
+	 * Sets the percentile of the response times of the destination after
+	 * which a request is hedged.
+	 *
+	 * @param percentile the percentile between 0 and 1
+	 * @return this policy
+	 */
+	public HedgingPolicy setPercentile(double percentile) {
+		if (percentile <= 0 || percentile > 1)
+			throw new IllegalArgumentException("Percentile must be between 0 and 1 but was "+percentile);
+		this.percentile = percentile;
+		return this;
+	}
+
+	/**
+	 * Sets the delay that applies until the response times of the
+	 * destination are known and the minimum delay.
+	 *
+	 * @param defaultDelay the default delay in ms
+	 * @param minDelay the minimum delay in ms
+	 * @return this policy
+	 */
+	public HedgingPolicy setDelays(long defaultDelay, long minDelay) {
+		if (minDelay < 0 || defaultDelay < minDelay)
+			throw new IllegalArgumentException("Invalid delays "+defaultDelay+" and "+minDelay);
+		this.defaultDelay = defaultDelay;
+		this.minDelay = minDelay;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum fraction of requests that may be hedged.
+	 *
+	 * @param maxExtraLoad the fraction, e.g., 0.1 for at most 10% more requests
+	 * @return this policy
+	 */
+	public HedgingPolicy setMaxExtraLoad(double maxExtraLoad) {
+		if (maxExtraLoad < 0)
+			throw new IllegalArgumentException("Extra load must not be negative but was "+maxExtraLoad);
+		this.maxExtraLoad = maxExtraLoad;
+		return this;
+	}
+
+	/**
+	 * Returns the tracker of the response times of the replicas.
+	 *
+	 * @return the tracker
+	 */
+	public LatencyTracker getTracker() {
+		return tracker;
+	}
+
+	/**
+	 * Returns the current hedge delay for the specified server.
+	 *
+	 * @param target the server
+	 * @return the delay in ms
+	 */
+	public long getDelay(InetSocketAddress target) {
+		long delay = tracker.getPercentile(target, percentile);
+		if (delay < 0) return defaultDelay;
+		return Math.max(minDelay, delay);
+	}
+
+	/**
+	 * Returns the number of requests that this policy has handled.
+	 *
+	 * @return the number of requests
+	 */
+	public synchronized long getRequestCount() {
+		return requests;
+	}
+
+	/**
+	 * Returns the number of requests that have been sent to a replica.
+	 *
+	 * @return the number of hedges
+	 */
+	public synchronized long getHedgeCount() {
+		return hedges;
+	}
+
+	/**
+	 * Returns the number of hedges whose response arrived first.
+	 *
+	 * @return the number of hedges that won
+	 */
+	public long getHedgeWins() {
+		return hedgeWins.get();
+	}
+
+	/**
+	 * Checks if the specified request is hedged under this policy.
+	 *
+	 * @param request the request
+	 * @return true, if the request is idempotent and goes to a replica
+	 */
+	boolean isHedgeable(Request request) {
+		Code code = request.getCode();
+		return (code == Code.GET || code == Code.PUT || code == Code.DELETE)
+				&& !request.getOptions().hasObserve()
+				&& !request.isMulticast()
+				&& request.getDestination() != null
+				&& replicas.contains(target(request));
+	}
+
+	/**
+	 * Sends the specified request to its destination through the specified
+	 * client and hedges it if no response arrives in time. The request itself
+	 * is never sent; its response, timeout or rejection is set when the first
+	 * copy completes.
+	 *
+	 * @param request the request
+	 * @param client the client that sends the copies
+	 */
+	void send(Request request, CoapClient client) {
+		synchronized (this) {
+			requests++;
+		}
+		Hedge hedge = new Hedge(request, client);
+		request.addMessageObserver(hedge);
+		InetSocketAddress primary = target(request);
+		hedge.attempt(primary);
+		ScheduledFuture<?> timer = client.getTimer().schedule(hedge, getDelay(primary), TimeUnit.MILLISECONDS);
+		synchronized (hedge) {
+			hedge.timer = timer;
+		}
+	}
+
+	/*
+	 * Takes a hedge from the budget if hedging adds less than the maximum
+	 * extra load.
+	 */
+	private synchronized boolean acquireHedge() {
+		if (hedges + 1 > maxExtraLoad * requests)
+			return false;
+		hedges++;
+		return true;
+	}
+
+	/*
+	 * Returns the replica other than the specified one with the smallest
+	 * median response time. Replicas without samples come first.
+	 */
+	private InetSocketAddress selectAlternate(InetSocketAddress primary) {
+		InetSocketAddress best = null;
+		long bestLatency = Long.MAX_VALUE;
+		for (InetSocketAddress replica:replicas) {
+			if (replica.equals(primary)) continue;
+			long latency = tracker.getPercentile(replica, 0.5);
+			if (best == null || latency < bestLatency) {
+				best = replica;
+				bestLatency = latency;
+			}
+		}
+		return best;
+	}
+
+	private static InetSocketAddress target(Request request) {
+		return new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+	}
+
+	/**
+	 * The copies of a request to the replicas. It observes the original
+	 * request to cancel the copies when the original is canceled and fires
+	 * the hedge when its timer expires.
+	 */
+	private final class Hedge extends MessageObserverAdapter implements Runnable {
+
+		private final Request request;
+		private final CoapClient client;
+		private final List<Attempt> attempts = new ArrayList<Attempt>();
+
+		/* Guarded by this */
+		private ScheduledFuture<?> timer;
+		private boolean hedged;
+		private boolean done;
+
+		private Hedge(Request request, CoapClient client) {
+			this.request = request;
+			this.client = client;
+		}
+
+		private void attempt(InetSocketAddress target) {
+			Request copy = new Request(request.getCode());
+			copy.setType(request.getType());
+			copy.setScheme(request.getScheme());
+			copy.setOptions(new OptionSet(request.getOptions()));
+			copy.setPayload(request.getPayload());
+			copy.setDestination(target.getAddress());
+			copy.setDestinationPort(target.getPort());
+			copy.setBlockwiseWindow(request.getBlockwiseWindow());
+			Attempt attempt = new Attempt(this, copy, target);
+			synchronized (this) {
+				if (done) return;
+				attempts.add(attempt);
+			}
+			copy.addMessageObserver(attempt);
+			client.dispatch(copy);
+		}
+
+		/* The hedge delay has expired */
+		public void run() {
+			hedge();
+		}
+
+		private void hedge() {
+			synchronized (this) {
+				if (done || hedged) return;
+				hedged = true;
+				if (timer != null)
+					timer.cancel(false);
+			}
+			if (!acquireHedge()) {
+				LOGGER.fine("Hedging budget exhausted, keep waiting for "+target(request));
+				return;
+			}
+			InetSocketAddress alternate = selectAlternate(target(request));
+			LOGGER.fine("No response from "+target(request)+" in time, hedge to "+alternate);
+			attempt(alternate);
+		}
+
+		private void won(Attempt winner, Response response) {
+			List<Attempt> losers;
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				if (timer != null)
+					timer.cancel(false);
+				if (attempts.indexOf(winner) > 0)
+					hedgeWins.incrementAndGet();
+				losers = new ArrayList<Attempt>(attempts);
+				losers.remove(winner);
+			}
+			long now = System.nanoTime();
+			tracker.record(winner.target, winner.elapsed(now));
+			for (Attempt loser:losers) {
+				// it has been waiting at least this long
+				tracker.record(loser.target, loser.elapsed(now));
+				loser.copy.cancel();
+			}
+			request.setResponse(response);
+		}
+
+		private void failed(boolean timeout) {
+			boolean hedgeNow;
+			synchronized (this) {
+				if (done) return;
+				for (Attempt attempt:attempts)
+					if (!attempt.failed) return; // another copy is outstanding
+				hedgeNow = !hedged;
+			}
+			if (hedgeNow) {
+				// the destination has failed, try a replica right away
+				hedge();
+				synchronized (this) {
+					if (attempts.size() > 1) return;
+				}
+			}
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				if (timer != null)
+					timer.cancel(false);
+			}
+			if (timeout)
+				request.setTimedOut(true);
+			else
+				request.setRejected(true);
+		}
+
+		@Override public void onCancel() {
+			List<Attempt> canceled;
+			synchronized (this) {
+				if (done) return;
+				done = true;
+				if (timer != null)
+					timer.cancel(false);
+				canceled = new ArrayList<Attempt>(attempts);
+			}
+			for (Attempt attempt:canceled)
+				attempt.copy.cancel();
+		}
+	}
+
+	/**
+	 * A copy of a request that has been sent to one replica.
+	 */
+	private static final class Attempt extends MessageObserverAdapter {
+
+		private final Hedge hedge;
+		private final Request copy;
+		private final InetSocketAddress target;
+		private final long timestamp = System.nanoTime();
+		private boolean failed; // guarded by the hedge
+
+		private Attempt(Hedge hedge, Request copy, InetSocketAddress target) {
+			this.hedge = hedge;
+			this.copy = copy;
+			this.target = target;
+		}
+
+		private long elapsed(long now) {
+			return TimeUnit.NANOSECONDS.toMillis(now - timestamp);
+		}
+
+		@Override public void onResponse(Response response) {
+			hedge.won(this, response);
+		}
+
+		@Override public void onReject() {
+			fail(false);
+		}
+
+		@Override public void onTimeout() {
+			fail(true);
+		}
+
+		private void fail(boolean timeout) {
+			synchronized (hedge) {
+				failed = true;
+			}
+			hedge.failed(timeout);
+		}
+	}
+}
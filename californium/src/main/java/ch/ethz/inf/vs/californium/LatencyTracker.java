@@ -0,0 +1,122 @@
+package ch.ethz.inf.vs.californium;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The LatencyTracker keeps the most recent response times of each server in
+ * a ring buffer and computes percentiles over them. A
+ * {@link HedgingPolicy} uses it to decide how long to wait before it sends a
+ * request to another server.
+ */
+public class LatencyTracker {
+
+	/** The number of samples kept per server. */
+	private final int window;
+
+	/** The number of samples required before percentiles are reported. */
+	private final int minSamples;
+
+	/** The samples per server. */
+	private final ConcurrentHashMap<InetSocketAddress, Samples> targets =
+			new ConcurrentHashMap<InetSocketAddress, Samples>();
+
+	/**
+	 * Constructs a new tracker that keeps 128 samples per server and reports
+	 * percentiles after 8 samples.
+	 */
+	public LatencyTracker() {
+		this(128, 8);
+	}
+
+	/**
+	 * Constructs a new tracker with the specified window.
+	 *
+	 * @param window the number of samples kept per server
+	 * @param minSamples the number of samples required for a percentile
+	 */
+	public LatencyTracker(int window, int minSamples) {
+		if (window < 1 || minSamples < 1 || minSamples > window)
+			throw new IllegalArgumentException("Invalid window "+window+" and minimum "+minSamples);
+		this.window = window;
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * Records the specified response time of the specified server.
+	 *
+	 * @param target the server
+	 * @param latency the response time in ms
+	 */
+	public void record(InetSocketAddress target, long latency) {
+		Samples samples = targets.get(target);
+		if (samples == null) {
+			targets.putIfAbsent(target, new Samples(window));
+			samples = targets.get(target);
+		}
+		samples.add(latency);
+	}
+
+	/**
+	 * Returns the specified percentile of the recent response times of the
+	 * specified server.
+	 *
+	 * @param target the server
+	 * @param percentile the percentile between 0 and 1
+	 * @return the response time in ms or -1 if there are too few samples
+	 */
+	public long getPercentile(InetSocketAddress target, double percentile) {
+		if (percentile < 0 || percentile > 1)
+			throw new IllegalArgumentException("Percentile must be between 0 and 1 but was "+percentile);
+		Samples samples = targets.get(target);
+		if (samples == null) return -1;
+		long[] sorted = samples.snapshot();
+		if (sorted.length < minSamples) return -1;
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	/**
+	 * Returns the number of samples of the specified server.
+	 *
+	 * @param target the server
+	 * @return the number of samples (at most the window)
+	 */
+	public int getSampleCount(InetSocketAddress target) {
+		Samples samples = targets.get(target);
+		return samples != null ? samples.snapshot().length : 0;
+	}
+
+	/**
+	 * Removes all samples.
+	 */
+	public void clear() {
+		targets.clear();
+	}
+
+	/**
+	 * The ring buffer of a server.
+	 */
+	private static final class Samples {
+
+		private final long[] values;
+		private int next;
+		private int count;
+
+		private Samples(int window) {
+			this.values = new long[window];
+		}
+
+		private synchronized void add(long latency) {
+			values[next] = latency;
+			next = (next + 1) % values.length;
+			if (count < values.length) count++;
+		}
+
+		private synchronized long[] snapshot() {
+			return Arrays.copyOf(values, count);
+		}
+	}
+}
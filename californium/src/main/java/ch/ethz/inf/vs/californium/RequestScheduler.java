@@ -0,0 +1,403 @@
+package ch.ethz.inf.vs.californium;
+
+import java.net.InetSocketAddress;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The RequestScheduler limits the number of requests that clients have in
+ * flight to each server. Requests beyond the window of a server wait in a
+ * priority queue and are sent when a request to that server completes, i.e.,
+ * when a response arrives or the request times out, is rejected or is
+ * canceled. Requests with a lower priority value are sent first and requests
+ * with the same priority in the order they have been submitted.
+ * <p>
+ * The window of a server adapts to the link like a congestion window. It grows
+ * by one request per window of responses that arrive without retransmission
+ * unless the round-trip time has more than doubled compared to the smallest
+ * one seen, which indicates that requests queue up at the server. It is
+ * halved when a request has to be retransmitted or times out. The window stays
+ * between 1 and the configured maximum.
+ * <p>
+ * The stack never times out a non-confirmable request. If no response to a
+ * NON request arrives within the exchange lifetime, the scheduler considers
+ * the request lost and frees its slot.
+ * <p>
+ * Several clients can share a scheduler so that they share the windows of the
+ * servers, e.g., with {@link CoapClient#setScheduler(RequestScheduler)}.
+ */
+public class RequestScheduler {
+
+	/** The logger. */
+	private static final Logger LOGGER = Logger.getLogger(RequestScheduler.class.getCanonicalName());
+
+	/** The initial and the maximum window. */
+	private final int initialWindow;
+	private final int maxWindow;
+
+	/** The time in ms after which an unanswered NON request is lost. */
+	private final long nonLifetime;
+
+	/** The timer for the lifetime of NON requests that all schedulers share. */
+	private static ScheduledExecutorService timer;
+
+	/** The state per server. */
+	private final ConcurrentHashMap<InetSocketAddress, Destination> destinations =
+			new ConcurrentHashMap<InetSocketAddress, Destination>();
+
+	/** The order of submission for requests with the same priority. */
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * Constructs a new scheduler with the windows from the standard
+	 * configuration.
+	 */
+	public RequestScheduler() {
+		this(NetworkConfig.getStandard());
+	}
+
+	/**
+	 * Constructs a new scheduler with the windows from the specified
+	 * configuration. The initial window is NSTART.
+	 *
+	 * @param config the configuration
+	 */
+	public RequestScheduler(NetworkConfig config) {
+		this(config.getInt(NetworkConfigDefaults.NSTART),
+				config.getInt(NetworkConfigDefaults.CLIENT_WINDOW_MAX),
+				config.getLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE));
+	}
+
+	/**
+	 * Constructs a new scheduler with the specified windows. NON requests are
+	 * lost after the exchange lifetime of the standard configuration.
+	 *
+	 * @param initialWindow the initial window per server
+	 * @param maxWindow the maximum window per server
+	 */
+	public RequestScheduler(int initialWindow, int maxWindow) {
+		this(initialWindow, maxWindow,
+				NetworkConfig.getStandard().getLong(NetworkConfigDefaults.EXCHANGE_LIFECYCLE));
+	}
+
+	/**
+	 * Constructs a new scheduler with the specified windows and lifetime of
+	 * NON requests.
+	 *
+	 * @param initialWindow the initial window per server
+	 * @param maxWindow the maximum window per server
+	 * @param nonLifetime the time in ms after which an unanswered NON request is lost
+	 */
+	public RequestScheduler(int initialWindow, int maxWindow, long nonLifetime) {
+		if (initialWindow < 1 || maxWindow < initialWindow)
+			throw new IllegalArgumentException("Invalid windows "+initialWindow+" and "+maxWindow);
+		if (nonLifetime <= 0)
+			throw new IllegalArgumentException("Invalid lifetime of NON requests "+nonLifetime);
+		this.initialWindow = initialWindow;
+		this.maxWindow = maxWindow;
+		this.nonLifetime = nonLifetime;
+	}
+
+	/**
+	 * Sends the specified request over the specified endpoint if the window of
+	 * its destination has room or queues it otherwise.
+	 *
+	 * @param request the request with its destination set
+	 * @param endpoint the endpoint or null for the default endpoint
+	 * @param priority the priority (lower values are sent first)
+	 */
+	public void submit(Request request, Endpoint endpoint, int priority) {
+		InetSocketAddress address = new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+		Destination destination = destinations.get(address);
+		if (destination == null) {
+			destinations.putIfAbsent(address, new Destination(address));
+			destination = destinations.get(address);
+		}
+		Pending pending = new Pending(request, endpoint, priority, sequence.getAndIncrement(), destination, nonLifetime);
+		request.addMessageObserver(pending);
+		destination.submit(pending);
+	}
+
+	/**
+	 * Returns the number of requests in flight to the specified server.
+	 *
+	 * @param server the server
+	 * @return the number of requests in flight
+	 */
+	public int getInFlight(InetSocketAddress server) {
+		Destination destination = destinations.get(server);
+		return destination != null ? destination.getInFlight() : 0;
+	}
+
+	/**
+	 * Returns the number of requests waiting for the specified server.
+	 *
+	 * @param server the server
+	 * @return the length of the queue
+	 */
+	public int getQueueLength(InetSocketAddress server) {
+		Destination destination = destinations.get(server);
+		return destination != null ? destination.getQueueLength() : 0;
+	}
+
+	/**
+	 * Returns the current window for the specified server.
+	 *
+	 * @param server the server
+	 * @return the window
+	 */
+	public int getWindow(InetSocketAddress server) {
+		Destination destination = destinations.get(server);
+		return destination != null ? destination.getWindow() : initialWindow;
+	}
+
+	/**
+	 * Returns the smoothed round-trip time to the specified server.
+	 *
+	 * @param server the server
+	 * @return the round-trip time in ms or -1 if none has been measured
+	 */
+	public long getSmoothedRtt(InetSocketAddress server) {
+		Destination destination = destinations.get(server);
+		return destination != null ? destination.getSmoothedRtt() : -1;
+	}
+
+	/**
+	 * Returns the largest number of requests that have waited for the
+	 * specified server at the same time.
+	 *
+	 * @param server the server
+	 * @return the peak length of the queue
+	 */
+	public int getPeakQueueLength(InetSocketAddress server) {
+		Destination destination = destinations.get(server);
+		return destination != null ? destination.getPeakQueueLength() : 0;
+	}
+
+	/**
+	 * Returns the number of requests waiting for any server.
+	 *
+	 * @return the total length of the queues
+	 */
+	public int getQueueLength() {
+		int length = 0;
+		for (Destination destination:destinations.values())
+			length += destination.getQueueLength();
+		return length;
+	}
+
+	/**
+	 * Returns the number of requests in flight to any server.
+	 *
+	 * @return the total number of requests in flight
+	 */
+	public int getInFlight() {
+		int inFlight = 0;
+		for (Destination destination:destinations.values())
+			inFlight += destination.getInFlight();
+		return inFlight;
+	}
+
+	private static synchronized ScheduledExecutorService getTimer() {
+		if (timer == null)
+			timer = Executors.newSingleThreadScheduledExecutor(new EndpointManager.DaemonThreadFactory());
+		return timer;
+	}
+
+	/**
+	 * The window, the queue and the measurements for a server.
+	 */
+	private final class Destination {
+
+		private final InetSocketAddress address;
+		private final PriorityQueue<Pending> queue = new PriorityQueue<Pending>();
+
+		/* The window grows by 1/window per response */
+		private double window = initialWindow;
+		private int inFlight;
+		private int peakQueue;
+
+		/* The round-trip times in ms */
+		private long srtt = -1;
+		private long minRtt = Long.MAX_VALUE;
+
+		private Destination(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		private void submit(Pending pending) {
+			synchronized (this) {
+				if (inFlight >= (int) window) {
+					queue.add(pending);
+					if (queue.size() > peakQueue)
+						peakQueue = queue.size();
+					return;
+				}
+				inFlight++;
+				pending.dequeued = true;
+			}
+			pending.send();
+		}
+
+		/*
+		 * Frees the slot of a completed request and sends the next requests
+		 * for which the window has room.
+		 */
+		private void completed(Pending completed, boolean lost, long rtt) {
+			synchronized (this) {
+				if (!completed.dequeued) {
+					// canceled while waiting
+					queue.remove(completed);
+					return;
+				}
+				inFlight--;
+				adjust(lost, rtt);
+			}
+			while (true) {
+				Pending next;
+				synchronized (this) {
+					if (inFlight >= (int) window || queue.isEmpty()) return;
+					next = queue.poll();
+					next.dequeued = true;
+					inFlight++;
+				}
+				next.send();
+			}
+		}
+
+		private void adjust(boolean lost, long rtt) {
+			if (lost) {
+				window = Math.max(1, window / 2);
+				LOGGER.fine("Loss on the link to "+address+", window shrinks to "+(int) window);
+				return;
+			}
+			if (rtt < 0) return;
+			srtt = srtt < 0 ? rtt : (7 * srtt + rtt) / 8;
+			minRtt = Math.min(minRtt, rtt);
+			if (rtt <= 2 * Math.max(minRtt, 1))
+				window = Math.min(maxWindow, window + 1 / window);
+		}
+
+		private synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		private synchronized int getQueueLength() {
+			return queue.size();
+		}
+
+		private synchronized int getPeakQueueLength() {
+			return peakQueue;
+		}
+
+		private synchronized int getWindow() {
+			return (int) window;
+		}
+
+		private synchronized long getSmoothedRtt() {
+			return srtt;
+		}
+	}
+
+	/**
+	 * A submitted request. It observes the request to free its slot once. A
+	 * NON request that has not been answered within its lifetime is lost.
+	 */
+	private static final class Pending extends MessageObserverAdapter implements Comparable<Pending> {
+
+		private final Request request;
+		private final Endpoint endpoint;
+		private final int priority;
+		private final long sequence;
+		private final Destination destination;
+		private final long nonLifetime;
+
+		private final AtomicBoolean completed = new AtomicBoolean();
+		private boolean dequeued; // guarded by the destination
+		private volatile boolean retransmitted;
+		private volatile long timestamp;
+		private volatile ScheduledFuture<?> expiry;
+
+		private Pending(Request request, Endpoint endpoint, int priority, long sequence, Destination destination, long nonLifetime) {
+			this.request = request;
+			this.endpoint = endpoint;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.destination = destination;
+			this.nonLifetime = nonLifetime;
+		}
+
+		private void send() {
+			if (request.isCanceled()) {
+				// canceled while waiting, free the slot again
+				complete(false, -1);
+				return;
+			}
+			timestamp = System.nanoTime();
+			if (!request.isConfirmable()) {
+				// no timeout will tell if neither request nor response arrive
+				expiry = getTimer().schedule(new Runnable() {
+					public void run() {
+						LOGGER.fine("No response to NON request within "+nonLifetime+" ms, consider it lost");
+						complete(true, -1);
+					}
+				}, nonLifetime, TimeUnit.MILLISECONDS);
+			}
+			if (endpoint != null)
+				endpoint.sendRequest(request);
+			else request.send();
+		}
+
+		private void complete(boolean lost, long rtt) {
+			if (completed.compareAndSet(false, true)) {
+				ScheduledFuture<?> current = expiry;
+				if (current != null)
+					current.cancel(false);
+				destination.completed(this, lost, rtt);
+			}
+		}
+
+		@Override public void onRetransmission() {
+			retransmitted = true;
+		}
+
+		@Override public void onResponse(Response response) {
+			long rtt = retransmitted ? -1 : (System.nanoTime() - timestamp) / 1000000;
+			complete(retransmitted, rtt);
+		}
+
+		@Override public void onReject() {
+			complete(false, -1);
+		}
+
+		@Override public void onTimeout() {
+			complete(true, -1);
+		}
+
+		@Override public void onCancel() {
+			complete(false, -1);
+		}
+
+		@Override
+		public int compareTo(Pending other) {
+			if (priority != other.priority)
+				return priority < other.priority ? -1 : 1;
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package ch.ethz.inf.vs.californium.coap;
 
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -55,6 +57,12 @@ public abstract class Message {
 	/** The payload as string. */
 	private String payloadString; // lazy-initialized.
 	
+	/**
+	 * The payload if it is not held as byte array, e.g., a large blockwise
+	 * request that has been spilled to a memory-mapped file.
+	 */
+	private ByteBuffer payloadBuffer;
+	
 	/** The destination address of this message. */
 	private InetAddress destination;
 	
@@ -234,9 +242,55 @@ public abstract class Message {
 	 * @return the payload
 	 */
 	public byte[] getPayload() {
+		if (payload == null && payloadBuffer != null) {
+			// copy the payload to the heap since the caller needs an array
+			byte[] bytes = new byte[payloadBuffer.remaining()];
+			payloadBuffer.duplicate().get(bytes);
+			payload = bytes;
+		}
 		return payload;
 	}
 	
+	/**
+	 * Gets a read-only view of the payload. Unlike {@link #getPayload()}, this
+	 * method does not copy a payload that is not held on the heap, e.g., a
+	 * large blockwise request that has been spilled to a file.
+	 * 
+	 * @return the payload as buffer (empty if no payload is defined)
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		if (payloadBuffer != null)
+			return payloadBuffer.asReadOnlyBuffer();
+		else if (payload != null)
+			return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+		else return ByteBuffer.allocate(0);
+	}
+	
+	/**
+	 * Gets the payload as stream. The stream reads from the view returned by
+	 * {@link #getPayloadBuffer()}.
+	 * 
+	 * @return the payload as stream
+	 */
+	public InputStream getPayloadStream() {
+		final ByteBuffer buffer = getPayloadBuffer();
+		return new InputStream() {
+			@Override public int read() {
+				return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+			}
+			@Override public int read(byte[] b, int off, int len) {
+				if (len == 0) return 0;
+				if (!buffer.hasRemaining()) return -1;
+				len = Math.min(len, buffer.remaining());
+				buffer.get(b, off, len);
+				return len;
+			}
+			@Override public int available() {
+				return buffer.remaining();
+			}
+		};
+	}
+	
 	/**
 	 * Gets the payload in the form of a string. Returns null if no payload is
 	 * defined.
@@ -244,7 +298,7 @@ public abstract class Message {
 	 * @return the payload as string
 	 */
 	public String getPayloadString() {
-		if (payload==null)
+		if (getPayload()==null)
 			return null;
 		this.payloadString = new String(payload);
 		return payloadString;
@@ -256,6 +310,8 @@ public abstract class Message {
 	 * @return the payload size
 	 */
 	public int getPayloadSize() {
+		if (payload == null && payloadBuffer != null)
+			return payloadBuffer.remaining();
 		return payload == null ? 0 : payload.length;
 	}
 	
@@ -295,6 +351,22 @@ public abstract class Message {
 	 */
 	public Message setPayload(byte[] payload) {
 		this.payload = payload;
+		this.payloadBuffer = null;
+		this.payloadString = null; // reset lazy-initialized variable
+		return this;
+	}
+	
+	/**
+	 * Sets the payload to the content of the specified buffer without copying
+	 * it to the heap. The buffer must not be modified afterwards.
+	 *
+	 * @param payload the new payload
+	 */
+	public Message setPayload(ByteBuffer payload) {
+		if (payload == null)
+			throw new NullPointerException();
+		this.payload = null;
+		this.payloadBuffer = payload.slice();
 		this.payloadString = null; // reset lazy-initialized variable
 		return this;
 	}
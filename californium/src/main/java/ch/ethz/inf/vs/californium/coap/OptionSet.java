@@ -70,6 +70,7 @@ public class OptionSet {
 	private BlockOption  block1;
 	private BlockOption  block2;
 	private Integer      observe;
+	private Integer      size2;
 	
 	// Arbitrary options
 	private List<Option> others;
@@ -97,6 +98,7 @@ public class OptionSet {
 		block1              = null;
 		block2              = null;
 		observe             = null;
+		size2               = null;
 		
 		others              = null; // new LinkedList<>();
 	}
@@ -125,6 +127,7 @@ public class OptionSet {
 		block1 = null;
 		block2 = null;
 		observe = null;
+		size2 = null;
 		if (others != null)
 			others.clear();
 	}
@@ -158,6 +161,7 @@ public class OptionSet {
 			block2          = new BlockOption(origin.block2);
 		
 		observe = origin.observe;
+		size2 = origin.size2;
 		
 		others              = copyList(origin.others);
 	}
@@ -716,6 +720,32 @@ public class OptionSet {
 		return this;
 	}
 	
+	/**
+	 * Returns the Size2 option, i.e., the size of the whole representation
+	 * that a response transfers blockwise.
+	 * 
+	 * @return the size in bytes or null
+	 */
+	public Integer getSize2() {
+		return size2;
+	}
+	
+	public boolean hasSize2() {
+		return size2 != null;
+	}
+	
+	public OptionSet setSize2(int size) {
+		if (size < 0)
+			throw new IllegalArgumentException("Size2 option must not be negative but was "+size);
+		this.size2 = size;
+		return this;
+	}
+	
+	public OptionSet removeSize2() {
+		size2 = null;
+		return this;
+	}
+	
 	public boolean hasOption(int number) {
 		return Collections.binarySearch(asSortedList(), new Option(number)) >= 0;
 	}
@@ -772,6 +802,8 @@ public class OptionSet {
 		
 		if (hasObserve())
 			options.add(new Option(CoAP.OptionRegistry.OBSERVE, getObserve()));
+		if (hasSize2())
+			options.add(new Option(CoAP.OptionRegistry.SIZE, getSize2()));
 		
 		if (others != null)
 			options.addAll(others);
@@ -825,6 +857,8 @@ public class OptionSet {
 		
 		if (hasObserve())
 			os.add("Observe="+observe);
+		if (hasSize2())
+			os.add("Size2="+size2);
 		
 		if (others != null)
 			for (Option o:others)
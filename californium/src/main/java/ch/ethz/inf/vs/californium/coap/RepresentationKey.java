@@ -0,0 +1,55 @@
+package ch.ethz.inf.vs.californium.coap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RepresentationKey identifies the representation of a resource that a
+ * request asks for, i.e., the URI path, the URI queries and the Accept option
+ * of the request. Caches of responses use it as key.
+ */
+public final class RepresentationKey {
+
+	/** The URI path. */
+	private final List<String> path;
+
+	/** The URI queries. */
+	private final List<String> query;
+
+	/** The Accept option. */
+	private final int accept;
+
+	/** The hash code. */
+	private final int hash;
+
+	/**
+	 * Instantiates a new key for the representation the specified request
+	 * asks for.
+	 *
+	 * @param request the request
+	 */
+	public RepresentationKey(Request request) {
+		OptionSet options = request.getOptions();
+		this.path = new ArrayList<String>(options.getURIPaths());
+		this.query = new ArrayList<String>(options.getURIQueries());
+		this.accept = options.getAccept();
+		this.hash = 31 * (31 * path.hashCode() + query.hashCode()) + accept;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof RepresentationKey)) return false;
+		RepresentationKey other = (RepresentationKey) o;
+		return accept == other.accept && path.equals(other.path) && query.equals(other.query);
+	}
+
+	@Override
+	public String toString() {
+		return "RepresentationKey [path="+path+", query="+query+", accept="+accept+"]";
+	}
+}
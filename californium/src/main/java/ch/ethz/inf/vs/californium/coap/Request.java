@@ -69,11 +69,20 @@ public class Request extends Message {
 	/** Marks this request as multicast request */
 	private boolean multicast;
 	
+	/** How long responses to this multicast request arrive in ms (0 for the endpoint's default). */
+	private long multicastWindow;
+	
 	/** The current response for the request. */
 	private Response response;
 	
 	private String scheme;
 	
+	/** The number of response blocks to request in parallel (0 for the endpoint's default). */
+	private int blockwiseWindow;
+	
+	/** Whether the blockwise layer leaves the blocks to the application. */
+	private boolean blockwiseTransparent;
+	
 	/** The lock object used to wait for a response. */
 	private Object lock;
 	
@@ -145,6 +154,79 @@ public class Request extends Message {
 		this.multicast = multicast;
 	}
 	
+	/**
+	 * Gets how long the endpoint accepts responses to this multicast request.
+	 * 
+	 * @return the window in ms or 0 if the endpoint's default applies
+	 */
+	public long getMulticastWindow() {
+		return multicastWindow;
+	}
+	
+	/**
+	 * Sets how long the endpoint accepts responses to this multicast request.
+	 * When the window has passed, the request is canceled. By default, the
+	 * window is the leisure period of the servers plus the ACK timeout.
+	 * 
+	 * @param window the window in ms or 0 for the endpoint's default
+	 */
+	public void setMulticastWindow(long window) {
+		if (window < 0)
+			throw new IllegalArgumentException("Multicast window must not be negative but was "+window);
+		this.multicastWindow = window;
+	}
+	
+	/**
+	 * Gets the number of response blocks the client requests in parallel if
+	 * the response is transferred blockwise.
+	 * 
+	 * @return the window or 0 if the endpoint's default applies
+	 */
+	public int getBlockwiseWindow() {
+		return blockwiseWindow;
+	}
+	
+	/**
+	 * Sets the number of response blocks the client requests in parallel if
+	 * the response to this GET request is transferred blockwise. The client
+	 * only pipelines if the server announces the size of the representation
+	 * and an ETag in the first block. The window is further limited by
+	 * NSTART. A window of 1 downloads one block after the other.
+	 * 
+	 * @param window the window or 0 for the endpoint's default
+	 */
+	public void setBlockwiseWindow(int window) {
+		if (window < 0)
+			throw new IllegalArgumentException("Blockwise window must not be negative but was "+window);
+		this.blockwiseWindow = window;
+	}
+	
+	/**
+	 * Tests if the blockwise layer passes this request and its responses
+	 * through unchanged.
+	 * 
+	 * @return true if the application transfers the blocks itself
+	 */
+	public boolean isBlockwiseTransparent() {
+		return blockwiseTransparent;
+	}
+	
+	/**
+	 * Defines whether the blockwise layer passes this request and its
+	 * responses through unchanged. The layer then neither splits a large
+	 * payload into Block1 blocks nor fetches and assembles the Block2 blocks
+	 * of the response. The application sets the Block1 and Block2 options
+	 * itself and receives every block, including a 2.31 Continue, as the
+	 * response to its request. This way, an application can transfer a
+	 * representation of any size one block after the other without holding
+	 * it in memory as a whole.
+	 * 
+	 * @param transparent if the application transfers the blocks itself
+	 */
+	public void setBlockwiseTransparent(boolean transparent) {
+		this.blockwiseTransparent = transparent;
+	}
+	
 	public Request setPayload(String payload) {
 		super.setPayload(payload);
 		return this;
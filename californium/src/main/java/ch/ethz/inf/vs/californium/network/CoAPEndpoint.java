@@ -15,7 +15,9 @@ import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.layer.AdaptiveBlockSize;
 import ch.ethz.inf.vs.californium.network.layer.BlockwiseLayer;
+import ch.ethz.inf.vs.californium.network.layer.BlockwiseTracker;
 import ch.ethz.inf.vs.californium.network.layer.CoapStack;
 import ch.ethz.inf.vs.californium.network.layer.ExchangeForwarder;
 import ch.ethz.inf.vs.californium.network.layer.ObserveLayer;
@@ -298,6 +300,15 @@ public class CoAPEndpoint implements Endpoint {
 		this.matcher.setExecutor(executor);
 	}
 	
+	/**
+	 * Returns the executor of this endpoint and its stack.
+	 * 
+	 * @return the executor or null if the endpoint has not been started yet
+	 */
+	public synchronized ScheduledExecutorService getExecutor() {
+		return executor;
+	}
+	
 	/* (non-Javadoc)
 	 * @see ch.ethz.inf.vs.californium.network.Endpoint#addObserver(ch.ethz.inf.vs.californium.network.EndpointObserver)
 	 */
@@ -413,6 +424,37 @@ public class CoAPEndpoint implements Endpoint {
 	public NetworkConfig getConfig() {
 		return config;
 	}
+	
+	/**
+	 * Returns the tracker of the blockwise transfers in progress at this
+	 * endpoint, e.g., to read the number of in-flight bytes. Returns null if
+	 * the endpoint uses the blockwise layer of draft 11.
+	 * 
+	 * @return the tracker or null
+	 */
+	public BlockwiseTracker getBlockwiseTracker() {
+		return coapstack.getBlockwiseTracker();
+	}
+	
+	/**
+	 * Returns the number of peers to which this endpoint has requests in
+	 * flight that count toward NSTART.
+	 * 
+	 * @return the number of peers
+	 */
+	public int getPeersInFlight() {
+		return coapstack.getPeersInFlight();
+	}
+	
+	/**
+	 * Returns the block sizes that this endpoint uses for its peers or null if
+	 * the block size is fixed (see BLOCKWISE_ADAPTIVE_SIZE).
+	 * 
+	 * @return the adaptive block sizes or null
+	 */
+	public AdaptiveBlockSize getAdaptiveBlockSize() {
+		return coapstack.getAdaptiveBlockSize();
+	}
 
 	/**
 	 * The stack of layers uses this forwarder to send messages. The forwarder
@@ -525,6 +567,7 @@ public class CoAPEndpoint implements Endpoint {
 				}
 				request.setSource(raw.getAddress());
 				request.setSourcePort(raw.getPort());
+				request.setMulticast(raw.isMulticast());
 				
 				LOGGER.fine(String.format("Received req %s-%s [%5d][%s] from %s",
 					request.getType(), request.getCode(), request.getMID(), request.getTokenString(),
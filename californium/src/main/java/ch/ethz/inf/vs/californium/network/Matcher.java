@@ -3,12 +3,14 @@ package ch.ethz.inf.vs.californium.network;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Message;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange.KeyMID;
@@ -38,6 +40,9 @@ public class Matcher {
 	
 	private ConcurrentHashMap<KeyUri, Exchange> ongoingExchanges; // for blockwise
 	
+	private ConcurrentHashMap<KeyToken, Exchange> multicastExchanges; // by token only
+	private long multicastWindow; // default in ms
+	
 	// TODO: Multicast Exchanges: should not be removed from deduplicator
 	private Deduplicator deduplicator;
 	// Idea: Only store acks/rsts and not the whole exchange. Responses should be sent CON.
@@ -47,6 +52,9 @@ public class Matcher {
 		this.exchangesByMID = new ConcurrentHashMap<KeyMID, Exchange>();
 		this.exchangesByToken = new ConcurrentHashMap<KeyToken, Exchange>();
 		this.ongoingExchanges = new ConcurrentHashMap<KeyUri, Exchange>();
+		this.multicastExchanges = new ConcurrentHashMap<KeyToken, Exchange>();
+		this.multicastWindow = config.getInt(NetworkConfigDefaults.DEFAULT_LEISURE)
+				+ config.getInt(NetworkConfigDefaults.ACK_TIMEOUT);
 
 		DeduplicatorFactory factory = DeduplicatorFactory.getDeduplicatorFactory();
 		this.deduplicator = factory.createDeduplicator(config);
@@ -76,9 +84,38 @@ public class Matcher {
 		this.executor = executor;
 	}
 	
-	public void sendRequest(Exchange exchange, Request request) {
+	public void sendRequest(final Exchange exchange, Request request) {
 		if (request.getMID() == Message.NONE)
 			request.setMID(currendMID.getAndIncrement()%(1<<16));
+		
+		if (request.isMulticast()) {
+			/*
+			 * The responses to a multicast request come from the unicast
+			 * addresses of the group members. We match them by the token only
+			 * and keep the exchange until the request is canceled, at the
+			 * latest when its window has passed. The request is NON and gets no
+			 * ACK or RST.
+			 */
+			KeyToken idByGroup = multicastKey(request.getToken());
+			LOGGER.fine("Remember multicast request by "+idByGroup);
+			exchange.setObserver(exchangeObserver);
+			multicastExchanges.put(idByGroup, exchange);
+			request.addMessageObserver(new MessageObserverAdapter() {
+				@Override public void onCancel() {
+					exchange.setComplete(true);
+				}
+			});
+			long window = request.getMulticastWindow() > 0 ? request.getMulticastWindow() : multicastWindow;
+			executor.schedule(new Runnable() {
+				public void run() {
+					if (!exchange.isComplete()) {
+						LOGGER.fine("Window of multicast request has passed, cancel it");
+						exchange.getRequest().cancel();
+					}
+				}
+			}, window, TimeUnit.MILLISECONDS);
+			return;
+		}
 
 		/*
 		 * The request is a CON or NCON and must be prepared for these responses
@@ -127,14 +164,20 @@ public class Matcher {
 		
 		if (/*exchange.getCurrentRequest().getCode() == Code.GET
 				&&*/ response.getOptions().hasBlock2()) {
-			// Remember ongoing blockwise GET requests
 			Request request = exchange.getRequest();
 //			KeyToken idByTok = new KeyToken(request.getToken(),
 //					request.getSource().getAddress(), request.getSourcePort());
 			KeyUri keyUri = new KeyUri(request.getURI(),
 					response.getDestination().getAddress(), response.getDestinationPort());
-			LOGGER.fine("Add request to ongoing exchanges with key "+keyUri);
-			ongoingExchanges.put(keyUri, exchange);
+			if (exchange.getResponseBlockStatus() != null) {
+				// Remember ongoing blockwise GET requests
+				LOGGER.fine("Add request to ongoing exchanges with key "+keyUri);
+				exchange.setObserver(exchangeObserver); // forget it when it expires
+				ongoingExchanges.put(keyUri, exchange);
+			} else {
+				// The resource serves each block itself and needs no state
+				ongoingExchanges.remove(keyUri, exchange);
+			}
 		}
 		
 		if (response.getType() == Type.ACK || response.getType() == Type.NON) {
@@ -232,6 +275,7 @@ public class Matcher {
 				Exchange exchange = new Exchange(request, Origin.REMOTE);
 				Exchange previous = deduplicator.findPrevious(idByMID, exchange);
 				if (previous == null) {
+					exchange.setObserver(exchangeObserver); // forget it when it expires
 					ongoingExchanges.put(idByUri, exchange);
 					return exchange;
 					
@@ -261,6 +305,18 @@ public class Matcher {
 		
 		Exchange exchange = exchangesByToken.get(idByTok);
 		
+		if (exchange == null && !multicastExchanges.isEmpty()) {
+			Exchange group = multicastExchanges.get(multicastKey(response.getToken()));
+			if (group != null) {
+				// One of many responses to a multicast request
+				if (deduplicator.findPrevious(idByMID, group) != null) {
+					LOGGER.fine("Response to multicast request is a duplicate "+response);
+					response.setDuplicate(true);
+				}
+				return group;
+			}
+		}
+		
 		if (exchange != null) {
 			// There is an exchange with the given token
 			
@@ -345,14 +401,24 @@ public class Matcher {
 		this.exchangesByMID.clear();
 		this.exchangesByToken.clear();
 		this.ongoingExchanges.clear();
+		this.multicastExchanges.clear();
 		deduplicator.clear();
 	}
 	
+	private static KeyToken multicastKey(byte[] token) {
+		return new KeyToken(token, new byte[0], 0);
+	}
+	
 	private class ExchangeObserverImpl implements ExchangeObserver {
 
 		@Override
 		public void completed(Exchange exchange) {
-			if (exchange.getOrigin() == Origin.LOCAL) {
+			if (exchange.getOrigin() == Origin.LOCAL && exchange.getRequest().isMulticast()) {
+				KeyToken groupKey = multicastKey(exchange.getRequest().getToken());
+				LOGGER.fine("Multicast exchange completed, forget token "+groupKey);
+				multicastExchanges.remove(groupKey);
+				
+			} else if (exchange.getOrigin() == Origin.LOCAL) {
 				// TODO: Observe+Blockwise use multiple tokens and we have to
 				//       remove all of them
 				Request request = exchange.getRequest();
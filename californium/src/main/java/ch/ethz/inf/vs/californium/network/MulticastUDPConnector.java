@@ -0,0 +1,141 @@
+package ch.ethz.inf.vs.californium.network;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.elements.Connector;
+import ch.ethz.inf.vs.elements.RawData;
+import ch.ethz.inf.vs.elements.RawDataChannel;
+
+/**
+ * The MulticastUDPConnector receives the datagrams that are sent to a
+ * multicast group and marks them as multicast, so that a server can recognize
+ * requests to the group and respond within the leisure period. Since a socket
+ * that is bound to a group address cannot send, the responses leave from a
+ * separate unicast socket. A server serves a group with an additional
+ * endpoint, e.g.,
+ * <pre>
+ * server.addEndpoint(new CoAPEndpoint(new MulticastUDPConnector(group, 5683), config));
+ * </pre>
+ */
+public class MulticastUDPConnector implements Connector {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(MulticastUDPConnector.class.getCanonicalName());
+
+	/** The group and port. */
+	private final InetSocketAddress group;
+
+	/** The size of the receive buffer for one datagram. */
+	private final int datagramSize;
+
+	private MulticastSocket receiveSocket;
+	private DatagramSocket sendSocket;
+	private RawDataChannel receiver;
+	private volatile boolean running;
+
+	/**
+	 * Constructs a new connector for the specified group.
+	 *
+	 * @param group the multicast address
+	 * @param port the port
+	 */
+	public MulticastUDPConnector(InetAddress group, int port) {
+		this(group, port, 2000);
+	}
+
+	/**
+	 * Constructs a new connector for the specified group.
+	 *
+	 * @param group the multicast address
+	 * @param port the port
+	 * @param datagramSize the maximum size of a received datagram
+	 */
+	public MulticastUDPConnector(InetAddress group, int port, int datagramSize) {
+		if (!group.isMulticastAddress())
+			throw new IllegalArgumentException(group+" is not a multicast address");
+		this.group = new InetSocketAddress(group, port);
+		this.datagramSize = datagramSize;
+	}
+
+	@Override
+	public synchronized void start() throws IOException {
+		if (running) return;
+		receiveSocket = new MulticastSocket(group);
+		receiveSocket.joinGroup(group.getAddress());
+		sendSocket = new DatagramSocket();
+		running = true;
+
+		Thread thread = new Thread("MulticastUDPConnector["+group+"]") {
+			public void run() {
+				receive();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		LOGGER.info("Joined group "+group);
+	}
+
+	private void receive() {
+		byte[] buffer = new byte[datagramSize];
+		while (running) {
+			try {
+				DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+				receiveSocket.receive(packet);
+				byte[] bytes = new byte[packet.getLength()];
+				System.arraycopy(packet.getData(), packet.getOffset(), bytes, 0, bytes.length);
+				RawData raw = new RawData(bytes, packet.getAddress(), packet.getPort());
+				raw.setMulticast(true);
+				receiver.receiveData(raw);
+			} catch (IOException e) {
+				if (running)
+					LOGGER.log(Level.WARNING, "Exception while receiving from group "+group, e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (!running) return;
+		running = false;
+		try {
+			receiveSocket.leaveGroup(group.getAddress());
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "Exception while leaving group "+group, e);
+		}
+		receiveSocket.close();
+		sendSocket.close();
+	}
+
+	@Override
+	public void destroy() {
+		stop();
+	}
+
+	@Override
+	public void send(RawData msg) {
+		DatagramSocket socket = sendSocket;
+		if (!running) return;
+		try {
+			socket.send(new DatagramPacket(msg.getBytes(), msg.getSize(), msg.getAddress(), msg.getPort()));
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Exception while sending to "+msg.getInetSocketAddress(), e);
+		}
+	}
+
+	@Override
+	public void setRawDataReceiver(RawDataChannel receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public InetSocketAddress getAddress() {
+		return group;
+	}
+}
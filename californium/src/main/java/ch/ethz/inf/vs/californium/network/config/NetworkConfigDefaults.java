@@ -42,6 +42,24 @@ public class NetworkConfigDefaults {
 	public static final String DEFAULT_ENDPOINT_THREAD_COUNT = "DEFAULT_ENDPOINT_THREAD_COUNT";
 	public static final String SERVER_THRESD_NUMER = "SERVER_THRESD_NUMER";
 	public static final String USE_BLOCKWISE_11 = "USE_BLOCKWISE_11";
+	public static final String BLOCKWISE_STATELESS_BLOCK2 = "BLOCKWISE_STATELESS_BLOCK2";
+	public static final String BLOCKWISE_REPRESENTATION_CACHE_SIZE = "BLOCKWISE_REPRESENTATION_CACHE_SIZE";
+	public static final String BLOCKWISE_SPILL_THRESHOLD = "BLOCKWISE_SPILL_THRESHOLD";
+	public static final String BLOCKWISE_STATUS_LIFETIME = "BLOCKWISE_STATUS_LIFETIME";
+	public static final String BLOCKWISE_BUFFER_BUDGET = "BLOCKWISE_BUFFER_BUDGET";
+	public static final String BLOCKWISE_PIPELINE_WINDOW = "BLOCKWISE_PIPELINE_WINDOW";
+	public static final String BLOCKWISE_ADAPTIVE_SIZE = "BLOCKWISE_ADAPTIVE_SIZE";
+	public static final String BLOCKWISE_MIN_BLOCK_SIZE = "BLOCKWISE_MIN_BLOCK_SIZE";
+	public static final String BLOCKWISE_MAX_BLOCK_SIZE = "BLOCKWISE_MAX_BLOCK_SIZE";
+	public static final String CLIENT_WINDOW_MAX = "CLIENT_WINDOW_MAX";
+	public static final String CLIENT_CACHE_SIZE = "CLIENT_CACHE_SIZE";
+	public static final String CLIENT_CACHE_BYTES = "CLIENT_CACHE_BYTES";
+	public static final String HEDGING_PERCENTILE = "HEDGING_PERCENTILE";
+	public static final String HEDGING_DEFAULT_DELAY = "HEDGING_DEFAULT_DELAY";
+	public static final String HEDGING_MIN_DELAY = "HEDGING_MIN_DELAY";
+	public static final String HEDGING_MAX_EXTRA_LOAD = "HEDGING_MAX_EXTRA_LOAD";
+	public static final String SERVER_RESPONSE_CACHE_SIZE = "SERVER_RESPONSE_CACHE_SIZE";
+	public static final String SERVER_RESPONSE_CACHE_BYTES = "SERVER_RESPONSE_CACHE_BYTES";
 	
 	public static final String USE_RANDOM_TOKEN_START = "USE_RANDOM_TOKEN_START";
 	public static final String USE_RANDOM_MID_START = "USE_RANDOM_MID_START";
@@ -59,6 +77,17 @@ public class NetworkConfigDefaults {
 	public static final String HTTP_SERVER_SOCKET_BUFFER_SIZE = "HTTP_SERVER_SOCKET_BUFFER_SIZE";
 	public static final String HTTP_CACHE_RESPONSE_MAX_AGE = "HTTP_CACHE_RESPONSE_MAX_AGE";
 	public static final String HTTP_CACHE_SIZE = "HTTP_CACHE_SIZE";
+	public static final String HTTP_CACHE_STALE_GRACE = "HTTP_CACHE_STALE_GRACE";
+	public static final String HTTP_CACHE_OFF_HEAP_BYTES = "HTTP_CACHE_OFF_HEAP_BYTES";
+	public static final String HTTP_STREAMING_THRESHOLD = "HTTP_STREAMING_THRESHOLD";
+	public static final String PROXY_FORWARD_TIMEOUT = "PROXY_FORWARD_TIMEOUT";
+	public static final String PROXY_QUEUE_MAX = "PROXY_QUEUE_MAX";
+	public static final String PROXY_LONG_POLL_TIMEOUT = "PROXY_LONG_POLL_TIMEOUT";
+	public static final String HTTP_CLIENT_MAX_PER_ROUTE = "HTTP_CLIENT_MAX_PER_ROUTE";
+	public static final String HTTP_CLIENT_MAX_TOTAL = "HTTP_CLIENT_MAX_TOTAL";
+	public static final String HTTP_CLIENT_QUEUE_MAX = "HTTP_CLIENT_QUEUE_MAX";
+	public static final String HTTP_CLIENT_KEEP_ALIVE = "HTTP_CLIENT_KEEP_ALIVE";
+	public static final String HTTP_CLIENT_CONNECT_TIMEOUT = "HTTP_CLIENT_CONNECT_TIMEOUT";
 	
 	public static final String COAP_CLIENT_DEFAULT_TIMEOUT = "COAP_CLIENT_DEFAULT_TIMEOUT";
 	
@@ -87,6 +116,24 @@ public class NetworkConfigDefaults {
 		config.setInt(CROP_ROTATION_PERIOD, 2000);
 		config.setInt(DEFAULT_ENDPOINT_THREAD_COUNT, 1);
 		config.setBoolean(USE_BLOCKWISE_11, false);
+		config.setBoolean(BLOCKWISE_STATELESS_BLOCK2, false); // serve Block2 of ETagged GET responses from a shared cache
+		config.setLong(BLOCKWISE_REPRESENTATION_CACHE_SIZE, 8 * 1024 * 1024);
+		config.setInt(BLOCKWISE_SPILL_THRESHOLD, 256 * 1024);
+		config.setLong(BLOCKWISE_STATUS_LIFETIME, 30 * 1000); // in ms
+		config.setLong(BLOCKWISE_BUFFER_BUDGET, 16 * 1024 * 1024);
+		config.setInt(BLOCKWISE_PIPELINE_WINDOW, 1); // sequential
+		config.setBoolean(BLOCKWISE_ADAPTIVE_SIZE, false);
+		config.setInt(BLOCKWISE_MIN_BLOCK_SIZE, 64);
+		config.setInt(BLOCKWISE_MAX_BLOCK_SIZE, 1024); // at most MAX_MESSAGE_SIZE
+		config.setInt(CLIENT_WINDOW_MAX, 32); // the initial window is NSTART
+		config.setInt(CLIENT_CACHE_SIZE, 256);
+		config.setLong(CLIENT_CACHE_BYTES, 1024 * 1024);
+		config.setFloat(HEDGING_PERCENTILE, 0.95f);
+		config.setLong(HEDGING_DEFAULT_DELAY, 1000); // in ms, until latencies are known
+		config.setLong(HEDGING_MIN_DELAY, 10); // in ms
+		config.setFloat(HEDGING_MAX_EXTRA_LOAD, 0.1f); // at most 10% more requests
+		config.setInt(SERVER_RESPONSE_CACHE_SIZE, 256);
+		config.setLong(SERVER_RESPONSE_CACHE_BYTES, 1024 * 1024);
 		
 		config.setInt(UDP_CONNECTOR_RECEIVE_BUFFER, UDPConnector.UNDEFINED);
 		config.setInt(UDP_CONNECTOR_SEND_BUFFER, UDPConnector.UNDEFINED);
@@ -101,6 +148,17 @@ public class NetworkConfigDefaults {
 		config.setInt(HTTP_SERVER_SOCKET_BUFFER_SIZE, 8192);
 		config.setInt(HTTP_CACHE_RESPONSE_MAX_AGE, 86400);
 		config.setInt(HTTP_CACHE_SIZE, 32);
+		config.setInt(HTTP_CACHE_STALE_GRACE, 30); // seconds a stale response is served while revalidating
+		config.setLong(HTTP_CACHE_OFF_HEAP_BYTES, 0); // 0 keeps HTTP_CACHE_SIZE responses on the heap
+		config.setInt(HTTP_STREAMING_THRESHOLD, 0); // bytes above which bodies are streamed blockwise, 0 buffers all
+		config.setInt(PROXY_FORWARD_TIMEOUT, 60000);
+		config.setInt(PROXY_QUEUE_MAX, 64); // waiting requests per destination
+		config.setInt(PROXY_LONG_POLL_TIMEOUT, 30000); // ms a long-poll waits for the next notification
+		config.setInt(HTTP_CLIENT_MAX_PER_ROUTE, 8);
+		config.setInt(HTTP_CLIENT_MAX_TOTAL, 64);
+		config.setInt(HTTP_CLIENT_QUEUE_MAX, 64); // waiting requests per route
+		config.setInt(HTTP_CLIENT_KEEP_ALIVE, 5000);
+		config.setInt(HTTP_CLIENT_CONNECT_TIMEOUT, 10000);
 		
 		config.setLong(COAP_CLIENT_DEFAULT_TIMEOUT, 0); // no timeout
 	}
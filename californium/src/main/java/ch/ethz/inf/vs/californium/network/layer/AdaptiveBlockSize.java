@@ -0,0 +1,195 @@
+package ch.ethz.inf.vs.californium.network.layer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * AdaptiveBlockSize chooses the block size for blockwise transfers per peer
+ * from the loss that the {@link ReliabilityLayer} observes on the link to
+ * that peer. Every peer starts with the default block size. After a round of
+ * messages, the block size is halved if more than a tenth of the
+ * transmissions have been lost and doubled if none has been lost. A timeout
+ * halves the block size immediately. The block size stays between the
+ * configured minimum and maximum.
+ * <p>
+ * Large blocks need fewer round trips on a good link. On a lossy link, e.g.,
+ * a 6LoWPAN path that fragments large datagrams, small blocks lose and
+ * retransmit fewer bytes.
+ */
+public class AdaptiveBlockSize {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(AdaptiveBlockSize.class.getCanonicalName());
+
+	/** The number of messages after which the block size is adjusted. */
+	public static final int ROUND = 16;
+
+	/** The share of lost transmissions above which the block size is halved. */
+	public static final float DECREASE_THRESHOLD = 0.1f;
+
+	/* The SZX of new peers and the bounds */
+	private final int defaultSzx;
+	private final int minSzx;
+	private final int maxSzx;
+
+	/* The state of the links to the peers */
+	private final ConcurrentHashMap<InetSocketAddress, Link> links;
+
+	/**
+	 * Constructs a new instance that takes the default, minimum and maximum
+	 * block sizes from the specified configuration. A block never exceeds the
+	 * maximum message size.
+	 *
+	 * @param config the configuration
+	 */
+	public AdaptiveBlockSize(NetworkConfig config) {
+		this(config.getInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE),
+				config.getInt(NetworkConfigDefaults.BLOCKWISE_MIN_BLOCK_SIZE),
+				Math.min(config.getInt(NetworkConfigDefaults.BLOCKWISE_MAX_BLOCK_SIZE),
+						config.getInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE)));
+	}
+
+	/**
+	 * Constructs a new instance with the specified default, minimum and
+	 * maximum block sizes.
+	 *
+	 * @param defaultSize the block size for new peers
+	 * @param minSize the minimum block size
+	 * @param maxSize the maximum block size
+	 */
+	public AdaptiveBlockSize(int defaultSize, int minSize, int maxSize) {
+		this.minSzx = BlockOption.size2Szx(minSize);
+		this.maxSzx = Math.max(minSzx, BlockOption.size2Szx(maxSize));
+		this.defaultSzx = Math.min(maxSzx, Math.max(minSzx, BlockOption.size2Szx(defaultSize)));
+		this.links = new ConcurrentHashMap<InetSocketAddress, Link>();
+	}
+
+	/**
+	 * Returns the SZX of the blocks for the specified peer.
+	 *
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @return the SZX
+	 */
+	public int getSzx(InetAddress address, int port) {
+		Link link = links.get(new InetSocketAddress(address, port));
+		return link != null ? link.szx : defaultSzx;
+	}
+
+	/**
+	 * Returns the SZX of the blocks for peers without measurements.
+	 *
+	 * @return the default SZX
+	 */
+	public int getDefaultSzx() {
+		return defaultSzx;
+	}
+
+	/**
+	 * Records that a confirmable message to the specified peer has been
+	 * acknowledged after the specified number of retransmissions.
+	 *
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @param retransmissions the number of retransmissions
+	 */
+	public void acknowledged(InetAddress address, int port, int retransmissions) {
+		getLink(address, port).record(retransmissions, false);
+	}
+
+	/**
+	 * Records that a request from the specified peer has arrived. A duplicate
+	 * means that the peer has retransmitted the request because the request
+	 * or our response has been lost.
+	 *
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 * @param duplicate whether the request is a duplicate
+	 */
+	public void received(InetAddress address, int port, boolean duplicate) {
+		Link link = getLink(address, port);
+		if (duplicate) link.retransmitted();
+		else link.record(0, false);
+	}
+
+	/**
+	 * Records that a confirmable message to the specified peer has never been
+	 * acknowledged.
+	 *
+	 * @param address the address of the peer
+	 * @param port the port of the peer
+	 */
+	public void timedOut(InetAddress address, int port) {
+		getLink(address, port).record(0, true);
+	}
+
+	/**
+	 * Forgets the measurements of all peers.
+	 */
+	public void clear() {
+		links.clear();
+	}
+
+	private Link getLink(InetAddress address, int port) {
+		InetSocketAddress peer = new InetSocketAddress(address, port);
+		Link link = links.get(peer);
+		if (link == null) {
+			links.putIfAbsent(peer, new Link(peer));
+			link = links.get(peer);
+		}
+		return link;
+	}
+
+	/**
+	 * The measurements of the current round and the SZX for a peer.
+	 */
+	private final class Link {
+
+		private final InetSocketAddress peer;
+		private volatile int szx = defaultSzx;
+		private int messages;
+		private int retransmissions;
+
+		private Link(InetSocketAddress peer) {
+			this.peer = peer;
+		}
+
+		private synchronized void retransmitted() {
+			retransmissions++;
+		}
+
+		private synchronized void record(int retransmitted, boolean timedOut) {
+			if (timedOut) {
+				adjust(szx - 1, "timeout");
+				return;
+			}
+			messages++;
+			retransmissions += retransmitted;
+			if (messages < ROUND) return;
+
+			float loss = (float) retransmissions / (messages + retransmissions);
+			if (loss > DECREASE_THRESHOLD)
+				adjust(szx - 1, "loss of "+loss);
+			else if (retransmissions == 0)
+				adjust(szx + 1, "no loss");
+			messages = 0;
+			retransmissions = 0;
+		}
+
+		private void adjust(int newSzx, String reason) {
+			newSzx = Math.min(maxSzx, Math.max(minSzx, newSzx));
+			if (newSzx != szx) {
+				LOGGER.fine("Change block size for "+peer+" from "+BlockOption.szx2Size(szx)+" to "+BlockOption.szx2Size(newSzx)+" due to "+reason);
+				szx = newSzx;
+			}
+			messages = 0;
+			retransmissions = 0;
+		}
+	}
+}
@@ -1,5 +1,14 @@
 package ch.ethz.inf.vs.californium.network.layer;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.coap.BlockOption;
@@ -13,6 +22,7 @@ import ch.ethz.inf.vs.californium.coap.OptionSet;
 import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.Exchange.Origin;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
 import ch.ethz.inf.vs.californium.network.config.NetworkConfigObserverAdapter;
@@ -23,7 +33,6 @@ public class Blockwise14Layer extends AbstractLayer {
 	protected final static Logger LOGGER = Logger.getLogger(Blockwise14Layer.class.getCanonicalName());
 	
 	// TODO: Size Option. Include only in first block.
-	// TODO: DoS: server should have max allowed blocks/bytes/time to allocate.
 	// TODO: Random access for Cf servers: The draft still needs to specify a reaction to "overshoot"
 	// TODO: Blockwise with separate response or NONs. Not yet mentioned in draft.
 	// TODO: How should our client deal with a server that handles blocks non-atomic?
@@ -65,9 +74,49 @@ public class Blockwise14Layer extends AbstractLayer {
 	private int maxMsgSize;
 	private int defaultBlockSize;
 	
+	/*
+	 * The representations of large GET responses with an ETag. Their blocks
+	 * are served to any client without an ongoing exchange (null if disabled).
+	 */
+	private RepresentationCache representations;
+	
+	/* The size above which a blockwise request is spilled to a file */
+	private int spillThreshold;
+	
+	/* The transfers in progress with their bytes and last activity */
+	private final BlockwiseTracker tracker;
+	
+	/* The periodic removal of expired transfers */
+	private ScheduledFuture<?> sweeper;
+	
+	/* The default number of response blocks a client requests in parallel */
+	private int pipelineWindow;
+	
+	/* The maximum number of outstanding requests to a peer */
+	private int nstart;
+	
+	/* The number of requests in flight per peer, without peers at zero */
+	private final Map<InetSocketAddress, Integer> inFlight =
+			new HashMap<InetSocketAddress, Integer>(); // guarded by itself
+	
+	/* The requests that are counted in flight and their peers */
+	private final ConcurrentHashMap<Request, InetSocketAddress> counted =
+			new ConcurrentHashMap<Request, InetSocketAddress>();
+	
+	/* The block sizes per peer that adapt to the loss (null if disabled) */
+	private volatile AdaptiveBlockSize adaptiveBlockSize;
+	
 	public Blockwise14Layer(NetworkConfig config) {
 		this.maxMsgSize = config.getInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE);
 		this.defaultBlockSize = config.getInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE);
+		this.spillThreshold = config.getInt(NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD);
+		this.tracker = new BlockwiseTracker(
+				config.getLong(NetworkConfigDefaults.BLOCKWISE_STATUS_LIFETIME),
+				config.getLong(NetworkConfigDefaults.BLOCKWISE_BUFFER_BUDGET));
+		this.pipelineWindow = config.getInt(NetworkConfigDefaults.BLOCKWISE_PIPELINE_WINDOW);
+		this.nstart = config.getInt(NetworkConfigDefaults.NSTART);
+		if (config.getBoolean(NetworkConfigDefaults.BLOCKWISE_STATELESS_BLOCK2))
+			this.representations = new RepresentationCache(config.getLong(NetworkConfigDefaults.BLOCKWISE_REPRESENTATION_CACHE_SIZE));
 		LOGGER.config("Blockwise14 layer uses MAX_MESSAGE_SIZE: "+maxMsgSize+" and DEFAULT_BLOCK_SIZE:"+defaultBlockSize);
 		
 		config.addConfigObserver(new NetworkConfigObserverAdapter() {
@@ -77,26 +126,68 @@ public class Blockwise14Layer extends AbstractLayer {
 					maxMsgSize = value;
 				if (NetworkConfigDefaults.DEFAULT_BLOCK_SIZE.equals(key))
 					defaultBlockSize = value;
+				if (NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD.equals(key))
+					spillThreshold = value;
+				if (NetworkConfigDefaults.BLOCKWISE_PIPELINE_WINDOW.equals(key))
+					pipelineWindow = value;
+				if (NetworkConfigDefaults.NSTART.equals(key))
+					nstart = value;
+			}
+			@Override
+			public void changed(String key, long value) {
+				if (NetworkConfigDefaults.BLOCKWISE_STATUS_LIFETIME.equals(key))
+					tracker.setLifetime(value);
+				if (NetworkConfigDefaults.BLOCKWISE_BUFFER_BUDGET.equals(key))
+					tracker.setBudget(value);
 			}
 		});
 	}
 	
+	@Override
+	public synchronized void setExecutor(ScheduledExecutorService executor) {
+		super.setExecutor(executor);
+		if (sweeper != null)
+			sweeper.cancel(false);
+		long interval = Math.max(tracker.getLifetime() / 2, 10);
+		sweeper = executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					expire();
+				} catch (Throwable t) {
+					LOGGER.log(Level.WARNING, "Exception while removing expired blockwise transfers", t);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
 	@Override
 	public void sendRequest(Exchange exchange, Request request) {
-		if (requiresBlockwise(request)) {
+		if (request.isBlockwiseTransparent()) {
+			// The application transfers the blocks itself
+			exchange.setCurrentRequest(request);
+			sendCounted(exchange, request);
+			
+		} else if (requiresBlockwise(request)) {
 			// This must be a large POST or PUT request
 			LOGGER.fine("Request payload "+request.getPayloadSize()+"/"+maxMsgSize+" requires Blockwise");
 			BlockwiseStatus status = findRequestBlockStatus(exchange);
+			if (adaptiveBlockSize != null && status.getCurrentNum() == 0)
+				status.setCurrentSzx(adaptiveBlockSize.getSzx(request.getDestination(), request.getDestinationPort()));
 			
 			Request block = getNextRequestBlock(request, status);
 			
 			exchange.setRequestBlockStatus(status);
 			exchange.setCurrentRequest(block);
-			super.sendRequest(exchange, block);
+			sendCounted(exchange, block);
 			
 		} else {
+			if (request.getOptions().hasBlock2() && request.getOptions().getBlock2().getNum() > 0) {
+				// The client starts the transfer of the response at a later block
+				BlockOption block2 = request.getOptions().getBlock2();
+				exchange.setResponseBlockStatus(new BlockwiseStatus(block2.getNum(), block2.getSzx()));
+			}
 			exchange.setCurrentRequest(request);
-			super.sendRequest(exchange, request);
+			sendCounted(exchange, request);
 		}
 	}
 
@@ -110,13 +201,49 @@ public class Blockwise14Layer extends AbstractLayer {
 			BlockwiseStatus status = findRequestBlockStatus(exchange);
 			if (block1.getNum() == 0 && status.getCurrentNum() > 0) {
 				LOGGER.finer("Block1 num is 0, the client has restarted the blockwise transfer. Reset status.");
+				if (status.getBuffer() != null)
+					status.getBuffer().release();
 				status = new BlockwiseStatus();
 				exchange.setRequestBlockStatus(status);
 			}
 			
-			if (block1.getNum() == status.getCurrentNum()) {
-				status.addBlock(request.getPayload());
-				status.setCurrentNum(status.getCurrentNum() + 1);
+			// The client may switch to smaller blocks in the middle of the
+			// transfer. Therefore, compare the offsets instead of the numbers.
+			int expected = status.getCurrentNum() * (1 << (4 + status.getCurrentSzx()));
+			if (block1.getNum() * block1.getSize() == expected) {
+				int held = status.getBuffer() != null ? status.getBuffer().size() : 0;
+				if (!reserve(exchange, held + request.getPayloadSize())) {
+					LOGGER.warning("Blockwise request of "+(held + request.getPayloadSize())+" bytes exceeds the budget of "+tracker.getBudget()+" bytes. Respond with 4.13 (Request Entity Too Large)");
+					if (status.getBuffer() != null)
+						status.getBuffer().release();
+					exchange.setRequestBlockStatus(null);
+					tracker.refuse(exchange);
+					// no Block1 option so that the client does not continue
+					Response error = Response.createPiggybackedResponse(request, ResponseCode.REQUEST_ENTITY_TOO_LARGE);
+					request.setAcknowledged(true);
+					exchange.setCurrentResponse(error);
+					super.sendResponse(exchange, error);
+					return;
+				}
+				if (status.getBuffer() == null)
+					status.setBuffer(new PayloadBuffer(spillThreshold));
+				try {
+					// stream the block into the buffer instead of keeping it
+					status.getBuffer().append(request.getPayload());
+				} catch (IOException e) {
+					LOGGER.log(Level.WARNING, "Could not buffer block "+block1, e);
+					ResponseCode code = incompleteOrError(e);
+					status.getBuffer().release();
+					exchange.setRequestBlockStatus(null);
+					tracker.remove(exchange);
+					Response error = Response.createPiggybackedResponse(request, code);
+					request.setAcknowledged(true);
+					exchange.setCurrentResponse(error);
+					super.sendResponse(exchange, error);
+					return;
+				}
+				status.setCurrentNum(block1.getNum() + 1);
+				status.setCurrentSzx(block1.getSzx());
 				if ( block1.isM() ) {
 					LOGGER.finest("There are more blocks to come. Acknowledge this block.");
 					
@@ -132,6 +259,7 @@ public class Blockwise14Layer extends AbstractLayer {
 					
 				} else {
 					LOGGER.finer("This was the last block. Deliver request");
+					tracker.remove(exchange);
 					
 					// Remember block to acknowledge. TODO: We might make this a boolean flag in status.
 					exchange.setBlock1ToAck(block1); 
@@ -142,6 +270,17 @@ public class Blockwise14Layer extends AbstractLayer {
 					// Assemble and deliver
 					Request assembled = new Request(request.getCode()); // getAssembledRequest(status, request);
 					assembleMessage(status, assembled, request);
+					try {
+						// the payload has been streamed into the buffer
+						status.getBuffer().writeTo(assembled);
+					} catch (IOException e) {
+						LOGGER.log(Level.WARNING, "Could not assemble blockwise request", e);
+						Response error = Response.createPiggybackedResponse(request, incompleteOrError(e));
+						request.setAcknowledged(true);
+						exchange.setCurrentResponse(error);
+						super.sendResponse(exchange, error);
+						return;
+					}
 //					assembled.setAcknowledged(true); // TODO: prevents accept from sending ACK. smart?
 					exchange.setRequest(assembled);
 					super.receiveRequest(exchange, assembled);
@@ -168,6 +307,7 @@ public class Blockwise14Layer extends AbstractLayer {
 			
 			Response block = getNextResponsesBlock(response, status);
 			block.setToken(request.getToken());
+			tracker.touch(exchange);
 
 			// TODO: Are we allowed to NOT remove the observe option?
 			if (status.getCurrentNum() > 0)
@@ -177,16 +317,30 @@ public class Blockwise14Layer extends AbstractLayer {
 			if (status.isComplete()) {
 				status.setCurrentNum(0);
 				response.setAcknowledged(true); // allows to send the next notification
+				tracker.remove(exchange);
 			}
 			
 			exchange.setCurrentResponse(block);
 			super.sendResponse(exchange, block);
 			
 		} else {
-			earlyBlock2Negotiation(exchange, request);
+			Response cached = getCachedBlock(request);
+			if (cached != null) {
+				// Serve the block from the shared representation without state
+				LOGGER.fine("Serve block "+cached.getOptions().getBlock2()+" from cached representation");
+				cached.setDestination(request.getSource());
+				cached.setDestinationPort(request.getSourcePort());
+				cached.setToken(request.getToken());
+				exchange.setRequest(request);
+				exchange.setCurrentResponse(cached);
+				super.sendResponse(exchange, cached);
+				
+			} else {
+				earlyBlock2Negotiation(exchange, request);
 
-			exchange.setRequest(request);
-			super.receiveRequest(exchange, request);
+				exchange.setRequest(request);
+				super.receiveRequest(exchange, request);
+			}
 		}
 	}
 
@@ -196,11 +350,24 @@ public class Blockwise14Layer extends AbstractLayer {
 		if (block1 != null)
 			exchange.setBlock1ToAck(null);
 		
-		if (requireBlockwise(exchange, response)) {
+		if (response.getOptions().hasBlock2()) {
+			// The resource has already sliced the requested block itself, e.g.,
+			// a FileResource. It needs no blockwise status for the next block.
+			LOGGER.fine("Response already contains block "+response.getOptions().getBlock2()+", send it unchanged");
+			exchange.setResponseBlockStatus(null);
+			if (block1 != null) response.getOptions().setBlock1(block1);
+			exchange.setCurrentResponse(response);
+			super.sendResponse(exchange, response);
+			
+		} else if (requireBlockwise(exchange, response)) {
 			// This must be a large response to a GET or POST request (PUT?)
 			LOGGER.fine("Response payload "+response.getPayloadSize()+"/"+maxMsgSize+" requires Blockwise");
 			
+			// The client has not asked for a block size (early negotiation)
+			boolean negotiated = exchange.getResponseBlockStatus() != null;
 			BlockwiseStatus status = findResponseBlockStatus(exchange);
+			if (adaptiveBlockSize != null && !negotiated)
+				status.setCurrentSzx(adaptiveBlockSize.getSzx(response.getDestination(), response.getDestinationPort()));
 			
 			Response block = getNextResponsesBlock(response, status);
 			block.setType(response.getType()); // This is only true for the first block
@@ -209,9 +376,25 @@ public class Blockwise14Layer extends AbstractLayer {
 			if (block.getToken() == null)
 				block.setToken(exchange.getRequest().getToken());
 			
-			// This is necessary for notifications that are sent blockwise:
-			if (status.isComplete()) {
+			if (isStateless(exchange, response)) {
+				// Further blocks are served from the representation cache and
+				// the Matcher does not need to remember this exchange
+				representations.put(exchange.getRequest(), response);
+				exchange.setResponseBlockStatus(null);
+				block.setLast(true);
+				
+			} else if (status.isComplete()) {
+				// This is necessary for notifications that are sent blockwise:
 				response.setAcknowledged(true); // allows to send the next notification
+				tracker.remove(exchange);
+				
+			} else if (!reserve(exchange, response.getPayloadSize())) {
+				// Do not keep the response. The client's requests for further
+				// blocks reach the resource, which produces the response again.
+				LOGGER.warning("Blockwise response of "+response.getPayloadSize()+" bytes exceeds the budget of "+tracker.getBudget()+" bytes. Keep no state");
+				tracker.refuse(exchange);
+				exchange.setResponseBlockStatus(null);
+				block.setLast(true);
 			}
 			
 			exchange.setCurrentResponse(block);
@@ -226,6 +409,23 @@ public class Blockwise14Layer extends AbstractLayer {
 	
 	@Override
 	public void receiveResponse(Exchange exchange, Response response) {
+		if (exchange.getCurrentRequest() != null)
+			uncount(exchange.getCurrentRequest());
+		
+		if (exchange.getRequest().isBlockwiseTransparent()) {
+			// Every block is a response of its own to the application
+			exchange.setResponse(response);
+			super.receiveResponse(exchange, response);
+			return;
+		}
+		
+		BlockwiseStatus pipelineStatus = exchange.getResponseBlockStatus();
+		if (pipelineStatus != null && pipelineStatus.getPipeline() != null) {
+			// This is the response to one of several block requests in flight
+			receivePipelinedBlock(exchange, response, pipelineStatus.getPipeline());
+			return;
+		}
+		
 		if (!response.getOptions().hasBlock1() && !response.getOptions().hasBlock2()) {
 			// There is no block1 or block2 option, therefore it is a normal response
 			exchange.setResponse(response);
@@ -244,14 +444,17 @@ public class Blockwise14Layer extends AbstractLayer {
 				// Send next block
 				int currentSize = 1 << (4 + status.getCurrentSzx());
 				int nextNum = status.getCurrentNum() + currentSize / block1.getSize();
+				int szx = block1.getSzx();
+				int adapted = adaptSzx(response, szx);
+				nextNum = nextNum << (szx - adapted);
 				LOGGER.finer("Send next block num = "+nextNum);
 				status.setCurrentNum(nextNum);
-				status.setCurrentSzx(block1.getSzx());
+				status.setCurrentSzx(adapted);
 				Request nextBlock = getNextRequestBlock(exchange.getRequest(), status);
 				if (nextBlock.getToken() == null)
 					nextBlock.setToken(response.getToken()); // reuse same token
 				exchange.setCurrentRequest(nextBlock);
-				super.sendRequest(exchange, nextBlock);
+				sendCounted(exchange, nextBlock);
 				// do not deliver response
 				
 			} else if (!response.getOptions().hasBlock2()) {
@@ -269,6 +472,23 @@ public class Blockwise14Layer extends AbstractLayer {
 			
 			if (block2.getNum() == status.getCurrentNum()) {
 				// We got the block we expected :-)
+				if (block2.getNum() == 0 && block2.isM() && startPipeline(exchange, response)) {
+					LOGGER.fine("Request the remaining blocks of "+response.getOptions().getSize2()+" bytes in parallel");
+					return;
+				}
+				if (status.getBlockCount() == 0) {
+					// remember the representation of the first block
+					if (response.getOptions().getETagCount() > 0)
+						status.setETag(response.getOptions().getETags().get(0));
+				} else if (status.getETag() != null && !response.getOptions().containsETag(status.getETag())) {
+					// The representation has changed in the middle of the
+					// transfer. Its blocks must not be mixed with the others.
+					LOGGER.warning("Block "+block2+" has another ETag than the first block. Reject response; exchange has failed.");
+					EmptyMessage rst = EmptyMessage.newRST(response);
+					super.sendEmptyMessage(exchange, rst);
+					exchange.getRequest().cancel();
+					return;
+				}
 				status.addBlock(response.getPayload());
 				if (response.getOptions().hasObserve())
 					status.setObserve(response.getOptions().getObserve());
@@ -279,8 +499,8 @@ public class Blockwise14Layer extends AbstractLayer {
 					// another token now?
 
 					Request request = exchange.getRequest();
-					int num = block2.getNum() + 1;
-					int szx = block2.getSzx();
+					int szx = adaptSzx(response, block2.getSzx());
+					int num = (block2.getNum() + 1) << (block2.getSzx() - szx);
 					boolean m = false;
 					Request block = new Request(request.getCode());
 					block.setOptions(new OptionSet(request.getOptions()));
@@ -295,7 +515,7 @@ public class Blockwise14Layer extends AbstractLayer {
 					block.getOptions().removeObserve();
 					
 					exchange.setCurrentRequest(block);
-					super.sendRequest(exchange, block);
+					sendCounted(exchange, block);
 					
 				} else {
 					LOGGER.finer("We have received all "+status.getBlockCount()+" blocks of the response. Assemble and deliver");
@@ -339,8 +559,309 @@ public class Blockwise14Layer extends AbstractLayer {
 		super.receiveEmptyMessage(exchange, message);
 	}
 	
+	/**
+	 * Returns the tracker of the blockwise transfers in progress, e.g., to
+	 * read the number of in-flight bytes.
+	 * 
+	 * @return the tracker
+	 */
+	public BlockwiseTracker getTracker() {
+		return tracker;
+	}
+	
+	/**
+	 * Discards the state of all blockwise transfers that have been idle for
+	 * longer than the lifetime. A client that continues a discarded Block1
+	 * transfer receives a 4.08 (Request Entity Incomplete). A client that
+	 * continues a discarded Block2 transfer has its request delivered to the
+	 * resource again. This method is called periodically.
+	 */
+	public void expire() {
+		for (Exchange exchange:tracker.removeExpired()) {
+			LOGGER.info("Blockwise transfer of "+exchange.getCurrentRequest().getURI()+" has expired, discard its state");
+			BlockwiseStatus status = exchange.getRequestBlockStatus();
+			if (status != null && status.getBuffer() != null)
+				status.getBuffer().release();
+			exchange.setRequestBlockStatus(null);
+			exchange.setResponseBlockStatus(null);
+			exchange.setComplete(true); // the matcher forgets the exchange
+		}
+	}
+	
 	/////////// HELPER METHODS //////////
 	
+	/*
+	 * Starts to request the remaining blocks of a response in parallel if the
+	 * client wants to and the first block shows that the server supports it,
+	 * i.e., it tells the size of the representation and has an ETag to detect
+	 * blocks of a different representation. Returns false if the response
+	 * must be downloaded sequentially. A NON request is always downloaded
+	 * sequentially, since a lost NON block would never time out.
+	 */
+	private boolean startPipeline(Exchange exchange, Response first) {
+		Request request = exchange.getRequest();
+		int window = request.getBlockwiseWindow() > 0 ? request.getBlockwiseWindow() : pipelineWindow;
+		if (window < 2 || request.getCode() != Code.GET || !request.isConfirmable()
+				|| request.getOptions().hasObserve() || first.getOptions().hasObserve())
+			return false;
+		OptionSet options = first.getOptions();
+		if (!options.hasSize2() || options.getETagCount() != 1
+				|| first.getPayloadSize() != options.getBlock2().getSize())
+			return false;
+		int size = options.getSize2();
+		if (size <= first.getPayloadSize() || size > tracker.getBudget())
+			return false;
+		
+		requestBlocks(new BlockwisePipeline(exchange, first, size, window));
+		return true;
+	}
+	
+	/*
+	 * Sends block requests of the pipeline until its window is full or NSTART
+	 * requests to the server are in flight, including the requests of other
+	 * exchanges. A pipeline with no request in flight may always send one so
+	 * that it makes progress.
+	 */
+	private void requestBlocks(BlockwisePipeline pipeline) {
+		InetSocketAddress peer = pipeline.getPeer();
+		while (true) {
+			if (pipeline.getExchange().getRequest().isCanceled()) {
+				pipeline.finish();
+				return;
+			}
+			int num;
+			synchronized (inFlight) {
+				Integer count = inFlight.get(peer);
+				num = pipeline.nextBlock(count == null || count < nstart);
+				if (num >= 0)
+					inFlight.put(peer, count == null ? 1 : count + 1);
+			}
+			if (num < 0) return;
+			sendPipelinedBlock(pipeline, num);
+		}
+	}
+	
+	private void release(BlockwisePipeline pipeline, Request block) {
+		pipeline.arrived();
+		uncount(block);
+	}
+	
+	/*
+	 * Sends the specified request and counts it in flight to its peer until
+	 * its response arrives or it times out, is rejected or canceled. Only
+	 * confirmable requests are counted, since a NON request that is never
+	 * answered would never end.
+	 */
+	private void sendCounted(Exchange exchange, final Request request) {
+		if (request.isConfirmable() && request.getDestination() != null) {
+			InetSocketAddress peer = new InetSocketAddress(request.getDestination(), request.getDestinationPort());
+			if (counted.putIfAbsent(request, peer) == null) {
+				synchronized (inFlight) {
+					Integer count = inFlight.get(peer);
+					inFlight.put(peer, count == null ? 1 : count + 1);
+				}
+				request.addMessageObserver(new MessageObserverAdapter() {
+					@Override public void onTimeout() { uncount(request); }
+					@Override public void onReject() { uncount(request); }
+					@Override public void onCancel() { uncount(request); }
+				});
+			}
+		}
+		super.sendRequest(exchange, request);
+	}
+	
+	/*
+	 * Stops to count the specified request in flight. The peer is forgotten
+	 * when its last request has ended.
+	 */
+	private void uncount(Request request) {
+		InetSocketAddress peer = counted.remove(request);
+		if (peer == null) return;
+		synchronized (inFlight) {
+			Integer count = inFlight.get(peer);
+			if (count == null || count <= 1)
+				inFlight.remove(peer);
+			else
+				inFlight.put(peer, count - 1);
+		}
+	}
+	
+	/**
+	 * Returns the number of requests in flight to the specified peer.
+	 * 
+	 * @param peer the peer
+	 * @return the number of requests
+	 */
+	public int getRequestsInFlight(InetSocketAddress peer) {
+		synchronized (inFlight) {
+			Integer count = inFlight.get(peer);
+			return count != null ? count : 0;
+		}
+	}
+	
+	/**
+	 * Returns the number of peers with requests in flight.
+	 * 
+	 * @return the number of peers
+	 */
+	public int getPeersInFlight() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+	
+	/*
+	 * Sends the request for the specified block with its own exchange and
+	 * token, so that the matcher can match the responses of several blocks in
+	 * flight.
+	 */
+	private void sendPipelinedBlock(final BlockwisePipeline pipeline, int num) {
+		Request request = pipeline.getExchange().getRequest();
+		final Request block = new Request(request.getCode());
+		block.setOptions(new OptionSet(request.getOptions()));
+		block.getOptions().setBlock2(pipeline.getSzx(), false, num);
+		block.setDestination(request.getDestination());
+		block.setDestinationPort(request.getDestinationPort());
+		block.setType(request.getType());
+		
+		final Exchange blockExchange = new Exchange(block, Origin.LOCAL);
+		blockExchange.setRequest(block);
+		blockExchange.setEndpoint(pipeline.getExchange().getEndpoint());
+		BlockwiseStatus status = new BlockwiseStatus(num, pipeline.getSzx());
+		status.setPipeline(pipeline);
+		blockExchange.setResponseBlockStatus(status);
+		block.addMessageObserver(new MessageObserverAdapter() {
+			@Override
+			public void onTimeout() {
+				if (fail()) {
+					LOGGER.info("Pipelined block request timed out, exchange has failed");
+					pipeline.getExchange().getRequest().setTimedOut(true);
+				}
+			}
+			
+			@Override
+			public void onReject() {
+				if (fail()) {
+					LOGGER.info("Pipelined block request has been rejected, exchange has failed");
+					pipeline.getExchange().getRequest().setRejected(true);
+				}
+			}
+			
+			@Override
+			public void onCancel() {
+				if (fail()) {
+					LOGGER.info("Pipelined block request has been canceled, cancel the request");
+					pipeline.getExchange().getRequest().cancel();
+				}
+			}
+			
+			/*
+			 * Frees the slot of the block and ends the transfer. Returns
+			 * true if the transfer had not ended yet.
+			 */
+			private boolean fail() {
+				release(pipeline, block);
+				blockExchange.setComplete(true);
+				return pipeline.finish();
+			}
+		});
+		
+		LOGGER.finer("Request block "+num+" of pipelined response");
+		counted.put(block, pipeline.getPeer()); // requestBlocks() has counted it
+		super.sendRequest(blockExchange, block);
+	}
+	
+	/*
+	 * Copies the block into place and delivers the whole response when all
+	 * blocks have arrived. Otherwise, requests further blocks.
+	 */
+	private void receivePipelinedBlock(Exchange blockExchange, Response response, BlockwisePipeline pipeline) {
+		blockExchange.setComplete(true); // the matcher forgets the token of the block
+		release(pipeline, blockExchange.getRequest());
+		if (pipeline.isDone()) return;
+		
+		Exchange exchange = pipeline.getExchange();
+		BlockOption block2 = response.getOptions().getBlock2();
+		int num = blockExchange.getResponseBlockStatus().getCurrentNum();
+		if (block2 == null) {
+			// The server has answered with an error instead of the block
+			if (pipeline.finish()) {
+				LOGGER.fine("Pipelined block request has been answered without a block: "+response);
+				exchange.setResponse(response);
+				super.receiveResponse(exchange, response);
+			}
+			
+		} else if (block2.getNum() != num || !pipeline.matches(response)
+				|| !pipeline.store(num, response.getPayload())) {
+			LOGGER.warning("Pipelined block "+block2+" does not belong to the representation of the first block. Cancel the request");
+			if (pipeline.finish())
+				exchange.getRequest().cancel();
+			
+		} else if (pipeline.isComplete()) {
+			if (pipeline.finish()) {
+				Response assembled = pipeline.assemble();
+				LOGGER.fine("Assembled pipelined response: "+assembled);
+				exchange.setResponse(assembled);
+				super.receiveResponse(exchange, assembled);
+			}
+			
+		} else {
+			requestBlocks(pipeline);
+		}
+	}
+	
+	/**
+	 * Sets the block sizes per peer that adapt to the loss on the link. If
+	 * set, the layer starts a transfer with the block size for the peer and
+	 * switches to a smaller block size in the middle of a transfer that the
+	 * client controls.
+	 * 
+	 * @param adaptiveBlockSize the adaptive block sizes or null
+	 */
+	public void setAdaptiveBlockSize(AdaptiveBlockSize adaptiveBlockSize) {
+		this.adaptiveBlockSize = adaptiveBlockSize;
+	}
+	
+	/**
+	 * Returns the block sizes per peer or null if the block size is fixed.
+	 * 
+	 * @return the adaptive block sizes or null
+	 */
+	public AdaptiveBlockSize getAdaptiveBlockSize() {
+		return adaptiveBlockSize;
+	}
+	
+	/*
+	 * Returns the SZX for the next block from the sender of the specified
+	 * response. The block size only shrinks in the middle of a transfer, since
+	 * a larger block would not start at a block boundary of the current size.
+	 */
+	private int adaptSzx(Response response, int szx) {
+		if (adaptiveBlockSize == null) return szx;
+		return Math.min(szx, adaptiveBlockSize.getSzx(response.getSource(), response.getSourcePort()));
+	}
+	
+	/*
+	 * Returns 4.08 (Request Entity Incomplete) if the buffer has been released
+	 * because its transfer has expired meanwhile and 5.00 (Internal Server
+	 * Error) otherwise.
+	 */
+	private static ResponseCode incompleteOrError(IOException e) {
+		return e instanceof PayloadBuffer.ReleasedException
+				? ResponseCode.REQUEST_ENTITY_INCOMPLETE : ResponseCode.INTERNAL_SERVER_ERROR;
+	}
+	
+	/*
+	 * Records the bytes of the transfer of the specified exchange in the
+	 * tracker. If they exceed the budget, removes the expired transfers first.
+	 */
+	private boolean reserve(Exchange exchange, long size) {
+		if (tracker.update(exchange, size))
+			return true;
+		expire();
+		return tracker.update(exchange, size);
+	}
+	
 	private void earlyBlock2Negotiation(Exchange exchange, Request request) {
 		// Call this method when a request has completely arrived (might have
 		// been sent in one piece without blockwise).
@@ -427,6 +948,8 @@ public class Blockwise14Layer extends AbstractLayer {
 			
 			boolean m = (to < response.getPayloadSize());
 			block.getOptions().setBlock2(szx, m, num);
+			if (num == 0 && m) // tell the client the size of the whole representation
+				block.getOptions().setSize2(response.getPayloadSize());
 			block.setLast(!m);
 			
 			status.setComplete(!m);
@@ -461,6 +984,36 @@ public class Blockwise14Layer extends AbstractLayer {
 		message.setPayload(payload);
 	}
 	
+	/*
+	 * Checks whether the response can be served blockwise without state, i.e.,
+	 * it is a fresh 2.05 (Content) response with an ETag to a GET request.
+	 * Notifications keep using the ongoing exchange.
+	 */
+	private boolean isStateless(Exchange exchange, Response response) {
+		return representations != null
+				&& exchange.getRequest().getCode() == Code.GET
+				&& response.getCode() == ResponseCode.CONTENT
+				&& response.getOptions().getETagCount() > 0
+				&& !response.getOptions().hasObserve()
+				&& response.getOptions().getMaxAge() > 0;
+	}
+	
+	/*
+	 * Returns the requested block if the request asks for a later block of a
+	 * cached representation. If the request carries ETags, one of them must
+	 * match the representation. Otherwise, returns null.
+	 */
+	private Response getCachedBlock(Request request) {
+		if (representations == null || request.getCode() != Code.GET) return null;
+		OptionSet options = request.getOptions();
+		if (!options.hasBlock2() || options.getBlock2().getNum() == 0 || options.hasObserve()) return null;
+		RepresentationCache.Representation representation = representations.get(request);
+		if (representation == null) return null;
+		if (options.getETagCount() > 0 && !options.containsETag(representation.getETag())) return null;
+		BlockOption block2 = options.getBlock2();
+		return representation.createBlock(block2.getSzx(), block2.getNum());
+	}
+	
 	private boolean requiresBlockwise(Request request) {
 		if (request.getCode() == Code.PUT || request.getCode() == Code.POST) {
 			return request.getPayloadSize() > maxMsgSize;
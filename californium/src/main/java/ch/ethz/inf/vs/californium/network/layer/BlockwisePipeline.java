@@ -0,0 +1,189 @@
+package ch.ethz.inf.vs.californium.network.layer;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
+
+/**
+ * A BlockwisePipeline is the state of a response that the client downloads
+ * with several block requests in flight. The first block tells the size of the
+ * representation, so that the blocks can be copied into place in a buffer of
+ * that size in whatever order they arrive. All blocks must carry the ETag of
+ * the first block.
+ * <p>
+ * This class is package private. The {@link Blockwise14Layer} sends each block
+ * request with its own exchange and token and refers to the pipeline from the
+ * {@link BlockwiseStatus} of these exchanges.
+ */
+final class BlockwisePipeline {
+
+	/* The exchange of the original request */
+	private final Exchange exchange;
+
+	/* The first block of the response */
+	private final Response first;
+
+	/* The server */
+	private final InetSocketAddress peer;
+
+	/* The block size exponent, block size and number of blocks */
+	private final int szx;
+	private final int blockSize;
+	private final int count;
+
+	/* The maximum number of block requests in flight */
+	private final int window;
+
+	/* The payload of the whole representation */
+	private final byte[] payload;
+
+	/* The blocks that have arrived */
+	private final BitSet received = new BitSet();
+	private int receivedCount;
+
+	/* The number of the next block to request */
+	private int next;
+
+	/* The number of block requests in flight */
+	private int inFlight;
+
+	/* Whether the download has been completed or has failed */
+	private boolean done;
+
+	/**
+	 * Constructs a new pipeline for the response whose first block has been
+	 * received.
+	 *
+	 * @param exchange the exchange of the original request
+	 * @param first the first block
+	 * @param size the size of the representation (Size2)
+	 * @param window the maximum number of block requests in flight
+	 */
+	BlockwisePipeline(Exchange exchange, Response first, int size, int window) {
+		this.exchange = exchange;
+		this.first = first;
+		this.peer = new InetSocketAddress(first.getSource(), first.getSourcePort());
+		this.szx = first.getOptions().getBlock2().getSzx();
+		this.blockSize = first.getOptions().getBlock2().getSize();
+		this.count = (size + blockSize - 1) / blockSize;
+		this.window = window;
+		this.payload = new byte[size];
+		this.next = 1;
+		store(0, first.getPayload());
+	}
+
+	Exchange getExchange() {
+		return exchange;
+	}
+
+	InetSocketAddress getPeer() {
+		return peer;
+	}
+
+	int getSzx() {
+		return szx;
+	}
+
+	/**
+	 * Returns the number of the next block to request or -1 if all blocks have
+	 * been requested, the window is full or the download is over. If a
+	 * number is returned, the block counts as in flight.
+	 *
+	 * @param slotFree whether the client may send another request to the peer
+	 * @return the block number or -1
+	 */
+	synchronized int nextBlock(boolean slotFree) {
+		if (done || next >= count || inFlight >= window) return -1;
+		// Without a free slot, only request a block if none is in flight so
+		// that the download always makes progress
+		if (!slotFree && inFlight > 0) return -1;
+		inFlight++;
+		return next++;
+	}
+
+	/**
+	 * Copies the specified block into place. Returns false if the block does
+	 * not fit into the representation, e.g., because it has changed.
+	 *
+	 * @param num the block number
+	 * @param block the payload of the block
+	 * @return true, if the block has been stored
+	 */
+	synchronized boolean store(int num, byte[] block) {
+		int from = num * blockSize;
+		int expected = Math.min(blockSize, payload.length - from);
+		if (num >= count || block.length != expected)
+			return false;
+		if (!received.get(num)) {
+			System.arraycopy(block, 0, payload, from, block.length);
+			received.set(num);
+			receivedCount++;
+		}
+		return true;
+	}
+
+	/**
+	 * Marks a block request as no longer in flight.
+	 */
+	synchronized void arrived() {
+		inFlight--;
+	}
+
+	/**
+	 * Checks if the specified block carries the ETag of the first block.
+	 *
+	 * @param block the block
+	 * @return true, if the ETag matches
+	 */
+	boolean matches(Response block) {
+		OptionSet options = block.getOptions();
+		return block.getCode() == first.getCode()
+				&& options.getETagCount() == 1
+				&& Arrays.equals(options.getETags().get(0), first.getOptions().getETags().get(0))
+				&& options.getBlock2().getSzx() == szx;
+	}
+
+	synchronized boolean isComplete() {
+		return receivedCount == count;
+	}
+
+	/**
+	 * Marks the download as over. Returns true only for the first call so that
+	 * only one thread delivers the response or reports the failure.
+	 *
+	 * @return true, if the download has not been over before
+	 */
+	synchronized boolean finish() {
+		if (done) return false;
+		done = true;
+		return true;
+	}
+
+	synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Creates the response with the payload of the whole representation and
+	 * the options of the first block.
+	 *
+	 * @return the assembled response
+	 */
+	Response assemble() {
+		Response assembled = new Response(first.getCode());
+		assembled.setOptions(new OptionSet(first.getOptions()));
+		assembled.getOptions().setBlock2(szx, false, count - 1);
+		assembled.getOptions().removeSize2();
+		assembled.setMID(first.getMID());
+		assembled.setSource(first.getSource());
+		assembled.setSourcePort(first.getSourcePort());
+		assembled.setToken(first.getToken());
+		assembled.setType(first.getType());
+		assembled.setPayload(payload);
+		return assembled;
+	}
+}
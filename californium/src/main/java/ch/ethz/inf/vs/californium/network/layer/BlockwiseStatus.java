@@ -48,6 +48,15 @@ public class BlockwiseStatus {
 	// Container for the payload of all blocks
 	/** The blocks. */
 	private ArrayList<byte[]> blocks = new ArrayList<byte[]>();
+	
+	/** The buffer for the payload of a blockwise request (null if unused). */
+	private PayloadBuffer buffer;
+	
+	/** The pipelined download this block belongs to (null if sequential). */
+	private BlockwisePipeline pipeline;
+	
+	/** The ETag of the first block of the response (null if none). */
+	private byte[] eTag;
 
 	/**
 	 * Instantiates a new blockwise status.
@@ -146,6 +155,60 @@ public class BlockwiseStatus {
 		return blocks;
 	}
 	
+	/**
+	 * Gets the buffer that streams the payload of a blockwise request.
+	 *
+	 * @return the buffer or null if the blocks are collected in the list
+	 */
+	public PayloadBuffer getBuffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Sets the buffer that streams the payload of a blockwise request.
+	 *
+	 * @param buffer the buffer
+	 */
+	public void setBuffer(PayloadBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	/**
+	 * Gets the pipelined download that a block request belongs to.
+	 *
+	 * @return the pipeline or null if the response is downloaded sequentially
+	 */
+	BlockwisePipeline getPipeline() {
+		return pipeline;
+	}
+	
+	/**
+	 * Sets the pipelined download that a block request belongs to.
+	 *
+	 * @param pipeline the pipeline
+	 */
+	void setPipeline(BlockwisePipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+	
+	/**
+	 * Gets the ETag of the first block of the response.
+	 *
+	 * @return the ETag or null if the first block has none
+	 */
+	public byte[] getETag() {
+		return eTag;
+	}
+	
+	/**
+	 * Sets the ETag of the first block of the response.
+	 *
+	 * @param eTag the ETag or null
+	 */
+	public void setETag(byte[] eTag) {
+		this.eTag = eTag;
+	}
+	
 	public int getObserve() {
 		return observe;
 	}
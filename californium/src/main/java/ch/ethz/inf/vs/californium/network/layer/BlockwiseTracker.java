@@ -0,0 +1,243 @@
+package ch.ethz.inf.vs.californium.network.layer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.inf.vs.californium.network.Exchange;
+
+/**
+ * The BlockwiseTracker keeps track of the blockwise transfers that a server is
+ * in the middle of, i.e., the Block1 requests whose payload it is assembling
+ * and the large responses whose blocks it still serves from an exchange. For
+ * each transfer it knows the number of bytes held and the time of the last
+ * block.
+ * <p>
+ * A transfer expires when no block has arrived for longer than the lifetime.
+ * The sum of the bytes of all transfers is bounded by a budget. A transfer
+ * that would exceed the budget is refused even after the expired transfers
+ * have been removed. The {@link Blockwise14Layer} answers a refused Block1
+ * request with 4.13 (Request Entity Too Large) and discards the state of
+ * expired transfers so that a client that continues later receives a 4.08
+ * (Request Entity Incomplete).
+ */
+public class BlockwiseTracker {
+
+	/* The maximum time between two blocks of a transfer in ns */
+	private volatile long lifetime;
+
+	/* The maximum sum of the bytes of all transfers */
+	private volatile long budget;
+
+	/* The transfers in the order of their last activity */
+	private final LinkedHashMap<Exchange, Transfer> transfers;
+
+	/* The sum of the bytes of all transfers */
+	private long bytes;
+
+	/* The metrics */
+	private long peakBytes;
+	private long expired;
+	private long refused;
+
+	/**
+	 * Constructs a new tracker with the specified lifetime and budget.
+	 *
+	 * @param lifetime the maximum time between two blocks in ms
+	 * @param budget the maximum sum of the bytes of all transfers
+	 */
+	public BlockwiseTracker(long lifetime, long budget) {
+		this.lifetime = TimeUnit.MILLISECONDS.toNanos(lifetime);
+		this.budget = budget;
+		this.transfers = new LinkedHashMap<Exchange, Transfer>(16, 0.75f, true);
+	}
+
+	/**
+	 * Records that the transfer of the specified exchange now holds the
+	 * specified number of bytes. Returns false and leaves the transfer
+	 * unchanged if the bytes do not fit into the budget. Expired transfers are
+	 * not removed by this method; use {@link #removeExpired()} before retrying
+	 * and {@link #refuse(Exchange)} if the transfer still does not fit.
+	 *
+	 * @param exchange the exchange
+	 * @param size the number of bytes held for the transfer
+	 * @return true, if the transfer fits into the budget
+	 */
+	public synchronized boolean update(Exchange exchange, long size) {
+		Transfer transfer = transfers.get(exchange);
+		long previous = transfer != null ? transfer.bytes : 0;
+		if (bytes - previous + size > budget)
+			return false;
+		if (transfer == null) {
+			transfer = new Transfer();
+			transfers.put(exchange, transfer);
+		}
+		bytes += size - previous;
+		transfer.bytes = size;
+		transfer.lastActivity = System.nanoTime();
+		if (bytes > peakBytes)
+			peakBytes = bytes;
+		return true;
+	}
+
+	/**
+	 * Records that a block of the transfer of the specified exchange has been
+	 * sent or received without changing the number of bytes held.
+	 *
+	 * @param exchange the exchange
+	 */
+	public synchronized void touch(Exchange exchange) {
+		Transfer transfer = transfers.get(exchange);
+		if (transfer != null)
+			transfer.lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Forgets the transfer of the specified exchange, e.g., because it has
+	 * completed.
+	 *
+	 * @param exchange the exchange
+	 * @return true, if the transfer was tracked
+	 */
+	public synchronized boolean remove(Exchange exchange) {
+		Transfer transfer = transfers.remove(exchange);
+		if (transfer == null) return false;
+		bytes -= transfer.bytes;
+		return true;
+	}
+
+	/**
+	 * Forgets the transfer of the specified exchange because it does not fit
+	 * into the budget.
+	 *
+	 * @param exchange the exchange
+	 */
+	public synchronized void refuse(Exchange exchange) {
+		remove(exchange);
+		refused++;
+	}
+
+	/**
+	 * Forgets all transfers that have been idle for longer than the lifetime
+	 * and returns their exchanges.
+	 *
+	 * @return the exchanges of the expired transfers
+	 */
+	public synchronized List<Exchange> removeExpired() {
+		List<Exchange> removed = new ArrayList<Exchange>();
+		long now = System.nanoTime();
+		Iterator<Map.Entry<Exchange, Transfer>> it = transfers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Exchange, Transfer> entry = it.next();
+			// the least recently active transfers come first
+			if (now - entry.getValue().lastActivity < lifetime) break;
+			bytes -= entry.getValue().bytes;
+			removed.add(entry.getKey());
+			it.remove();
+		}
+		expired += removed.size();
+		return removed;
+	}
+
+	/**
+	 * Sets the maximum time between two blocks of a transfer.
+	 *
+	 * @param lifetime the lifetime in ms
+	 */
+	public void setLifetime(long lifetime) {
+		this.lifetime = TimeUnit.MILLISECONDS.toNanos(lifetime);
+	}
+
+	/**
+	 * Returns the maximum time between two blocks of a transfer.
+	 *
+	 * @return the lifetime in ms
+	 */
+	public long getLifetime() {
+		return TimeUnit.NANOSECONDS.toMillis(lifetime);
+	}
+
+	/**
+	 * Sets the maximum sum of the bytes of all transfers.
+	 *
+	 * @param budget the budget in bytes
+	 */
+	public void setBudget(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns the maximum sum of the bytes of all transfers.
+	 *
+	 * @return the budget in bytes
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Returns the number of transfers in progress.
+	 *
+	 * @return the number of transfers
+	 */
+	public synchronized int getTransferCount() {
+		return transfers.size();
+	}
+
+	/**
+	 * Returns the sum of the bytes held for all transfers in progress.
+	 *
+	 * @return the in-flight bytes
+	 */
+	public synchronized long getInFlightBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the largest sum of in-flight bytes so far.
+	 *
+	 * @return the peak in bytes
+	 */
+	public synchronized long getPeakBytes() {
+		return peakBytes;
+	}
+
+	/**
+	 * Returns the number of transfers that have expired so far.
+	 *
+	 * @return the number of expired transfers
+	 */
+	public synchronized long getExpiredCount() {
+		return expired;
+	}
+
+	/**
+	 * Returns the number of transfers that have been refused so far because
+	 * they exceeded the budget.
+	 *
+	 * @return the number of refused transfers
+	 */
+	public synchronized long getRefusedCount() {
+		return refused;
+	}
+
+	/**
+	 * Forgets all transfers.
+	 */
+	public synchronized void clear() {
+		transfers.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * The bytes and the last activity of a transfer.
+	 */
+	private static final class Transfer {
+
+		private long bytes;
+		private long lastActivity; // System.nanoTime()
+	}
+}
@@ -77,6 +77,9 @@ public class CoapStack {
 
 	private MessageDeliverer deliverer;
 	
+	/** The block sizes per peer (null if the block size is fixed). */
+	private AdaptiveBlockSize adaptiveBlockSize;
+	
 	public CoapStack(NetworkConfig config, ExchangeForwarder forwarder) {
 		this.top = new StackTopAdapter();
 		this.forwarder = forwarder;
@@ -92,6 +95,17 @@ public class CoapStack {
 				.add(bottom = new StackBottomAdapter())
 				.create();
 		this.deliverer = new EndpointManager.ClientMessageDeliverer();
+		
+		if (config.getBoolean(NetworkConfigDefaults.BLOCKWISE_ADAPTIVE_SIZE)) {
+			// the reliability layer measures, the blockwise layer adapts
+			this.adaptiveBlockSize = new AdaptiveBlockSize(config);
+			for (Layer layer:layers) {
+				if (layer instanceof Blockwise14Layer)
+					((Blockwise14Layer) layer).setAdaptiveBlockSize(adaptiveBlockSize);
+				else if (layer instanceof ReliabilityLayer)
+					((ReliabilityLayer) layer).setAdaptiveBlockSize(adaptiveBlockSize);
+			}
+		}
 	}
 	
 	// delegate to top
@@ -133,6 +147,42 @@ public class CoapStack {
 		this.deliverer = deliverer;
 	}
 	
+	/**
+	 * Returns the tracker of the blockwise transfers in progress or null if
+	 * the stack uses the blockwise layer of draft 11.
+	 * 
+	 * @return the tracker or null
+	 */
+	public BlockwiseTracker getBlockwiseTracker() {
+		for (Layer layer:layers)
+			if (layer instanceof Blockwise14Layer)
+				return ((Blockwise14Layer) layer).getTracker();
+		return null;
+	}
+	
+	/**
+	 * Returns the number of peers to which the blockwise layer has requests
+	 * in flight or 0 if the stack uses the blockwise layer of draft 11.
+	 * 
+	 * @return the number of peers
+	 */
+	public int getPeersInFlight() {
+		for (Layer layer:layers)
+			if (layer instanceof Blockwise14Layer)
+				return ((Blockwise14Layer) layer).getPeersInFlight();
+		return 0;
+	}
+	
+	/**
+	 * Returns the block sizes per peer or null if the stack uses a fixed
+	 * block size.
+	 * 
+	 * @return the adaptive block sizes or null
+	 */
+	public AdaptiveBlockSize getAdaptiveBlockSize() {
+		return adaptiveBlockSize;
+	}
+	
 	private class StackTopAdapter extends AbstractLayer {
 		
 		public void sendRequest(Request request) {
@@ -165,7 +215,8 @@ public class CoapStack {
 
 		@Override
 		public void receiveResponse(Exchange exchange, Response response) {
-			if (!response.getOptions().hasObserve())
+			// a multicast request collects responses until it is canceled
+			if (!response.getOptions().hasObserve() && !exchange.getRequest().isMulticast())
 				exchange.setComplete(true);
 			if (deliverer != null) {
 				LOGGER.fine("Top of CoAP stack delivers response");
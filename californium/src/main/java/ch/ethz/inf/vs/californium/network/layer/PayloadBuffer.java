@@ -0,0 +1,222 @@
+package ch.ethz.inf.vs.californium.network.layer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.Message;
+
+/**
+ * A PayloadBuffer collects the payload of a blockwise transfer while the
+ * blocks arrive. Small payloads are appended to fixed-size chunks that are
+ * taken from a pool shared by all transfers, so the buffer grows without
+ * copying. When the payload exceeds the spill threshold, the buffer moves its
+ * content to a temporary file and appends all further blocks there. When the
+ * transfer is complete, a spilled payload is handed to the message as a
+ * memory-mapped, read-only {@link ByteBuffer} and never copied to the heap.
+ * <p>
+ * A buffer must be released if the transfer is abandoned, so that the chunks
+ * return to the pool and the temporary file is deleted. The methods are
+ * synchronized, since an expired transfer is released by another thread than
+ * the one that appends its blocks. A released buffer refuses to be written.
+ */
+public class PayloadBuffer {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(PayloadBuffer.class.getCanonicalName());
+
+	/** The size of the pooled chunks (the largest block size). */
+	public static final int CHUNK_SIZE = 1024;
+
+	/** The maximum number of chunks kept in the pool. */
+	private static final int MAX_POOLED_CHUNKS = 1024;
+
+	/* The pool of chunks shared by all buffers */
+	private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger POOLED = new AtomicInteger();
+
+	/* The size in bytes above which the payload is moved to a file */
+	private final int spillThreshold;
+
+	/* The chunks of the payload on the heap */
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+	/* The temporary file (null while the payload is on the heap) */
+	private File file;
+	private RandomAccessFile raf;
+
+	/* The number of bytes in this buffer */
+	private int size;
+
+	/* Whether the chunks and the file have been released */
+	private boolean released;
+
+	/**
+	 * Constructs a new buffer that moves its content to a temporary file when
+	 * it exceeds the specified threshold.
+	 *
+	 * @param spillThreshold the threshold in bytes
+	 */
+	public PayloadBuffer(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Appends the specified block to the payload.
+	 *
+	 * @param block the payload of the block
+	 * @throws IOException if the temporary file cannot be written or the
+	 *             buffer has been released
+	 */
+	public synchronized void append(byte[] block) throws IOException {
+		checkReleased();
+		if (block == null || block.length == 0) return;
+		if (raf == null && size + block.length > spillThreshold)
+			spill();
+
+		if (raf != null) {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer src = ByteBuffer.wrap(block);
+			while (src.hasRemaining())
+				channel.write(src, size + src.position());
+		} else {
+			int offset = 0;
+			while (offset < block.length) {
+				int inChunk = size % CHUNK_SIZE;
+				if (inChunk == 0)
+					chunks.add(acquire());
+				int length = Math.min(CHUNK_SIZE - inChunk, block.length - offset);
+				System.arraycopy(block, offset, chunks.get(chunks.size() - 1), inChunk, length);
+				offset += length;
+				size += length;
+			}
+			return;
+		}
+		size += block.length;
+	}
+
+	/**
+	 * Returns the number of bytes in this buffer.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if this buffer has moved its content to a temporary file.
+	 *
+	 * @return true, if spilled
+	 */
+	public synchronized boolean isSpilled() {
+		return raf != null;
+	}
+
+	/**
+	 * Sets the collected payload as payload of the specified message and
+	 * releases this buffer. A spilled payload is mapped into memory.
+	 *
+	 * @param message the message
+	 * @throws IOException if the temporary file cannot be mapped or the
+	 *             buffer has been released
+	 */
+	public synchronized void writeTo(Message message) throws IOException {
+		checkReleased();
+		try {
+			if (raf != null) {
+				ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+				message.setPayload(mapped);
+			} else {
+				byte[] payload = new byte[size];
+				int offset = 0;
+				for (byte[] chunk:chunks) {
+					int length = Math.min(CHUNK_SIZE, size - offset);
+					System.arraycopy(chunk, 0, payload, offset, length);
+					offset += length;
+				}
+				message.setPayload(payload);
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Releases the chunks and the temporary file of this buffer. A mapping
+	 * created by {@link #writeTo(Message)} remains valid.
+	 */
+	public synchronized void release() {
+		released = true;
+		for (byte[] chunk:chunks)
+			recycle(chunk);
+		chunks.clear();
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				LOGGER.warning("Could not close temporary file "+file);
+			}
+			raf = null;
+			if (!file.delete())
+				file.deleteOnExit(); // e.g., if the platform cannot delete mapped files
+		}
+	}
+
+	private void checkReleased() throws ReleasedException {
+		if (released)
+			throw new ReleasedException();
+	}
+
+	/*
+	 * Moves the content of the chunks to a new temporary file.
+	 */
+	private void spill() throws IOException {
+		LOGGER.fine("Blockwise payload exceeds "+spillThreshold+" bytes, spill to temporary file");
+		file = File.createTempFile("cf-blockwise-", ".tmp");
+		raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		int offset = 0;
+		for (byte[] chunk:chunks) {
+			ByteBuffer src = ByteBuffer.wrap(chunk, 0, Math.min(CHUNK_SIZE, size - offset));
+			while (src.hasRemaining())
+				offset += channel.write(src, offset);
+			recycle(chunk);
+		}
+		chunks.clear();
+	}
+
+	private static byte[] acquire() {
+		byte[] chunk = POOL.poll();
+		if (chunk == null)
+			return new byte[CHUNK_SIZE];
+		POOLED.decrementAndGet();
+		return chunk;
+	}
+
+	private static void recycle(byte[] chunk) {
+		if (POOLED.incrementAndGet() <= MAX_POOLED_CHUNKS)
+			POOL.offer(chunk);
+		else POOLED.decrementAndGet();
+	}
+
+	/**
+	 * Thrown when a released buffer is written, e.g., because its transfer
+	 * has expired meanwhile.
+	 */
+	static final class ReleasedException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private ReleasedException() {
+			super("The payload buffer has been released");
+		}
+	}
+}
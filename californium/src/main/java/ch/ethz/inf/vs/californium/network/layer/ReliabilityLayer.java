@@ -3,8 +3,10 @@ package ch.ethz.inf.vs.californium.network.layer;
 import java.util.Random;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
 import ch.ethz.inf.vs.californium.coap.EmptyMessage;
 import ch.ethz.inf.vs.californium.coap.Message;
@@ -29,6 +31,9 @@ public class ReliabilityLayer extends AbstractLayer {
 	/** The configuration */ 
 	private NetworkConfig config;
 	
+	/** The block sizes per peer that adapt to the measured loss (optional) */
+	private AdaptiveBlockSize adaptiveBlockSize;
+	
 	/**
 	 * Constructs a new reliability layer.
 	 * @param config the configuration
@@ -37,6 +42,16 @@ public class ReliabilityLayer extends AbstractLayer {
 		this.config = config;
 	}
 	
+	/**
+	 * Sets the block sizes that this layer reports acknowledgments,
+	 * retransmissions and timeouts to.
+	 * 
+	 * @param adaptiveBlockSize the adaptive block sizes or null
+	 */
+	public void setAdaptiveBlockSize(AdaptiveBlockSize adaptiveBlockSize) {
+		this.adaptiveBlockSize = adaptiveBlockSize;
+	}
+	
 	/**
 	 * Schedules a retransmission for confirmable messages. 
 	 */
@@ -45,7 +60,11 @@ public class ReliabilityLayer extends AbstractLayer {
 
 		LOGGER.finer("Send request, failed transmissions: "+exchange.getFailedTransmissionCount());
 		
-		if (request.getType() == null)
+		if (request.isMulticast()) {
+			if (request.getType() == Type.CON)
+				LOGGER.warning("Multicast request must not be confirmable, send it as NON");
+			request.setType(Type.NON);
+		} else if (request.getType() == null)
 			request.setType(Type.CON);
 		
 		if (request.getType() == Type.CON) {
@@ -68,6 +87,11 @@ public class ReliabilityLayer extends AbstractLayer {
 	public void sendResponse(final Exchange exchange, final Response response) {
 
 		LOGGER.finer("Send response, failed transmissions: "+exchange.getFailedTransmissionCount());
+		
+		if (exchange.getCurrentRequest().isMulticast() && response.getType() == null) {
+			sendMulticastResponse(exchange, response);
+			return;
+		}
 
 		// If a response type is set, we do not mess around with it.
 		// Only if none is set, we have to decide for one here.
@@ -107,6 +131,36 @@ public class ReliabilityLayer extends AbstractLayer {
 	}
 	
 	
+	/**
+	 * Sends the response to a multicast request as NON after a random delay
+	 * within the leisure period so that the responses of the group members
+	 * do not arrive at the client all at once. Error responses are suppressed
+	 * since the client is not interested in members that cannot serve the
+	 * request (RFC 7252, section 8.2).
+	 * 
+	 * @param exchange the exchange
+	 * @param response the response
+	 */
+	private void sendMulticastResponse(final Exchange exchange, final Response response) {
+		if (ResponseCode.isClientError(response.getCode()) || ResponseCode.isServerError(response.getCode())) {
+			LOGGER.fine("Suppress error response "+response.getCode()+" to multicast request");
+			return;
+		}
+		response.setType(Type.NON);
+		int leisure = config.getInt(NetworkConfigDefaults.DEFAULT_LEISURE);
+		int delay = leisure > 0 ? rand.nextInt(leisure) : 0;
+		LOGGER.finer("Respond to multicast request after "+delay+" ms");
+		executor.schedule(new Runnable() {
+			public void run() {
+				try {
+					ReliabilityLayer.super.sendResponse(exchange, response);
+				} catch (Throwable t) {
+					LOGGER.log(Level.SEVERE, "Exception while sending response to multicast request", t);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+	
 	/**
 	 * Computes the back-off timer and schedules the specified retransmission
 	 * task.
@@ -147,6 +201,9 @@ public class ReliabilityLayer extends AbstractLayer {
 	@Override
 	public void receiveRequest(Exchange exchange, Request request) {
 		
+		if (adaptiveBlockSize != null && request.getType() == Type.CON)
+			adaptiveBlockSize.received(request.getSource(), request.getSourcePort(), request.isDuplicate());
+		
 		if (request.isDuplicate()) {
 			// Request is a duplicate, so resend ACK, RST or response
 			if (exchange.getCurrentResponse() != null) {
@@ -185,11 +242,22 @@ public class ReliabilityLayer extends AbstractLayer {
 	 */
 	@Override
 	public void receiveResponse(Exchange exchange, Response response) {
+		if (adaptiveBlockSize != null && !response.isDuplicate()
+				&& exchange.getCurrentRequest().getType() == Type.CON)
+			adaptiveBlockSize.acknowledged(response.getSource(), response.getSourcePort(), exchange.getFailedTransmissionCount());
 		exchange.setFailedTransmissionCount(0);
 		
 		exchange.getCurrentRequest().setAcknowledged(true);
 		cancelRetransmission(exchange);
 		
+		if (response.getType() == Type.CON && exchange.getRequest().isCanceled()) {
+			// e.g., the loser of a hedged request; stop the server from retransmitting
+			LOGGER.fine("Request has been canceled, reject the response");
+			EmptyMessage rst = EmptyMessage.newRST(response);
+			sendEmptyMessage(exchange, rst);
+			return;
+		}
+		
 		if (response.getType() == Type.CON) {
 			LOGGER.finer("Response is confirmable, send ACK");
 			EmptyMessage ack = EmptyMessage.newACK(response);
@@ -209,6 +277,8 @@ public class ReliabilityLayer extends AbstractLayer {
 	 */
 	@Override
 	public void receiveEmptyMessage(Exchange exchange, EmptyMessage message) {
+		if (adaptiveBlockSize != null && message.getType() == Type.ACK)
+			adaptiveBlockSize.acknowledged(message.getSource(), message.getSourcePort(), exchange.getFailedTransmissionCount());
 		exchange.setFailedTransmissionCount(0);
 		// TODO: If this is an observe relation, the current response might not
 		// be the one that is being acknowledged. The current response might
@@ -310,6 +380,8 @@ public class ReliabilityLayer extends AbstractLayer {
 
 				} else {
 					LOGGER.info("Timeout: retransmission limit reached, exchange failed, message: "+message);
+					if (adaptiveBlockSize != null)
+						adaptiveBlockSize.timedOut(message.getDestination(), message.getDestinationPort());
 					exchange.setTimedOut();
 					message.setTimedOut(true);
 				}
@@ -0,0 +1,200 @@
+package ch.ethz.inf.vs.californium.network.layer;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.RepresentationKey;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+
+/**
+ * The RepresentationCache holds the payloads of large responses that the
+ * {@link Blockwise14Layer} serves blockwise without keeping an ongoing
+ * exchange per client. A representation is identified by the URI path, the
+ * URI queries and the Accept option of the request and carries the ETag of the
+ * response. Any client can fetch any block of it until its Max-Age expires.
+ * If several clients download the same representation, the payload is only
+ * held once.
+ * <p>
+ * The cache is bounded by the sum of the payload sizes and evicts the least
+ * recently used representations. A client whose representation has been
+ * evicted continues with a new request to the resource and can detect a
+ * changed representation by its ETag.
+ */
+public class RepresentationCache {
+
+	/* The maximum sum of the payload sizes in bytes */
+	private final long maxBytes;
+
+	/* The representations in LRU order */
+	private final LinkedHashMap<RepresentationKey, Representation> representations;
+
+	/* The sum of the payload sizes */
+	private long bytes;
+
+	/**
+	 * Constructs a new representation cache with the specified bound.
+	 *
+	 * @param maxBytes the maximum sum of the payload sizes in bytes
+	 */
+	public RepresentationCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.representations = new LinkedHashMap<RepresentationKey, Representation>(16, 0.75f, true);
+	}
+
+	/**
+	 * Stores the payload and options of the specified response to the
+	 * specified request. If the cache already holds a representation with the
+	 * same ETag, the existing payload is kept.
+	 *
+	 * @param request the request
+	 * @param response the complete response
+	 */
+	public void put(Request request, Response response) {
+		byte[] eTag = response.getOptions().getETags().get(0);
+		long now = System.nanoTime();
+		RepresentationKey key = new RepresentationKey(request);
+		synchronized (this) {
+			Representation old = representations.get(key);
+			if (old != null && Arrays.equals(old.eTag, eTag) && old.isFresh(now))
+				return;
+			Representation representation = new Representation(response, eTag, now);
+			if (representation.payload.length > maxBytes)
+				return;
+			remove(key);
+			representations.put(key, representation);
+			bytes += representation.payload.length;
+			evict();
+		}
+	}
+
+	/**
+	 * Returns the fresh representation for the specified request or null.
+	 *
+	 * @param request the request
+	 * @return the representation or null
+	 */
+	public Representation get(Request request) {
+		RepresentationKey key = new RepresentationKey(request);
+		synchronized (this) {
+			Representation representation = representations.get(key);
+			if (representation == null) return null;
+			if (!representation.isFresh(System.nanoTime())) {
+				remove(key);
+				return null;
+			}
+			return representation;
+		}
+	}
+
+	/**
+	 * Returns the number of representations in the cache.
+	 *
+	 * @return the size
+	 */
+	public synchronized int getSize() {
+		return representations.size();
+	}
+
+	/**
+	 * Returns the sum of the payload sizes in the cache.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getByteSize() {
+		return bytes;
+	}
+
+	/**
+	 * Removes all representations.
+	 */
+	public synchronized void clear() {
+		representations.clear();
+		bytes = 0;
+	}
+
+	private void remove(RepresentationKey key) {
+		Representation old = representations.remove(key);
+		if (old != null)
+			bytes -= old.payload.length;
+	}
+
+	private void evict() {
+		Iterator<Representation> it = representations.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().payload.length;
+			it.remove();
+		}
+	}
+
+	/**
+	 * A representation, i.e., the payload and options of a complete response.
+	 */
+	public static final class Representation {
+
+		private final ResponseCode code;
+		private final OptionSet options;
+		private final byte[] payload;
+		private final byte[] eTag;
+		private final long expires; // System.nanoTime()
+
+		private Representation(Response response, byte[] eTag, long now) {
+			this.code = response.getCode();
+			this.options = new OptionSet(response.getOptions());
+			this.options.removeObserve();
+			this.payload = response.getPayload();
+			this.eTag = eTag;
+			this.expires = now + TimeUnit.SECONDS.toNanos(response.getOptions().getMaxAge());
+		}
+
+		private boolean isFresh(long now) {
+			return expires - now > 0;
+		}
+
+		/**
+		 * Returns the ETag of this representation.
+		 *
+		 * @return the ETag
+		 */
+		public byte[] getETag() {
+			return eTag;
+		}
+
+		/**
+		 * Returns the size of the payload of this representation.
+		 *
+		 * @return the size in bytes
+		 */
+		public int getSize() {
+			return payload.length;
+		}
+
+		/**
+		 * Creates a response with the specified block of this representation.
+		 * Returns null if the block lies beyond the end of the payload.
+		 *
+		 * @param szx the block size exponent
+		 * @param num the block number
+		 * @return the response or null
+		 */
+		public Response createBlock(int szx, int num) {
+			int size = 1 << (4 + szx);
+			long from = (long) num * size;
+			if (from >= payload.length) return null;
+			int to = (int) Math.min(from + size, payload.length);
+			byte[] block = new byte[to - (int) from];
+			System.arraycopy(payload, (int) from, block, 0, block.length);
+
+			Response response = new Response(code);
+			response.setOptions(new OptionSet(options));
+			response.setPayload(block);
+			response.getOptions().setBlock2(szx, to < payload.length, num);
+			return response;
+		}
+	}
+}
@@ -163,6 +163,7 @@ public class DataParser {
 			case CoAP.OptionRegistry.BLOCK1:         optionSet.setBlock1(option.getValue()); break;
 			case CoAP.OptionRegistry.BLOCK2:         optionSet.setBlock2(option.getValue()); break;
 			case CoAP.OptionRegistry.OBSERVE:        optionSet.setObserve(option.getIntegerValue()); break;
+			case CoAP.OptionRegistry.SIZE:           optionSet.setSize2(option.getIntegerValue()); break;
 			default: optionSet.addOption(option);
 		}
 	}
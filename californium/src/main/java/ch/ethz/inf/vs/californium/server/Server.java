@@ -20,6 +20,7 @@ import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
 import ch.ethz.inf.vs.californium.server.resources.DiscoveryResource;
 import ch.ethz.inf.vs.californium.server.resources.Resource;
 import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+import ch.ethz.inf.vs.californium.server.resources.ResponseCache;
 
 /**
  * An execution environment for CoAP {@link Resource}s.
@@ -87,6 +88,9 @@ public class Server implements ServerInterface {
 	
 	private NetworkConfig config;
 	
+	/** The response cache shared by the resources that enable it. */
+	private ResponseCache responseCache;
+	
 	/**
 	 * Constructs a default server. The server starts after the method
 	 * {@link #start()} is called. If a server starts and has no specific ports
@@ -125,6 +129,7 @@ public class Server implements ServerInterface {
 		this.executor = Executors.newScheduledThreadPool(
 				config.getInt(NetworkConfigDefaults.SERVER_THRESD_NUMER));
 		this.deliverer = new ServerMessageDeliverer(root);
+		this.responseCache = new ResponseCache(this.config);
 		
 		ResourceBase well_known = new ResourceBase(".well-known");
 		well_known.setVisible(false);
@@ -323,6 +328,31 @@ public class Server implements ServerInterface {
 		return root.remove(resource);
 	}
 
+	/**
+	 * Enables the server's response cache for the specified resources. The
+	 * responses of these resources to GET requests are kept until their
+	 * Max-Age expires or the resource changes.
+	 *
+	 * @param resources the resources
+	 * @return the server
+	 * @see ResponseCache
+	 */
+	public Server enableResponseCache(ResourceBase... resources) {
+		for (ResourceBase resource:resources)
+			resource.setResponseCache(responseCache);
+		return this;
+	}
+	
+	/**
+	 * Gets the response cache that is shared by the resources of this server
+	 * that enable it. It also provides the hit and miss counters.
+	 *
+	 * @return the response cache
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
 	/**
 	 * Gets the root of this server.
 	 *
@@ -30,7 +30,9 @@
  ******************************************************************************/
 package ch.ethz.inf.vs.californium.server.resources;
 
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
@@ -58,6 +60,13 @@ public class CoapExchange {
 	private long maxAge = 60;
 	private byte[] eTag = null;
 	
+	/* The ETag derived from the version of a versioned resource. */
+	private byte[] versionTag = null;
+	
+	/* The response cache that waits for the response (only on a cache miss). */
+	private ResponseCache cache = null;
+	private ResponseCache.Flight flight = null;
+	
 	/**
 	 * Constructs a new CoAP Exchange object representing the specified exchange
 	 * and Resource.
@@ -118,6 +127,26 @@ public class CoapExchange {
 		return exchange.getRequest().getPayload();
 	}
 	
+	/**
+	 * Gets a read-only view of the request payload. Large blockwise requests
+	 * might be held in a memory-mapped file and are not copied to the heap.
+	 *
+	 * @return the request payload as buffer
+	 */
+	public ByteBuffer getRequestPayloadBuffer() {
+		return exchange.getRequest().getPayloadBuffer();
+	}
+	
+	/**
+	 * Gets the request payload as stream. Large blockwise requests might be
+	 * held in a memory-mapped file and are not copied to the heap.
+	 *
+	 * @return the request payload as stream
+	 */
+	public InputStream getRequestPayloadStream() {
+		return exchange.getRequest().getPayloadStream();
+	}
+	
 	/**
 	 * Gets the request payload as string.
 	 *
@@ -144,6 +173,11 @@ public class CoapExchange {
 	 */
 	public void reject() {
 		exchange.sendReject();
+		if (flight != null) {
+			ResponseCache.Flight waiting = flight;
+			flight = null;
+			cache.abort(waiting, resource);
+		}
 	}
 	
 	/**
@@ -174,6 +208,24 @@ public class CoapExchange {
 		eTag = tag;
 	}
 	
+	/**
+	 * Sets the ETag that the framework has derived from the version of the
+	 * resource. It is only added to 2.05 (Content) and 2.03 (Valid) responses
+	 * and only if the handler has not set an ETag itself.
+	 */
+	void setVersionTag(byte[] tag) {
+		versionTag = tag;
+	}
+	
+	/**
+	 * Sets the flight of the response cache that waits for the response to
+	 * this exchange.
+	 */
+	void setFlight(ResponseCache cache, ResponseCache.Flight flight) {
+		this.cache = cache;
+		this.flight = flight;
+	}
+	
 	/**
 	 * Respond the specified response code and no payload.
 	 *
@@ -260,11 +312,24 @@ public class CoapExchange {
 		if (eTag != null) {
 			response.getOptions().clearETags();
 			response.getOptions().addETag(eTag);
+		} else if (versionTag != null && response.getOptions().getETagCount() == 0
+				&& (response.getCode() == ResponseCode.CONTENT || response.getCode() == ResponseCode.VALID)) {
+			response.getOptions().addETag(versionTag);
 		}
 		
 		resource.checkObserveRelation(exchange, response);
 		
-		exchange.sendResponse(response);
+		if (flight != null) {
+			ResponseCache.Flight completed = flight;
+			flight = null;
+			// store the response before the client can send the next request
+			// but answer the waiting requests after the first one
+			cache.store(completed, response);
+			exchange.sendResponse(response);
+			cache.complete(completed);
+		} else {
+			exchange.sendResponse(response);
+		}
 	}
 	
 	/**
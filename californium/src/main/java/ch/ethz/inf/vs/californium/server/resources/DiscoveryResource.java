@@ -1,24 +1,59 @@
 package ch.ethz.inf.vs.californium.server.resources;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
 import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.observe.ObserveRelation;
 
 /**
  * The DiscoveryResource implements CoAP's discovery service. It is typically
  * accessible over CoAP on the well-known URI: <tt>/.well-known/core</tt>. It
  * responds to GET requests with a list of the server's resources, i.e. links.
+ * <p>
+ * The link-format document is not recomputed for each request. The
+ * DiscoveryResource observes the resource tree and the attributes of each
+ * resource and keeps a snapshot of the serialized links until the tree or an
+ * attribute changes. The snapshot also indexes the attributes
+ * {@value LinkFormat#RESOURCE_TYPE}, {@value LinkFormat#INTERFACE_DESCRIPTION},
+ * {@value LinkFormat#CONTENT_TYPE} and {@value LinkFormat#OBSERVABLE} so that
+ * filtered queries on them only touch matching resources. Since the response
+ * payload is the cached byte array, a blockwise transfer of a large document
+ * does not recompute the document for each block.
  */
 public class DiscoveryResource extends ResourceBase {
 
 	/** The Constant CORE. */
 	public static final String CORE = "core";
-	
+
+	/** The attributes that are indexed for filtered queries. */
+	private static final String[] INDEXED_ATTRIBUTES = {
+		LinkFormat.RESOURCE_TYPE, LinkFormat.INTERFACE_DESCRIPTION,
+		LinkFormat.CONTENT_TYPE, LinkFormat.OBSERVABLE };
+
+	/** The number of filtered results that are remembered per snapshot. */
+	private static final int FILTER_CACHE_SIZE = 32;
+
 	/** The root of the server's resource tree */
 	private final Resource root;
-	
+
+	/** The observer that invalidates the snapshot when the tree changes */
+	private final TreeObserver treeObserver;
+
+	/** The current snapshot of the tree or null if it has to be rebuilt */
+	private final AtomicReference<Snapshot> snapshot;
+
+	/** Incremented on every change of the tree or its attributes */
+	private final AtomicInteger version;
+
 	/**
 	 * Instantiates a new discovery resource.
 	 *
@@ -27,7 +62,7 @@ public class DiscoveryResource extends ResourceBase {
 	public DiscoveryResource(Resource root) {
 		this(CORE, root);
 	}
-	
+
 	/**
 	 * Instantiates a new discovery resource with the specified name.
 	 *
@@ -37,24 +72,54 @@ public class DiscoveryResource extends ResourceBase {
 	public DiscoveryResource(String name, Resource root) {
 		super(name);
 		this.root = root;
+		this.treeObserver = new TreeObserver();
+		this.snapshot = new AtomicReference<Snapshot>();
+		this.version = new AtomicInteger();
+		treeObserver.observe(root);
 	}
-	
+
 	/**
 	 * Responds with a list of all resources of the server, i.e. links.
-	 * 
+	 *
 	 * @param exchange the exchange
 	 */
 	@Override
 	public void handleGET(CoapExchange exchange) {
-		String tree = discoverTree(root, exchange.getRequestOptions().getURIQueries());
-		exchange.respond(ResponseCode.CONTENT, tree, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+		byte[] links = discoverLinks(exchange.getRequestOptions().getURIQueries());
+		exchange.respond(ResponseCode.CONTENT, links, MediaTypeRegistry.APPLICATION_LINK_FORMAT);
+	}
+
+	/**
+	 * Returns the serialized links of the resources of the server that match
+	 * the specified queries. The result is taken from the current snapshot of
+	 * the resource tree. The returned array must not be modified.
+	 *
+	 * @param queries the queries
+	 * @return the link-format document as bytes
+	 */
+	public byte[] discoverLinks(List<String> queries) {
+		Snapshot current = getSnapshot();
+		if (queries == null || queries.isEmpty())
+			return current.document;
+		else return current.filter(queries);
 	}
-	
+
+	/**
+	 * Drops the current snapshot. The next request rebuilds it from the
+	 * resource tree. This happens automatically when resources are added,
+	 * removed, renamed or change their attributes through
+	 * {@link ResourceAttributes}.
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+		snapshot.set(null);
+	}
+
 	/**
 	 * Builds up the list of resources of the specified root resource. Queries
 	 * serve as filter and might prevent undesired resources from appearing on
 	 * the list.
-	 * 
+	 *
 	 * @param root the root resource of the server
 	 * @param queries the queries
 	 * @return the list of resources as string
@@ -64,11 +129,259 @@ public class DiscoveryResource extends ResourceBase {
 		for (Resource child:root.getChildren()) {
 			LinkFormat.serializeTree(child, queries, buffer);
 		}
-		
+
 		// remove last comma ',' of the buffer
 		if (buffer.length()>1)
 			buffer.delete(buffer.length()-1, buffer.length());
-		
+
 		return buffer.toString();
 	}
+
+	/**
+	 * Returns the current snapshot or builds a new one. A snapshot is only
+	 * used while the version it has been built from is the current one, so
+	 * that a snapshot remembered concurrently with a change is never served
+	 * after the change. If the tree changes while the snapshot is built, the
+	 * new snapshot is still used for the current request.
+	 *
+	 * @return the snapshot
+	 */
+	private Snapshot getSnapshot() {
+		int before = version.get();
+		Snapshot current = snapshot.get();
+		if (current != null && current.version == before) return current;
+
+		Snapshot fresh = new Snapshot(before);
+		for (Resource child:root.getChildren())
+			fresh.addTree(child);
+		fresh.seal();
+
+		snapshot.compareAndSet(current, fresh);
+		return fresh;
+	}
+
+	/**
+	 * A Snapshot holds the serialized link of each visible resource in
+	 * document order, the whole document and the attribute indexes.
+	 */
+	private static final class Snapshot {
+
+		/** The visible resources in document order */
+		private final List<Resource> resources = new ArrayList<Resource>();
+
+		/** The serialized link of each resource (without trailing comma) */
+		private final List<byte[]> links = new ArrayList<byte[]>();
+
+		/** Attribute name -> attribute value -> positions of the resources */
+		private final Map<String, Map<String, BitSet>> index = new HashMap<String, Map<String, BitSet>>();
+
+		/** Attribute name -> positions of the resources with that attribute */
+		private final Map<String, BitSet> present = new HashMap<String, BitSet>();
+
+		/** The recently computed results for filtered queries */
+		private final Map<List<String>, byte[]> filtered = new LinkedHashMap<List<String>, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<List<String>, byte[]> eldest) {
+				return size() > FILTER_CACHE_SIZE;
+			}
+		};
+
+		/** The whole document */
+		private byte[] document;
+
+		/** The version of the tree the snapshot has been built from */
+		private final int version;
+
+		private Snapshot(int version) {
+			this.version = version;
+			for (String attr:INDEXED_ATTRIBUTES) {
+				index.put(attr, new HashMap<String, BitSet>());
+				present.put(attr, new BitSet());
+			}
+		}
+
+		/*
+		 * Traverses the tree in the same order as
+		 * LinkFormat.serializeTree(Resource, List, StringBuilder).
+		 */
+		private void addTree(Resource resource) {
+			if (resource.isVisible())
+				add(resource);
+			for (Resource child:resource.getChildren())
+				addTree(child);
+		}
+
+		private void add(Resource resource) {
+			int position = resources.size();
+			StringBuilder link = LinkFormat.serializeResource(resource);
+			link.setLength(link.length() - 1); // remove the trailing comma
+			resources.add(resource);
+			links.add(link.toString().getBytes());
+
+			ResourceAttributes attributes = resource.getAttributes();
+			for (String attr:INDEXED_ATTRIBUTES) {
+				List<String> values = attributes.getAttributeValues(attr);
+				if (values.isEmpty()) continue;
+				present.get(attr).set(position);
+				Map<String, BitSet> byValue = index.get(attr);
+				synchronized (values) {
+					for (String value:values) {
+						mark(byValue, value, position);
+						// LinkFormat.matches() also matches each part of
+						// space-separated values such as rt="Type1 Type2"
+						if (value.indexOf(' ') > -1)
+							for (String part:value.split(" "))
+								mark(byValue, part, position);
+					}
+				}
+			}
+		}
+
+		private void mark(Map<String, BitSet> byValue, String value, int position) {
+			BitSet positions = byValue.get(value);
+			if (positions == null) {
+				positions = new BitSet();
+				byValue.put(value, positions);
+			}
+			positions.set(position);
+		}
+
+		private void seal() {
+			BitSet all = new BitSet();
+			all.set(0, links.size());
+			document = join(all);
+		}
+
+		/**
+		 * Returns the links of all resources that match the specified queries
+		 * with the same semantics as {@link LinkFormat#matches(Resource, List)}.
+		 */
+		private byte[] filter(List<String> queries) {
+			synchronized (filtered) {
+				byte[] result = filtered.get(queries);
+				if (result != null) return result;
+			}
+
+			BitSet matching = lookup(queries);
+			if (matching == null) {
+				// at least one query cannot be answered from the index
+				matching = new BitSet();
+				for (int i=0;i<resources.size();i++)
+					if (LinkFormat.matches(resources.get(i), queries))
+						matching.set(i);
+			}
+
+			byte[] result = join(matching);
+			synchronized (filtered) {
+				filtered.put(new ArrayList<String>(queries), result);
+			}
+			return result;
+		}
+
+		/*
+		 * Multiple queries on attributes are combined with OR. We only use
+		 * the index if all queries are on indexed attributes and contain no
+		 * wildcard. Otherwise, returns null.
+		 */
+		private BitSet lookup(List<String> queries) {
+			BitSet matching = new BitSet();
+			for (String query:queries) {
+				int delim = query.indexOf('=');
+				String attr = delim == -1 ? query : query.substring(0, delim);
+				if (!index.containsKey(attr)) return null;
+
+				if (delim == -1) {
+					// flag attribute
+					matching.or(present.get(attr));
+				} else {
+					String expected = query.substring(delim+1);
+					if (expected.indexOf('*') > -1) return null;
+					BitSet positions = index.get(attr).get(expected);
+					if (positions != null)
+						matching.or(positions);
+				}
+			}
+			return matching;
+		}
+
+		private byte[] join(BitSet positions) {
+			int length = 0;
+			for (int i=positions.nextSetBit(0); i>=0; i=positions.nextSetBit(i+1))
+				length += links.get(i).length + 1;
+			if (length == 0)
+				return new byte[0];
+
+			byte[] result = new byte[length - 1];
+			int offset = 0;
+			for (int i=positions.nextSetBit(0); i>=0; i=positions.nextSetBit(i+1)) {
+				if (offset > 0)
+					result[offset++] = ',';
+				byte[] link = links.get(i);
+				System.arraycopy(link, 0, result, offset, link.length);
+				offset += link.length;
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * The TreeObserver registers itself with every resource of the tree and
+	 * their attributes and invalidates the snapshot on any change.
+	 */
+	private final class TreeObserver implements ResourceObserver, ResourceVisibilityObserver, ResourceAttributesObserver {
+
+		private void observe(Resource resource) {
+			forget(resource); // never register twice
+			resource.addObserver(this);
+			resource.getAttributes().addObserver(this);
+			for (Resource child:resource.getChildren())
+				observe(child);
+		}
+
+		private void forget(Resource resource) {
+			resource.removeObserver(this);
+			resource.getAttributes().removeObserver(this);
+			for (Resource child:resource.getChildren())
+				forget(child);
+		}
+
+		@Override
+		public void changedName(String old) {
+			invalidate();
+		}
+
+		@Override
+		public void changedPath(String old) {
+			invalidate();
+		}
+
+		@Override
+		public void changedVisibility(boolean visible) {
+			invalidate();
+		}
+
+		@Override
+		public void addedChild(Resource child) {
+			observe(child);
+			invalidate();
+		}
+
+		@Override
+		public void removedChild(Resource child) {
+			forget(child);
+			invalidate();
+		}
+
+		@Override
+		public void changed(String attr) {
+			invalidate();
+		}
+
+		@Override
+		public void addedObserveRelation(ObserveRelation relation) { }
+
+		@Override
+		public void removedObserveRelation(ObserveRelation relation) { }
+	}
 }
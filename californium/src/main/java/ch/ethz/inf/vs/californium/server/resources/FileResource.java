@@ -0,0 +1,270 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.Exchange;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * A FileResource responds to GET requests with the content of a file, e.g., a
+ * firmware image. The file is memory-mapped once and each response only copies
+ * the requested block out of the mapped buffer. The FileResource answers
+ * Block2 requests itself, i.e., the payload of the whole file is never held
+ * on the heap and the server keeps no state between the blocks of a transfer.
+ * <p>
+ * The ETag of the responses is derived from the length and the modification
+ * time of the file. A GET request with the current ETag is answered with a
+ * 2.03 (Valid). The FileResource checks for modifications of the file at most
+ * once per check interval. If the file has changed, it maps the new content and
+ * calls {@link #changed()}.
+ */
+public class FileResource extends ResourceBase {
+
+	/* The file */
+	private final File file;
+
+	/* The Content-Format of the file */
+	private final int contentFormat;
+
+	/* The largest payload that is sent without blockwise transfer */
+	private final int maxMessageSize;
+
+	/* The SZX of the blocks if the client does not ask for smaller ones */
+	private final int defaultSzx;
+
+	/* The current mapping of the file (null if it does not exist) */
+	private volatile Mapping mapping;
+
+	/* The minimum time between two checks for modifications in ms */
+	private volatile long checkInterval = 1000;
+
+	/* The time of the last check for modifications in ms */
+	private volatile long lastCheck;
+
+	/**
+	 * Constructs a new resource for the specified file with the Content-Format
+	 * <tt>application/octet-stream</tt>.
+	 *
+	 * @param name the name
+	 * @param file the file
+	 */
+	public FileResource(String name, File file) {
+		this(name, file, MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+	}
+
+	/**
+	 * Constructs a new resource for the specified file and Content-Format.
+	 *
+	 * @param name the name
+	 * @param file the file
+	 * @param contentFormat the Content-Format
+	 */
+	public FileResource(String name, File file, int contentFormat) {
+		this(name, file, contentFormat, NetworkConfig.getStandard());
+	}
+
+	/**
+	 * Constructs a new resource for the specified file and Content-Format
+	 * that takes the message and block sizes from the specified configuration.
+	 *
+	 * @param name the name
+	 * @param file the file
+	 * @param contentFormat the Content-Format
+	 * @param config the configuration
+	 */
+	public FileResource(String name, File file, int contentFormat, NetworkConfig config) {
+		super(name);
+		if (file == null) throw new NullPointerException();
+		this.file = file;
+		this.contentFormat = contentFormat;
+		this.maxMessageSize = config.getInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE);
+		this.defaultSzx = BlockOption.size2Szx(config.getInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE));
+		this.mapping = map();
+		this.lastCheck = System.currentTimeMillis();
+		setVersioned(true);
+		getAttributes().addContentType(contentFormat);
+		if (mapping != null)
+			getAttributes().setMaximumSizeEstimate(mapping.length);
+	}
+
+	@Override
+	public void handleRequest(Exchange exchange) {
+		checkForModification();
+		super.handleRequest(exchange);
+	}
+
+	@Override
+	public void handleGET(CoapExchange exchange) {
+		Mapping current = mapping;
+		if (current == null) {
+			exchange.respond(ResponseCode.NOT_FOUND);
+			return;
+		}
+
+		Request request = exchange.advanced().getRequest();
+		BlockOption block2 = request.getOptions().getBlock2();
+		if (block2 == null && current.length <= maxMessageSize) {
+			Response response = new Response(ResponseCode.CONTENT);
+			response.setPayload(current.slice(0, current.length));
+			response.getOptions().setContentFormat(contentFormat);
+			exchange.respond(response);
+			return;
+		}
+
+		// serve the requested block (or the first one) from the mapped buffer
+		int szx = defaultSzx;
+		int num = 0;
+		if (block2 != null) {
+			if (block2.getSzx() < szx) {
+				szx = block2.getSzx();
+				num = block2.getNum();
+			} else {
+				// we use smaller blocks than the client asked for
+				num = block2.getNum() * (block2.getSize() / BlockOption.szx2Size(szx));
+			}
+		}
+		int size = BlockOption.szx2Size(szx);
+		long from = (long) num * size;
+		if (from > current.length || (from == current.length && from > 0)) {
+			exchange.respond(ResponseCode.BAD_OPTION, "Block out of range");
+			return;
+		}
+		int length = (int) Math.min(size, current.length - from);
+		boolean m = from + length < current.length;
+
+		Response response = new Response(ResponseCode.CONTENT);
+		response.setPayload(current.slice((int) from, length));
+		response.getOptions().setContentFormat(contentFormat);
+		response.getOptions().setBlock2(szx, m, num);
+		if (num == 0 && m) // allows the client to request further blocks in parallel
+			response.getOptions().setSize2(current.length);
+		exchange.respond(response);
+	}
+
+	/**
+	 * Derives the ETag from the length and the modification time of the file
+	 * that has been mapped, so that ETags are stable across server restarts.
+	 */
+	@Override
+	protected byte[] createETag(long version, Request request) {
+		Mapping current = mapping;
+		long tag = current != null ? current.lastModified * 31 + current.length : version;
+		byte[] bytes = new byte[8];
+		for (int i=7;i>=0;i--) {
+			bytes[i] = (byte) tag;
+			tag >>>= 8;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the file of this resource.
+	 *
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Sets the minimum time between two checks whether the file has been
+	 * modified. The default is 1000 ms.
+	 *
+	 * @param checkInterval the check interval in ms
+	 */
+	public void setCheckInterval(long checkInterval) {
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Checks whether the file has been modified since it has been mapped and
+	 * maps the new content if so. This happens automatically before requests
+	 * but at most once per check interval.
+	 */
+	public void checkForModification() {
+		long now = System.currentTimeMillis();
+		if (now - lastCheck < checkInterval) return;
+		synchronized (this) {
+			if (now - lastCheck < checkInterval) return;
+			lastCheck = now;
+			Mapping current = mapping;
+			if (current == null
+					? file.exists()
+					: current.lastModified != file.lastModified() || current.length != file.length()) {
+				LOGGER.info("File "+file+" has changed, remapping");
+				mapping = map();
+				if (mapping != null)
+					getAttributes().setMaximumSizeEstimate(mapping.length);
+				changed();
+			}
+		}
+	}
+
+	/*
+	 * Maps the file read-only into memory. Returns null if the file does not
+	 * exist or cannot be read.
+	 */
+	private Mapping map() {
+		if (!file.exists()) {
+			LOGGER.warning("File "+file+" not found");
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			long lastModified = file.lastModified();
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE)
+				throw new IOException("File "+file+" is too large to be mapped");
+			// the mapping remains valid after the channel is closed
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			return new Mapping(buffer, (int) length, lastModified);
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not map file "+file, e);
+			return null;
+		} finally {
+			if (raf != null)
+				try { raf.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * A read-only mapping of the file.
+	 */
+	private static final class Mapping {
+
+		private final ByteBuffer buffer;
+		private final int length;
+		private final long lastModified;
+
+		private Mapping(ByteBuffer buffer, int length, long lastModified) {
+			this.buffer = buffer;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/*
+		 * Copies the specified range out of the mapped buffer. The buffer is
+		 * duplicated since its position is not thread-safe.
+		 */
+		private byte[] slice(int from, int length) {
+			byte[] bytes = new byte[length];
+			ByteBuffer view = buffer.duplicate();
+			view.position(from);
+			view.get(bytes);
+			return bytes;
+		}
+	}
+}
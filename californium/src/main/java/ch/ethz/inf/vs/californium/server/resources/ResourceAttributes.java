@@ -36,6 +36,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import ch.ethz.inf.vs.californium.coap.LinkFormat;
 
@@ -51,11 +52,35 @@ public class ResourceAttributes {
 	/** Contains the resource's attributes specified in the CoRE Link Format. */
 	private final ConcurrentMap<String, AttributeValues> attributes;
 	
+	/** The observers that are notified when an attribute changes. */
+	private final List<ResourceAttributesObserver> observers;
+	
 	/**
 	 * Instantiates a new resource attributes.
 	 */
 	public ResourceAttributes() {
 		attributes = new ConcurrentHashMap<String, AttributeValues>();
+		observers = new CopyOnWriteArrayList<ResourceAttributesObserver>();
+	}
+	
+	/**
+	 * Adds the specified observer. It will be notified whenever an attribute
+	 * is changed through this class. Changes made directly to the lists or
+	 * sets returned by the getters are not observed.
+	 *
+	 * @param observer the observer
+	 */
+	public void addObserver(ResourceAttributesObserver observer) {
+		observers.add(observer);
+	}
+	
+	/**
+	 * Removes the specified observer.
+	 *
+	 * @param observer the observer
+	 */
+	public void removeObserver(ResourceAttributesObserver observer) {
+		observers.remove(observer);
 	}
 	
 	/**
@@ -83,6 +108,7 @@ public class ResourceAttributes {
 	 */
 	public void setTitle(String title) {
 		findAttributeValues(LinkFormat.TITLE).setOnly(title);
+		fireChanged(LinkFormat.TITLE);
 	}
 	
 	/**
@@ -92,6 +118,7 @@ public class ResourceAttributes {
 	 */
 	public void addResourceType(String type) {
 		findAttributeValues(LinkFormat.RESOURCE_TYPE).add(type);
+		fireChanged(LinkFormat.RESOURCE_TYPE);
 	}
 	
 	/**
@@ -99,6 +126,7 @@ public class ResourceAttributes {
 	 */
 	public void clearResourceType() {
 		attributes.remove(LinkFormat.RESOURCE_TYPE);
+		fireChanged(LinkFormat.RESOURCE_TYPE);
 	}
 	
 	/**
@@ -117,6 +145,7 @@ public class ResourceAttributes {
 	 */
 	public void addInterfaceDescription(String description) {
 		findAttributeValues(LinkFormat.INTERFACE_DESCRIPTION).add(description);
+		fireChanged(LinkFormat.INTERFACE_DESCRIPTION);
 	}
 	
 	/**
@@ -135,6 +164,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(String size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(size);
+		fireChanged(LinkFormat.MAX_SIZE_ESTIMATE);
 	}
 	
 	/**
@@ -144,6 +174,7 @@ public class ResourceAttributes {
 	 */
 	public void setMaximumSizeEstimate(int size) {
 		findAttributeValues(LinkFormat.MAX_SIZE_ESTIMATE).setOnly(Integer.toString(size));
+		fireChanged(LinkFormat.MAX_SIZE_ESTIMATE);
 	}
 	
 	/**
@@ -162,6 +193,7 @@ public class ResourceAttributes {
 	 */
 	public void addContentType(int type) {
 		findAttributeValues(LinkFormat.CONTENT_TYPE).add(Integer.toString(type));
+		fireChanged(LinkFormat.CONTENT_TYPE);
 	}
 	
 	/**
@@ -178,6 +210,7 @@ public class ResourceAttributes {
 	 */
 	public void clearContentType() {
 		attributes.remove(LinkFormat.CONTENT_TYPE);
+		fireChanged(LinkFormat.CONTENT_TYPE);
 	}
 	
 	/**
@@ -185,6 +218,7 @@ public class ResourceAttributes {
 	 */
 	public void setObservable() {
 		findAttributeValues(LinkFormat.OBSERVABLE).setOnly("");
+		fireChanged(LinkFormat.OBSERVABLE);
 	}
 	
 	/**
@@ -205,6 +239,7 @@ public class ResourceAttributes {
 	 */
 	public void setAttribute(String attr, String value) {
 		findAttributeValues(attr).setOnly(value);
+		fireChanged(attr);
 	}
 	
 	/**
@@ -225,6 +260,7 @@ public class ResourceAttributes {
 	 */
 	public void addAttribute(String attr, String value) {
 		findAttributeValues(attr).add(value);
+		fireChanged(attr);
 	}
 	
 	/**
@@ -234,6 +270,7 @@ public class ResourceAttributes {
 	 */
 	public void clearAttribute(String attr) {
 		attributes.remove(attr);
+		fireChanged(attr);
 	}
 	
 	/**
@@ -274,6 +311,16 @@ public class ResourceAttributes {
 		else return Collections.emptyList();
 	}
 	
+	/**
+	 * Notifies all observers that the specified attribute has changed.
+	 *
+	 * @param attr the attribute
+	 */
+	private void fireChanged(String attr) {
+		for (ResourceAttributesObserver observer:observers)
+			observer.changed(attr);
+	}
+	
 	/**
 	 * Find the attribute values for the specified attribute.
 	 *
@@ -0,0 +1,19 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+/**
+ * A ResourceAttributesObserver can be added to {@link ResourceAttributes} and
+ * is invoked whenever an attribute is set, added or cleared through the API of
+ * ResourceAttributes. Components that cache the link description of a
+ * resource, e.g., the {@link DiscoveryResource}, use it to learn when their
+ * cache becomes stale.
+ */
+public interface ResourceAttributesObserver {
+
+	/**
+	 * Invoked when the values of the specified attribute have changed.
+	 *
+	 * @param attr the attribute name
+	 */
+	public void changed(String attr);
+
+}
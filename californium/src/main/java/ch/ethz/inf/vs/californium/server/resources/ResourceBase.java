@@ -34,10 +34,12 @@ import java.net.URI;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import ch.ethz.inf.vs.californium.CoapClient;
@@ -45,6 +47,8 @@ import ch.ethz.inf.vs.californium.coap.CoAP;
 import ch.ethz.inf.vs.californium.coap.CoAP.Code;
 import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
 import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.Request;
 import ch.ethz.inf.vs.californium.coap.Response;
 import ch.ethz.inf.vs.californium.network.Endpoint;
 import ch.ethz.inf.vs.californium.network.Exchange;
@@ -124,6 +128,19 @@ import ch.ethz.inf.vs.californium.server.ServerMessageDeliverer;
  * ResourceObserver is invoked whenever the name or path of a resource changes,
  * when a child resource is added or removed or when a CoAP observe relation is
  * added or canceled.
+ * <p>
+ * ResourceBase can take care of validation for GET requests. Mark a resource
+ * as versioned with {@link #setVersioned(boolean)} and call {@link #changed()}
+ * whenever its state changes. Each call of changed() increments the version of
+ * the resource. The resource derives the ETag of its 2.05 (Content) responses
+ * from the version (see {@link #createETag(long, Request)}). If a GET request
+ * already contains the current ETag, the resource responds with a 2.03 (Valid)
+ * without invoking <tt>handleGET()</tt>. A handler that sets an ETag itself
+ * with {@link CoapExchange#setETag(byte[])} overrides the derived ETag.
+ * <p>
+ * Resources that are expensive to compute can keep their responses to GET
+ * requests in a {@link ResponseCache} (see
+ * {@link #setResponseCache(ResponseCache)}).
  * // TODO: make example with createClient().get() 
  */
 public  class ResourceBase implements Resource {
@@ -146,6 +163,15 @@ public  class ResourceBase implements Resource {
 	/* Indicates whether this resource is observable by clients. */
 	private boolean observable;
 	
+	/* Indicates whether ETags are derived from the version. */
+	private boolean versioned;
+	
+	/* The version of the state, incremented by changed(). */
+	private final AtomicLong version;
+	
+	/* The cache for responses to GET requests (null if not cached). */
+	private ResponseCache responseCache;
+	
 	/* The child resources.
 	 * We need a ConcurrentHashMap to have stronger guarantees in a
 	 * multi-threaded environment (e.g. for discovery to work properly).
@@ -192,6 +218,8 @@ public  class ResourceBase implements Resource {
 		this.observers = new CopyOnWriteArrayList<ResourceObserver>();
 		this.observeRelations = new ObserveRelationContainer();
 		this.notificationOrderer = new ObserveNotificationOrderer();
+		// start at a random version so that ETags differ across restarts
+		this.version = new AtomicLong(new Random().nextLong());
 	}
 	
 
@@ -210,13 +238,68 @@ public  class ResourceBase implements Resource {
 	public void handleRequest(final Exchange exchange) {
 		Code code = exchange.getRequest().getCode();
 		switch (code) {
-			case GET:	handleGET(new CoapExchange(exchange, this)); break;
+			case GET:
+				if (versioned || responseCache != null) deliverGET(exchange);
+				else handleGET(new CoapExchange(exchange, this));
+				break;
 			case POST:	handlePOST(new CoapExchange(exchange, this)); break;
 			case PUT:	handlePUT(new CoapExchange(exchange, this)); break;
 			case DELETE: handleDELETE(new CoapExchange(exchange, this)); break;
 		}
 	}
 	
+	/**
+	 * Handles a GET request for a versioned resource or a resource with a
+	 * response cache. The version is read before the handler runs. If the
+	 * resource changes concurrently, the response carries the older ETag and
+	 * the next validation fails, which is safe. Requests with an Observe
+	 * option bypass the response cache.
+	 * 
+	 * @param exchange the exchange with the GET request
+	 */
+	private void deliverGET(Exchange exchange) {
+		Request request = exchange.getRequest();
+		CoapExchange coapExchange = new CoapExchange(exchange, this);
+		if (versioned) {
+			byte[] tag = createETag(version.get(), request);
+			coapExchange.setVersionTag(tag);
+			if (request.getOptions().containsETag(tag)) {
+				coapExchange.respond(ResponseCode.VALID);
+				return;
+			}
+		}
+		ResponseCache cache = responseCache;
+		if (cache != null && !request.getOptions().hasObserve()) {
+			cache.handleGET(coapExchange, this);
+		} else {
+			handleGET(coapExchange);
+		}
+	}
+	
+	/**
+	 * Creates the ETag for the specified version of this resource and the
+	 * representation that the specified request asks for. By default, the ETag
+	 * consists of 8 bytes and combines the version with the Accept option and
+	 * the URI queries of the request, since they might select a different
+	 * representation. Override this method if the representation depends on
+	 * other parts of the request.
+	 * 
+	 * @param version the version of the resource
+	 * @param request the GET request
+	 * @return the ETag
+	 */
+	protected byte[] createETag(long version, Request request) {
+		OptionSet options = request.getOptions();
+		long variant = 31 * options.getURIQueries().hashCode() + options.getAccept();
+		long tag = version ^ (variant << 32);
+		byte[] bytes = new byte[8];
+		for (int i=7;i>=0;i--) {
+			bytes[i] = (byte) tag;
+			tag >>>= 8;
+		}
+		return bytes;
+	}
+	
 	/**
 	 * Handles the GET request in the given CoAPExchange. By default it
 	 * responds with a 4.05 (Method Not Allowed). Override this method to
@@ -632,7 +715,12 @@ public  class ResourceBase implements Resource {
 	 * @param visible true if visible
 	 */
 	public void setVisible(boolean visible) {
+		boolean old = this.visible;
 		this.visible = visible;
+		if (old != visible)
+			for (ResourceObserver obs:observers)
+				if (obs instanceof ResourceVisibilityObserver)
+					((ResourceVisibilityObserver) obs).changedVisibility(visible);
 	}
 	
 	/* (non-Javadoc)
@@ -652,6 +740,56 @@ public  class ResourceBase implements Resource {
 		this.observable = observable;
 	}
 	
+	/**
+	 * Checks if the resource derives the ETags of its responses from its
+	 * version and validates GET requests without invoking the handler.
+	 *
+	 * @return true, if versioned
+	 */
+	public boolean isVersioned() {
+		return versioned;
+	}
+	
+	/**
+	 * Marks this resource as versioned. A versioned resource must call
+	 * {@link #changed()} whenever its state changes.
+	 *
+	 * @param versioned true if versioned
+	 */
+	public void setVersioned(boolean versioned) {
+		this.versioned = versioned;
+	}
+	
+	/**
+	 * Returns the response cache of this resource.
+	 *
+	 * @return the response cache or null if responses are not cached
+	 */
+	public ResponseCache getResponseCache() {
+		return responseCache;
+	}
+	
+	/**
+	 * Sets the cache for the responses of this resource to GET requests. A
+	 * cached response is used until its Max-Age expires or this resource
+	 * calls {@link #changed()}. Several resources can share a cache.
+	 *
+	 * @param cache the response cache or null to disable caching
+	 */
+	public void setResponseCache(ResponseCache cache) {
+		this.responseCache = cache;
+	}
+	
+	/**
+	 * Returns the current version of this resource. The version is
+	 * incremented by each call of {@link #changed()}.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+	
 	/**
 	 * Sets the type of the notifications that will be sent.
 	 * If set to null (default) the type matching the request will be used.
@@ -701,8 +839,13 @@ public  class ResourceBase implements Resource {
 	 * the executor of this resource or on the executor of its parent or
 	 * transitively ancestor. If no ancestor defines its own executor, the
 	 * thread that has called this method performs the notification.
+	 * <p>
+	 * This method also increments the version of this resource so that ETags
+	 * of former representations no longer validate and cached responses are
+	 * no longer used.
 	 */
 	public void changed() {
+		version.incrementAndGet();
 		Executor executor = getExecutor();
 		if (executor != null) {
 			executor.execute(new Runnable() {
@@ -0,0 +1,18 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+/**
+ * A {@link ResourceObserver} that also implements this interface is invoked
+ * when the resource has been made visible or invisible to clients. Components
+ * that cache the link description of a resource, e.g., the
+ * {@link DiscoveryResource}, use it to learn when their cache becomes stale.
+ */
+public interface ResourceVisibilityObserver {
+
+	/**
+	 * Invoked when the resource has been made visible or invisible to clients.
+	 *
+	 * @param visible the new visibility
+	 */
+	public void changedVisibility(boolean visible);
+
+}
@@ -0,0 +1,400 @@
+package ch.ethz.inf.vs.californium.server.resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.OptionSet;
+import ch.ethz.inf.vs.californium.coap.RepresentationKey;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+
+/**
+ * The ResponseCache keeps the 2.05 (Content) responses of resources that are
+ * expensive to compute until their Max-Age expires or the resource calls
+ * {@link ResourceBase#changed()}. A resource uses the cache after
+ * {@link ResourceBase#setResponseCache(ResponseCache)}; a server provides a
+ * shared instance through
+ * {@link ch.ethz.inf.vs.californium.server.Server#enableResponseCache(ResourceBase...)}.
+ * <p>
+ * Responses are keyed by the URI path, the URI queries and the Accept option
+ * of the GET request. Requests with an Observe option bypass the cache. When
+ * several requests miss the cache for the same key at the same time, only the
+ * first one invokes the handler of the resource. The others are answered with
+ * the response of the first one after it has been sent if that response is
+ * cacheable. Any other response, e.g., a 2.03 (Valid) for the ETag of the
+ * first request or an error, depends on the first request, so that the others
+ * are handed to the handler then, each on the executor of the resource or of
+ * the endpoint. The handler must therefore respond through the
+ * {@link CoapExchange}.
+ * <p>
+ * The cache is bounded by the number of entries and by the sum of the payload
+ * sizes. When a bound is exceeded, the least recently used entries are evicted.
+ */
+public class ResponseCache {
+
+	/** The logger. */
+	private final static Logger LOGGER = Logger.getLogger(ResponseCache.class.getCanonicalName());
+
+	/* The maximum number of entries */
+	private final int maxEntries;
+
+	/* The maximum sum of the payload sizes of all entries in bytes */
+	private final long maxBytes;
+
+	/* The cached responses in LRU order */
+	private final LinkedHashMap<RepresentationKey, Entry> entries;
+
+	/* The ongoing computations of responses that are not cached yet */
+	private final Map<RepresentationKey, Flight> flights;
+
+	/* The sum of the payload sizes of all entries */
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Constructs a new response cache with the bounds from the standard
+	 * configuration.
+	 */
+	public ResponseCache() {
+		this(NetworkConfig.getStandard());
+	}
+
+	/**
+	 * Constructs a new response cache with the bounds from the specified
+	 * configuration.
+	 *
+	 * @param config the configuration
+	 */
+	public ResponseCache(NetworkConfig config) {
+		this(config.getInt(NetworkConfigDefaults.SERVER_RESPONSE_CACHE_SIZE),
+			config.getLong(NetworkConfigDefaults.SERVER_RESPONSE_CACHE_BYTES));
+	}
+
+	/**
+	 * Constructs a new response cache with the specified bounds.
+	 *
+	 * @param maxEntries the maximum number of entries
+	 * @param maxBytes the maximum sum of the payload sizes in bytes
+	 */
+	public ResponseCache(int maxEntries, long maxBytes) {
+		if (maxEntries < 1) throw new IllegalArgumentException("Response cache must allow at least one entry");
+		if (maxBytes < 0) throw new IllegalArgumentException("Response cache must not have a negative size");
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.entries = new LinkedHashMap<RepresentationKey, Entry>(16, 0.75f, true);
+		this.flights = new HashMap<RepresentationKey, Flight>();
+	}
+
+	/**
+	 * Responds to the GET request of the specified exchange from the cache or
+	 * invokes the handler of the resource on a miss.
+	 *
+	 * @param exchange the exchange with the GET request
+	 * @param resource the target resource
+	 */
+	void handleGET(CoapExchange exchange, ResourceBase resource) {
+		Request request = exchange.advanced().getRequest();
+		RepresentationKey key = new RepresentationKey(request);
+		long version = resource.getVersion();
+		long now = System.nanoTime();
+
+		Entry entry;
+		Flight flight;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && (entry.version != version || entry.expires - now <= 0)) {
+				remove(key);
+				entry = null;
+			}
+			if (entry != null) {
+				flight = null;
+			} else {
+				flight = flights.get(key);
+				if (flight != null && flight.version == version) {
+					// single-flight: wait for the response of the first request
+					flight.waiting.add(exchange);
+					misses.incrementAndGet();
+					return;
+				}
+				flight = new Flight(key, version, resource);
+				flights.put(key, flight);
+			}
+		}
+
+		if (entry != null) {
+			hits.incrementAndGet();
+			if (entry.eTag != null && request.getOptions().containsETag(entry.eTag)) {
+				Response valid = new Response(ResponseCode.VALID);
+				valid.getOptions().addETag(entry.eTag);
+				valid.getOptions().setMaxAge(entry.getMaxAge(now));
+				exchange.respond(valid);
+			} else {
+				exchange.respond(entry.createResponse(now));
+			}
+
+		} else {
+			misses.incrementAndGet();
+			exchange.setFlight(this, flight);
+			try {
+				resource.handleGET(exchange);
+			} catch (RuntimeException e) {
+				abort(flight, resource);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Stores the specified response if it is cacheable and ends the flight,
+	 * so that the following requests find the response in the cache. The
+	 * requests that have been waiting for it are answered by
+	 * {@link #complete(Flight)}.
+	 *
+	 * @param flight the flight of the first request
+	 * @param response the response to the first request
+	 */
+	void store(Flight flight, Response response) {
+		OptionSet options = response.getOptions();
+		boolean cacheable = response.getCode() == ResponseCode.CONTENT
+				&& options.getMaxAge() > 0
+				&& !options.hasObserve()
+				&& !options.hasBlock2();
+		Entry entry = cacheable ? new Entry(flight.version, response, System.nanoTime()) : null;
+
+		synchronized (this) {
+			if (flights.get(flight.key) == flight)
+				flights.remove(flight.key);
+			if (entry != null && entry.payload.length <= maxBytes) {
+				remove(flight.key);
+				entries.put(flight.key, entry);
+				bytes += entry.payload.length;
+				evict();
+			}
+			flight.entry = entry;
+		}
+	}
+
+	/**
+	 * Answers the requests that have been waiting for the stored response of
+	 * the specified flight. If the response has not been cacheable, it may
+	 * depend on the first request, so that the waiting requests are handed to
+	 * the handler of the resource instead.
+	 *
+	 * @param flight the flight of the first request
+	 */
+	void complete(Flight flight) {
+		Entry entry;
+		List<CoapExchange> waiting;
+		synchronized (this) {
+			entry = flight.entry;
+			waiting = new ArrayList<CoapExchange>(flight.waiting);
+			flight.waiting.clear();
+		}
+
+		if (entry != null) {
+			long now = System.nanoTime();
+			for (CoapExchange exchange:waiting) {
+				exchange.respond(entry.createResponse(now));
+			}
+		} else {
+			dispatch(waiting, flight.resource);
+		}
+	}
+
+	/**
+	 * Hands the requests that have been waiting for the specified flight to
+	 * the handler of the resource since the first request did not produce a
+	 * response.
+	 *
+	 * @param flight the flight of the first request
+	 * @param resource the resource
+	 */
+	void abort(Flight flight, ResourceBase resource) {
+		List<CoapExchange> waiting;
+		synchronized (this) {
+			if (flights.get(flight.key) == flight)
+				flights.remove(flight.key);
+			waiting = new ArrayList<CoapExchange>(flight.waiting);
+			flight.waiting.clear();
+		}
+		dispatch(waiting, resource);
+	}
+
+	/*
+	 * Hands each request to the handler on the executor of the resource or,
+	 * if it has none, of the endpoint, so that the handlers do not run one
+	 * after the other on the thread of the first request.
+	 */
+	private void dispatch(List<CoapExchange> waiting, final ResourceBase resource) {
+		for (final CoapExchange exchange:waiting) {
+			Runnable task = new Runnable() {
+				public void run() {
+					resource.handleGET(exchange);
+				}
+			};
+			Executor executor = resource.getExecutor();
+			if (executor == null) {
+				Endpoint endpoint = exchange.advanced().getEndpoint();
+				if (endpoint instanceof CoAPEndpoint)
+					executor = ((CoAPEndpoint) endpoint).getExecutor();
+			}
+			if (executor != null)
+				executor.execute(task);
+			else task.run();
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/*
+	 * Removes the least recently used entries until the cache is within its
+	 * bounds again.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<RepresentationKey, Entry>> it = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			bytes -= eldest.payload.length;
+			evictions.incrementAndGet();
+		}
+		LOGGER.finer("Response cache has "+entries.size()+" entries with "+bytes+" bytes");
+	}
+
+	private void remove(RepresentationKey key) {
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.payload.length;
+	}
+
+	/**
+	 * Returns the number of requests that have been answered from the cache.
+	 *
+	 * @return the hit count
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of requests that have not been found in the cache,
+	 * including the requests that have waited for the response to an
+	 * identical request.
+	 *
+	 * @return the miss count
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries that have been evicted to stay within
+	 * the bounds of the cache.
+	 *
+	 * @return the eviction count
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the number of cached responses.
+	 *
+	 * @return the entry count
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the sum of the payload sizes of the cached responses.
+	 *
+	 * @return the size in bytes
+	 */
+	public synchronized long getByteSize() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ResponseCache [hits="+getHits()+", misses="+getMisses()+", evictions="+getEvictions()
+				+", entries="+getSize()+", bytes="+getByteSize()+"]";
+	}
+
+	/**
+	 * A cached response.
+	 */
+	private static final class Entry {
+
+		private final long version;
+		private final ResponseCode code;
+		private final byte[] payload;
+		private final OptionSet options;
+		private final byte[] eTag;
+		private final long expires; // System.nanoTime()
+
+		private Entry(long version, Response response, long now) {
+			this.version = version;
+			this.code = response.getCode();
+			this.payload = response.getPayload() != null ? response.getPayload() : new byte[0];
+			this.options = new OptionSet(response.getOptions());
+			this.options.removeObserve();
+			this.eTag = options.getETagCount() > 0 ? options.getETags().get(0) : null;
+			this.expires = now + TimeUnit.SECONDS.toNanos(options.getMaxAge());
+		}
+
+		private long getMaxAge(long now) {
+			return Math.max(0, TimeUnit.NANOSECONDS.toSeconds(expires - now));
+		}
+
+		private Response createResponse(long now) {
+			Response response = new Response(code);
+			response.setOptions(new OptionSet(options));
+			if (code == ResponseCode.CONTENT)
+				response.getOptions().setMaxAge(getMaxAge(now));
+			response.setPayload(payload);
+			return response;
+		}
+	}
+
+	/**
+	 * The computation of a response by the handler for the first request that
+	 * missed the cache and the requests that wait for it.
+	 */
+	static final class Flight {
+
+		private final RepresentationKey key;
+		private final long version;
+		private final ResourceBase resource;
+		private final List<CoapExchange> waiting = new ArrayList<CoapExchange>();
+		private Entry entry; // the stored response or null if not cacheable
+
+		private Flight(RepresentationKey key, long version, ResourceBase resource) {
+			this.key = key;
+			this.version = version;
+			this.resource = resource;
+		}
+	}
+}
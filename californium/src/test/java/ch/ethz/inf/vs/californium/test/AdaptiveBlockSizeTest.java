@@ -0,0 +1,73 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.network.layer.AdaptiveBlockSize;
+
+/**
+ * This test checks that the block size for a peer shrinks on loss and on
+ * timeouts, grows on a link without loss and stays within the bounds.
+ */
+public class AdaptiveBlockSizeTest {
+
+	private static final int PORT = 5683;
+
+	private AdaptiveBlockSize sizes;
+	private InetAddress peer;
+
+	@Before
+	public void setup() throws Exception {
+		sizes = new AdaptiveBlockSize(256, 64, 1024);
+		peer = InetAddress.getByName("127.0.0.1");
+	}
+
+	@Test
+	public void testShrinksOnLoss() {
+		Assert.assertEquals(256, size());
+		for (int i=0;i<AdaptiveBlockSize.ROUND;i++)
+			sizes.acknowledged(peer, PORT, i % 4 == 0 ? 1 : 0);
+		Assert.assertEquals(128, size());
+		for (int i=0;i<AdaptiveBlockSize.ROUND;i++)
+			sizes.acknowledged(peer, PORT, 1);
+		Assert.assertEquals(64, size());
+		for (int i=0;i<AdaptiveBlockSize.ROUND;i++)
+			sizes.acknowledged(peer, PORT, 1);
+		Assert.assertEquals(64, size());
+	}
+
+	@Test
+	public void testGrowsWithoutLoss() {
+		for (int round=0;round<5;round++)
+			for (int i=0;i<AdaptiveBlockSize.ROUND;i++)
+				sizes.acknowledged(peer, PORT, 0);
+		Assert.assertEquals(1024, size());
+		// other peers are not affected
+		Assert.assertEquals(256, BlockOption.szx2Size(sizes.getSzx(peer, PORT + 1)));
+	}
+
+	@Test
+	public void testShrinksOnTimeout() {
+		sizes.timedOut(peer, PORT);
+		Assert.assertEquals(128, size());
+	}
+
+	@Test
+	public void testDuplicatesCountAsLoss() {
+		for (int i=0;i<AdaptiveBlockSize.ROUND;i++) {
+			sizes.received(peer, PORT, false);
+			if (i % 2 == 0)
+				sizes.received(peer, PORT, true);
+		}
+		Assert.assertEquals(128, size());
+	}
+
+	private int size() {
+		return BlockOption.szx2Size(sizes.getSzx(peer, PORT));
+	}
+}
@@ -0,0 +1,146 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.layer.BlockwiseTracker;
+import ch.ethz.inf.vs.californium.network.serializer.DataParser;
+import ch.ethz.inf.vs.californium.network.serializer.Serializer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the server discards the state of an abandoned Block1
+ * transfer after its lifetime and refuses transfers that exceed the budget.
+ */
+public class BlockwiseExpiryTest {
+
+	private static final String TARGET = "upload";
+
+	private Server server;
+	private CoAPEndpoint serverEndpoint;
+	private int serverPort;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32)
+			.setLong(NetworkConfigDefaults.BLOCKWISE_STATUS_LIFETIME, 200)
+			.setLong(NetworkConfigDefaults.BLOCKWISE_BUFFER_BUDGET, 256);
+
+		serverEndpoint = new CoAPEndpoint(config);
+		server = new Server();
+		server.add(new ResourceBase(TARGET) {
+			@Override
+			public void handlePOST(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CHANGED);
+			}
+		});
+		server.addEndpoint(serverEndpoint);
+		server.start();
+		serverPort = serverEndpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testAbandonedTransferExpires() throws Exception {
+		BlockwiseTracker tracker = serverEndpoint.getBlockwiseTracker();
+		DatagramSocket socket = new DatagramSocket();
+		socket.setSoTimeout(1000);
+		try {
+			Response first = exchange(socket, createBlock(1, 0));
+			Assert.assertEquals(ResponseCode.CONTINUE, first.getCode());
+			Assert.assertEquals(1, tracker.getTransferCount());
+			Assert.assertEquals(32, tracker.getInFlightBytes());
+
+			// the client abandons the transfer
+			Thread.sleep(700);
+			Assert.assertEquals(0, tracker.getTransferCount());
+			Assert.assertEquals(0, tracker.getInFlightBytes());
+			Assert.assertEquals(1, tracker.getExpiredCount());
+
+			Response late = exchange(socket, createBlock(2, 1));
+			Assert.assertEquals(ResponseCode.REQUEST_ENTITY_INCOMPLETE, late.getCode());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testTransferExceedsBudget() throws Exception {
+		CoAPEndpoint client = new CoAPEndpoint(new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32));
+		client.setMessageDeliverer(new ClientMessageDeliverer());
+		client.start();
+		try {
+			Request request = new Request(Code.POST);
+			request.setDestination(InetAddress.getLocalHost());
+			request.setDestinationPort(serverPort);
+			request.getOptions().addURIPath(TARGET);
+			request.setPayload(new byte[1000]);
+			client.sendRequest(request);
+
+			Response response = request.waitForResponse(5000);
+			Assert.assertNotNull(response);
+			Assert.assertEquals(ResponseCode.REQUEST_ENTITY_TOO_LARGE, response.getCode());
+
+			BlockwiseTracker tracker = serverEndpoint.getBlockwiseTracker();
+			Assert.assertEquals(1, tracker.getRefusedCount());
+			Assert.assertEquals(0, tracker.getInFlightBytes());
+			Assert.assertTrue(tracker.getPeakBytes() <= 256);
+		} finally {
+			client.destroy();
+		}
+	}
+
+	private Request createBlock(int mid, int num) throws Exception {
+		Request request = new Request(Code.POST);
+		request.setType(Type.CON);
+		request.setMID(mid);
+		request.setToken(new byte[] { 1 });
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		request.getOptions().setBlock1(1, true, num);
+		request.setPayload(new byte[32]);
+		return request;
+	}
+
+	private Response exchange(DatagramSocket socket, Request request) throws Exception {
+		byte[] bytes = new Serializer().serialize(request).getBytes();
+		socket.send(new DatagramPacket(bytes, bytes.length, request.getDestination(), request.getDestinationPort()));
+		DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+		socket.receive(packet);
+		byte[] data = new byte[packet.getLength()];
+		System.arraycopy(packet.getData(), 0, data, 0, data.length);
+		return new DataParser(data).parseResponse();
+	}
+}
@@ -0,0 +1,156 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the blockwise layer of the client passes requests
+ * marked as blockwise transparent through, so that the application receives
+ * every block of the response and every 2.31 Continue of its upload.
+ */
+public class BlockwiseTransparentTest {
+
+	private static final String TARGET = "transparent";
+	private static final int BLOCK_SIZE = 32;
+	private static final int SZX = BlockOption.size2Szx(BLOCK_SIZE);
+
+	private Server server;
+	private int serverPort;
+	private TestResource resource;
+
+	private Endpoint clientEndpoint;
+
+	private byte[] payload;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		payload = new byte[100];
+		for (int i=0;i<payload.length;i++)
+			payload[i] = (byte) i;
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, BLOCK_SIZE)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, BLOCK_SIZE);
+
+		CoAPEndpoint endpoint = new CoAPEndpoint(config);
+		resource = new TestResource(TARGET);
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(config);
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testTransparentDownload() throws Exception {
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		int num = 0;
+		boolean more = true;
+		while (more) {
+			Request request = createRequest(Code.GET);
+			if (num > 0)
+				request.getOptions().setBlock2(SZX, false, num);
+			clientEndpoint.sendRequest(request);
+
+			Response response = request.waitForResponse(5000);
+			Assert.assertNotNull(response);
+			Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+			Assert.assertTrue(response.getOptions().hasBlock2());
+			BlockOption block2 = response.getOptions().getBlock2();
+			Assert.assertEquals(num, block2.getNum());
+			Assert.assertTrue(response.getPayloadSize() <= BLOCK_SIZE);
+			received.write(response.getPayload());
+			more = block2.isM();
+			num++;
+		}
+		Assert.assertEquals(4, num);
+		Assert.assertTrue(Arrays.equals(payload, received.toByteArray()));
+	}
+
+	@Test
+	public void testTransparentUpload() throws Exception {
+		int blocks = (payload.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		for (int num = 0; num < blocks; num++) {
+			int from = num * BLOCK_SIZE;
+			int to = Math.min(from + BLOCK_SIZE, payload.length);
+			boolean more = to < payload.length;
+
+			Request request = createRequest(Code.PUT);
+			request.getOptions().setBlock1(SZX, more, num);
+			request.setPayload(Arrays.copyOfRange(payload, from, to));
+			clientEndpoint.sendRequest(request);
+
+			Response response = request.waitForResponse(5000);
+			Assert.assertNotNull(response);
+			Assert.assertEquals(more ? ResponseCode.CONTINUE : ResponseCode.CHANGED, response.getCode());
+			Assert.assertTrue(response.getOptions().hasBlock1());
+			Assert.assertEquals(num, response.getOptions().getBlock1().getNum());
+		}
+		Assert.assertTrue(Arrays.equals(payload, resource.received));
+	}
+
+	private Request createRequest(Code code) throws Exception {
+		Request request = new Request(code);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		request.setBlockwiseTransparent(true);
+		return request;
+	}
+
+	private class TestResource extends ResourceBase {
+
+		private volatile byte[] received;
+
+		public TestResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(ResponseCode.CONTENT, payload);
+		}
+
+		@Override
+		public void handlePUT(CoapExchange exchange) {
+			received = exchange.getRequestPayload();
+			exchange.respond(ResponseCode.CHANGED);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.network.layer.PayloadBuffer;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the blocks of a large request are streamed into a
+ * buffer that spills to a file above its threshold and that the resource can
+ * read the assembled payload as stream.
+ */
+public class BlockwiseUploadTest {
+
+	private static final String TARGET = "upload";
+
+	private Server server;
+	private int serverPort;
+	private UploadResource resource;
+
+	private Endpoint clientEndpoint;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32)
+			.setInt(NetworkConfigDefaults.BLOCKWISE_SPILL_THRESHOLD, 100);
+
+		CoAPEndpoint endpoint = new CoAPEndpoint(config);
+		resource = new UploadResource(TARGET);
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(config);
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testSpilledUpload() throws Exception {
+		byte[] payload = new byte[1000];
+		for (int i=0;i<payload.length;i++)
+			payload[i] = (byte) (i % 251);
+
+		Request request = new Request(Code.POST);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		request.setPayload(payload);
+		clientEndpoint.sendRequest(request);
+
+		Response response = request.waitForResponse(5000);
+		Assert.assertNotNull(response);
+		Assert.assertEquals(ResponseCode.CHANGED, response.getCode());
+		Assert.assertTrue(Arrays.equals(payload, resource.received));
+	}
+
+	@Test
+	public void testPayloadBuffer() throws Exception {
+		byte[] block = new byte[700];
+		Arrays.fill(block, (byte) 7);
+
+		PayloadBuffer buffer = new PayloadBuffer(1000);
+		buffer.append(block);
+		Assert.assertFalse(buffer.isSpilled());
+		buffer.append(block);
+		Assert.assertTrue(buffer.isSpilled());
+		Assert.assertEquals(1400, buffer.size());
+
+		Request assembled = new Request(Code.POST);
+		buffer.writeTo(assembled);
+		Assert.assertEquals(1400, assembled.getPayloadSize());
+		Assert.assertEquals(1400, assembled.getPayloadBuffer().remaining());
+		Assert.assertEquals(7, assembled.getPayloadBuffer().get(1399));
+	}
+
+	@Test
+	public void testReleasedPayloadBuffer() throws Exception {
+		// an expired transfer is released while its blocks may still arrive
+		PayloadBuffer buffer = new PayloadBuffer(10000);
+		buffer.append(new byte[700]);
+		buffer.release();
+		try {
+			buffer.append(new byte[700]);
+			Assert.fail("A released buffer must refuse blocks");
+		} catch (IOException e) {
+			// expected
+		}
+		try {
+			buffer.writeTo(new Request(Code.POST));
+			Assert.fail("A released buffer must not be assembled");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static class UploadResource extends ResourceBase {
+
+		private volatile byte[] received;
+
+		public UploadResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			try {
+				InputStream in = exchange.getRequestPayloadStream();
+				byte[] bytes = new byte[in.available()];
+				int offset = 0;
+				while (offset < bytes.length)
+					offset += in.read(bytes, offset, bytes.length - offset);
+				received = bytes;
+				exchange.respond(ResponseCode.CHANGED);
+			} catch (Exception e) {
+				exchange.respond(ResponseCode.INTERNAL_SERVER_ERROR);
+			}
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.ClientCache;
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapFuture;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the client cache answers requests from fresh entries,
+ * revalidates stale entries with their ETag, sends only one request for
+ * concurrent identical requests and stays within its bounds.
+ */
+public class ClientCacheTest {
+
+	private Server server;
+	private int serverPort;
+	private ScheduledExecutorService timer;
+
+	private VersionedResource resource;
+	private final AtomicInteger gets = new AtomicInteger();
+	private final AtomicInteger valid = new AtomicInteger();
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		timer = Executors.newSingleThreadScheduledExecutor();
+
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		resource = new VersionedResource("res");
+		server = new Server();
+		server.add(resource);
+		server.add(new ResourceBase("slow") {
+			@Override
+			public void handleGET(final CoapExchange exchange) {
+				gets.incrementAndGet();
+				exchange.accept();
+				timer.schedule(new Runnable() {
+					public void run() {
+						exchange.setMaxAge(60);
+						exchange.respond("slow");
+					}
+				}, 200, TimeUnit.MILLISECONDS);
+			}
+		});
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		timer.shutdown();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testFreshEntry() throws Exception {
+		ClientCache cache = new ClientCache(16, 1024);
+		Assert.assertEquals("v0", client("res", cache).get().getResponseText());
+		Assert.assertEquals("v0", client("res", cache).get().getResponseText());
+		Assert.assertEquals("v0", client("res", cache).getAsync().get(5, TimeUnit.SECONDS).getResponseText());
+		Assert.assertEquals(1, gets.get());
+		Assert.assertEquals(2, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+
+		// a different Accept option is a different entry
+		CoapResponse response = client("res", cache).get(0);
+		Assert.assertEquals("v0", response.getResponseText());
+		Assert.assertEquals(2, gets.get());
+		Assert.assertEquals(2, cache.getSize());
+	}
+
+	@Test
+	public void testRevalidation() throws Exception {
+		resource.maxAge = 1;
+		ClientCache cache = new ClientCache(16, 1024);
+		Assert.assertEquals("v0", client("res", cache).get().getResponseText());
+		Thread.sleep(1100);
+
+		CoapResponse response = client("res", cache).get();
+		Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+		Assert.assertEquals("v0", response.getResponseText());
+		Assert.assertEquals(2, gets.get());
+		Assert.assertEquals(1, valid.get());
+		Assert.assertEquals(1, cache.getRevalidations());
+		Assert.assertEquals(1, cache.getValidated());
+
+		// the refreshed entry is fresh again
+		client("res", cache).get();
+		Assert.assertEquals(2, gets.get());
+
+		// a changed representation replaces the entry
+		resource.version++;
+		Thread.sleep(1100);
+		Assert.assertEquals("v1", client("res", cache).get().getResponseText());
+		Assert.assertEquals(3, gets.get());
+		Assert.assertEquals(1, valid.get());
+		Assert.assertEquals("v1", client("res", cache).get().getResponseText());
+		Assert.assertEquals(3, gets.get());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		ClientCache cache = new ClientCache(16, 1024);
+		CoapFuture[] futures = new CoapFuture[10];
+		for (int i=0;i<futures.length;i++)
+			futures[i] = client("slow", cache).getAsync();
+		for (CoapFuture future:futures)
+			Assert.assertEquals("slow", future.get(5, TimeUnit.SECONDS).getResponseText());
+		Assert.assertEquals(1, gets.get());
+		Assert.assertEquals(9, cache.getCoalesced());
+		Assert.assertEquals(1, cache.getSize());
+	}
+
+	@Test
+	public void testBounds() throws Exception {
+		ClientCache cache = new ClientCache(2, 1024);
+		for (int i=0;i<3;i++)
+			client("res?q="+i, cache).get();
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(4, cache.getByteSize());
+
+		// each payload has 2 bytes
+		cache = new ClientCache(16, 5);
+		for (int i=0;i<3;i++)
+			client("res?q="+i, cache).get();
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(4, cache.getByteSize());
+		client("res?q=2", cache).get();
+		Assert.assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void testNoCacheForOtherMethods() throws Exception {
+		ClientCache cache = new ClientCache(16, 1024);
+		client("res", cache).post("x", 0);
+		client("res", cache).post("x", 0);
+		Assert.assertEquals(0, cache.getSize());
+		Assert.assertEquals(0, cache.getMisses());
+	}
+
+	private CoapClient client(String path, ClientCache cache) {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/"+path);
+		client.setTimeout(5000);
+		return client.setCache(cache);
+	}
+
+	/*
+	 * Responds with the current version and its ETag and answers requests
+	 * with that ETag with 2.03 (Valid).
+	 */
+	private class VersionedResource extends ResourceBase {
+
+		private volatile int version;
+		private volatile long maxAge = 60;
+
+		public VersionedResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			gets.incrementAndGet();
+			byte[] eTag = new byte[] { (byte) version };
+			exchange.setETag(eTag);
+			exchange.setMaxAge(maxAge);
+			if (exchange.getRequestOptions().containsETag(eTag)) {
+				valid.incrementAndGet();
+				exchange.respond(ResponseCode.VALID);
+			} else {
+				exchange.respond("v"+version);
+			}
+		}
+
+		@Override
+		public void handlePOST(CoapExchange exchange) {
+			exchange.respond(ResponseCode.CHANGED);
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapFuture;
+import ch.ethz.inf.vs.californium.CoapHandler;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the futures of a CoapClient complete with the
+ * response, invoke their handlers on the client's executor, fail after the
+ * timeout and cancel the request when they are canceled.
+ */
+public class CoapFutureTest {
+
+	private static final String CONTENT = "content";
+
+	private Server server;
+	private int serverPort;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		server = new Server();
+		server.add(new ResourceBase("fast") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(CONTENT);
+			}
+			@Override
+			public void handlePOST(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CHANGED, exchange.getRequestText());
+			}
+		});
+		server.add(new ResourceBase("silent") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.accept(); // but never respond
+			}
+		});
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testComplete() throws Exception {
+		CoapResponse response = client("fast").getAsync().get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(CONTENT, response.getResponseText());
+
+		response = client("fast").postAsync("echo", 0).get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(ResponseCode.CHANGED, response.getCode());
+		Assert.assertEquals("echo", response.getResponseText());
+	}
+
+	@Test
+	public void testHandlerRunsOnExecutor() throws Exception {
+		final Thread[] executorThread = new Thread[1];
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AtomicReference<Thread> handlerThread = new AtomicReference<Thread>();
+		CoapClient client = client("fast").setExecutor(new Executor() {
+			public void execute(Runnable command) {
+				Thread thread = new Thread(command);
+				executorThread[0] = thread;
+				thread.start();
+			}
+		});
+		client.getAsync().addHandler(new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				handlerThread.set(Thread.currentThread());
+				latch.countDown();
+			}
+			public void onError() { }
+		});
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		Assert.assertSame(executorThread[0], handlerThread.get());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		CoapClient client = client("silent").setTimeout(200);
+		CoapFuture future = client.getAsync();
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			Assert.fail("The future should have failed");
+		} catch (ExecutionException e) {
+			Assert.assertTrue(""+e.getCause(), e.getCause() instanceof TimeoutException);
+		}
+		Assert.assertTrue(future.getRequest().isCanceled());
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		CoapFuture future = client("silent").getAsync();
+		future.addHandler(new CoapHandler() {
+			public void onLoad(CoapResponse response) { }
+			public void onError() {
+				latch.countDown();
+			}
+		});
+		Assert.assertTrue(future.cancel(true));
+		Assert.assertTrue(future.isCancelled());
+		Assert.assertTrue(future.getRequest().isCanceled());
+		Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+		try {
+			future.get();
+			Assert.fail("The future should have been canceled");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	private CoapClient client(String path) {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/"+path);
+		client.setTimeout(5000);
+		return client;
+	}
+}
@@ -0,0 +1,204 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapHandler;
+import ch.ethz.inf.vs.californium.CoapObserveStream;
+import ch.ethz.inf.vs.californium.CoapObserveStream.Overflow;
+import ch.ethz.inf.vs.californium.CoapObserveStream.StallAction;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that an observe stream buffers at most the configured
+ * number of notifications until the subscriber asks for them and cancels or
+ * registers the relation again when the subscriber stalls.
+ */
+public class CoapObserveStreamTest {
+
+	private Server server;
+	private int serverPort;
+	private CounterResource resource;
+
+	private List<String> received;
+	private CountDownLatch errors;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		resource = new CounterResource("counter");
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		received = new CopyOnWriteArrayList<String>();
+		errors = new CountDownLatch(1);
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testDropOldest() throws Exception {
+		CoapObserveStream stream = client().observeStream(2, Overflow.DROP_OLDEST);
+		stream.subscribe(new Subscriber());
+		change(5);
+
+		Assert.assertTrue(received.isEmpty());
+		Assert.assertEquals(2, stream.getBufferedCount());
+		Assert.assertEquals(4, stream.getDroppedCount());
+
+		stream.request(10);
+		Thread.sleep(200);
+		Assert.assertEquals("[4, 5]", received.toString());
+		stream.cancel();
+	}
+
+	@Test
+	public void testLatestValueWins() throws Exception {
+		CoapObserveStream stream = client().observeStream(1, Overflow.LATEST);
+		stream.subscribe(new Subscriber());
+		change(3);
+
+		stream.request(1);
+		Thread.sleep(200);
+		Assert.assertEquals("[3]", received.toString());
+
+		// with demand, every notification is delivered
+		stream.request(2);
+		change(2);
+		Assert.assertEquals("[3, 4, 5]", received.toString());
+		stream.cancel();
+	}
+
+	@Test
+	public void testBusySubscriber() throws Exception {
+		final CountDownLatch busy = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		CoapObserveStream stream = client().observeStream(2, Overflow.DROP_OLDEST)
+			.setStallTimeout(300, StallAction.CANCEL);
+		stream.subscribe(new Subscriber() {
+			@Override public void onLoad(CoapResponse response) {
+				super.onLoad(response);
+				busy.countDown();
+				try {
+					release.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) { }
+			}
+		});
+		stream.request(1);
+		Assert.assertTrue(busy.await(2, TimeUnit.SECONDS));
+
+		// the executor is blocked by the subscriber but the stream still buffers
+		change(5);
+		Assert.assertEquals(2, stream.getBufferedCount());
+		Assert.assertTrue(stream.getDroppedCount() > 0);
+
+		// the subscriber has used up its demand and stalls
+		release.countDown();
+		Assert.assertTrue(errors.await(2, TimeUnit.SECONDS));
+		Assert.assertTrue(stream.isTerminated());
+		Assert.assertEquals("[0]", received.toString());
+	}
+
+	@Test
+	public void testCancelWhenStalled() throws Exception {
+		CoapObserveStream stream = client().observeStream(4, Overflow.DROP_OLDEST)
+			.setStallTimeout(200, StallAction.CANCEL);
+		stream.subscribe(new Subscriber());
+		change(1);
+
+		Assert.assertTrue(errors.await(2, TimeUnit.SECONDS));
+		Assert.assertTrue(stream.isTerminated());
+		Assert.assertNull(stream.getRelation());
+	}
+
+	@Test
+	public void testReregisterWhenStalled() throws Exception {
+		CoapObserveStream stream = client().observeStream(4, Overflow.DROP_OLDEST)
+			.setStallTimeout(200, StallAction.REREGISTER);
+		stream.subscribe(new Subscriber());
+		change(1);
+		Thread.sleep(600);
+		Assert.assertNull(stream.getRelation());
+		Assert.assertFalse(stream.isTerminated());
+
+		int gets = resource.gets.get();
+		stream.request(10);
+		Thread.sleep(300);
+		Assert.assertEquals(2, stream.getRegistrationCount());
+		Assert.assertNotNull(stream.getRelation());
+		Assert.assertEquals(gets + 1, resource.gets.get());
+		// the buffered notifications and the response to the new registration
+		Assert.assertEquals("[0, 1, 1]", received.toString());
+		stream.cancel();
+	}
+
+	private void change(int times) throws InterruptedException {
+		Thread.sleep(200);
+		for (int i=0;i<times;i++) {
+			resource.increment();
+			Thread.sleep(100);
+		}
+	}
+
+	private CoapClient client() {
+		return new CoapClient("coap://localhost:"+serverPort+"/counter");
+	}
+
+	private class Subscriber implements CoapHandler {
+
+		public void onLoad(CoapResponse response) {
+			received.add(response.getResponseText());
+		}
+
+		public void onError() {
+			errors.countDown();
+		}
+	}
+
+	private static class CounterResource extends ResourceBase {
+
+		private final AtomicInteger counter = new AtomicInteger();
+		private final AtomicInteger gets = new AtomicInteger();
+
+		public CounterResource(String name) {
+			super(name);
+			setObservable(true);
+		}
+
+		public void increment() {
+			counter.incrementAndGet();
+			changed();
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			gets.incrementAndGet();
+			exchange.respond(Integer.toString(counter.get()));
+		}
+	}
+}
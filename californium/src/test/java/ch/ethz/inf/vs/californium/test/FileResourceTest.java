@@ -0,0 +1,131 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.FileResource;
+
+/**
+ * This test checks that a FileResource serves the blocks of a memory-mapped
+ * file, derives its ETag from the file and reloads the file when it changes.
+ */
+public class FileResourceTest {
+
+	public static final String TARGET = "firmware";
+
+	private Server server;
+	private int serverPort;
+
+	private File file;
+	private FileResource resource;
+
+	@Before
+	public void startupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		file = File.createTempFile("firmware", ".bin");
+		write(file, content(5000, 1));
+
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		resource = new FileResource(TARGET, file);
+		resource.setCheckInterval(0);
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		file.delete();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testBlockwiseDownload() throws Exception {
+		Response response = get(null);
+		Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+		Assert.assertTrue(Arrays.equals(content(5000, 1), response.getPayload()));
+		Assert.assertEquals(1, response.getOptions().getETagCount());
+	}
+
+	@Test
+	public void testRandomAccessBlock() throws Exception {
+		Request request = newGet();
+		request.getOptions().setBlock2(BlockOption.size2Szx(512), false, 3);
+		request.send();
+		Response response = request.waitForResponse(1000);
+		Assert.assertNotNull(response);
+		// the client continues with the blocks after block 3
+		byte[] expected = Arrays.copyOfRange(content(5000, 1), 3 * 512, 5000);
+		Assert.assertTrue(Arrays.equals(expected, response.getPayload()));
+	}
+
+	@Test
+	public void testValidationAndReload() throws Exception {
+		Response first = get(null);
+		byte[] etag = first.getOptions().getETags().get(0);
+
+		Response valid = get(etag);
+		Assert.assertEquals(ResponseCode.VALID, valid.getCode());
+
+		write(file, content(3000, 2));
+		file.setLastModified(file.lastModified() + 2000);
+		Response reloaded = get(etag);
+		Assert.assertEquals(ResponseCode.CONTENT, reloaded.getCode());
+		Assert.assertTrue(Arrays.equals(content(3000, 2), reloaded.getPayload()));
+		Assert.assertFalse(reloaded.getOptions().containsETag(etag));
+	}
+
+	private Request newGet() throws Exception {
+		Request request = new Request(Code.GET);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		return request;
+	}
+
+	private Response get(byte[] etag) throws Exception {
+		Request request = newGet();
+		if (etag != null)
+			request.getOptions().addETag(etag);
+		request.send();
+		Response response = request.waitForResponse(5000);
+		Assert.assertNotNull(response);
+		return response;
+	}
+
+	private static byte[] content(int length, int seed) {
+		byte[] content = new byte[length];
+		for (int i=0;i<length;i++)
+			content[i] = (byte) (i * seed + i / 256);
+		return content;
+	}
+
+	private static void write(File file, byte[] content) throws Exception {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
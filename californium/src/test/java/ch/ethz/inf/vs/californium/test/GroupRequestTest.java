@@ -0,0 +1,150 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapGroupRequest;
+import ch.ethz.inf.vs.californium.CoapHandler;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.MulticastUDPConnector;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a request to a multicast group collects the responses
+ * of all members during its window and that the members respond within their
+ * leisure period and suppress error responses.
+ */
+public class GroupRequestTest {
+
+	private static final String GROUP = "224.0.1.187";
+	private static final int LEISURE = 300;
+
+	private List<Server> servers = new ArrayList<Server>();
+	private int port;
+
+	@Before
+	public void setupServers() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		DatagramSocket free = new DatagramSocket();
+		port = free.getLocalPort();
+		free.close();
+
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfigDefaults.DEFAULT_LEISURE, LEISURE);
+		InetAddress group = InetAddress.getByName(GROUP);
+		for (int i=0;i<3;i++) {
+			Server server = new Server();
+			if (i < 2) // the third member has no such resource
+				server.add(new NamedResource("hello", "member"+i));
+			server.addEndpoint(new CoAPEndpoint(new MulticastUDPConnector(group, port), config));
+			server.start();
+			servers.add(server);
+		}
+	}
+
+	@After
+	public void shutdownServers() {
+		for (Server server:servers)
+			server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testCollectResponses() throws Exception {
+		final List<String> streamed = new CopyOnWriteArrayList<String>();
+		CoapClient client = new CoapClient("coap://"+GROUP+":"+port+"/hello");
+		long start = System.nanoTime();
+		CoapGroupRequest request = client.getGroup(LEISURE + 700, new CoapHandler() {
+			public void onLoad(CoapResponse response) {
+				streamed.add(response.getResponseText());
+			}
+			public void onError() { }
+		});
+		Assert.assertFalse(request.isDone());
+
+		List<CoapResponse> responses = request.await();
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		Assert.assertTrue("Window closed after "+elapsed+" ms", elapsed >= LEISURE + 700);
+		Assert.assertEquals(2, responses.size());
+		Assert.assertEquals(2, request.getResponders().size());
+		Assert.assertTrue(request.getRequest().isCanceled());
+
+		List<String> texts = new ArrayList<String>();
+		for (CoapResponse response:responses)
+			texts.add(response.getResponseText());
+		Collections.sort(texts);
+		Assert.assertEquals("[member0, member1]", texts.toString());
+		Thread.sleep(100);
+		Assert.assertEquals(2, streamed.size());
+	}
+
+	@Test
+	public void testCloseEarly() throws Exception {
+		CoapClient client = new CoapClient("coap://"+GROUP+":"+port+"/hello");
+		CoapGroupRequest request = client.getGroup(10000, null);
+		request.close();
+		Assert.assertTrue(request.isDone());
+		Assert.assertTrue(request.getRequest().isCanceled());
+		Assert.assertTrue(request.await().size() <= 2);
+	}
+
+	@Test
+	public void testMulticastRequestExpires() throws Exception {
+		NetworkConfig config = new NetworkConfig();
+		config.setInt(NetworkConfigDefaults.DEFAULT_LEISURE, LEISURE);
+		config.setInt(NetworkConfigDefaults.ACK_TIMEOUT, 200);
+		CoAPEndpoint endpoint = new CoAPEndpoint(config);
+		endpoint.start();
+		try {
+			// a multicast request without a group request that would cancel it
+			Request request = Request.newGet();
+			request.setURI("coap://"+GROUP+":"+port+"/hello");
+			request.setMulticast(true);
+			request.setType(Type.NON);
+			endpoint.sendRequest(request);
+			Assert.assertNotNull(request.waitForResponse(2000));
+			Assert.assertFalse(request.isCanceled());
+
+			// the exchange ends after the leisure plus the ACK timeout
+			Thread.sleep(LEISURE + 200);
+			Assert.assertTrue(request.isCanceled());
+		} finally {
+			endpoint.destroy();
+		}
+	}
+
+	private static class NamedResource extends ResourceBase {
+
+		private final String member;
+
+		public NamedResource(String name, String member) {
+			super(name);
+			this.member = member;
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(member);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapFuture;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.HedgingPolicy;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MessageObserverAdapter;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a hedging policy sends late requests to a replica,
+ * takes the first response, rejects the late response of the other replica,
+ * adapts the hedge delay to the measured response times and stays within its
+ * extra load.
+ */
+public class HedgingPolicyTest {
+
+	private Server primaryServer;
+	private Server replicaServer;
+	private InetSocketAddress primary;
+	private InetSocketAddress replica;
+	private ScheduledExecutorService timer;
+
+	/* How long the primary waits before it responds (-1 for never) */
+	private volatile long primaryDelay;
+	private CountDownLatch rejected;
+
+	@Before
+	public void setupServers() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		timer = Executors.newSingleThreadScheduledExecutor();
+		rejected = new CountDownLatch(1);
+		primaryDelay = 0;
+
+		CoAPEndpoint primaryEndpoint = new CoAPEndpoint();
+		primaryServer = new Server();
+		primaryServer.add(new ResourceBase("res") {
+			@Override
+			public void handleGET(final CoapExchange exchange) {
+				final long delay = primaryDelay;
+				if (delay == 0) {
+					exchange.respond("primary");
+					return;
+				}
+				exchange.accept();
+				if (delay < 0) return;
+				timer.schedule(new Runnable() {
+					public void run() {
+						Response response = new Response(ResponseCode.CONTENT);
+						response.setPayload("primary");
+						response.addMessageObserver(new MessageObserverAdapter() {
+							@Override public void onReject() {
+								rejected.countDown();
+							}
+						});
+						exchange.respond(response);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		});
+		primaryServer.addEndpoint(primaryEndpoint);
+		primaryServer.start();
+
+		CoAPEndpoint replicaEndpoint = new CoAPEndpoint();
+		replicaServer = new Server();
+		replicaServer.add(new ResourceBase("res") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond("replica");
+			}
+		});
+		replicaServer.addEndpoint(replicaEndpoint);
+		replicaServer.start();
+
+		InetAddress localhost = InetAddress.getByName("localhost");
+		primary = new InetSocketAddress(localhost, primaryEndpoint.getAddress().getPort());
+		replica = new InetSocketAddress(localhost, replicaEndpoint.getAddress().getPort());
+	}
+
+	@After
+	public void shutdownServers() {
+		timer.shutdown();
+		primaryServer.destroy();
+		replicaServer.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testHedgeWins() throws Exception {
+		primaryDelay = 1000;
+		HedgingPolicy policy = new HedgingPolicy(primary, replica).setDelays(100, 10).setMaxExtraLoad(1);
+
+		long start = System.nanoTime();
+		CoapResponse response = client(policy).get();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		Assert.assertEquals("replica", response.getResponseText());
+		Assert.assertTrue("Took "+elapsed+" ms", elapsed < 900);
+		Assert.assertEquals(1, policy.getHedgeCount());
+		Assert.assertEquals(1, policy.getHedgeWins());
+
+		// the late response of the primary is rejected
+		Assert.assertTrue(rejected.await(3, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDelayFollowsLatency() throws Exception {
+		HedgingPolicy policy = new HedgingPolicy(primary, replica).setDelays(1000, 10).setMaxExtraLoad(1);
+		Assert.assertEquals(1000, policy.getDelay(primary));
+
+		CoapClient client = client(policy);
+		for (int i=0;i<20;i++)
+			Assert.assertEquals("primary", client.get().getResponseText());
+		Assert.assertEquals(0, policy.getHedgeCount());
+		Assert.assertEquals(20, policy.getTracker().getSampleCount(primary));
+		long delay = policy.getDelay(primary);
+		Assert.assertTrue("Delay is "+delay, delay >= 10 && delay < 1000);
+	}
+
+	@Test
+	public void testExtraLoadCap() throws Exception {
+		primaryDelay = -1;
+		HedgingPolicy policy = new HedgingPolicy(primary, replica).setDelays(50, 10).setMaxExtraLoad(0.25);
+		CoapClient client = client(policy).setTimeout(500);
+
+		CoapFuture[] futures = new CoapFuture[8];
+		for (int i=0;i<futures.length;i++)
+			futures[i] = client.getAsync();
+		int answered = 0;
+		for (CoapFuture future:futures) {
+			try {
+				Assert.assertEquals("replica", future.get(5, TimeUnit.SECONDS).getResponseText());
+				answered++;
+			} catch (ExecutionException e) {
+				// not hedged and the primary never responds
+			}
+		}
+		Assert.assertEquals(8, policy.getRequestCount());
+		Assert.assertEquals(2, policy.getHedgeCount());
+		Assert.assertEquals(2, answered);
+	}
+
+	private CoapClient client(HedgingPolicy policy) {
+		CoapClient client = new CoapClient("coap://localhost:"+primary.getPort()+"/res");
+		client.setTimeout(5000);
+		return client.setHedging(policy);
+	}
+}
@@ -0,0 +1,192 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.MessageInterceptor;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a client with a blockwise window requests several
+ * blocks of a large response in parallel and reassembles them in order, but
+ * only if the server announces the size and ETag of the representation.
+ */
+public class PipelinedBlockwiseTest {
+
+	private static final int SIZE = 2000;
+
+	private Server server;
+	private int serverPort;
+	private byte[] representation;
+
+	private CoAPEndpoint clientEndpoint;
+	private InFlightCounter counter;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		representation = new byte[SIZE];
+		for (int i=0;i<SIZE;i++)
+			representation[i] = (byte) (i % 253);
+
+		CoAPEndpoint endpoint = new CoAPEndpoint(new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32));
+		ResourceBase versioned = new LargeResource("versioned");
+		versioned.setVersioned(true);
+		server = new Server();
+		server.add(versioned);
+		server.add(new LargeResource("plain"));
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32)
+			.setInt(NetworkConfigDefaults.NSTART, 3));
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		counter = new InFlightCounter();
+		clientEndpoint.addInterceptor(counter);
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testPipelinedDownload() throws Exception {
+		CoapResponse response = client("versioned").setBlockwiseWindow(8).get();
+		Assert.assertNotNull(response);
+		Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+		Assert.assertTrue(Arrays.equals(representation, response.getPayload()));
+		// NSTART limits the window
+		Assert.assertTrue("max in flight "+counter.max, counter.max.get() > 1);
+		Assert.assertTrue("max in flight "+counter.max, counter.max.get() <= 3);
+		// the peer is forgotten when its last request has been answered
+		Assert.assertEquals(0, clientEndpoint.getPeersInFlight());
+	}
+
+	@Test
+	public void testSequentialWithoutETag() throws Exception {
+		CoapResponse response = client("plain").setBlockwiseWindow(8).get();
+		Assert.assertNotNull(response);
+		Assert.assertTrue(Arrays.equals(representation, response.getPayload()));
+		Assert.assertEquals(1, counter.max.get());
+		Assert.assertEquals(0, clientEndpoint.getPeersInFlight());
+	}
+
+	@Test
+	public void testSequentialByDefault() throws Exception {
+		CoapResponse response = client("versioned").get();
+		Assert.assertNotNull(response);
+		Assert.assertTrue(Arrays.equals(representation, response.getPayload()));
+		Assert.assertEquals(1, counter.max.get());
+	}
+
+	@Test
+	public void testNonDownloadIsSequential() throws Exception {
+		Request request = Request.newGet();
+		request.setType(Type.NON);
+		request.setURI("coap://localhost:"+serverPort+"/versioned");
+		request.setBlockwiseWindow(8);
+		clientEndpoint.sendRequest(request);
+		Response response = request.waitForResponse(5000);
+		Assert.assertNotNull(response);
+		Assert.assertTrue(Arrays.equals(representation, response.getPayload()));
+		// a lost NON block would never time out
+		Assert.assertEquals(1, counter.max.get());
+	}
+
+	@Test
+	public void testCanceledBlockFailsTransfer() throws Exception {
+		counter.cancelBlock = 3;
+		Request request = Request.newGet();
+		request.setURI("coap://localhost:"+serverPort+"/versioned");
+		request.setBlockwiseWindow(8);
+		clientEndpoint.sendRequest(request);
+		Assert.assertNull(request.waitForResponse(5000));
+		Assert.assertTrue(request.isCanceled());
+		// the blocks still in flight are answered and free their slots
+		for (int i=0;i<50 && clientEndpoint.getPeersInFlight() > 0;i++)
+			Thread.sleep(100);
+		Assert.assertEquals(0, clientEndpoint.getPeersInFlight());
+	}
+
+	private CoapClient client(String path) {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/"+path);
+		client.setEndpoint(clientEndpoint);
+		client.setTimeout(5000);
+		return client;
+	}
+
+	private class LargeResource extends ResourceBase {
+
+		public LargeResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			exchange.respond(ResponseCode.CONTENT, representation);
+		}
+	}
+
+	/*
+	 * Counts the block requests that are in flight.
+	 */
+	private static class InFlightCounter implements MessageInterceptor {
+
+		private final AtomicInteger current = new AtomicInteger();
+		private final AtomicInteger max = new AtomicInteger();
+		private volatile int cancelBlock = -1;
+
+		@Override
+		public void sendRequest(Request request) {
+			if (request.isDuplicate()) return;
+			if (request.getOptions().hasBlock2() && request.getOptions().getBlock2().getNum() == cancelBlock) {
+				request.cancel();
+				return;
+			}
+			int now = current.incrementAndGet();
+			while (now > max.get())
+				max.set(now);
+		}
+
+		@Override
+		public void receiveResponse(Response response) {
+			current.decrementAndGet();
+		}
+
+		@Override public void sendResponse(Response response) { }
+		@Override public void sendEmptyMessage(EmptyMessage message) { }
+		@Override public void receiveRequest(Request request) { }
+		@Override public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
@@ -0,0 +1,183 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapFuture;
+import ch.ethz.inf.vs.californium.RequestScheduler;
+import ch.ethz.inf.vs.californium.coap.CoAP.Type;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the request scheduler keeps at most the window of
+ * requests in flight to a server, queues the others and sends them by
+ * priority.
+ */
+public class RequestSchedulerTest {
+
+	private Server server;
+	private int serverPort;
+	private InetSocketAddress serverAddress;
+	private ScheduledExecutorService timer;
+
+	private final AtomicInteger current = new AtomicInteger();
+	private final AtomicInteger max = new AtomicInteger();
+	private final List<String> order = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		timer = Executors.newSingleThreadScheduledExecutor();
+
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		server = new Server();
+		server.add(new SlowResource("slow"));
+		server.add(new SilentResource("silent"));
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+		serverAddress = new InetSocketAddress(InetAddress.getByName("localhost"), serverPort);
+	}
+
+	@After
+	public void shutdownServer() {
+		timer.shutdown();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testWindowLimitsRequestsInFlight() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(2, 2);
+		CoapClient client = client("slow").setScheduler(scheduler);
+
+		CoapFuture[] futures = new CoapFuture[20];
+		for (int i=0;i<futures.length;i++)
+			futures[i] = client.getAsync();
+		Assert.assertEquals(2, scheduler.getInFlight(serverAddress));
+		Assert.assertEquals(18, scheduler.getQueueLength(serverAddress));
+
+		for (CoapFuture future:futures)
+			Assert.assertNotNull(future.get(10, TimeUnit.SECONDS));
+		Thread.sleep(100); // the futures complete before the scheduler frees the slot
+		Assert.assertEquals(2, max.get());
+		Assert.assertEquals(18, scheduler.getPeakQueueLength(serverAddress));
+		Assert.assertEquals(0, scheduler.getQueueLength());
+		Assert.assertEquals(0, scheduler.getInFlight());
+		Assert.assertTrue(scheduler.getSmoothedRtt(serverAddress) >= 0);
+	}
+
+	@Test
+	public void testPriority() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1);
+		CoapFuture first = client("slow?first").setScheduler(scheduler).getAsync();
+		CoapFuture low = client("slow?low").setScheduler(scheduler).setPriority(5).getAsync();
+		CoapFuture high = client("slow?high").setScheduler(scheduler).setPriority(1).getAsync();
+
+		Assert.assertNotNull(first.get(5, TimeUnit.SECONDS));
+		Assert.assertNotNull(low.get(5, TimeUnit.SECONDS));
+		Assert.assertNotNull(high.get(5, TimeUnit.SECONDS));
+		Assert.assertEquals("[first, high, low]", order.toString());
+	}
+
+	@Test
+	public void testCanceledRequestLeavesQueue() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1);
+		CoapClient client = client("slow").setScheduler(scheduler);
+		CoapFuture first = client.getAsync();
+		CoapFuture second = client.getAsync();
+		Assert.assertEquals(1, scheduler.getQueueLength(serverAddress));
+
+		second.cancel(true);
+		Assert.assertEquals(0, scheduler.getQueueLength(serverAddress));
+		Assert.assertNotNull(first.get(5, TimeUnit.SECONDS));
+		Assert.assertNotNull(client.getAsync().get(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		Assert.assertEquals(0, scheduler.getInFlight());
+	}
+
+	@Test
+	public void testUnansweredNonRequestFreesSlot() throws Exception {
+		RequestScheduler scheduler = new RequestScheduler(1, 1, 300);
+		CoapClient silent = client("silent").setScheduler(scheduler);
+		Request request = Request.newGet();
+		request.setType(Type.NON);
+		request.setURI("coap://localhost:"+serverPort+"/silent");
+		silent.sendAsync(request, 0);
+
+		CoapFuture next = client("slow").setScheduler(scheduler).getAsync();
+		Assert.assertEquals(1, scheduler.getInFlight(serverAddress));
+		Assert.assertEquals(1, scheduler.getQueueLength(serverAddress));
+
+		// the NON request is lost after its lifetime and the next one is sent
+		Assert.assertNotNull(next.get(5, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		Assert.assertEquals(0, scheduler.getInFlight());
+		Assert.assertEquals(0, scheduler.getQueueLength());
+	}
+
+	private CoapClient client(String path) {
+		CoapClient client = new CoapClient("coap://localhost:"+serverPort+"/"+path);
+		client.setTimeout(10000);
+		return client;
+	}
+
+	/*
+	 * Responds 50 ms after a request has arrived and counts the requests it
+	 * is working on.
+	 */
+	private class SlowResource extends ResourceBase {
+
+		public SlowResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(final CoapExchange exchange) {
+			int now = current.incrementAndGet();
+			while (now > max.get())
+				max.set(now);
+			if (!exchange.getRequestOptions().getURIQueries().isEmpty())
+				order.add(exchange.getRequestOptions().getURIQueries().get(0));
+			exchange.accept();
+			timer.schedule(new Runnable() {
+				public void run() {
+					current.decrementAndGet();
+					exchange.respond("done");
+				}
+			}, 50, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/*
+	 * Never responds.
+	 */
+	private static class SilentResource extends ResourceBase {
+
+		public SilentResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) { }
+	}
+}
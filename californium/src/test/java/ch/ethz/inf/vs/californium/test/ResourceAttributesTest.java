@@ -1,6 +1,8 @@
 package ch.ethz.inf.vs.californium.test;
 
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -68,4 +70,42 @@ public class ResourceAttributesTest {
 				);
 	}
 	
+	@Test
+	public void testCachedDiscovery() {
+		DiscoveryResource discovery = new DiscoveryResource(root);
+		List<String> noQueries = new LinkedList<String>();
+		Assert.assertEquals(discovery.discoverTree(root, noQueries),
+				new String(discovery.discoverLinks(noQueries)));
+		Assert.assertSame(discovery.discoverLinks(noQueries), discovery.discoverLinks(noQueries));
+		
+		// changes to the tree and the attributes invalidate the cache
+		Resource humidity = new ResourceBase("humidity");
+		root.getChild("sensors").add(humidity);
+		humidity.getAttributes().addResourceType("humidity-percent");
+		Assert.assertEquals(discovery.discoverTree(root, noQueries),
+				new String(discovery.discoverLinks(noQueries)));
+		
+		((ResourceBase) humidity).setVisible(false);
+		Assert.assertEquals(discovery.discoverTree(root, noQueries),
+				new String(discovery.discoverLinks(noQueries)));
+	}
+	
+	@Test
+	public void testIndexedDiscoveryFiltering() {
+		DiscoveryResource discovery = new DiscoveryResource(root);
+		String[][] queries = {
+				{ "rt=light-lux" }, { "if=sensor" }, { "rt=temperature-c", "rt=light-lux" },
+				{ "rt=unknown" }, { "obs" }, { "rt=light*" }, { "foo" }, { "href=/sensors/temp" } };
+		for (String[] query:queries) {
+			List<String> list = Arrays.asList(query);
+			Assert.assertEquals(discovery.discoverTree(root, list),
+					new String(discovery.discoverLinks(list)));
+		}
+		
+		root.getChild("sensors").getChild("light").getAttributes().setObservable();
+		List<String> obs = Arrays.asList("obs");
+		Assert.assertEquals("</sensors/light>;obs;if=\"sensor\";rt=\"light-lux\"".length(),
+				discovery.discoverLinks(obs).length);
+	}
+	
 }
@@ -0,0 +1,113 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that a versioned resource derives ETags from its version
+ * and answers GET requests with the current ETag with 2.03 (Valid) without
+ * invoking its handler.
+ */
+public class ResourceVersioningTest {
+
+	public static final String TARGET = "versioned";
+
+	private Server server;
+	private int serverPort;
+
+	private VersionedResource resource;
+
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		resource = new VersionedResource(TARGET);
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testValidation() throws Exception {
+		Response first = get(null, null);
+		Assert.assertEquals(ResponseCode.CONTENT, first.getCode());
+		Assert.assertEquals(1, first.getOptions().getETagCount());
+		byte[] etag = first.getOptions().getETags().get(0);
+		Assert.assertEquals(1, resource.handled.get());
+
+		// the current ETag validates without invoking the handler
+		Response second = get(etag, null);
+		Assert.assertEquals(ResponseCode.VALID, second.getCode());
+		Assert.assertTrue(second.getOptions().containsETag(etag));
+		Assert.assertEquals(0, second.getPayloadSize());
+		Assert.assertEquals(1, resource.handled.get());
+
+		// another representation does not validate with the same ETag
+		Response query = get(etag, "upper");
+		Assert.assertEquals(ResponseCode.CONTENT, query.getCode());
+		Assert.assertEquals(2, resource.handled.get());
+
+		// a change invalidates the ETag
+		resource.changed();
+		Response third = get(etag, null);
+		Assert.assertEquals(ResponseCode.CONTENT, third.getCode());
+		Assert.assertFalse(third.getOptions().containsETag(etag));
+		Assert.assertEquals(3, resource.handled.get());
+	}
+
+	private Response get(byte[] etag, String query) throws Exception {
+		Request request = new Request(Code.GET);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		if (query != null)
+			request.getOptions().addURIQuery(query);
+		if (etag != null)
+			request.getOptions().addETag(etag);
+		request.send();
+		Response response = request.waitForResponse(1000);
+		Assert.assertNotNull(response);
+		return response;
+	}
+
+	private static class VersionedResource extends ResourceBase {
+
+		private final AtomicInteger handled = new AtomicInteger();
+
+		public VersionedResource(String name) {
+			super(name);
+			setVersioned(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			handled.incrementAndGet();
+			exchange.respond("version "+getVersion());
+		}
+	}
+}
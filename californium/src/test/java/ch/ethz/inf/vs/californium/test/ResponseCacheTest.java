@@ -0,0 +1,184 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+import ch.ethz.inf.vs.californium.server.resources.ResponseCache;
+
+/**
+ * This test checks that the server-side response cache answers repeated GET
+ * requests without invoking the handler, computes concurrent misses only once
+ * and stays within its bounds.
+ */
+public class ResponseCacheTest {
+
+	public static final String TARGET = "expensive";
+
+	private Server server;
+	private int serverPort;
+
+	private ExpensiveResource resource;
+
+	@Before
+	public void startupServer() {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+		CoAPEndpoint endpoint = new CoAPEndpoint();
+		resource = new ExpensiveResource(TARGET);
+		server = new Server();
+		server.add(resource);
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+	}
+
+	@After
+	public void shutdownServer() {
+		server.destroy();
+		resource.pool.shutdown();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testCacheHits() throws Exception {
+		server.enableResponseCache(resource);
+		ResponseCache cache = server.getResponseCache();
+
+		Assert.assertEquals("n=1 computed 1", get("n=1").getPayloadString());
+		Assert.assertEquals("n=1 computed 1", get("n=1").getPayloadString());
+		Assert.assertEquals("n=2 computed 2", get("n=2").getPayloadString());
+		Assert.assertEquals(2, resource.computed.get());
+		Assert.assertEquals(1, cache.getHits());
+		Assert.assertEquals(2, cache.getMisses());
+
+		// a change invalidates the cached responses
+		resource.changed();
+		Assert.assertEquals("n=1 computed 3", get("n=1").getPayloadString());
+		Assert.assertEquals(3, resource.computed.get());
+	}
+
+	@Test
+	public void testSingleFlight() throws Exception {
+		server.enableResponseCache(resource);
+		resource.delay = 300;
+
+		List<Request> requests = new ArrayList<Request>();
+		for (int i=0;i<4;i++)
+			requests.add(send("n=7"));
+		for (Request request:requests) {
+			Response response = request.waitForResponse(2000);
+			Assert.assertNotNull(response);
+			Assert.assertEquals("n=7 computed 1", response.getPayloadString());
+		}
+		Assert.assertEquals(1, resource.computed.get());
+	}
+
+	@Test
+	public void testSingleFlightValid() throws Exception {
+		server.enableResponseCache(resource);
+		resource.delay = 300;
+
+		// the first request validates its ETag, the second has none
+		Request validation = new Request(Code.GET);
+		validation.setDestination(InetAddress.getLocalHost());
+		validation.setDestinationPort(serverPort);
+		validation.getOptions().addURIPath(TARGET);
+		validation.getOptions().addURIQuery("n=8");
+		validation.getOptions().addETag(new byte[] { 8 });
+		validation.send();
+		Thread.sleep(100);
+		Request request = send("n=8");
+
+		Response valid = validation.waitForResponse(2000);
+		Assert.assertNotNull(valid);
+		Assert.assertEquals(ResponseCode.VALID, valid.getCode());
+
+		// the 2.03 of the first request must not answer the second
+		Response response = request.waitForResponse(2000);
+		Assert.assertNotNull(response);
+		Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+		Assert.assertEquals("n=8 computed 2", response.getPayloadString());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		ResponseCache cache = new ResponseCache(2, 1024);
+		resource.setResponseCache(cache);
+
+		get("n=1"); get("n=2"); get("n=3");
+		Assert.assertEquals(2, cache.getSize());
+		Assert.assertEquals(1, cache.getEvictions());
+
+		// n=1 has been evicted and must be computed again
+		get("n=1");
+		Assert.assertEquals(4, resource.computed.get());
+	}
+
+	private Request send(String query) throws Exception {
+		Request request = new Request(Code.GET);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		request.getOptions().addURIQuery(query);
+		request.send();
+		return request;
+	}
+
+	private Response get(String query) throws Exception {
+		Response response = send(query).waitForResponse(1000);
+		Assert.assertNotNull(response);
+		Assert.assertEquals(ResponseCode.CONTENT, response.getCode());
+		return response;
+	}
+
+	private static class ExpensiveResource extends ResourceBase {
+
+		private final AtomicInteger computed = new AtomicInteger();
+		private volatile long delay = 0;
+
+		// handle concurrent requests concurrently even on a single core
+		private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+		public ExpensiveResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public Executor getExecutor() {
+			return pool;
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			int count = computed.incrementAndGet();
+			try { Thread.sleep(delay); } catch (InterruptedException e) { }
+			if (exchange.getRequestOptions().getETagCount() > 0) {
+				exchange.setETag(exchange.getRequestOptions().getETags().get(0));
+				exchange.respond(ResponseCode.VALID);
+				return;
+			}
+			String query = exchange.getRequestOptions().getURIQueries().get(0);
+			exchange.respond(query+" computed "+count);
+		}
+	}
+}
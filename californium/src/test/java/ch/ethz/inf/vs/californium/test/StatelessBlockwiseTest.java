@@ -0,0 +1,160 @@
+package ch.ethz.inf.vs.californium.test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ch.ethz.inf.vs.californium.coap.BlockOption;
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.Endpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.EndpointManager.ClientMessageDeliverer;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * This test checks that the blocks of a large response with an ETag are
+ * served from the shared representation cache of the server's blockwise layer
+ * to any client without invoking the resource again, and that a client
+ * rejects a transfer whose blocks come from different representations.
+ */
+public class StatelessBlockwiseTest {
+
+	private static final String TARGET = "large";
+	private static final String SLICED = "sliced";
+	private static final String LONG_GET_RESPONSE  = "<Long response 1x2x3x4x5x>".replace("x", "abcdefghijklmnopqrstuvwxyz ");
+
+	private Server server;
+	private int serverPort;
+	private LargeResource resource;
+
+	private Endpoint clientEndpoint;
+
+	@Before
+	public void setupServer() throws Exception {
+		System.out.println("\nStart "+getClass().getSimpleName());
+		EndpointManager.clear();
+
+		NetworkConfig config = new NetworkConfig()
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, 32)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 32)
+			.setBoolean(NetworkConfigDefaults.BLOCKWISE_STATELESS_BLOCK2, true);
+
+		CoAPEndpoint endpoint = new CoAPEndpoint(config);
+		resource = new LargeResource(TARGET);
+		server = new Server();
+		server.add(resource);
+		server.add(new SlicedResource(SLICED));
+		server.addEndpoint(endpoint);
+		server.start();
+		serverPort = endpoint.getAddress().getPort();
+
+		clientEndpoint = new CoAPEndpoint(config);
+		clientEndpoint.setMessageDeliverer(new ClientMessageDeliverer());
+		clientEndpoint.start();
+	}
+
+	@After
+	public void shutdownServer() {
+		clientEndpoint.destroy();
+		server.destroy();
+		System.out.println("End "+getClass().getSimpleName());
+	}
+
+	@Test
+	public void testBlocksFromRepresentation() throws Exception {
+		Response response = get(null);
+		Assert.assertEquals(LONG_GET_RESPONSE, response.getPayloadString());
+		Assert.assertEquals(1, resource.handled.get());
+
+		// another download from block 2 on needs no handler invocation
+		Response later = get(2);
+		Assert.assertEquals(LONG_GET_RESPONSE.substring(64), later.getPayloadString());
+		Assert.assertEquals(1, resource.handled.get());
+
+		// a change is only visible with a new transfer from block 0
+		resource.changed();
+		get(null);
+		Assert.assertEquals(2, resource.handled.get());
+	}
+
+	@Test
+	public void testChangedRepresentationIsRejected() throws Exception {
+		Request request = new Request(Code.GET);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(SLICED);
+		clientEndpoint.sendRequest(request);
+
+		// block 1 has another ETag than block 0
+		Assert.assertNull(request.waitForResponse(1000));
+		Assert.assertTrue(request.isCanceled());
+	}
+
+	private Response get(Integer num) throws Exception {
+		Request request = new Request(Code.GET);
+		request.setDestination(InetAddress.getLocalHost());
+		request.setDestinationPort(serverPort);
+		request.getOptions().addURIPath(TARGET);
+		if (num != null)
+			request.getOptions().setBlock2(1, false, num);
+		clientEndpoint.sendRequest(request);
+		Response response = request.waitForResponse(1000);
+		Assert.assertNotNull(response);
+		return response;
+	}
+
+	private static class LargeResource extends ResourceBase {
+
+		private final AtomicInteger handled = new AtomicInteger();
+
+		public LargeResource(String name) {
+			super(name);
+			setVersioned(true);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			handled.incrementAndGet();
+			exchange.respond(LONG_GET_RESPONSE);
+		}
+	}
+
+	/*
+	 * Slices the blocks itself and changes its representation after the
+	 * first block.
+	 */
+	private static class SlicedResource extends ResourceBase {
+
+		public SlicedResource(String name) {
+			super(name);
+		}
+
+		@Override
+		public void handleGET(CoapExchange exchange) {
+			BlockOption block2 = exchange.getRequestOptions().getBlock2();
+			int num = block2 != null ? block2.getNum() : 0;
+			byte[] payload = LONG_GET_RESPONSE.getBytes();
+			int from = num * 32;
+			int to = Math.min(from + 32, payload.length);
+			Response response = new Response(ResponseCode.CONTENT);
+			response.getOptions().setBlock2(1, to < payload.length, num);
+			response.getOptions().addETag(new byte[] { (byte) (num == 0 ? 1 : 2) });
+			response.setPayload(Arrays.copyOfRange(payload, from, to));
+			exchange.respond(response);
+		}
+	}
+}
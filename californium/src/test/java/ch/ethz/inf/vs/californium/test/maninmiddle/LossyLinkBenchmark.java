@@ -0,0 +1,140 @@
+package ch.ethz.inf.vs.californium.test.maninmiddle;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+import ch.ethz.inf.vs.californium.CaliforniumLogger;
+import ch.ethz.inf.vs.californium.CoapClient;
+import ch.ethz.inf.vs.californium.CoapResponse;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.EmptyMessage;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.network.CoAPEndpoint;
+import ch.ethz.inf.vs.californium.network.EndpointManager;
+import ch.ethz.inf.vs.californium.network.MessageInterceptor;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfig;
+import ch.ethz.inf.vs.californium.network.config.NetworkConfigDefaults;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * Compares the fixed block sizes 1024 and 64 with the adaptive block size on
+ * a link without loss and on a link that fragments datagrams and loses
+ * fragments like a 6LoWPAN network. The client downloads and uploads a large
+ * representation blockwise through the {@link ManInTheMiddle} and the
+ * benchmark prints the time, the datagrams and the retransmissions.
+ */
+public class LossyLinkBenchmark {
+
+	private static final int SIZE = 8 * 1024;
+	private static final int TRANSFERS = 5;
+
+	/* The payload of an IEEE 802.15.4 frame after the 6LoWPAN headers */
+	private static final int FRAGMENT_SIZE = 96;
+
+	public static void main(String[] args) throws Exception {
+		CaliforniumLogger.disableLogging();
+
+		System.out.println("link      blocks     time [ms]  datagrams  lost  retransmissions  failed");
+		// warm up
+		run(0, "warm-up", createConfig(1024, true));
+		for (double loss:new double[] {0, 0.02, 0.05}) {
+			run(loss, "fixed 1024", createConfig(1024, false));
+			run(loss, "fixed 64", createConfig(64, false));
+			run(loss, "adaptive", createConfig(1024, true));
+		}
+	}
+
+	private static NetworkConfig createConfig(int blockSize, boolean adaptive) {
+		return new NetworkConfig()
+			.setInt(NetworkConfigDefaults.ACK_TIMEOUT, 200)
+			.setFloat(NetworkConfigDefaults.ACK_RANDOM_FACTOR, 1.5f)
+			.setInt(NetworkConfigDefaults.MAX_RETRANSMIT, 8)
+			.setInt(NetworkConfigDefaults.MAX_MESSAGE_SIZE, 1024)
+			.setInt(NetworkConfigDefaults.DEFAULT_BLOCK_SIZE, blockSize)
+			.setBoolean(NetworkConfigDefaults.BLOCKWISE_STATELESS_BLOCK2, false)
+			.setBoolean(NetworkConfigDefaults.BLOCKWISE_ADAPTIVE_SIZE, adaptive);
+	}
+
+	private static void run(double loss, String name, NetworkConfig config) throws Exception {
+		final byte[] representation = new byte[SIZE];
+		for (int i=0;i<SIZE;i++)
+			representation[i] = (byte) i;
+
+		CoAPEndpoint serverEndpoint = new CoAPEndpoint(config);
+		Server server = new Server();
+		server.add(new ResourceBase("large") {
+			@Override
+			public void handleGET(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CONTENT, representation);
+			}
+			@Override
+			public void handlePUT(CoapExchange exchange) {
+				exchange.respond(ResponseCode.CHANGED);
+			}
+		});
+		server.addEndpoint(serverEndpoint);
+		server.start();
+
+		CoAPEndpoint clientEndpoint = new CoAPEndpoint(config);
+		clientEndpoint.setMessageDeliverer(new EndpointManager.ClientMessageDeliverer());
+		RetransmissionCounter counter = new RetransmissionCounter();
+		clientEndpoint.addInterceptor(counter);
+		clientEndpoint.start();
+
+		InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		ManInTheMiddle middle = new ManInTheMiddle(
+				new InetSocketAddress(loopback, clientEndpoint.getAddress().getPort()),
+				new InetSocketAddress(loopback, serverEndpoint.getAddress().getPort()));
+		middle.setFragmentLoss(FRAGMENT_SIZE, loss);
+
+		CoapClient client = new CoapClient("coap://127.0.0.1:"+middle.getAddress().getPort()+"/large");
+		client.setEndpoint(clientEndpoint);
+		client.setTimeout(60 * 1000);
+
+		int failed = 0;
+		long start = System.nanoTime();
+		for (int i=0;i<TRANSFERS;i++) {
+			CoapResponse response = client.get();
+			if (response == null || response.getPayload().length != SIZE)
+				failed++;
+			response = client.put(representation, 0);
+			if (response == null || response.getCode() != ResponseCode.CHANGED)
+				failed++;
+		}
+		long time = (System.nanoTime() - start) / 1000000;
+
+		System.out.println(String.format("%-9s %-10s %9d  %9d  %4d  %15d  %6d",
+				loss > 0 ? (int) (loss * 100)+"% loss" : "LAN", name, time, middle.getForwardedCount(),
+				middle.getLostCount(), counter.retransmissions, failed));
+
+		middle.stop();
+		clientEndpoint.destroy();
+		server.destroy();
+	}
+
+	/*
+	 * Counts the requests that the client sends more than once.
+	 */
+	private static class RetransmissionCounter implements MessageInterceptor {
+
+		private final Set<Integer> mids = new HashSet<Integer>();
+		private volatile int retransmissions;
+
+		@Override
+		public synchronized void sendRequest(Request request) {
+			if (!mids.add(request.getMID()))
+				retransmissions++;
+		}
+
+		@Override public void sendResponse(Response response) { }
+		@Override public void sendEmptyMessage(EmptyMessage message) { }
+		@Override public void receiveRequest(Request request) { }
+		@Override public void receiveResponse(Response response) { }
+		@Override public void receiveEmptyMessage(EmptyMessage message) { }
+	}
+}
@@ -5,10 +5,14 @@ import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.Arrays;
+import java.util.Random;
 
 /**
  * The man in the middle is between the server and client and monitors the
- * communication. It can drop a packet to simulate packet loss.
+ * communication. It can drop a packet to simulate packet loss. It can also
+ * simulate a link that fragments datagrams and loses each fragment with a
+ * certain probability, e.g., 6LoWPAN. A datagram is lost if any of its
+ * fragments is lost.
  */
 public class ManInTheMiddle implements Runnable {
 
@@ -22,6 +26,12 @@ public class ManInTheMiddle implements Runnable {
 	
 	private int current = 0;
 	private int[] drops = new int[0];
+	
+	private Random random = new Random(0);
+	private volatile int fragmentSize = 0;
+	private volatile double fragmentLoss = 0;
+	private volatile int forwarded = 0;
+	private volatile int lost = 0;
 
 	public ManInTheMiddle(SocketAddress clientAddress, SocketAddress serveraAddress) throws Exception {
 		this.clientAddress = clientAddress;
@@ -35,6 +45,29 @@ public class ManInTheMiddle implements Runnable {
 
 	public void reset() {
 		current = 0;
+		forwarded = 0;
+		lost = 0;
+	}
+	
+	/**
+	 * Drops datagrams at random as if the link split them into fragments of
+	 * the specified size and lost each fragment with the specified rate.
+	 * 
+	 * @param fragmentSize the size of a fragment in bytes
+	 * @param rate the probability that a fragment is lost
+	 */
+	public void setFragmentLoss(int fragmentSize, double rate) {
+		System.out.println("Man in the middle will lose "+rate+" of fragments of "+fragmentSize+" bytes");
+		this.fragmentSize = fragmentSize;
+		this.fragmentLoss = rate;
+	}
+	
+	public int getForwardedCount() {
+		return forwarded;
+	}
+	
+	public int getLostCount() {
+		return lost;
 	}
 	
 	public void drop(int... numbers) {
@@ -52,6 +85,9 @@ public class ManInTheMiddle implements Runnable {
 				if (contains(drops, current)) {
 					System.out.println("Drop packet "+current);
 				
+				} else if (isFragmentLost(packet.getLength())) {
+					lost++;
+				
 				} else {
 					if (packet.getSocketAddress().equals(serverAddress))
 						packet.setSocketAddress(clientAddress);
@@ -59,11 +95,13 @@ public class ManInTheMiddle implements Runnable {
 						packet.setSocketAddress(serverAddress);
 				
 					socket.send(packet);
+					forwarded++;
 				}
 				current++;
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			if (running) // the socket is closed on stop
+				e.printStackTrace();
 		}
 	}
 	
@@ -76,6 +114,16 @@ public class ManInTheMiddle implements Runnable {
 		return new InetSocketAddress(socket.getLocalAddress(), socket.getLocalPort());
 	}
 	
+	private boolean isFragmentLost(int length) {
+		if (fragmentSize <= 0 || fragmentLoss <= 0)
+			return false;
+		int fragments = (length + fragmentSize - 1) / fragmentSize;
+		for (int i=0;i<fragments;i++)
+			if (random.nextDouble() < fragmentLoss)
+				return true;
+		return false;
+	}
+	
 	private boolean contains(int[] array, int value) {
 		for (int a:array)
 			if (a == value)
@@ -0,0 +1,147 @@
+package ch.ethz.inf.vs.californium.examples;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.ethz.inf.vs.californium.proxy.DirectProxyCoAPResolver;
+import ch.ethz.inf.vs.californium.proxy.ProxyHttpServer;
+import ch.ethz.inf.vs.californium.resources.proxy.ProxyCoapClientResource;
+import ch.ethz.inf.vs.californium.server.Server;
+import ch.ethz.inf.vs.californium.server.resources.CoapExchange;
+import ch.ethz.inf.vs.californium.server.resources.ResourceBase;
+
+/**
+ * Load test for the HTTP-to-CoAP proxy. It starts a CoAP server with a
+ * resource that responds after a delay and an HTTP proxy in front of it, then
+ * lets concurrent HTTP clients send requests through the proxy. It reports the
+ * latency percentiles and how many threads the process had while the requests
+ * were pending. Run it on two revisions of the proxy to compare them:
+ * <pre>
+ * ProxyLoadTest [clients [requests per client [delay in ms [http port]]]]
+ * </pre>
+ */
+public class ProxyLoadTest {
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		long delay = args.length > 2 ? Long.parseLong(args[2]) : 200;
+		int httpPort = args.length > 3 ? Integer.parseInt(args[3]) : 8080;
+
+		final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+		Server server = new Server(0);
+		ProxyCoapClientResource coap2coap = new ProxyCoapClientResource("coap2coap");
+		server.add(coap2coap);
+		server.add(new SlowResource("slow", timer, delay));
+		server.start();
+		int coapPort = server.getEndpoints().get(0).getAddress().getPort();
+
+		ProxyHttpServer proxy = new ProxyHttpServer(httpPort);
+		proxy.setProxyCoapResolver(new DirectProxyCoAPResolver(coap2coap));
+		final URL url = new URL("http://localhost:"+httpPort+"/proxy/coap://localhost:"+coapPort+"/slow");
+
+		// warm up
+		fetch(url);
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int idleThreads = threads.getThreadCount();
+		threads.resetPeakThreadCount();
+
+		final long[] latencies = new long[clients * requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(clients);
+		long start = System.nanoTime();
+		for (int i=0;i<clients;i++) {
+			final int count = requests;
+			Thread client = new Thread("Client "+i) {
+				public void run() {
+					for (int j=0;j<count;j++) {
+						long t0 = System.nanoTime();
+						try {
+							if (fetch(url) != 200) failures.incrementAndGet();
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+						latencies[next.getAndIncrement()] = System.nanoTime() - t0;
+					}
+					done.countDown();
+				}
+			};
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		// the client threads are not part of the proxy
+		int peakThreads = threads.getPeakThreadCount() - clients;
+		Arrays.sort(latencies);
+		System.out.println("Requests:        "+latencies.length+" ("+failures.get()+" failed) from "+clients+" clients");
+		System.out.println("Throughput:      "+(latencies.length * 1000L / Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsed)))+" requests/s");
+		System.out.println("Latency p50:     "+percentile(latencies, 0.50)+" ms");
+		System.out.println("Latency p90:     "+percentile(latencies, 0.90)+" ms");
+		System.out.println("Latency p99:     "+percentile(latencies, 0.99)+" ms");
+		System.out.println("Latency max:     "+percentile(latencies, 1.00)+" ms");
+		System.out.println("Threads idle:    "+idleThreads);
+		System.out.println("Threads peak:    "+peakThreads+" (without clients)");
+
+		timer.shutdown();
+		server.destroy();
+		System.exit(0);
+	}
+
+	private static int fetch(URL url) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setConnectTimeout(10000);
+		connection.setReadTimeout(60000);
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (in != null) {
+			byte[] buffer = new byte[512];
+			while (in.read(buffer) >= 0);
+			in.close();
+		}
+		return status;
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+	}
+
+	/*
+	 * Responds after a delay without blocking a thread of the server.
+	 */
+	private static class SlowResource extends ResourceBase {
+
+		private final ScheduledExecutorService timer;
+		private final long delay;
+
+		public SlowResource(String name, ScheduledExecutorService timer, long delay) {
+			super(name);
+			this.timer = timer;
+			this.delay = delay;
+		}
+
+		@Override
+		public void handleGET(final CoapExchange exchange) {
+			exchange.accept();
+			timer.schedule(new Runnable() {
+				public void run() {
+					exchange.respond("slow");
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package ch.ethz.inf.vs.californium.examples;
+
+import java.nio.charset.Charset;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+
+import ch.ethz.inf.vs.californium.coap.CoAP.Code;
+import ch.ethz.inf.vs.californium.coap.CoAP.ResponseCode;
+import ch.ethz.inf.vs.californium.coap.MediaTypeRegistry;
+import ch.ethz.inf.vs.californium.coap.Request;
+import ch.ethz.inf.vs.californium.coap.Response;
+import ch.ethz.inf.vs.californium.resources.proxy.HttpTranslator;
+import ch.ethz.inf.vs.californium.resources.proxy.TranslationException;
+
+/**
+ * Measures the throughput of the HTTP/CoAP translations of the proxy. Each
+ * case translates the same message over and over again in a single thread and
+ * reports the translations per second. Run it on two revisions of the
+ * translator to compare them:
+ * <pre>
+ * TranslationBenchmark [iterations [rounds]]
+ * </pre>
+ */
+public class TranslationBenchmark {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final String TEXT = "<html><body>"
+			+ "Gr\u00fc\u00dfe aus Z\u00fcrich, the quick brown fox jumps over the lazy dog. "
+			+ "The quick brown fox jumps over the lazy dog. The quick brown fox jumps over the lazy dog."
+			+ "</body></html>";
+
+	public static void main(String[] args) throws Exception {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		final BasicHttpEntityEnclosingRequest httpPost = new BasicHttpEntityEnclosingRequest("POST", "/local/resource", HttpVersion.HTTP_1_1);
+		httpPost.addHeader("Accept", "text/plain");
+		httpPost.addHeader("If-Match", "abcdef");
+		httpPost.addHeader("Cache-Control", "max-age=30");
+		httpPost.addHeader("User-Agent", "TranslationBenchmark");
+		httpPost.setEntity(new ByteArrayEntity(TEXT.getBytes(ISO_8859_1), ContentType.create("text/html", ISO_8859_1)));
+
+		final BasicHttpResponse httpResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+		httpResponse.addHeader("ETag", "0123456789");
+		httpResponse.addHeader("Cache-Control", "max-age=60");
+		httpResponse.addHeader("Server", "TranslationBenchmark");
+		httpResponse.setEntity(new ByteArrayEntity(TEXT.getBytes(UTF_8), ContentType.create("text/html", UTF_8)));
+
+		final Request coapRequest = new Request(Code.PUT);
+		coapRequest.getOptions().setProxyURI("http://localhost:8080/resource?q=1");
+		coapRequest.getOptions().addETag(new byte[] { 1, 2, 3, 4 });
+		coapRequest.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+		coapRequest.setPayload("The quick brown fox jumps over the lazy dog.");
+
+		final Response coapResponse = new Response(ResponseCode.CONTENT);
+		coapResponse.getOptions().setMaxAge(30);
+		coapResponse.getOptions().addETag(new byte[] { 5, 6, 7, 8 });
+		coapResponse.getOptions().setContentFormat(MediaTypeRegistry.APPLICATION_JSON);
+		coapResponse.setPayload("{\"temperature\":21.5,\"unit\":\"C\",\"sensor\":\"Z\u00fcrich\"}");
+		final BasicHttpRequest httpGet = new BasicHttpRequest("GET", "/proxy/coap://localhost/resource", HttpVersion.HTTP_1_1);
+
+		Translation[] cases = new Translation[] {
+			new Translation("HTTP request to CoAP") {
+				void translate() throws TranslationException {
+					HttpTranslator.getCoapRequest(httpPost, "proxy", true);
+				}
+			},
+			new Translation("HTTP response to CoAP") {
+				void translate() throws TranslationException {
+					HttpTranslator.getCoapResponse(httpResponse, coapRequest);
+				}
+			},
+			new Translation("CoAP request to HTTP") {
+				void translate() throws TranslationException {
+					HttpTranslator.getHttpRequest(coapRequest);
+				}
+			},
+			new Translation("CoAP response to HTTP") {
+				void translate() throws TranslationException {
+					HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+					HttpTranslator.getHttpResponse(httpGet, coapResponse, response);
+				}
+			}
+		};
+
+		for (Translation translation : cases) {
+			// warm up
+			translation.run(iterations);
+			double best = 0;
+			for (int i = 0; i < rounds; i++)
+				best = Math.max(best, translation.run(iterations));
+			System.out.println(String.format("%-24s %12.0f translations/s", translation.name, best));
+		}
+	}
+
+	private static abstract class Translation {
+
+		private final String name;
+
+		private Translation(String name) {
+			this.name = name;
+		}
+
+		abstract void translate() throws TranslationException;
+
+		private double run(int iterations) throws TranslationException {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				translate();
+			return iterations / ((System.nanoTime() - start) / 1e9);
+		}
+	}
+}
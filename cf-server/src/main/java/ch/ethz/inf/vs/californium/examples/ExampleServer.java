@@ -23,8 +23,10 @@ public class ExampleServer {
 		Server server = new Server();
 		server.setExecutor(Executors.newScheduledThreadPool(4));
 		
+		FibonacciResource fibonacci = new FibonacciResource("fibonacci");
 		server.add(new HelloWorldResource("hello"));
-		server.add(new FibonacciResource("fibonacci"));
+		server.add(fibonacci);
+		server.enableResponseCache(fibonacci); // results never change
 		server.add(new StorageResource("storage"));
 		server.add(new ImageResource("image"));
 		server.add(new MirrorResource("mirror"));